@@ -0,0 +1,46 @@
+package tonyg.example.com.bleechoclient;
+
+import android.app.Application;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+
+import tonyg.example.com.bleechoclient.metrics.BleMetrics;
+
+/**
+ * Starts the Bluetooth service as soon as the process exists, so that the radio is
+ * being set up while the Activity is still inflating its layout.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleChatApplication extends Application {
+    private static final String TAG = BleChatApplication.class.getSimpleName();
+    private static final int ANDROID_7 = 24;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        BleMetrics.getInstance().trace(BleMetrics.TRACE_PROCESS_START, getProcessStartTime());
+
+        // the service sets up the radio and starts scanning on a background thread
+        startService(new Intent(this, BleService.class));
+    }
+
+    /**
+     * Get when this process was started.  Before Android 7 the best available is now
+     *
+     * @return the process start time on the SystemClock.elapsedRealtime() clock
+     */
+    private static long getProcessStartTime() {
+        if (Build.VERSION.SDK_INT >= ANDROID_7) {
+            try {
+                return (Long) Process.class.getMethod("getStartElapsedRealtime").invoke(null);
+            } catch (Exception e) {
+                // fall through
+            }
+        }
+        return SystemClock.elapsedRealtime();
+    }
+}
@@ -0,0 +1,1247 @@
+package tonyg.example.com.bleechoclient;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.ScanResult;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import tonyg.example.com.bleechoclient.ble.AdvertisementParser;
+import tonyg.example.com.bleechoclient.ble.BleCommManager;
+import tonyg.example.com.bleechoclient.ble.BlePeripheral;
+import tonyg.example.com.bleechoclient.ble.ScanProfile;
+import tonyg.example.com.bleechoclient.ble.callbacks.BleScanCallbackv18;
+import tonyg.example.com.bleechoclient.ble.callbacks.BleScanCallbackv21;
+import tonyg.example.com.bleechoclient.ble.hub.HubGattServer;
+import tonyg.example.com.bleechoclient.ble.hub.RelayHub;
+import tonyg.example.com.bleechoclient.ble.stream.Flow;
+import tonyg.example.com.bleechoclient.ble.telemetry.TelemetryBuffer;
+import tonyg.example.com.bleechoclient.ble.transfer.FileTransfer;
+import tonyg.example.com.bleechoclient.ble.transport.OutboundQueue;
+import tonyg.example.com.bleechoclient.history.MessageLog;
+import tonyg.example.com.bleechoclient.history.Outbox;
+import tonyg.example.com.bleechoclient.metrics.BleMetrics;
+import tonyg.example.com.bleechoclient.metrics.ClockSync;
+import tonyg.example.com.exampleblescan.R;
+
+/**
+ * Owns the Bluetooth connection to the echo server, so that it outlives the Activity.
+ *
+ * A rotation, the notification shade or switching apps only unbinds the Activity;
+ * the GATT link stays up, and the next Activity to bind picks it up where it was
+ * instead of scanning, connecting and discovering services again.  While connected
+ * the service runs in the foreground.
+ *
+ * Events are delivered to the bound Listener on the main thread.
+ *
+ * The radio is set up on a background thread as soon as the service is created, and
+ * a scan starts without waiting for the Activity if Bluetooth is already on.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleService extends Service {
+    /** Constants **/
+    private static final String TAG = BleService.class.getSimpleName();
+    private static final int NOTIFICATION_ID = 1;
+    private static final String MESSAGE_LOG_DIRECTORY = "message_log";
+    private static final String OUTBOX_FILE = "outbox.journal";
+    private static final String FILE_TRANSFER_PREFERENCES = "file_transfers";
+    private static final String FILE_LENGTH_SUFFIX = ":length";
+    private static final long FILE_TRANSFER_SAVE_INTERVAL = 16 * 1024; // acknowledged bytes between saved offsets
+    private static final int MAX_BURST_LENGTH = 512; // characters of queued messages sent as one
+    private static final long CLOCK_SYNC_INTERVAL = 1000; // milliseconds between time exchanges
+    private static final int CLOCK_SYNC_LOG_INTERVAL = 30; // time exchanges between latency log lines
+    private static final long RECONNECT_SCAN_PERIOD = 10 * 60 * 1000; // Android quietly weakens scans after 30 minutes
+    private static final long RECONNECT_SCAN_DELAY = 5000; // milliseconds between reconnect scans
+    private static final byte[] ECHO_SERVER_NAME = BlePeripheral.DEVICE_NAME.getBytes(Charset.forName(BlePeripheral.CHARACTER_ENCODING));
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_SCANNING = 1;
+    public static final int STATE_CONNECTING = 2;
+    public static final int STATE_CONNECTED = 3;
+
+    /** Bluetooth Stuff **/
+    private volatile BleCommManager mBleCommManager;
+    private BlePeripheral mBlePeripheral;
+    private volatile BluetoothGattCharacteristic mCharacteristic;
+    private int mConnectionState = STATE_IDLE;
+    private boolean mCharacteristicReadable = false;
+    private boolean mCharacteristicWritable = false;
+    private int mL2capPsm = 0; // the echo firmware only speaks GATT
+    private boolean mScanStarted = false;
+    private boolean mBluetoothInitialized = false;
+    private boolean mDisconnectRequested = false;
+    private boolean mReconnecting = false;
+    private final AdvertisementParser mAdvertisementParser = new AdvertisementParser();
+
+    /** Hub stuff.  Other devices can connect to this one and chat through it **/
+    private final RelayHub mRelayHub = new RelayHub();
+    private volatile HubGattServer mHubGattServer;
+
+    /** Message history **/
+    private MessageLog mMessageLog;
+    private Outbox mOutbox;
+
+    /** File transfer stuff **/
+    private volatile FileTransfer mFileTransfer;
+    private SharedPreferences mFileTransferOffsets;
+    private long mSavedFileTransferOffset = 0;
+
+    private final IBinder mBinder = new LocalBinder();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private Listener mListener;
+
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mBlePeripheral = new BlePeripheral(this);
+        try {
+            mMessageLog = new MessageLog(new File(getFilesDir(), MESSAGE_LOG_DIRECTORY));
+        } catch (Exception e) {
+            Log.d(TAG, "Could not open message log");
+        }
+        try {
+            mOutbox = new Outbox(new File(getFilesDir(), OUTBOX_FILE));
+        } catch (Exception e) {
+            Log.d(TAG, "Could not open outbox");
+        }
+        mFileTransferOffsets = getSharedPreferences(FILE_TRANSFER_PREFERENCES, MODE_PRIVATE);
+        mBlePeripheral.getInboundMessages().subscribe(mMessageLogSubscriber);
+        initializeBluetoothInBackground();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // nothing to resume if the process is killed; the Activity starts a fresh scan
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mBleCommManager != null && mConnectionState == STATE_SCANNING) {
+            stopScanning();
+        }
+        stopHub();
+        mReconnecting = false;
+        mHandler.removeCallbacks(mReconnectScanRunnable);
+        mHandler.removeCallbacks(mClockSyncRunnable);
+        mBlePeripheral.disconnect();
+        mBlePeripheral.close();
+        mBlePeripheral.getInboundMessages().complete();
+        if (mMessageLog != null) {
+            mMessageLog.close();
+        }
+        if (mOutbox != null) {
+            mOutbox.close();
+        }
+    }
+
+
+    /**
+     * Get the Bluetooth radio ready
+     *
+     * @return the BleCommManager
+     * @throws Exception Bluetooth Low Energy is not supported on this Android device
+     */
+    public synchronized BleCommManager initializeBluetooth() throws Exception {
+        if (mBleCommManager == null) {
+            mBleCommManager = new BleCommManager(this);
+        }
+        return mBleCommManager;
+    }
+
+    /**
+     * Set up the radio off the main thread, then start scanning if nobody has yet.
+     * If Bluetooth is off or missing, the Activity deals with it once told the radio is ready
+     */
+    private void initializeBluetoothInBackground() {
+        new Thread(TAG) {
+            @Override
+            public void run() {
+                boolean initialized;
+                try {
+                    initializeBluetooth();
+                    initialized = true;
+                } catch (Exception e) {
+                    Log.d(TAG, "Could not initialize bluetooth: " + e.getMessage());
+                    initialized = false;
+                }
+                final boolean canScan = initialized;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (canScan && !mScanStarted && mConnectionState == STATE_IDLE
+                                && mBleCommManager.getBluetoothAdapter().isEnabled()) {
+                            try {
+                                startScan();
+                            } catch (Exception e) {
+                                Log.d(TAG, "Can't create Ble Device Scanner");
+                            }
+                        }
+                        mBluetoothInitialized = true;
+                        if (mListener != null) {
+                            mListener.onBluetoothInitialized();
+                        }
+                    }
+                });
+            }
+        }.start();
+    }
+
+    /**
+     * Determine if the startup attempt to set up the radio has finished.
+     * Until it has, the service may still start scanning on its own
+     *
+     * @return <b>true</b> once it has finished, whether or not it succeeded
+     */
+    public boolean isBluetoothInitialized() {
+        return mBluetoothInitialized;
+    }
+
+    /**
+     * Set who hears about connection events.  Pass <b>null</b> when the Activity goes away
+     *
+     * @param listener the Listener
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Get the connection state
+     *
+     * @return one of STATE_IDLE, STATE_SCANNING, STATE_CONNECTING or STATE_CONNECTED
+     */
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    /**
+     * Get the connected Peripheral
+     *
+     * @return the Peripheral, or <b>null</b> if not connected
+     */
+    public BluetoothDevice getConnectedDevice() {
+        if (mConnectionState != STATE_CONNECTED) {
+            return null;
+        }
+        return mBlePeripheral.getBluetoothDevice();
+    }
+
+    /**
+     * Determine if the echo Characteristic can be read from
+     *
+     * @return <b>true</b> once services are discovered and the Characteristic is readable
+     */
+    public boolean isCharacteristicReadable() {
+        return mCharacteristicReadable;
+    }
+
+    /**
+     * Determine if the echo Characteristic can be written to
+     *
+     * @return <b>true</b> once services are discovered and the Characteristic is writable
+     */
+    public boolean isCharacteristicWritable() {
+        return mCharacteristicWritable;
+    }
+
+    /**
+     * Get the log of sent and received messages
+     *
+     * @return the MessageLog, or <b>null</b> if it could not be opened
+     */
+    public MessageLog getMessageLog() {
+        return mMessageLog;
+    }
+
+
+    /**
+     * Start a short scan for Peripherals at low latency, for someone waiting to connect
+     *
+     * @throws Exception if the scan could not be started
+     */
+    public void startScan() throws Exception {
+        startScan(ScanProfile.LOW_LATENCY, BleCommManager.SCAN_PERIOD);
+    }
+
+    /**
+     * Start scanning for Peripherals
+     *
+     * @param scanProfile how hard to work the radio.  Use LOW_POWER for discovery that runs unattended
+     * @param scanPeriod milliseconds to scan for, or 0 to scan until a Peripheral is found or stopScanning()
+     * @throws Exception if the scan could not be started
+     */
+    public void startScan(ScanProfile scanProfile, long scanPeriod) throws Exception {
+        initializeBluetooth();
+        mScanStarted = true;
+        mConnectionState = STATE_SCANNING;
+        BleMetrics.getInstance().trace(BleMetrics.TRACE_SCAN_START, SystemClock.elapsedRealtime());
+        mBleCommManager.scanForPeripherals(scanProfile, scanPeriod, mScanCallbackv18, mScanCallbackv21);
+    }
+
+    /**
+     * Stop scanning for Peripherals
+     */
+    public void stopScanning() {
+        if (mBleCommManager != null) {
+            mBleCommManager.stopScanning(mScanCallbackv18, mScanCallbackv21);
+        }
+    }
+
+    /**
+     * Connect to Peripheral
+     *
+     * @param bluetoothDevice the Peripheral
+     */
+    public void connect(BluetoothDevice bluetoothDevice) {
+        mConnectionState = STATE_CONNECTING;
+        mDisconnectRequested = false;
+        try {
+            mBlePeripheral.connect(bluetoothDevice, mGattCallback);
+        } catch (Exception e) {
+            mConnectionState = STATE_IDLE;
+            Log.d(TAG, "Error connecting to device");
+            if (mReconnecting) {
+                scheduleReconnectScan();
+            }
+        }
+    }
+
+    /**
+     * Disconnect from Peripheral, or stop looking for one that dropped.
+     * The service stops once the link is down
+     */
+    public void disconnect() {
+        mDisconnectRequested = true;
+        mReconnecting = false;
+        mHandler.removeCallbacks(mReconnectScanRunnable);
+        if (mConnectionState == STATE_CONNECTED || mConnectionState == STATE_CONNECTING) {
+            mBlePeripheral.disconnect();
+        } else {
+            if (mConnectionState == STATE_SCANNING) {
+                stopScanning();
+            }
+            stopForeground(true);
+            stopSelf();
+        }
+    }
+
+    /**
+     * Have bulk data go over an L2CAP channel on this PSM, where the Peripheral and
+     * this Android device support it.  Takes effect on the next connection
+     *
+     * @param psm the Protocol/Service Multiplexer the Peripheral listens on, or 0 to use GATT only
+     */
+    public void setL2capPsm(int psm) {
+        mL2capPsm = psm;
+    }
+
+    /**
+     * Send a line of text to the echo server without delay, and log it
+     *
+     * @param text the text, without a trailing newline
+     * @throws Exception if the text could not be queued
+     */
+    public void sendMessage(String text) throws Exception {
+        sendMessage(text, true);
+    }
+
+    /**
+     * Send a line of text to the echo server, and log it.  It is kept in the Outbox
+     * until it has been written, so it goes out when the next connection comes up
+     * if the link is down now
+     *
+     * @param text the text, without a trailing newline
+     * @param urgent <b>true</b> if someone is waiting to see it.  Otherwise it may wait
+     *               briefly to share packets with the next messages
+     * @throws Exception if the text could not be queued
+     */
+    public void sendMessage(String text, boolean urgent) throws Exception {
+        if (mOutbox == null) {
+            if (mCharacteristic == null) {
+                throw new Exception("Not connected");
+            }
+            mBlePeripheral.writeValueToCharacteristic(text + "\n", mCharacteristic, urgent);
+        } else {
+            mOutbox.submit(text);
+            drainOutbox(urgent);
+        }
+        if (mMessageLog != null) {
+            mMessageLog.append(MessageLog.DIRECTION_SENT, text);
+        }
+    }
+
+    /**
+     * Get the number of messages waiting to be written to the echo server
+     *
+     * @return the number of messages in the Outbox
+     */
+    public int getNumQueuedMessages() {
+        return mOutbox != null ? mOutbox.size() : 0;
+    }
+
+    /**
+     * Write everything waiting in the Outbox, several messages at a time.
+     * Each burst leaves the Outbox once all of it has been written
+     *
+     * @param flushNow <b>true</b> to write the last burst without waiting for company
+     */
+    private void drainOutbox(boolean flushNow) {
+        if (mOutbox == null || mCharacteristic == null) {
+            return;
+        }
+        List<Outbox.Entry> batch;
+        while (!(batch = mOutbox.takeBatch(MAX_BURST_LENGTH)).isEmpty()) {
+            StringBuilder burst = new StringBuilder();
+            for (Outbox.Entry entry : batch) {
+                burst.append(entry.text).append('\n');
+            }
+            try {
+                mBlePeripheral.writeValueToCharacteristic(burst.toString(), mCharacteristic, new OutboxCallback(batch), flushNow);
+            } catch (Exception e) {
+                Log.d(TAG, "Could not write queued messages: " + e.getMessage());
+                mOutbox.release(batch);
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Stream a file to the echo server on the bulk lane.  A file that was partly sent
+     * before resumes from what the echo server acknowledged, even after the app restarts,
+     * and a transfer the link interrupts resumes on the next connection.  Progress goes
+     * to the Listener
+     *
+     * @param file the file
+     * @return the transfer
+     * @throws Exception if the file can't be read, or another file is still being sent
+     */
+    public FileTransfer sendFile(File file) throws Exception {
+        FileTransfer fileTransfer = mFileTransfer;
+        if (fileTransfer != null && fileTransfer.isInProgress()) {
+            throw new Exception("Still sending " + fileTransfer.getFile());
+        }
+        long startOffset = getSavedFileTransferOffset(file);
+        fileTransfer = new FileTransfer(file, startOffset, mFileTransferListener);
+        synchronized (this) {
+            mSavedFileTransferOffset = startOffset;
+        }
+        mFileTransfer = fileTransfer;
+        resumeFileTransfer();
+        return fileTransfer;
+    }
+
+    /**
+     * Get the latest file transfer
+     *
+     * @return the transfer, finished or not, or <b>null</b> if no file has been sent
+     */
+    public FileTransfer getFileTransfer() {
+        return mFileTransfer;
+    }
+
+    /**
+     * Start or resume the file transfer, if there is one and the link is up
+     */
+    private void resumeFileTransfer() {
+        FileTransfer fileTransfer = mFileTransfer;
+        if (fileTransfer == null || fileTransfer.isComplete() || mCharacteristic == null) {
+            return;
+        }
+        try {
+            mBlePeripheral.sendFile(fileTransfer, mCharacteristic);
+        } catch (Exception e) {
+            Log.d(TAG, "Could not resume sending " + fileTransfer.getFile() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Find how much of a file the echo server acknowledged before
+     *
+     * @param file the file
+     * @return the acknowledged offset, or 0 if the file is new or has changed since
+     */
+    private long getSavedFileTransferOffset(File file) {
+        String key = file.getAbsolutePath();
+        if (mFileTransferOffsets.getLong(key + FILE_LENGTH_SUFFIX, -1) != file.length()) {
+            return 0;
+        }
+        return mFileTransferOffsets.getLong(key, 0);
+    }
+
+    private synchronized void saveFileTransferOffset(FileTransfer fileTransfer, long acknowledgedOffset) {
+        mSavedFileTransferOffset = acknowledgedOffset;
+        String key = fileTransfer.getFile().getAbsolutePath();
+        mFileTransferOffsets.edit()
+                .putLong(key, acknowledgedOffset)
+                .putLong(key + FILE_LENGTH_SUFFIX, fileTransfer.getLength())
+                .apply();
+    }
+
+    /**
+     * Saves how far the file transfer got, and passes its progress to the Listener
+     */
+    private final FileTransfer.Listener mFileTransferListener = new FileTransfer.Listener() {
+        @Override
+        public void onTransferProgress(final FileTransfer transfer, final long acknowledgedOffset, final long length, final double bytesPerSecond) {
+            synchronized (BleService.this) {
+                if (acknowledgedOffset - mSavedFileTransferOffset >= FILE_TRANSFER_SAVE_INTERVAL) {
+                    saveFileTransferOffset(transfer, acknowledgedOffset);
+                }
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mListener != null) {
+                        mListener.onFileTransferProgress(transfer, acknowledgedOffset, length, bytesPerSecond);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onTransferComplete(final FileTransfer transfer) {
+            String key = transfer.getFile().getAbsolutePath();
+            mFileTransferOffsets.edit().remove(key).remove(key + FILE_LENGTH_SUFFIX).apply();
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mListener != null) {
+                        mListener.onFileTransferComplete(transfer);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onTransferInterrupted(final FileTransfer transfer, final long acknowledgedOffset) {
+            saveFileTransferOffset(transfer, acknowledgedOffset);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mListener != null) {
+                        mListener.onFileTransferInterrupted(transfer, acknowledgedOffset);
+                    }
+                }
+            });
+        }
+    };
+
+
+    /**
+     * Have the echo server stream sensor samples
+     *
+     * @param numChannels how many samples in each sample set
+     * @param sampleRate sample sets per second
+     * @return the buffer the samples will arrive in
+     * @throws Exception if not connected, or the echo server doesn't stream telemetry
+     */
+    public TelemetryBuffer startTelemetry(int numChannels, int sampleRate) throws Exception {
+        if (mCharacteristic == null) {
+            throw new Exception("Not connected");
+        }
+        return mBlePeripheral.startTelemetry(mCharacteristic, numChannels, sampleRate);
+    }
+
+    /**
+     * Have the echo server stop streaming sensor samples
+     *
+     * @throws Exception if not connected
+     */
+    public void stopTelemetry() throws Exception {
+        if (mCharacteristic == null) {
+            throw new Exception("Not connected");
+        }
+        mBlePeripheral.stopTelemetry(mCharacteristic);
+    }
+
+    /**
+     * Get the buffer sensor samples arrive in
+     *
+     * @return the buffer, or <b>null</b> if telemetry hasn't been started this connection
+     */
+    public TelemetryBuffer getTelemetryBuffer() {
+        return mBlePeripheral.getTelemetryBuffer();
+    }
+
+
+    /**
+     * Let other devices connect to this one as if it were the echo server.  What they
+     * write is relayed through the echo server this device is connected to, and what
+     * it echoes is relayed back to all of them.  While not connected, they are echoed
+     * to each other
+     *
+     * @throws Exception if this device can't serve or advertise
+     */
+    public synchronized void startHub() throws Exception {
+        if (mHubGattServer != null) {
+            return;
+        }
+        HubGattServer hubGattServer = new HubGattServer(this, mRelayHub);
+        hubGattServer.start();
+        mHubGattServer = hubGattServer;
+    }
+
+    /**
+     * Disconnect every device connected to this one, and stop advertising
+     */
+    public synchronized void stopHub() {
+        if (mHubGattServer != null) {
+            mHubGattServer.stop();
+            mHubGattServer = null;
+        }
+    }
+
+    /**
+     * Count the devices connected to this one
+     *
+     * @return the number of devices chatting through this one
+     */
+    public int getNumHubPeers() {
+        return mRelayHub.getPeers().size();
+    }
+
+
+    /**
+     * Keep the process alive while connected, with a notification that leads back to the Activity
+     *
+     * @param bluetoothDevice the connected Peripheral
+     */
+    private void startForeground(BluetoothDevice bluetoothDevice) {
+        Intent activityIntent = new Intent(this, MainActivity.class);
+        activityIntent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, activityIntent, 0);
+
+        Notification notification = new Notification.Builder(this)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.connected_to, bluetoothDevice.getName()))
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .build();
+        startForeground(NOTIFICATION_ID, notification);
+    }
+
+    /**
+     * Log each message received from the Characteristic, one at a time
+     */
+    private final Flow.Subscriber<String> mMessageLogSubscriber = new Flow.Subscriber<String>() {
+        private Flow.Subscription mSubscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            mSubscription = subscription;
+            mSubscription.request(1);
+        }
+
+        @Override
+        public void onNext(String message) {
+            if (mMessageLog != null) {
+                mMessageLog.append(MessageLog.DIRECTION_RECEIVED, message);
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mListener != null) {
+                        mListener.onMessageLogChanged();
+                    }
+                }
+            });
+            mSubscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            Log.d(TAG, "Inbound message stream failed: " + throwable.getMessage());
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    };
+
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onCharacteristicRead(final BluetoothGatt gatt,
+                                         final BluetoothGattCharacteristic characteristic,
+                                         int status) {
+
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                // read more at http://developer.android.com/guide/topics/connectivity/bluetooth-le.html#notification
+                mBlePeripheral.onCharacteristicValueReceived(characteristic.getValue());
+            }
+
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            // let the Peripheral send the next packet in queue
+            mBlePeripheral.onCharacteristicWritten(characteristic, status);
+
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                Log.d(TAG, "characteristic written");
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mListener != null) {
+                            mListener.onBleCharacteristicValueWritten();
+                        }
+                    }
+                });
+            } else {
+                Log.d(TAG, "problem writing characteristic");
+
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            // notifications are on, so the Peripheral's answer to the hello will arrive
+            if (status == BluetoothGatt.GATT_SUCCESS && mCharacteristic != null) {
+                try {
+                    mBlePeripheral.negotiateLink(mCharacteristic);
+                } catch (Exception e) {
+                    Log.d(TAG, "Could not negotiate the link: " + e.getMessage());
+                }
+                mHandler.removeCallbacks(mClockSyncRunnable);
+                mHandler.postDelayed(mClockSyncRunnable, CLOCK_SYNC_INTERVAL);
+            }
+            // what queued up while the link was down goes out now, echoed or not
+            postDrainOutbox();
+        }
+
+        @Override
+        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+            // let the Peripheral send the message after the transaction
+            mBlePeripheral.onReliableWriteCompleted(status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+            // the notification carries the new value.  Reading it back instead would
+            // miss notifications that arrive while the read is in flight
+            byte[] value = characteristic.getValue();
+            mBlePeripheral.onCharacteristicValueReceived(value);
+            if (mHubGattServer != null) {
+                mRelayHub.onUpstreamValueReceived(value);
+            }
+        }
+
+        @Override
+        public void onConnectionStateChange(final BluetoothGatt bluetoothGatt, int status, int newState) {
+
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                Log.d(TAG, "Connected to device");
+                BleMetrics.getInstance().trace(BleMetrics.TRACE_CONNECTED, SystemClock.elapsedRealtime());
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mConnectionState = STATE_CONNECTED;
+                        mReconnecting = false;
+                        startForeground(bluetoothGatt.getDevice());
+                        if (mListener != null) {
+                            mListener.onBleConnected(bluetoothGatt.getDevice());
+                        }
+                    }
+                });
+
+                bluetoothGatt.discoverServices();
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                Log.d(TAG, "Disconnected from device");
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mConnectionState = STATE_IDLE;
+                        mCharacteristic = null;
+                        mRelayHub.setUpstream(null);
+                        mHandler.removeCallbacks(mClockSyncRunnable);
+                        mCharacteristicReadable = false;
+                        mCharacteristicWritable = false;
+                        mBlePeripheral.close();
+                        if (mOutbox != null) {
+                            mOutbox.releaseAll();
+                        }
+                        stopForeground(true);
+                        // a dropped link is looked for until it's back or the user gives up, so queued
+                        // messages go out when it is.  It may be a while, so the radio only listens now and then
+                        boolean reconnecting = !mDisconnectRequested;
+                        if (reconnecting) {
+                            try {
+                                initializeBluetooth();
+                                mReconnecting = true;
+                                mReconnectScanRunnable.run();
+                            } catch (Exception e) {
+                                Log.d(TAG, "Can't create Ble Device Scanner");
+                                reconnecting = false;
+                            }
+                        }
+                        if (mListener != null) {
+                            mListener.onBleDisconnected(reconnecting);
+                        }
+                        if (!reconnecting) {
+                            // nothing left to keep alive
+                            stopSelf();
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(final BluetoothGatt bluetoothGatt, int status) {
+            Log.d(TAG, "SERVICE DISCOVERED!: ");
+            if (BleMetrics.getInstance().trace(BleMetrics.TRACE_SERVICES_DISCOVERED, SystemClock.elapsedRealtime())) {
+                Log.d(TAG, "Startup: " + BleMetrics.getInstance().describeStartupTrace());
+            }
+
+            // if services were discovered, then let's iterate through them and display them on screen
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                // check if there are matching services and characteristics
+                BluetoothGattService service = bluetoothGatt.getService(BlePeripheral.SERVICE_UUID);
+                if (service != null) {
+                    Log.d(TAG, "service found");
+                    final BluetoothGattCharacteristic readCharacteristic = service.getCharacteristic(BlePeripheral.READ_CHARACTERISTIC_UUID);
+                    final BluetoothGattCharacteristic writeCharacteristic = service.getCharacteristic(BlePeripheral.WRITE_CHARACTERISTIC_UUID);
+
+                    mCharacteristic = writeCharacteristic;
+                    mCharacteristicReadable = BlePeripheral.isCharacteristicReadable(readCharacteristic);
+                    mCharacteristicWritable = BlePeripheral.isCharacteristicWritable(writeCharacteristic);
+                    mRelayHub.setUpstream(new HubUpstream(writeCharacteristic));
+
+                    if (BlePeripheral.isCharacteristicNotifiable(readCharacteristic)) {
+                        mBlePeripheral.setCharacteristicNotification(readCharacteristic, true);
+                    } else {
+                        // no descriptor write to wait for before writing
+                        postDrainOutbox();
+                    }
+                    // the Characteristic carries everything until the channel opens, and again if it closes
+                    if (mL2capPsm > 0) {
+                        mBlePeripheral.openL2capChannel(mL2capPsm);
+                    }
+                }
+
+
+            } else {
+                Log.d(TAG, "Something went wrong while discovering GATT services from this device");
+            }
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mListener != null) {
+                        mListener.onBleServiceDiscovered();
+                    }
+                }
+            });
+
+        }
+    };
+
+
+    /**
+     * Use this callback for Android API 21 (Lollipop) or greater
+     */
+    private final BleScanCallbackv21 mScanCallbackv21 = new BleScanCallbackv21() {
+        /**
+         * New Peripheral discovered
+         *
+         * @param callbackType int: Determines how this callback was triggered. Could be one of CALLBACK_TYPE_ALL_MATCHES, CALLBACK_TYPE_FIRST_MATCH or CALLBACK_TYPE_MATCH_LOST
+         * @param result a Bluetooth Low Energy Scan Result, containing the Bluetooth Device, RSSI, and other information
+         */
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            onBlePeripheralDiscovered(result.getDevice(), result.getRssi(), getScanRecord(result));
+        }
+
+        /**
+         * Several peripherals discovered when scanning in low power mode
+         *
+         * @param results List: List of scan results that are previously scanned.
+         */
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            // one pass over the whole batch: connect once, to the closest echo server
+            ScanResult closestResult = null;
+            for (ScanResult result : results) {
+                if (isEchoServer(result.getDevice(), getScanRecord(result))) {
+                    if (closestResult == null || result.getRssi() > closestResult.getRssi()) {
+                        closestResult = result;
+                    }
+                }
+            }
+
+            if (closestResult != null) {
+                onBlePeripheralDiscovered(closestResult.getDevice(), closestResult.getRssi(), getScanRecord(closestResult));
+            }
+        }
+
+        /**
+         * Scan failed to initialize
+         *
+         * @param errorCode	int: Error code (one of SCAN_FAILED_*) for scan failure.
+         */
+        @Override
+        public void onScanFailed(int errorCode) {
+            switch (errorCode) {
+                case SCAN_FAILED_ALREADY_STARTED:
+                    Log.e(TAG, "Fails to start scan as BLE scan with the same settings is already started by the app.");
+                    break;
+                case SCAN_FAILED_APPLICATION_REGISTRATION_FAILED:
+                    Log.e(TAG, "Fails to start scan as app cannot be registered.");
+                    break;
+                case SCAN_FAILED_FEATURE_UNSUPPORTED:
+                    Log.e(TAG, "Fails to start power optimized scan as this feature is not supported.");
+                    break;
+                default: // SCAN_FAILED_INTERNAL_ERROR
+                    Log.e(TAG, "Fails to start scan due an internal error");
+
+            }
+
+            onScanComplete();
+        }
+
+        /**
+         * Scan completed
+         */
+        public void onScanComplete() {
+            onBleScanStopped();
+        }
+    };
+
+
+    /**
+     * Use this callback for Android API 18, 19, and 20 (before Lollipop)
+     */
+    private final BleScanCallbackv18 mScanCallbackv18 = new BleScanCallbackv18() {
+
+        /**
+         *  Bluetooth LE Scan complete - timer expired out while searching for bluetooth devices
+         */
+        @Override
+        public void onLeScan(final BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord) {
+            onBlePeripheralDiscovered(bluetoothDevice, rssi, scanRecord);
+        }
+
+        @Override
+        public void onScanComplete() {
+            onBleScanStopped();
+        }
+    };
+
+    /**
+     * Event trigger when new Peripheral is discovered
+     */
+    private void onBlePeripheralDiscovered(final BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord) {
+        BleMetrics.getInstance().trace(BleMetrics.TRACE_FIRST_SCAN_RESULT, SystemClock.elapsedRealtime());
+        // only connect to the device if it is an echo server
+        if (isEchoServer(bluetoothDevice, scanRecord)) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // results can still arrive after the first match stopped the scan
+                    if (mConnectionState == STATE_SCANNING) {
+                        stopScanning();
+                        connect(bluetoothDevice);
+                        if (mListener != null) {
+                            mListener.onBleConnecting(bluetoothDevice);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Determine if a discovered Peripheral is one we can talk to.
+     *
+     * The advertisement is read in place.  BluetoothDevice.getName() is a call into
+     * the Bluetooth process, so it is only used when there is no scan record
+     *
+     * @param bluetoothDevice the Peripheral
+     * @param scanRecord the raw advertisement and scan response, or <b>null</b>
+     * @return <b>true</b> if it advertises the echo server's name or service
+     */
+    private boolean isEchoServer(BluetoothDevice bluetoothDevice, byte[] scanRecord) {
+        if (scanRecord == null) {
+            return BlePeripheral.DEVICE_NAME.equals(bluetoothDevice.getName());
+        }
+        // scan callbacks can arrive on more than one binder thread
+        synchronized (mAdvertisementParser) {
+            mAdvertisementParser.parse(scanRecord);
+            return mAdvertisementParser.localNameEquals(ECHO_SERVER_NAME)
+                    || mAdvertisementParser.hasServiceUuid(BlePeripheral.SERVICE_UUID);
+        }
+    }
+
+    /**
+     * Get the raw bytes of a scan result's advertisement
+     *
+     * @param result the scan result
+     * @return the scan record, or <b>null</b> if there is none
+     */
+    private static byte[] getScanRecord(ScanResult result) {
+        return result.getScanRecord() != null ? result.getScanRecord().getBytes() : null;
+    }
+
+    /**
+     * Event trigger when BLE Scanning has stopped
+     */
+    private void onBleScanStopped() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mConnectionState == STATE_SCANNING) {
+                    mConnectionState = STATE_IDLE;
+                }
+                if (mReconnecting && mConnectionState == STATE_IDLE) {
+                    // the scan ran out or failed, or Bluetooth went off, before the Peripheral was found
+                    scheduleReconnectScan();
+                    return;
+                }
+                if (mListener != null) {
+                    mListener.onBleScanStopped(mConnectionState == STATE_IDLE);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Look for a Peripheral that dropped, in scans of RECONNECT_SCAN_PERIOD, until it's
+     * found or disconnect() is called
+     */
+    private final Runnable mReconnectScanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mReconnecting || mConnectionState != STATE_IDLE) {
+                return;
+            }
+            try {
+                startScan(ScanProfile.LOW_POWER, RECONNECT_SCAN_PERIOD);
+            } catch (Exception e) {
+                // such as while Bluetooth is off
+                Log.d(TAG, "Could not scan for the Peripheral: " + e.getMessage());
+                mConnectionState = STATE_IDLE;
+                scheduleReconnectScan();
+            }
+        }
+    };
+
+    /**
+     * Scan for the dropped Peripheral again after RECONNECT_SCAN_DELAY
+     */
+    private void scheduleReconnectScan() {
+        mHandler.removeCallbacks(mReconnectScanRunnable);
+        mHandler.postDelayed(mReconnectScanRunnable, RECONNECT_SCAN_DELAY);
+    }
+
+    /**
+     * Exchange times with the echo server every CLOCK_SYNC_INTERVAL while connected,
+     * once it has said it can, so BleMetrics has the round trip split into its parts
+     */
+    private final Runnable mClockSyncRunnable = new Runnable() {
+        private int mNumExchangesLogged = 0;
+
+        @Override
+        public void run() {
+            if (mCharacteristic == null) {
+                return;
+            }
+            if (mBlePeripheral.isClockSyncEnabled()) {
+                try {
+                    mBlePeripheral.requestTime(mCharacteristic);
+                } catch (Exception e) {
+                    Log.d(TAG, "Could not request the echo server's time: " + e.getMessage());
+                }
+                ClockSync clockSync = mBlePeripheral.getClockSync();
+                int numExchanges = clockSync.getNumExchanges();
+                if (numExchanges % CLOCK_SYNC_LOG_INTERVAL == 1 && numExchanges != mNumExchangesLogged) {
+                    Log.d(TAG, "Latency: " + clockSync.describe());
+                    mNumExchangesLogged = numExchanges;
+                }
+            }
+            mHandler.postDelayed(this, CLOCK_SYNC_INTERVAL);
+        }
+    };
+
+    /**
+     * Drain the Outbox on the main thread, where sendMessage() drains it too, then resume
+     * an interrupted file transfer behind it.  Nobody is waiting on what was held back,
+     * so it may share packets
+     */
+    private void postDrainOutbox() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                drainOutbox(false);
+                resumeFileTransfer();
+            }
+        });
+    }
+
+    /**
+     * Relays what devices connected to this one write to the echo server
+     */
+    private class HubUpstream implements RelayHub.Upstream {
+        private final BluetoothGattCharacteristic mWriteCharacteristic;
+
+        HubUpstream(BluetoothGattCharacteristic writeCharacteristic) {
+            mWriteCharacteristic = writeCharacteristic;
+        }
+
+        @Override
+        public void send(int lane, ByteBuffer data) {
+            try {
+                mBlePeripheral.writeLaneData(mWriteCharacteristic, lane, data);
+            } catch (Exception e) {
+                Log.d(TAG, "Could not relay to the echo server");
+            }
+        }
+    }
+
+    /**
+     * Takes a burst out of the Outbox once it is written, or puts it back if it isn't
+     */
+    private class OutboxCallback implements OutboundQueue.Callback {
+        private final List<Outbox.Entry> mBatch;
+
+        OutboxCallback(List<Outbox.Entry> batch) {
+            mBatch = batch;
+        }
+
+        @Override
+        public void onMessageProgress(ByteBuffer message, int bytesWritten) {
+        }
+
+        @Override
+        public void onMessageWritten(ByteBuffer message) {
+            try {
+                mOutbox.acknowledge(mBatch);
+            } catch (Exception e) {
+                // still in flight, so not sent again this connection
+                Log.d(TAG, "Could not record queued messages as sent: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onMessageFailed(ByteBuffer message, int bytesWritten) {
+            mOutbox.release(mBatch);
+        }
+    }
+
+
+    /**
+     * Lets a bound Activity reach the service
+     */
+    public class LocalBinder extends Binder {
+        public BleService getService() {
+            return BleService.this;
+        }
+    }
+
+
+    /**
+     * Connection events, delivered on the main thread
+     */
+    public interface Listener {
+        /**
+         * The startup attempt to set up the radio finished.  The service may have started scanning
+         */
+        void onBluetoothInitialized();
+
+        /**
+         * Scanning stopped
+         *
+         * @param nothingFound <b>true</b> if the scan ended without finding an echo server
+         */
+        void onBleScanStopped(boolean nothingFound);
+
+        /**
+         * An echo server was found and is being connected to
+         */
+        void onBleConnecting(BluetoothDevice bluetoothDevice);
+
+        /**
+         * Bluetooth Peripheral connected
+         */
+        void onBleConnected(BluetoothDevice bluetoothDevice);
+
+        /**
+         * Bluetooth Peripheral disconnected
+         *
+         * @param reconnecting <b>true</b> if the link dropped and the service is scanning for it again
+         */
+        void onBleDisconnected(boolean reconnecting);
+
+        /**
+         * GATT services were discovered.  Check isCharacteristicReadable() and isCharacteristicWritable()
+         */
+        void onBleServiceDiscovered();
+
+        /**
+         * A packet was written to the Characteristic
+         */
+        void onBleCharacteristicValueWritten();
+
+        /**
+         * Messages were added to the MessageLog
+         */
+        void onMessageLogChanged();
+
+        /**
+         * The echo server acknowledged more of the file being sent
+         *
+         * @param transfer the transfer
+         * @param acknowledgedOffset bytes acknowledged so far
+         * @param length total bytes in the file
+         * @param bytesPerSecond throughput since the transfer was last started
+         */
+        void onFileTransferProgress(FileTransfer transfer, long acknowledgedOffset, long length, double bytesPerSecond);
+
+        /**
+         * The whole file was acknowledged
+         *
+         * @param transfer the transfer
+         */
+        void onFileTransferComplete(FileTransfer transfer);
+
+        /**
+         * The link dropped mid-transfer.  It resumes from acknowledgedOffset on the next connection
+         *
+         * @param transfer the transfer
+         * @param acknowledgedOffset where the transfer will resume from
+         */
+        void onFileTransferInterrupted(FileTransfer transfer, long acknowledgedOffset);
+    }
+}
@@ -1,41 +1,42 @@
-
-
 package tonyg.example.com.bleechoclient;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothProfile;
-import android.bluetooth.le.ScanResult;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.Bundle;
-import android.os.Looper;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.Button;
+import android.widget.ListView;
 import android.widget.TextView;
 
-import java.util.List;
-
 import tonyg.example.com.bleechoclient.ble.BleCommManager;
-import tonyg.example.com.bleechoclient.ble.callbacks.BleScanCallbackv21;
+import tonyg.example.com.bleechoclient.ble.transfer.FileTransfer;
+import tonyg.example.com.bleechoclient.history.MessageLogAdapter;
+import tonyg.example.com.bleechoclient.metrics.BleMetrics;
 import tonyg.example.com.exampleblescan.R;
-import tonyg.example.com.bleechoclient.ble.BlePeripheral;
-import tonyg.example.com.bleechoclient.ble.callbacks.BleScanCallbackv18;
 
 /**
  * Connect to a BLE Device, list its GATT services
  *
+ * The connection itself lives in BleService, so it survives this Activity being
+ * paused, rotated or recreated.  It is only torn down when the user leaves.
+ *
+ * The service is bound before the layout is inflated, and connection state is shown
+ * as soon as it is known rather than after the menu is created.
+ *
  * @author Tony Gaitatzis backupbrain@gmail.com
  * @date 2015-12-21
  */
@@ -45,20 +46,29 @@ public class MainActivity extends AppCompatActivity {
     private final static int REQUEST_ENABLE_BT = 1;
 
     /** Bluetooth Stuff **/
-    private BleCommManager mBleCommManager;
-    private BlePeripheral mBlePeripheral;
-    private BluetoothGattCharacteristic mCharacteristic;
+    private BleService mBleService;
 
     /** UI Stuff **/
     private MenuItem mProgressSpinner;
-    private TextView mResponseText, mSendText, mDeviceNameTV, mDeviceAddressTV;
+    private boolean mProgressVisible = true;
+    private TextView mSendText, mDeviceNameTV, mDeviceAddressTV;
+    private ListView mResponseList;
+    private MessageLogAdapter mMessageLogAdapter;
     private Button mSendButton;
 
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+
+        // started as well as bound, so the connection outlives this Activity.
+        // Ask before inflating anything so the radio is set up in the meantime
+        Intent serviceIntent = new Intent(this, BleService.class);
+        startService(serviceIntent);
+        bindService(serviceIntent, mServiceConnection, Context.BIND_AUTO_CREATE);
+
         setContentView(R.layout.activity_main);
+        traceFirstFrame();
 
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
@@ -68,28 +78,51 @@ public class MainActivity extends AppCompatActivity {
         registerReceiver(mBleBroadcastReceiver, filter);
 
         loadUI();
-
-        mBlePeripheral = new BlePeripheral(this);
-
-    }
-
-    @Override
-    public void onPause() {
-        super.onPause();
-        stopScanning();
-        disconnect();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        try {
+            unregisterReceiver(mBleBroadcastReceiver);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "receiver not registered");
+        }
+        if (mBleService != null) {
+            mBleService.setListener(null);
+            // a configuration change keeps the link warm for the next Activity.
+            // Leaving for good ends it
+            if (isFinishing()) {
+                mBleService.stopScanning();
+                mBleService.disconnect();
+            }
+        }
+        if (mMessageLogAdapter != null) {
+            mMessageLogAdapter.close();
+        }
+        unbindService(mServiceConnection);
+    }
+
+    /**
+     * Record when the first frame is drawn
+     */
+    private void traceFirstFrame() {
+        final View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                BleMetrics.getInstance().trace(BleMetrics.TRACE_FIRST_FRAME, SystemClock.elapsedRealtime());
+                return true;
+            }
+        });
     }
 
     /**
      * Prepare the UI elements
      */
     public void loadUI() {
-        mResponseText = (TextView) findViewById(R.id.response_text);
+        mResponseList = (ListView) findViewById(R.id.response_list);
         mSendText = (TextView) findViewById(R.id.write_text);
         mDeviceNameTV = (TextView)findViewById(R.id.broadcast_name);
         mDeviceAddressTV = (TextView)findViewById(R.id.mac_address);
@@ -98,7 +131,7 @@ public class MainActivity extends AppCompatActivity {
 
         mSendButton.setVisibility(View.GONE);
         mSendText.setVisibility(View.GONE);
-        mResponseText.setVisibility(View.GONE);
+        mResponseList.setVisibility(View.GONE);
     }
 
 
@@ -114,28 +147,65 @@ public class MainActivity extends AppCompatActivity {
         getMenuInflater().inflate(R.menu.menu_main, menu);
 
         mProgressSpinner = menu.findItem(R.id.scan_progress_item);
-        mProgressSpinner.setVisible(true);
-
-        initializeBluetooth();
+        mProgressSpinner.setVisible(mProgressVisible);
 
         return true;
     }
 
 
+    /**
+     * Show or hide the progress spinner.  Remembered until the menu exists
+     *
+     * @param visible <b>true</b> to show it
+     */
+    private void setProgressVisible(boolean visible) {
+        mProgressVisible = visible;
+        if (mProgressSpinner != null) {
+            mProgressSpinner.setVisible(visible);
+        }
+    }
+
+    /**
+     * The service is bound.  Pick up the connection where it is, or start a new one
+     */
+    private void onBleServiceBound() {
+        switch (mBleService.getConnectionState()) {
+            case BleService.STATE_CONNECTED:
+                onBleConnected(mBleService.getConnectedDevice());
+                onBleServiceDiscovered();
+                break;
+            case BleService.STATE_CONNECTING:
+                mDeviceNameTV.setText(R.string.connecting);
+                setProgressVisible(true);
+                break;
+            case BleService.STATE_SCANNING:
+                onBleScanStarted();
+                break;
+            default:
+                // the service is still setting up the radio, and will say when it's done
+                if (mBleService.isBluetoothInitialized()) {
+                    initializeBluetooth();
+                }
+        }
+    }
+
+
     /**
      * Turn on Bluetooth radio
      */
     public void initializeBluetooth() {
+        BleCommManager bleCommManager;
         try {
-            mBleCommManager = new BleCommManager(this);
+            bleCommManager = mBleService.initializeBluetooth();
         } catch (Exception e) {
             Log.d(TAG, "Could not initialize bluetooth");
             Log.d(TAG, e.getMessage());
             finish();
+            return;
         }
 
         // should prompt user to open settings if Bluetooth is not enabled.
-        if (mBleCommManager.getBluetoothAdapter().isEnabled()) {
+        if (bleCommManager.getBluetoothAdapter().isEnabled()) {
             startScan();
         } else {
             Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
@@ -148,11 +218,10 @@ public class MainActivity extends AppCompatActivity {
      * Start scanning for Peripherals
      */
     private void startScan() {
-        mDeviceNameTV.setText(R.string.scanning);
-        mProgressSpinner.setVisible(true);
+        onBleScanStarted();
 
         try {
-            mBleCommManager.scanForPeripherals(mScanCallbackv18, mScanCallbackv21);
+            mBleService.startScan();
         } catch (Exception e) {
             Log.d(TAG, "Can't create Ble Device Scanner");
         }
@@ -160,10 +229,11 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * Stop scanning for Peripherals
+     * BLE Scanning has started.  Update UI
      */
-    public void stopScanning() {
-        mBleCommManager.stopScanning(mScanCallbackv18, mScanCallbackv21);
+    public void onBleScanStarted() {
+        mDeviceNameTV.setText(R.string.scanning);
+        setProgressVisible(true);
     }
 
     /**
@@ -172,78 +242,15 @@ public class MainActivity extends AppCompatActivity {
     public void onBleScanStopped() {
         mDeviceAddressTV.setText("");
         mDeviceNameTV.setText(R.string.no_perpiheral_found);
-        mProgressSpinner.setVisible(false);
+        setProgressVisible(false);
     }
 
-
-
     /**
-     * Connect to Peripheral
+     * Bluetooth Peripheral found.  Update UI
      */
-    public void connect(BluetoothDevice bluetoothDevice) {
+    public void onBleConnecting() {
         mDeviceNameTV.setText(R.string.connecting);
-        mProgressSpinner.setVisible(true);
-        try {
-            mBlePeripheral.connect(bluetoothDevice, mGattCallback);
-        } catch (Exception e) {
-            mProgressSpinner.setVisible(false);
-            Log.d(TAG, "Error connecting to device");
-        }
-    }
-
-    /**
-     * Disconnect from Peripheral
-     */
-    public void disconnect() {
-        mBlePeripheral.disconnect();
-        // remove callbacks
-        mSendButton.removeCallbacks(null);
-        try {
-            unregisterReceiver(mBleBroadcastReceiver);
-        } catch (IllegalArgumentException e) {
-            Log.e(TAG, "receiver not registered");
-        }
-        finish();
-    }
-
-
-
-    /**
-     * Update TextView when a new message is read from a Charactersitic
-     * Also scroll to the bottom so that new messages are always in view
-     *
-     * @param message the Characterstic value to display in the UI as text
-     */
-    public void updateResponseText(String message) {
-        mResponseText.append(message);
-        final int scrollAmount = mResponseText.getLayout().getLineTop(mResponseText.getLineCount()) - mResponseText.getHeight();
-        // if there is no need to scroll, scrollAmount will be <=0
-        if (scrollAmount > 0) {
-            mResponseText.scrollTo(0, scrollAmount);
-        } else {
-            mResponseText.scrollTo(0, 0);
-        }
-    }
-
-    /**
-     * Event trigger when new Peripheral is discovered
-     */
-    public void onBlePeripheralDiscovered(BluetoothDevice bluetoothDevice, int rssi) {
-        // only add the device if
-        // - it has a name, on
-        // - doesn't already exist in our list, or
-        // - is transmitting at a higher power (is closer) than an existing device
-        boolean addDevice = false;
-        if (bluetoothDevice.getName() != null) {
-            if (bluetoothDevice.getName().equals(BlePeripheral.DEVICE_NAME)) {
-                addDevice = true;
-            }
-        }
-
-        if (addDevice) {
-            stopScanning();
-            connect(bluetoothDevice);
-        }
+        setProgressVisible(true);
     }
 
     /**
@@ -252,16 +259,24 @@ public class MainActivity extends AppCompatActivity {
     public void onBleConnected(BluetoothDevice device) {
         mDeviceNameTV.setText(device.getName());
         mDeviceAddressTV.setText(device.getAddress());
-        mProgressSpinner.setVisible(false);
+        setProgressVisible(false);
     }
 
     /**
      * Bluetooth Peripheral disconnected.  Update UI
+     *
+     * @param reconnecting <b>true</b> if the service is looking for the Peripheral again
      */
-    public void onBleDisconnected() {
+    public void onBleDisconnected(boolean reconnecting) {
         mDeviceNameTV.setText("");
         mDeviceAddressTV.setText("");
-        mProgressSpinner.setVisible(false);
+        setProgressVisible(false);
+        if (reconnecting) {
+            // messages typed meanwhile wait in the Outbox for the link to come back
+            onBleScanStarted();
+        } else {
+            finish();
+        }
     }
 
 
@@ -269,25 +284,32 @@ public class MainActivity extends AppCompatActivity {
      * Bluetooth Peripheral GATT Profile being scanned.  Update UI
      */
     public void onBleServiceDiscovered() {
-        mProgressSpinner.setVisible(false);
+        setProgressVisible(false);
+
+        if (mBleService.isCharacteristicReadable()) {
+            onCharacteristicReadable();
+        }
+        if (mBleService.isCharacteristicWritable()) {
+            onCharacteristicWritable();
+        }
     }
 
 
     /**
      * Characterstic is readable
      */
-    public void onCharacteristicReadable(final BluetoothGattCharacteristic characteristic, final BluetoothGatt gatt) {
+    public void onCharacteristicReadable() {
         Log.d(TAG, "Characteristic is readable");
 
         // attach callbacks to the buttons and stuff
-        mResponseText.setVisibility(View.VISIBLE);
+        mResponseList.setVisibility(View.VISIBLE);
     }
 
 
     /**
      * characteristic supports writes.  Update UI
      */
-    public void onCharacteristicWritable(final BluetoothGattCharacteristic characteristic, final BluetoothGatt gatt) {
+    public void onCharacteristicWritable() {
         Log.d(TAG, "Characteristic is writable");
         // send features
 
@@ -298,9 +320,13 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onClick(View v) {
                 Log.d(TAG, "Send button clicked");
-                String value = mSendText.getText().toString()+"\n";
                 try {
-                    mBlePeripheral.writeValueToCharacteristic(value, mCharacteristic);
+                    mBleService.sendMessage(mSendText.getText().toString());
+                    if (mMessageLogAdapter != null) {
+                        mMessageLogAdapter.notifyDataSetChanged();
+                    }
+                    // it's safe in the Outbox, connected or not
+                    mSendText.setText("");
 
                 } catch (Exception e) {
                     Log.d(TAG, "problem sending message through bluetooth");
@@ -311,291 +337,133 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * Clear the input TextView when a Characteristic is successfully written to.
+     * A Characteristic was successfully written to.  The input TextView was already
+     * cleared when the message was queued, and may hold the next one by now
      */
     public void onBleCharacteristicValueWritten() {
-        mSendText.setText("");
     }
 
 
 
     /**
-     * When the Bluetooth radio turns on, initialize the Bluetooth connection
+     * Attach to the service that owns the connection
      */
-    private final BroadcastReceiver mBleBroadcastReceiver = new BroadcastReceiver() {
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mBleService = ((BleService.LocalBinder) binder).getService();
+            mBleService.setListener(mBleServiceListener);
 
-            if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
-                final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
-                        BluetoothAdapter.ERROR);
-                switch (state) {
-                    case BluetoothAdapter.STATE_OFF:
-                        initializeBluetooth();
-                        break;
-                    case BluetoothAdapter.STATE_TURNING_OFF:
-                        break;
-                    case BluetoothAdapter.STATE_ON:
-                        startScan();
-                        break;
-                    case BluetoothAdapter.STATE_TURNING_ON:
-                        break;
-                }
+            if (mBleService.getMessageLog() != null) {
+                mMessageLogAdapter = new MessageLogAdapter(MainActivity.this, mBleService.getMessageLog());
+                mResponseList.setAdapter(mMessageLogAdapter);
             }
-        }
-    };
 
+            onBleServiceBound();
+        }
 
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
-        public void onCharacteristicRead(final BluetoothGatt gatt,
-                                         final BluetoothGattCharacteristic characteristic,
-                                         int status) {
-
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                // read more at http://developer.android.com/guide/topics/connectivity/bluetooth-le.html#notification
-                final byte[] data = characteristic.getValue();
-
-                String message = "";
-                try {
-                    message = new String(data, mBlePeripheral.CHARACTER_ENCODING);
-                } catch (Exception e) {
-                    Log.d(TAG, "Could not convert message byte array to String");
-                }
-
-
-                Log.d(TAG, "received: "+message);
-
-                final String messageText = message;
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        updateResponseText(messageText);
-                    }
-                });
-
-                try {
-                    mBlePeripheral.processIncomingMessage(message, characteristic);
-                } catch (Exception e) {
-                    Log.d(TAG, "Could not send next message part");
-                }
+        public void onServiceDisconnected(ComponentName name) {
+            mBleService = null;
+        }
+    };
 
-            }
 
+    /**
+     * Update the UI as the connection changes
+     */
+    private final BleService.Listener mBleServiceListener = new BleService.Listener() {
+        @Override
+        public void onBluetoothInitialized() {
+            onBleServiceBound();
         }
 
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(TAG, "characteristic written");
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        onBleCharacteristicValueWritten();
-                    }
-                });
-            } else {
-                Log.d(TAG, "problem writing characteristic");
-
+        public void onBleScanStopped(boolean nothingFound) {
+            if (nothingFound) {
+                MainActivity.this.onBleScanStopped();
             }
         }
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
-            mBlePeripheral.readValueFromCharacteristic(characteristic);
 
+        @Override
+        public void onBleConnecting(BluetoothDevice bluetoothDevice) {
+            MainActivity.this.onBleConnecting();
         }
 
         @Override
-        public void onConnectionStateChange(final BluetoothGatt bluetoothGatt, int status, int newState) {
-
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                Log.d(TAG, "Connected to device");
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        onBleConnected(bluetoothGatt.getDevice());
-                    }
-                });
-
-                bluetoothGatt.discoverServices();
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                Log.d(TAG, "Disconnected from device");
-
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        onBleDisconnected();
-                    }
-                });
-
-                disconnect();
-            }
+        public void onBleConnected(BluetoothDevice bluetoothDevice) {
+            MainActivity.this.onBleConnected(bluetoothDevice);
         }
 
         @Override
-        public void onServicesDiscovered(final BluetoothGatt bluetoothGatt, int status) {
-            Log.d(TAG, "SERVICE DISCOVERED!: ");
-
-            // if services were discovered, then let's iterate through them and display them on screen
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                // check if there are matching services and characteristics
-                BluetoothGattService service = bluetoothGatt.getService(BlePeripheral.SERVICE_UUID);
-                if (service != null) {
-                    Log.d(TAG, "service found");
-                    final BluetoothGattCharacteristic readCharacteristic = service.getCharacteristic(BlePeripheral.READ_CHARACTERISTIC_UUID);
-                    final BluetoothGattCharacteristic writeCharacteristic = service.getCharacteristic(BlePeripheral.WRITE_CHARACTERISTIC_UUID);
-
-                    mCharacteristic = service.getCharacteristic(BlePeripheral.WRITE_CHARACTERISTIC_UUID);
-                    if (mBlePeripheral.isCharacteristicReadable(readCharacteristic)) {
-                        Log.d(TAG, "characteristic readable");
-                        runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                onCharacteristicReadable(readCharacteristic, bluetoothGatt);
-                            }
-                        });
-                    }
-
-
-                    if (mBlePeripheral.isCharacteristicWritable(writeCharacteristic)) {
-                        Log.d(TAG, "characteristic writeable");
-                        runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                onCharacteristicWritable(writeCharacteristic, bluetoothGatt);
-                            }
-                        });
-                    }
-
-
-                    if (mBlePeripheral.isCharacteristicNotifiable(readCharacteristic)) {
-                        mBlePeripheral.setCharacteristicNotification(readCharacteristic, true);
-                    }
-                }
-
-
-            } else {
-                Log.d(TAG, "Something went wrong while discovering GATT services from this device");
-            }
-
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    onBleServiceDiscovered();
-                }
-            });
-
+        public void onBleDisconnected(boolean reconnecting) {
+            MainActivity.this.onBleDisconnected(reconnecting);
         }
-    };
-
-
 
-
-
-    /**
-     * Use this callback for Android API 21 (Lollipop) or greater
-     */
-    private final BleScanCallbackv21 mScanCallbackv21 = new BleScanCallbackv21() {
-        /**
-         * New Peripheral discovered
-         *
-         * @param callbackType int: Determines how this callback was triggered. Could be one of CALLBACK_TYPE_ALL_MATCHES, CALLBACK_TYPE_FIRST_MATCH or CALLBACK_TYPE_MATCH_LOST
-         * @param result a Bluetooth Low Energy Scan Result, containing the Bluetooth Device, RSSI, and other information
-         */
         @Override
-        public void onScanResult(int callbackType, ScanResult result) {
-            BluetoothDevice bluetoothDevice = result.getDevice();
-            int rssi = result.getRssi();
-
-            onBlePeripheralDiscovered(bluetoothDevice, rssi);
+        public void onBleServiceDiscovered() {
+            MainActivity.this.onBleServiceDiscovered();
         }
 
-        /**
-         * Several peripherals discovered when scanning in low power mode
-         *
-         * @param results List: List of scan results that are previously scanned.
-         */
         @Override
-        public void onBatchScanResults(List<ScanResult> results) {
-            for (ScanResult result : results) {
-                BluetoothDevice bluetoothDevice = result.getDevice();
-                int rssi = result.getRssi();
-
-                onBlePeripheralDiscovered(bluetoothDevice, rssi);
-            }
+        public void onBleCharacteristicValueWritten() {
+            MainActivity.this.onBleCharacteristicValueWritten();
         }
 
-        /**
-         * Scan failed to initialize
-         *
-         * @param errorCode	int: Error code (one of SCAN_FAILED_*) for scan failure.
-         */
         @Override
-        public void onScanFailed(int errorCode) {
-            switch (errorCode) {
-                case SCAN_FAILED_ALREADY_STARTED:
-                    Log.e(TAG, "Fails to start scan as BLE scan with the same settings is already started by the app.");
-                    break;
-                case SCAN_FAILED_APPLICATION_REGISTRATION_FAILED:
-                    Log.e(TAG, "Fails to start scan as app cannot be registered.");
-                    break;
-                case SCAN_FAILED_FEATURE_UNSUPPORTED:
-                    Log.e(TAG, "Fails to start power optimized scan as this feature is not supported.");
-                    break;
-                default: // SCAN_FAILED_INTERNAL_ERROR
-                    Log.e(TAG, "Fails to start scan due an internal error");
-
+        public void onMessageLogChanged() {
+            if (mMessageLogAdapter != null) {
+                mMessageLogAdapter.notifyDataSetChanged();
             }
+        }
 
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    onBleScanStopped();
-                }
-            });
+        @Override
+        public void onFileTransferProgress(FileTransfer transfer, long acknowledgedOffset, long length, double bytesPerSecond) {
+            Log.d(TAG, String.format("Sent %d of %d bytes of %s, %.0f bytes/s",
+                    acknowledgedOffset, length, transfer.getFile().getName(), bytesPerSecond));
         }
 
-        /**
-         * Scan completed
-         */
-        public void onScanComplete() {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    onBleScanStopped();
-                }
-            });
+        @Override
+        public void onFileTransferComplete(FileTransfer transfer) {
+            Log.d(TAG, "Sent " + transfer.getFile().getName());
+        }
 
+        @Override
+        public void onFileTransferInterrupted(FileTransfer transfer, long acknowledgedOffset) {
+            Log.d(TAG, "Sending " + transfer.getFile().getName() + " stopped at " + acknowledgedOffset + " bytes");
         }
     };
 
 
     /**
-     * Use this callback for Android API 18, 19, and 20 (before Lollipop)
+     * When the Bluetooth radio turns on, initialize the Bluetooth connection
      */
-    private BleScanCallbackv18 mScanCallbackv18 = new BleScanCallbackv18() {
-
-        /**
-         *  Bluetooth LE Scan complete - timer expired out while searching for bluetooth devices
-         */
+    private final BroadcastReceiver mBleBroadcastReceiver = new BroadcastReceiver() {
         @Override
-        public void onLeScan(final BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord) {
-            onBlePeripheralDiscovered(bluetoothDevice, rssi);
-        }
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
 
-        @Override
-        public void onScanComplete() {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    onBleScanStopped();
+            if (mBleService == null) {
+                return;
+            }
+
+            if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
+                final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
+                        BluetoothAdapter.ERROR);
+                switch (state) {
+                    case BluetoothAdapter.STATE_OFF:
+                        initializeBluetooth();
+                        break;
+                    case BluetoothAdapter.STATE_TURNING_OFF:
+                        break;
+                    case BluetoothAdapter.STATE_ON:
+                        startScan();
+                        break;
+                    case BluetoothAdapter.STATE_TURNING_ON:
+                        break;
                 }
-            });
+            }
         }
     };
 
-
-
 }
@@ -0,0 +1,271 @@
+package tonyg.example.com.bleechoclient.ble;
+
+import java.util.UUID;
+
+/**
+ * Reads the fields of a raw scan record without copying them.
+ *
+ * A scan record is a run of AD structures, each a length byte, a type byte and
+ * length - 1 bytes of data.  parse() walks them once and remembers where the
+ * interesting ones are; the getters and matchers then read the record in place.
+ * Nothing is allocated, so one parser can be reused for every scan result.
+ *
+ * A parser is not thread safe.  Give each scan callback its own, or synchronize on it.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2015-12-12
+ */
+public class AdvertisementParser {
+    private static final String TAG = AdvertisementParser.class.getSimpleName();
+
+    /** AD types, from the Bluetooth Assigned Numbers **/
+    public static final int TYPE_INCOMPLETE_UUID16 = 0x02;
+    public static final int TYPE_COMPLETE_UUID16 = 0x03;
+    public static final int TYPE_INCOMPLETE_UUID32 = 0x04;
+    public static final int TYPE_COMPLETE_UUID32 = 0x05;
+    public static final int TYPE_INCOMPLETE_UUID128 = 0x06;
+    public static final int TYPE_COMPLETE_UUID128 = 0x07;
+    public static final int TYPE_SHORTENED_LOCAL_NAME = 0x08;
+    public static final int TYPE_COMPLETE_LOCAL_NAME = 0x09;
+    public static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    public static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    /** Returned by getTxPowerLevel() and getManufacturerId() when the field is missing **/
+    public static final int NOT_PRESENT = Integer.MIN_VALUE;
+
+    /** UUIDs shorter than 128 bits sit in the top 32 bits of the Bluetooth Base UUID **/
+    private static final long BASE_UUID_MOST_SIGNIFICANT_BITS = 0x0000000000001000L;
+    private static final long BASE_UUID_LEAST_SIGNIFICANT_BITS = 0x800000805F9B34FBL;
+
+    private byte[] mRecord;
+    private int mLocalNameOffset;
+    private int mLocalNameLength;
+    private int mTxPowerLevel;
+    private int mManufacturerDataOffset;
+    private int mManufacturerDataLength;
+    // at most one structure of each UUID size is kept, which is all the echo server sends
+    private int mUuid16Offset, mUuid16Length;
+    private int mUuid32Offset, mUuid32Length;
+    private int mUuid128Offset, mUuid128Length;
+
+    /**
+     * Find the fields of a scan record.  The record is read in place, so it must not
+     * change while this parser is looking at it
+     *
+     * @param record the raw scan record, which may be <b>null</b>
+     * @return <b>true</b> if the record was well formed.  A truncated record keeps the fields before the damage
+     */
+    public boolean parse(byte[] record) {
+        mRecord = record;
+        mLocalNameOffset = -1;
+        mLocalNameLength = 0;
+        mTxPowerLevel = NOT_PRESENT;
+        mManufacturerDataOffset = -1;
+        mManufacturerDataLength = 0;
+        mUuid16Offset = mUuid32Offset = mUuid128Offset = -1;
+        mUuid16Length = mUuid32Length = mUuid128Length = 0;
+        if (record == null) {
+            return false;
+        }
+
+        int offset = 0;
+        while (offset < record.length) {
+            int length = record[offset] & 0xFF;
+            if (length == 0) {
+                // the rest is padding
+                return true;
+            }
+            if (offset + 1 + length > record.length) {
+                return false;
+            }
+            int type = record[offset + 1] & 0xFF;
+            int dataOffset = offset + 2;
+            int dataLength = length - 1;
+            switch (type) {
+                case TYPE_SHORTENED_LOCAL_NAME:
+                case TYPE_COMPLETE_LOCAL_NAME:
+                    // a complete name wins over a shortened one
+                    if (type == TYPE_COMPLETE_LOCAL_NAME || mLocalNameOffset < 0) {
+                        mLocalNameOffset = dataOffset;
+                        mLocalNameLength = dataLength;
+                    }
+                    break;
+                case TYPE_TX_POWER_LEVEL:
+                    if (dataLength >= 1) {
+                        mTxPowerLevel = record[dataOffset];
+                    }
+                    break;
+                case TYPE_MANUFACTURER_DATA:
+                    mManufacturerDataOffset = dataOffset;
+                    mManufacturerDataLength = dataLength;
+                    break;
+                case TYPE_INCOMPLETE_UUID16:
+                case TYPE_COMPLETE_UUID16:
+                    mUuid16Offset = dataOffset;
+                    mUuid16Length = dataLength;
+                    break;
+                case TYPE_INCOMPLETE_UUID32:
+                case TYPE_COMPLETE_UUID32:
+                    mUuid32Offset = dataOffset;
+                    mUuid32Length = dataLength;
+                    break;
+                case TYPE_INCOMPLETE_UUID128:
+                case TYPE_COMPLETE_UUID128:
+                    mUuid128Offset = dataOffset;
+                    mUuid128Length = dataLength;
+                    break;
+            }
+            offset += 1 + length;
+        }
+        return true;
+    }
+
+    /**
+     * Determine if the record has a local name
+     *
+     * @return <b>true</b> if it has a complete or shortened local name
+     */
+    public boolean hasLocalName() {
+        return mLocalNameOffset >= 0;
+    }
+
+    /**
+     * Compare the local name with a name, without decoding it
+     *
+     * @param name the name, as the UTF-8 bytes it would be advertised as
+     * @return <b>true</b> if the local name is exactly this name
+     */
+    public boolean localNameEquals(byte[] name) {
+        if (mLocalNameOffset < 0 || mLocalNameLength != name.length) {
+            return false;
+        }
+        for (int index = 0; index < name.length; index++) {
+            if (mRecord[mLocalNameOffset + index] != name[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get where the local name is in the record
+     *
+     * @return the offset of the first byte of the name, or -1 if there is none
+     */
+    public int getLocalNameOffset() {
+        return mLocalNameOffset;
+    }
+
+    /**
+     * Get how long the local name is
+     *
+     * @return the length of the name in bytes
+     */
+    public int getLocalNameLength() {
+        return mLocalNameLength;
+    }
+
+    /**
+     * Get the advertised transmit power
+     *
+     * @return the power in dBm, or NOT_PRESENT
+     */
+    public int getTxPowerLevel() {
+        return mTxPowerLevel;
+    }
+
+    /**
+     * Get the company that the manufacturer data belongs to
+     *
+     * @return the Bluetooth SIG company identifier, or NOT_PRESENT
+     */
+    public int getManufacturerId() {
+        if (mManufacturerDataLength < 2) {
+            return NOT_PRESENT;
+        }
+        return (mRecord[mManufacturerDataOffset] & 0xFF) | (mRecord[mManufacturerDataOffset + 1] & 0xFF) << 8;
+    }
+
+    /**
+     * Get where the manufacturer data is in the record, after the company identifier
+     *
+     * @return the offset of the first byte of data, or -1 if there is none
+     */
+    public int getManufacturerDataOffset() {
+        return mManufacturerDataLength < 2 ? -1 : mManufacturerDataOffset + 2;
+    }
+
+    /**
+     * Get how long the manufacturer data is, after the company identifier
+     *
+     * @return the length of the data in bytes
+     */
+    public int getManufacturerDataLength() {
+        return mManufacturerDataLength < 2 ? 0 : mManufacturerDataLength - 2;
+    }
+
+    /**
+     * Get the record being read
+     *
+     * @return the record given to parse()
+     */
+    public byte[] getRecord() {
+        return mRecord;
+    }
+
+    /**
+     * Determine if the record lists a service.  16 and 32 bit UUIDs match their full
+     * form on the Bluetooth Base UUID
+     *
+     * @param serviceUuid the service
+     * @return <b>true</b> if the service is listed
+     */
+    public boolean hasServiceUuid(UUID serviceUuid) {
+        long mostSignificantBits = serviceUuid.getMostSignificantBits();
+        long leastSignificantBits = serviceUuid.getLeastSignificantBits();
+
+        boolean onBaseUuid = (mostSignificantBits & 0xFFFFFFFFL) == BASE_UUID_MOST_SIGNIFICANT_BITS
+                && leastSignificantBits == BASE_UUID_LEAST_SIGNIFICANT_BITS;
+        if (onBaseUuid) {
+            long shortUuid = mostSignificantBits >>> 32;
+            if (shortUuid <= 0xFFFF && containsLittleEndian(mUuid16Offset, mUuid16Length, 2, shortUuid)) {
+                return true;
+            }
+            if (containsLittleEndian(mUuid32Offset, mUuid32Length, 4, shortUuid)) {
+                return true;
+            }
+        }
+
+        // 128 bit UUIDs are sent least significant byte first
+        for (int offset = mUuid128Offset; offset >= 0 && offset + 16 <= mUuid128Offset + mUuid128Length; offset += 16) {
+            if (readLittleEndian(offset, 8) == leastSignificantBits
+                    && readLittleEndian(offset + 8, 8) == mostSignificantBits) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Look for a value in a list of little-endian values
+     */
+    private boolean containsLittleEndian(int listOffset, int listLength, int valueLength, long value) {
+        for (int offset = listOffset; offset >= 0 && offset + valueLength <= listOffset + listLength; offset += valueLength) {
+            if (readLittleEndian(offset, valueLength) == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read an unsigned little-endian value of up to 8 bytes
+     */
+    private long readLittleEndian(int offset, int length) {
+        long value = 0;
+        for (int index = length - 1; index >= 0; index--) {
+            value = (value << 8) | (mRecord[offset + index] & 0xFF);
+        }
+        return value;
+    }
+}
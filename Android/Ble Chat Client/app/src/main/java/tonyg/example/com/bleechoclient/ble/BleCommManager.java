@@ -26,7 +26,7 @@ import tonyg.example.com.bleechoclient.ble.callbacks.BleScanCallbackv18;
  */
 public class BleCommManager {
     private static final String TAG = BleCommManager.class.getSimpleName();
-    private static final long SCAN_PERIOD = 5000; // 5 seconds of scanning time
+    public static final long SCAN_PERIOD = 5000; // 5 seconds of scanning time
 
     private BluetoothAdapter mBluetoothAdapter; // Andrdoid's Bluetooth Adapter
     private BluetoothLeScanner bluetoothLeScanner; // Ble scanner - API >= 21
@@ -64,75 +64,58 @@ public class BleCommManager {
 
 
     /**
-     * Scan for Peripherals
+     * Scan for Peripherals for SCAN_PERIOD milliseconds at low latency
      *
      * @param bleScanCallbackv18 APIv18 compatible ScanCallback
      * @param bleScanCallbackv21 APIv21 compatible ScanCallback
      * @throws Exception
      */
     public void scanForPeripherals(final BleScanCallbackv18 bleScanCallbackv18, final BleScanCallbackv21 bleScanCallbackv21) throws Exception {
+        scanForPeripherals(ScanProfile.LOW_LATENCY, SCAN_PERIOD, bleScanCallbackv18, bleScanCallbackv21);
+    }
+
+    /**
+     * Scan for Peripherals
+     *
+     * With a batching ScanProfile, results arrive through BleScanCallbackv21.onBatchScanResults
+     * every few seconds rather than one by one through onScanResult.
+     *
+     * @param scanProfile how hard to work the radio.  Ignored before API 21
+     * @param scanPeriod milliseconds to scan for, or 0 to scan until stopScanning()
+     * @param bleScanCallbackv18 APIv18 compatible ScanCallback
+     * @param bleScanCallbackv21 APIv21 compatible ScanCallback
+     * @throws Exception
+     */
+    public void scanForPeripherals(final ScanProfile scanProfile, final long scanPeriod, final BleScanCallbackv18 bleScanCallbackv18, final BleScanCallbackv21 bleScanCallbackv21) throws Exception {
         // Don't proceed if there is already a scan in progress
         mTimer.cancel();
 
         // Use BluetoothAdapter.startLeScan() for Android API 18, 19, and 20
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-            // Scan for SCAN_PERIOD milliseconds.
-            // at the end of that time, stop the scan.
-            new Thread() {
-                @Override
-                public void run() {
-                    mBluetoothAdapter.startLeScan(bleScanCallbackv18);
-
-                    try {
-                        Thread.sleep(SCAN_PERIOD);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-
-                    mBluetoothAdapter.stopLeScan(bleScanCallbackv18);
-                }
-            }.start();
-            // alert the system that BLE scanning has stopped after SCAN_PERIOD milliseconds
-            mTimer = new Timer();
-            mTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    stopScanning(bleScanCallbackv18, bleScanCallbackv21);
-                }
-            }, SCAN_PERIOD);
-
+            mBluetoothAdapter.startLeScan(bleScanCallbackv18);
 
         } else { // use BluetoothLeScanner.startScan() for API 21 (Lollipop) or greater
-            final ScanSettings settings = new ScanSettings.Builder()
-                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                    .build();
+            // let the controller batch results if it can, so the CPU isn't woken for every advertisement
+            final ScanSettings settings = scanProfile.buildScanSettings(mBluetoothAdapter.isOffloadedScanBatchingSupported());
             final List<ScanFilter> filters = new ArrayList<ScanFilter>();
             bluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
+            bluetoothLeScanner.startScan(filters, settings, bleScanCallbackv21);
+        }
 
-
-            new Thread() {
-                @Override
-                public void run() {
-                    bluetoothLeScanner.startScan(filters, settings, bleScanCallbackv21);
-
-                    try {
-                        Thread.sleep(SCAN_PERIOD);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    bluetoothLeScanner.stopScan(bleScanCallbackv21);
-                }
-            }.start();
-            // alert the system that BLE scanning has stopped after SCAN_PERIOD milliseconds
+        if (scanPeriod > 0) {
+            // stop scanning after scanPeriod milliseconds,
+            // delivering anything the controller is still holding in a batch
             mTimer = new Timer();
             mTimer.schedule(new TimerTask() {
                 @Override
                 public void run() {
+                    if (bluetoothLeScanner != null) {
+                        bluetoothLeScanner.flushPendingScanResults(bleScanCallbackv21);
+                    }
                     stopScanning(bleScanCallbackv18, bleScanCallbackv21);
                 }
-            }, SCAN_PERIOD);
+            }, scanPeriod);
         }
-
     }
 
 
@@ -146,13 +129,17 @@ public class BleCommManager {
         mTimer.cancel();
         // propagate the onScanComplete through the system
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            mBluetoothAdapter.stopLeScan(bleScanCallbackv18);
             bleScanCallbackv18.onScanComplete();
         } else {
+            // the scanner is gone if Bluetooth was turned off
+            if (bluetoothLeScanner != null && mBluetoothAdapter.isEnabled()) {
+                bluetoothLeScanner.stopScan(bleScanCallbackv21);
+            }
             bleScanCallbackv21.onScanComplete();
         }
 
     }
 
-
 }
 
@@ -1,5 +1,6 @@
 package tonyg.example.com.bleechoclient.ble;
 
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
@@ -7,15 +8,45 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
 import java.util.List;
 import java.util.UUID;
 
+import tonyg.example.com.bleechoclient.ble.codec.LzCodec;
+import tonyg.example.com.bleechoclient.ble.codec.MessageCipher;
+import tonyg.example.com.bleechoclient.ble.codec.MessageCompressor;
+import tonyg.example.com.bleechoclient.ble.codec.MessageDecompressor;
+import tonyg.example.com.bleechoclient.ble.codec.Utf8Decoder;
+import tonyg.example.com.bleechoclient.ble.codec.Utf8Encoder;
+import tonyg.example.com.bleechoclient.ble.hub.MessageAssembler;
+import tonyg.example.com.bleechoclient.ble.stream.InboundMessagePublisher;
+import tonyg.example.com.bleechoclient.ble.telemetry.TelemetryBuffer;
+import tonyg.example.com.bleechoclient.ble.telemetry.TelemetryDecoder;
+import tonyg.example.com.bleechoclient.ble.transfer.FileTransfer;
+import tonyg.example.com.bleechoclient.ble.transport.GattPacketTransport;
+import tonyg.example.com.bleechoclient.ble.transport.L2capPacketTransport;
+import tonyg.example.com.bleechoclient.ble.transport.LaneDemultiplexer;
+import tonyg.example.com.bleechoclient.ble.transport.LinkFrame;
+import tonyg.example.com.bleechoclient.ble.transport.LinkParameterManager;
+import tonyg.example.com.bleechoclient.ble.transport.OutboundQueue;
+import tonyg.example.com.bleechoclient.ble.transport.PacketTransport;
+import tonyg.example.com.bleechoclient.ble.transport.ReliableWriteTransport;
+import tonyg.example.com.bleechoclient.ble.transport.StreamPacketTransport;
+import tonyg.example.com.bleechoclient.ble.transport.ThroughputTuner;
+import tonyg.example.com.bleechoclient.ble.transport.WriteCoalescer;
+import tonyg.example.com.bleechoclient.metrics.BleMetrics;
+import tonyg.example.com.bleechoclient.metrics.ClockSync;
+
 /**
  * This class allows us to share Bluetooth resources
  *
@@ -26,7 +57,7 @@ public class BlePeripheral {
     private static final String TAG = BlePeripheral.class.getSimpleName();
 
 
-    public static final String CHARACTER_ENCODING = "ASCII";
+    public static final String CHARACTER_ENCODING = "UTF-8";
 
     private BluetoothDevice mBluetoothDevice;
     private BluetoothGatt mBluetoothGatt;
@@ -43,10 +74,56 @@ public class BlePeripheral {
     private Context mContext;
 
     /** Flow control stuff **/
-    private int mNumPacketsTotal;
-    private int mNumPacketsSent;
     private int mCharacteristicLength = 20;
-    private String mQueuedCharactersticValue;
+    private GattPacketTransport mPacketTransport;
+    private OutboundQueue mOutboundQueue;
+
+    /** Small messages sent within this many milliseconds of each other share packets **/
+    public static final long DEFAULT_COALESCING_DELAY = 10;
+    private long mCoalescingDelay = DEFAULT_COALESCING_DELAY;
+    private WriteCoalescer mWriteCoalescer;
+
+    /** L2CAP channel stuff.  Used in place of the Characteristic while it is open **/
+    private L2capPacketTransport mL2capTransport;
+    private OutboundQueue mL2capOutboundQueue;
+    private WriteCoalescer mL2capWriteCoalescer;
+
+    /** Text encoding stuff.  Characters may be split across packets, so both directions keep state **/
+    private final Utf8Encoder mUtf8Encoder = new Utf8Encoder();
+    private final Utf8Decoder[] mUtf8Decoders = new Utf8Decoder[OutboundQueue.NUM_LANES];
+
+    /** Compression stuff.  Messages are only compressed once the Peripheral has said it takes them **/
+    public static final int LINK_CAPABILITIES = LinkFrame.CAPABILITY_COMPRESSION | LinkFrame.CAPABILITY_TELEMETRY
+            | LinkFrame.CAPABILITY_CLOCK;
+    private final MessageCompressor mMessageCompressor = new MessageCompressor();
+    private final MessageDecompressor[] mMessageDecompressors = new MessageDecompressor[OutboundQueue.NUM_LANES];
+    private volatile boolean mCompressionAllowed = true;
+    private volatile int mSharedCapabilities = 0;
+
+    /** Encryption stuff.  Chat messages are sealed, and only sealed ones accepted, while there is a key **/
+    private static final String CIPHER_PREFERENCES = "message_cipher"; // the last epoch used with each key
+    private volatile MessageCipher mMessageCipher;
+    private volatile String mCipherEpochKey;
+
+    /** Telemetry stuff.  Samples arrive in the same notifications as echoed messages **/
+    public static final int TELEMETRY_HISTORY_SECONDS = 60;
+    private volatile TelemetryDecoder mTelemetryDecoder;
+
+    /** Clock stuff.  Time exchanges split the round trip into uplink, processing and downlink **/
+    private final ClockSync mClockSync = new ClockSync();
+
+    /** Link parameter stuff.  The connection interval and PHY follow the traffic **/
+    private static final int ANDROID_8 = 26;
+    private static final int PHY_LE_1M_MASK = 1; // BluetoothDevice.PHY_LE_1M_MASK
+    private static final int PHY_LE_2M_MASK = 2; // BluetoothDevice.PHY_LE_2M_MASK
+    private static final int PHY_OPTION_NO_PREFERRED = 0; // BluetoothDevice.PHY_OPTION_NO_PREFERRED
+    private final Handler mLinkParameterHandler = new Handler(Looper.getMainLooper());
+    private volatile LinkParameterManager mLinkParameterManager;
+
+    /** Reassembled incoming messages, one stream per text lane.  Bulk data is passed on raw **/
+    private final InboundMessagePublisher[] mInboundMessages = new InboundMessagePublisher[OutboundQueue.NUM_LANES];
+    private volatile BulkDataListener mBulkDataListener;
+    private final InboundPath mGattInbound; // the L2CAP channel has its own
 
     /**
      * Create a new BlePeripheral
@@ -56,6 +133,12 @@ public class BlePeripheral {
     public BlePeripheral(Context context) {
 
         mContext = context;
+        for (int lane = 0; lane < OutboundQueue.NUM_LANES; lane++) {
+            mUtf8Decoders[lane] = new Utf8Decoder();
+            mMessageDecompressors[lane] = new MessageDecompressor();
+            mInboundMessages[lane] = new InboundMessagePublisher();
+        }
+        mGattInbound = new InboundPath();
     }
 
     /**
@@ -71,8 +154,25 @@ public class BlePeripheral {
             throw new Exception("No bluetooth device provided");
         }
         mBluetoothDevice = bluetoothDevice;
+        mGattInbound.reset();
+        for (int lane = 0; lane < OutboundQueue.NUM_LANES; lane++) {
+            synchronized (mUtf8Decoders[lane]) {
+                mUtf8Decoders[lane].reset();
+                mMessageDecompressors[lane].reset();
+            }
+            mInboundMessages[lane].reset();
+        }
+        mSharedCapabilities = 0;
+        mTelemetryDecoder = null; // the Peripheral stops streaming when the link drops
+        mClockSync.reset();
+        MessageCipher cipher = mMessageCipher;
+        if (cipher != null) {
+            cipher.reset();
+            saveCipherEpoch(cipher, mCipherEpochKey);
+        }
         mBluetoothGatt = bluetoothDevice.connectGatt(mContext, false, callback);
         refreshDeviceCache();
+        startManagingLinkParameters();
         return mBluetoothGatt;
     }
 
@@ -91,6 +191,20 @@ public class BlePeripheral {
      * to notify of a successful disconnect
      */
     public void close() {
+        stopManagingLinkParameters();
+        closeL2capChannel();
+        if (mWriteCoalescer != null) {
+            mWriteCoalescer.close();
+            mWriteCoalescer = null;
+        }
+        if (mOutboundQueue != null) {
+            mOutboundQueue.clear();
+            mOutboundQueue = null;
+        }
+        if (mPacketTransport != null) {
+            mPacketTransport.close();
+            mPacketTransport = null;
+        }
         if (mBluetoothGatt != null) {
             mBluetoothGatt.close(); // close connection to Peripheral
             mBluetoothGatt = null; // release from memory
@@ -101,35 +215,6 @@ public class BlePeripheral {
     }
 
 
-    /**
-     * Write next packet in queue if necessary
-     *
-     * @param value
-     * @param characteristic
-     * @return the value being written
-     * @throws Exception
-     */
-    public String processIncomingMessage(String value, final BluetoothGattCharacteristic characteristic)  throws Exception {
-
-        if (morePacketsAvailableInQueue()) {
-            // NOTE: I honestly don't know why, but this sends too quickly for client to process
-            // so we have to delay it
-            //final Handler handler = new Handler(Looper.getMainLooper());
-            //handler.postDelayed(new Runnable() {
-            // @Override
-            //public void run() {
-            try {
-                writePartialValueToCharacteristic(mQueuedCharactersticValue, mNumPacketsSent, characteristic);
-            } catch (Exception e) {
-                Log.d(TAG, "Unable to send next chunk of message");
-            }
-            //}
-            //}, 100);
-        }
-
-        return value;
-    }
-
     /**
      * Clear the GATT Service cache.
      *
@@ -160,20 +245,727 @@ public class BlePeripheral {
     }
 
     /**
-     * Write a value to the Characteristic
+     * Write a value to the Characteristic.
+     * Small values may wait briefly to share packets with the next ones
      *
      * @param value
      * @param characteristic
      * @throws Exception
      */
     public void writeValueToCharacteristic(String value, BluetoothGattCharacteristic characteristic) throws Exception {
-        // reset the queue counters, prepare the message to be sent, and send the value to the Characteristic
-        mQueuedCharactersticValue = value;
-        mNumPacketsSent = 0;
-        byte[] byteValue = value.getBytes();
-        mNumPacketsTotal = (int) Math.ceil((float) byteValue.length / mCharacteristicLength);
-        writePartialValueToCharacteristic(value, mNumPacketsSent, characteristic);
+        writeValueToCharacteristic(value, characteristic, false);
+    }
+
+    /**
+     * Write a value to the Characteristic
+     *
+     * @param value
+     * @param characteristic
+     * @param flushNow <b>true</b> to send the value, and anything waiting with it, without delay
+     * @throws Exception
+     */
+    public void writeValueToCharacteristic(String value, BluetoothGattCharacteristic characteristic, boolean flushNow) throws Exception {
+        if (mBluetoothGatt == null) {
+            throw new Exception("Not connected");
+        }
+        // queue the message.  It is split into packets that are written back to back,
+        // each one as soon as the previous write is acknowledged
+        byte[] bytes = encodeMessage(value);
+        WriteCoalescer writeCoalescer = getDataWriteCoalescer(characteristic);
+        if (flushNow) {
+            writeCoalescer.sendNow(bytes);
+        } else {
+            writeCoalescer.send(bytes);
+        }
+    }
+
+    /**
+     * Write a value to the Characteristic without delay, and hear when all of it has been written.
+     * Anything batched ahead of it is sent first
+     *
+     * @param value
+     * @param characteristic
+     * @param callback who hears whether the value was written
+     * @throws Exception
+     */
+    public void writeValueToCharacteristic(String value, BluetoothGattCharacteristic characteristic, OutboundQueue.Callback callback) throws Exception {
+        writeValueToCharacteristic(value, characteristic, callback, true);
+    }
+
+    /**
+     * Write a value to the Characteristic, and hear when all of it has been written.
+     * A small value may wait briefly to share packets with the next ones
+     *
+     * @param value
+     * @param characteristic
+     * @param callback who hears whether the value was written
+     * @param flushNow <b>true</b> to send the value, and anything waiting with it, without delay
+     * @throws Exception
+     */
+    public void writeValueToCharacteristic(String value, BluetoothGattCharacteristic characteristic, OutboundQueue.Callback callback, boolean flushNow) throws Exception {
+        if (mBluetoothGatt == null) {
+            throw new Exception("Not connected");
+        }
+        byte[] bytes = encodeMessage(value);
+        WriteCoalescer writeCoalescer = getDataWriteCoalescer(characteristic);
+        if (flushNow) {
+            writeCoalescer.sendNow(bytes, callback);
+        } else {
+            writeCoalescer.send(bytes, callback);
+        }
+    }
+
+    /**
+     * Write a value to the Characteristic in one reliable write transaction,
+     * so the Peripheral applies all of it or none of it.
+     * Anything batched ahead of it is sent first.  Transactions only exist on the
+     * Characteristic, so while an L2CAP channel carries the data they are refused:
+     * the transaction would overtake what was sent ahead of it on the channel
+     *
+     * @param value no longer than GattPacketTransport.MAX_RELIABLE_WRITE_LENGTH bytes once encoded
+     * @param characteristic
+     * @param callback who hears whether the value was applied, or <b>null</b>
+     * @throws Exception
+     */
+    public void writeValueToCharacteristicReliably(String value, BluetoothGattCharacteristic characteristic, OutboundQueue.Callback callback) throws Exception {
+        if (mBluetoothGatt == null) {
+            throw new Exception("Not connected");
+        }
+        WriteCoalescer writeCoalescer;
+        synchronized (this) {
+            if (isL2capChannelOpen()) {
+                throw new Exception("Reliable writes are not ordered with the L2CAP channel");
+            }
+            writeCoalescer = getDataWriteCoalescer(characteristic);
+        }
+        byte[] bytes = encodeMessage(value);
+        writeCoalescer.flush();
+        getOutboundQueue(characteristic).send(ByteBuffer.wrap(bytes), callback, true);
+    }
+
+    /**
+     * Write data that is already encoded, such as a message relayed from another device,
+     * to a lane without compressing or sealing it again.  Anything batched ahead of it is sent first
+     *
+     * @param characteristic the Characteristic being written to
+     * @param lane the lane, such as OutboundQueue.LANE_CONTROL
+     * @param data the data.  It is sent from where it is, so it must not change until it has been written
+     * @throws Exception if not connected
+     */
+    public void writeLaneData(BluetoothGattCharacteristic characteristic, int lane, ByteBuffer data) throws Exception {
+        if (mBluetoothGatt == null) {
+            throw new Exception("Not connected");
+        }
+        getDataWriteCoalescer(characteristic).flush();
+        getDataOutboundQueue(characteristic).send(data, null, false, lane);
+    }
+
+    /**
+     * Encode a message, compressing it if the Peripheral takes compressed messages and it helps,
+     * then sealing it if there is a key
+     *
+     * @param value the message
+     * @return the bytes to send
+     * @throws Exception if the message can't be sealed
+     */
+    private byte[] encodeMessage(String value) throws Exception {
+        synchronized (mUtf8Encoder) {
+            byte[] bytes = mUtf8Encoder.encode(value);
+            if (isCompressionEnabled()) {
+                bytes = mMessageCompressor.compress(bytes);
+            }
+            MessageCipher cipher = mMessageCipher;
+            return cipher != null ? cipher.seal(bytes) : bytes;
+        }
+    }
+
+    /**
+     * Encrypt and authenticate chat messages with a key shared with the Peripheral.
+     * Files are sent as they are.  The epoch is saved for each key, so the nonces of
+     * one run are never reused by the next
+     *
+     * @param key a 16, 24 or 32 byte AES key, or <b>null</b> to send and accept plain messages
+     * @throws Exception if the key can't be used
+     */
+    public void setEncryptionKey(byte[] key) throws Exception {
+        if (key == null) {
+            mMessageCipher = null;
+            return;
+        }
+        // saved under a digest of the key, not the key itself
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        StringBuilder epochKey = new StringBuilder();
+        for (byte value : digest.digest(key)) {
+            epochKey.append(String.format("%02x", value));
+        }
+        SharedPreferences preferences = mContext.getSharedPreferences(CIPHER_PREFERENCES, Context.MODE_PRIVATE);
+        MessageCipher cipher = new MessageCipher(key, preferences.getLong(epochKey.toString(), -1));
+        cipher.setPlaintextAllowed(false);
+        saveCipherEpoch(cipher, epochKey.toString());
+        mCipherEpochKey = epochKey.toString();
+        mMessageCipher = cipher;
+    }
+
+    /**
+     * Save the epoch a cipher is about to seal in, before anything is sealed in it
+     *
+     * @throws Exception if it couldn't be saved, since the next run would reuse it
+     */
+    private void saveCipherEpoch(MessageCipher cipher, String epochKey) throws Exception {
+        SharedPreferences preferences = mContext.getSharedPreferences(CIPHER_PREFERENCES, Context.MODE_PRIVATE);
+        // written through at once rather than later, as apply() would
+        if (!preferences.edit().putLong(epochKey, cipher.getEpoch()).commit()) {
+            throw new Exception("Could not save the encryption epoch");
+        }
+    }
+
+    /**
+     * Determine if chat messages are being encrypted
+     *
+     * @return <b>true</b> if there is a key
+     */
+    public boolean isEncryptionEnabled() {
+        return mMessageCipher != null;
+    }
+
+    /**
+     * Tell the Peripheral what this end can do, so the two can agree on features such as
+     * compression.  Call once the Characteristic is ready for writing
+     *
+     * @param characteristic the Characteristic being written to
+     * @throws Exception if not connected
+     */
+    public void negotiateLink(BluetoothGattCharacteristic characteristic) throws Exception {
+        if (mBluetoothGatt == null) {
+            throw new Exception("Not connected");
+        }
+        byte[] hello = LinkFrame.createHello(LINK_CAPABILITIES, LzCodec.DICTIONARY_VERSION);
+        getDataOutboundQueue(characteristic).send(ByteBuffer.wrap(hello), null, false, OutboundQueue.LANE_LINK);
+    }
+
+    /**
+     * Handle a frame about the link from the Peripheral
+     *
+     * @param frame the received value
+     * @param offset where the frame starts
+     * @param length how long it is
+     */
+    private void onLinkFrameReceived(byte[] frame, int offset, int length) {
+        switch (LinkFrame.getType(frame, offset, length)) {
+            case LinkFrame.TYPE_HELLO_REPLY:
+                mSharedCapabilities = LinkFrame.getSharedCapabilities(frame, offset, length,
+                        LINK_CAPABILITIES, LzCodec.DICTIONARY_VERSION);
+                Log.d(TAG, "Link capabilities: " + mSharedCapabilities);
+                break;
+            case LinkFrame.TYPE_TIME_REPLY:
+                if (mClockSync.onReplyReceived(frame, offset, length, getClockMicros())) {
+                    BleMetrics.getInstance().recordLatency(mClockSync);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Ask the Peripheral for its clock, to refine the clock offset and split the
+     * round trip into its parts.  Call every so often while connected
+     *
+     * @param characteristic the Characteristic being written to
+     * @throws Exception if not connected, or the Peripheral doesn't share its clock
+     */
+    public void requestTime(BluetoothGattCharacteristic characteristic) throws Exception {
+        if (mBluetoothGatt == null) {
+            throw new Exception("Not connected");
+        }
+        if (!isClockSyncEnabled()) {
+            throw new Exception("Peripheral doesn't share its clock");
+        }
+        // the link lane goes ahead of any queued messages
+        byte[] request = LinkFrame.createTimeRequest(mClockSync.onRequestSent(getClockMicros()));
+        getDataOutboundQueue(characteristic).send(ByteBuffer.wrap(request), null, false, OutboundQueue.LANE_LINK);
+    }
+
+    /**
+     * Determine if the Peripheral answers time requests
+     *
+     * @return <b>true</b> if requestTime() can be used
+     */
+    public boolean isClockSyncEnabled() {
+        return (mSharedCapabilities & LinkFrame.CAPABILITY_CLOCK) != 0;
+    }
+
+    /**
+     * Get the round trip to the Peripheral and its parts
+     *
+     * @return the ClockSync for this connection
+     */
+    public ClockSync getClockSync() {
+        return mClockSync;
+    }
+
+    private static long getClockMicros() {
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * Have the Peripheral stream telemetry samples in its notifications, replacing any
+     * stream already running.  Notifications must be on, see setCharacteristicNotification()
+     *
+     * @param characteristic the Characteristic being written to
+     * @param numChannels how many samples in each sample set
+     * @param sampleRate sample sets per second
+     * @return the buffer the samples will arrive in
+     * @throws Exception if not connected, or the Peripheral doesn't stream telemetry
+     */
+    public TelemetryBuffer startTelemetry(BluetoothGattCharacteristic characteristic, int numChannels, int sampleRate) throws Exception {
+        if (mBluetoothGatt == null) {
+            throw new Exception("Not connected");
+        }
+        if ((mSharedCapabilities & LinkFrame.CAPABILITY_TELEMETRY) == 0) {
+            throw new Exception("Peripheral doesn't stream telemetry");
+        }
+        TelemetryBuffer buffer = new TelemetryBuffer(numChannels, sampleRate * TELEMETRY_HISTORY_SECONDS);
+        mTelemetryDecoder = new TelemetryDecoder(buffer);
+        byte[] start = LinkFrame.createTelemetryStart(numChannels, sampleRate);
+        getDataOutboundQueue(characteristic).send(ByteBuffer.wrap(start), null, false, OutboundQueue.LANE_LINK);
+        return buffer;
+    }
+
+    /**
+     * Have the Peripheral stop streaming telemetry.  The samples already received stay in the buffer
+     *
+     * @param characteristic the Characteristic being written to
+     * @throws Exception if not connected
+     */
+    public void stopTelemetry(BluetoothGattCharacteristic characteristic) throws Exception {
+        if (mBluetoothGatt == null) {
+            throw new Exception("Not connected");
+        }
+        getDataOutboundQueue(characteristic).send(ByteBuffer.wrap(LinkFrame.createTelemetryStop()), null, false, OutboundQueue.LANE_LINK);
+    }
+
+    /**
+     * Get the buffer telemetry samples arrive in
+     *
+     * @return the buffer from the last startTelemetry() this connection, or <b>null</b> if there was none
+     */
+    public TelemetryBuffer getTelemetryBuffer() {
+        TelemetryDecoder telemetryDecoder = mTelemetryDecoder;
+        return telemetryDecoder != null ? telemetryDecoder.getBuffer() : null;
+    }
+
+    /**
+     * Allow or forbid compressing outgoing messages.  Received messages are always decompressed
+     *
+     * @param compressionAllowed <b>true</b> to compress once the Peripheral agrees to it
+     */
+    public void setCompressionAllowed(boolean compressionAllowed) {
+        mCompressionAllowed = compressionAllowed;
+    }
+
+    /**
+     * Determine if outgoing messages are being compressed
+     *
+     * @return <b>true</b> if compression is allowed and the Peripheral agreed to it
+     */
+    public boolean isCompressionEnabled() {
+        return mCompressionAllowed && (mSharedCapabilities & LinkFrame.CAPABILITY_COMPRESSION) != 0;
+    }
+
+    /**
+     * Change how long small messages may wait to share packets
+     *
+     * @param coalescingDelay the delay in milliseconds, or 0 to send every message on its own
+     */
+    public synchronized void setCoalescingDelay(long coalescingDelay) {
+        mCoalescingDelay = coalescingDelay;
+        if (mWriteCoalescer != null) {
+            mWriteCoalescer.setCoalescingDelay(coalescingDelay);
+        }
+        if (mL2capWriteCoalescer != null) {
+            mL2capWriteCoalescer.setCoalescingDelay(coalescingDelay);
+        }
+    }
+
+    /**
+     * Get the stream of chat messages received from the Peripheral, one per line
+     *
+     * @return the Publisher for OutboundQueue.LANE_CONTROL
+     */
+    public InboundMessagePublisher getInboundMessages() {
+        return getInboundMessages(OutboundQueue.LANE_CONTROL);
+    }
+
+    /**
+     * Get the stream of messages received on one lane, one per line.
+     * Nothing arrives on the stream for OutboundQueue.LANE_BULK; see setBulkDataListener()
+     *
+     * @param lane the lane, such as OutboundQueue.LANE_CONTROL
+     * @return the Publisher
+     */
+    public InboundMessagePublisher getInboundMessages(int lane) {
+        return mInboundMessages[lane];
+    }
+
+    /**
+     * Set who gets the raw data echoed on OutboundQueue.LANE_BULK.  Without one it is dropped
+     *
+     * @param bulkDataListener the BulkDataListener, or <b>null</b>
+     */
+    public void setBulkDataListener(BulkDataListener bulkDataListener) {
+        mBulkDataListener = bulkDataListener;
+    }
+
+    /**
+     * Pass on a value notified by or read from the Characteristic.  It goes to the
+     * stream of the lane it was sent on.
+     * Call from BluetoothGattCallback.onCharacteristicChanged and onCharacteristicRead
+     *
+     * @param value the Characteristic value
+     */
+    public void onCharacteristicValueReceived(byte[] value) {
+        mGattInbound.onPacketReceived(value);
+    }
+
+    /**
+     * Get what decides the connection priority and PHY
+     *
+     * @return the LinkParameterManager for this connection, or <b>null</b> if not connected
+     */
+    public LinkParameterManager getLinkParameterManager() {
+        return mLinkParameterManager;
+    }
+
+    /**
+     * Have the connection priority and PHY follow the traffic from now on
+     */
+    private void startManagingLinkParameters() {
+        stopManagingLinkParameters();
+        LinkParameterManager linkParameterManager = new LinkParameterManager(isFastPhySupported());
+        linkParameterManager.setListener(new LinkParameterManager.Listener() {
+            @Override
+            public void onLinkParametersChanged(LinkParameterManager manager) {
+                applyLinkParameters(manager);
+            }
+        });
+        mLinkParameterManager = linkParameterManager;
+        mLinkParameterHandler.postDelayed(mLinkParameterUpdate, LinkParameterManager.UPDATE_INTERVAL);
+    }
+
+    private void stopManagingLinkParameters() {
+        mLinkParameterHandler.removeCallbacks(mLinkParameterUpdate);
+        mLinkParameterManager = null;
+    }
+
+    /**
+     * Tell the LinkParameterManager how much went over the link, every UPDATE_INTERVAL
+     */
+    private final Runnable mLinkParameterUpdate = new Runnable() {
+        @Override
+        public void run() {
+            LinkParameterManager linkParameterManager = mLinkParameterManager;
+            if (linkParameterManager == null) {
+                return;
+            }
+            OutboundQueue[] outboundQueues;
+            synchronized (BlePeripheral.this) {
+                outboundQueues = new OutboundQueue[]{mOutboundQueue, mL2capOutboundQueue};
+            }
+            linkParameterManager.update(SystemClock.elapsedRealtime(), outboundQueues);
+            mLinkParameterHandler.postDelayed(this, LinkParameterManager.UPDATE_INTERVAL);
+        }
+    };
+
+    /**
+     * Ask the Bluetooth stack for the connection priority and PHY the manager decided on
+     *
+     * @param manager the LinkParameterManager
+     */
+    private void applyLinkParameters(LinkParameterManager manager) {
+        BleMetrics.getInstance().recordLinkParameters(manager);
+        // write latency follows the connection interval, so the tuners measure it afresh
+        OutboundQueue[] outboundQueues;
+        synchronized (this) {
+            outboundQueues = new OutboundQueue[]{mOutboundQueue, mL2capOutboundQueue};
+        }
+        for (OutboundQueue outboundQueue : outboundQueues) {
+            ThroughputTuner tuner = outboundQueue != null ? outboundQueue.getThroughputTuner() : null;
+            if (tuner != null) {
+                tuner.resetLatency();
+            }
+        }
+        BluetoothGatt bluetoothGatt = mBluetoothGatt;
+        if (bluetoothGatt == null) {
+            return;
+        }
+        int priority = manager.getPriority();
+        if (!bluetoothGatt.requestConnectionPriority(priority)) {
+            Log.d(TAG, "Could not request connection priority " + LinkParameterManager.getPriorityName(priority));
+        }
+        if (isFastPhySupported()) {
+            int phyMask = manager.isFastPhy() ? PHY_LE_2M_MASK : PHY_LE_1M_MASK;
+            try {
+                bluetoothGatt.getClass().getMethod("setPreferredPhy", int.class, int.class, int.class)
+                        .invoke(bluetoothGatt, phyMask, phyMask, PHY_OPTION_NO_PREFERRED);
+            } catch (Exception e) {
+                Log.d(TAG, "Could not set the PHY: " + e.getMessage());
+            }
+        }
+        Log.d(TAG, "Link priority " + LinkParameterManager.getPriorityName(priority)
+                + (manager.isFastPhy() ? ", 2M PHY" : ", 1M PHY") + "; " + manager.describe());
+    }
+
+    /**
+     * Determine if this Android device can switch a link to the 2M PHY
+     *
+     * @return <b>true</b> if it can
+     */
+    private static boolean isFastPhySupported() {
+        if (Build.VERSION.SDK_INT < ANDROID_8) {
+            return false;
+        }
+        try {
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            return (Boolean) adapter.getClass().getMethod("isLe2MPhySupported").invoke(adapter);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stream a file to the Characteristic, or resume an interrupted transfer
+     * from the last acknowledged offset
+     *
+     * @param fileTransfer the transfer
+     * @param characteristic the Characteristic being written to
+     * @throws Exception if not connected
+     */
+    public void sendFile(FileTransfer fileTransfer, BluetoothGattCharacteristic characteristic) throws Exception {
+        if (mBluetoothGatt == null) {
+            throw new Exception("Not connected");
+        }
+        // anything batched ahead of the file goes first
+        getDataWriteCoalescer(characteristic).flush();
+        fileTransfer.start(getDataOutboundQueue(characteristic));
+    }
+
+    /**
+     * Get the transport that writes to a Characteristic, creating it if necessary
+     *
+     * @param characteristic the Characteristic being written to
+     * @return the transport for the Characteristic
+     */
+    public GattPacketTransport getPacketTransport(BluetoothGattCharacteristic characteristic) {
+        if (mPacketTransport == null || !mPacketTransport.getCharacteristic().equals(characteristic)) {
+            if (mWriteCoalescer != null) {
+                mWriteCoalescer.close();
+            }
+            if (mOutboundQueue != null) {
+                mOutboundQueue.clear();
+            }
+            mPacketTransport = new GattPacketTransport(mBluetoothGatt, characteristic, mCharacteristicLength);
+            mOutboundQueue = new OutboundQueue(mPacketTransport, OutboundQueue.NUM_LANES);
+            // GATT allows one write at a time, of one Characteristic value, so only pacing is tuned
+            mOutboundQueue.setThroughputTuner(createThroughputTuner(mCharacteristicLength, mCharacteristicLength, 1));
+            mWriteCoalescer = new WriteCoalescer(mOutboundQueue,
+                    mCharacteristicLength - OutboundQueue.LANE_HEADER_LENGTH, mCoalescingDelay);
+            final OutboundQueue outboundQueue = mOutboundQueue;
+            mPacketTransport.setListener(new ReliableWriteTransport.Listener() {
+                @Override
+                public void onPacketWritten(boolean success) {
+                    outboundQueue.onPacketWritten(success);
+                }
+
+                @Override
+                public void onReliableWriteCompleted(boolean success) {
+                    outboundQueue.onReliableWriteCompleted(success);
+                }
+
+                @Override
+                public void onPacketReceived(byte[] packet) {
+                }
+            });
+        }
+        return mPacketTransport;
+    }
+
+    /**
+     * Get the queue of messages waiting to be written to a Characteristic
+     *
+     * @param characteristic the Characteristic being written to
+     * @return the queue for the Characteristic
+     */
+    public OutboundQueue getOutboundQueue(BluetoothGattCharacteristic characteristic) {
+        getPacketTransport(characteristic);
+        return mOutboundQueue;
+    }
+
+    /**
+     * Get the stage that batches small messages for a Characteristic
+     *
+     * @param characteristic the Characteristic being written to
+     * @return the coalescer for the Characteristic
+     */
+    public WriteCoalescer getWriteCoalescer(BluetoothGattCharacteristic characteristic) {
+        getPacketTransport(characteristic);
+        return mWriteCoalescer;
+    }
+
+    /**
+     * Open an L2CAP channel to the Peripheral in the background.  Once it is open, messages
+     * and files go over it instead of the Characteristic, until it closes.
+     * Does nothing on Android devices that don't support L2CAP channels
+     *
+     * @param psm the Protocol/Service Multiplexer the Peripheral listens on
+     */
+    public void openL2capChannel(final int psm) {
+        final BluetoothDevice bluetoothDevice = mBluetoothDevice;
+        if (bluetoothDevice == null || !L2capPacketTransport.isSupported()) {
+            return;
+        }
+        new Thread(TAG) {
+            @Override
+            public void run() {
+                try {
+                    onL2capChannelOpened(L2capPacketTransport.connect(bluetoothDevice, psm));
+                } catch (Exception e) {
+                    Log.d(TAG, "Staying on GATT: " + e.getMessage());
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Close the L2CAP channel.  Messages go back to the Characteristic
+     */
+    public synchronized void closeL2capChannel() {
+        if (mL2capWriteCoalescer != null) {
+            mL2capWriteCoalescer.close();
+            mL2capWriteCoalescer = null;
+        }
+        if (mL2capOutboundQueue != null) {
+            mL2capOutboundQueue.clear();
+            mL2capOutboundQueue = null;
+        }
+        if (mL2capTransport != null) {
+            mL2capTransport.close();
+            mL2capTransport = null;
+        }
+    }
+
+    /**
+     * Determine if messages are going over an L2CAP channel
+     *
+     * @return <b>true</b> if an L2CAP channel is open
+     */
+    public synchronized boolean isL2capChannelOpen() {
+        return mL2capTransport != null && mL2capTransport.isOpen();
+    }
+
+    /**
+     * Start using a newly opened L2CAP channel
+     *
+     * @param transport the channel
+     */
+    private synchronized void onL2capChannelOpened(L2capPacketTransport transport) {
+        closeL2capChannel();
+        if (mBluetoothGatt == null) {
+            // disconnected while the channel was opening
+            transport.close();
+            return;
+        }
+        mL2capTransport = transport;
+        mL2capOutboundQueue = new OutboundQueue(transport, OutboundQueue.NUM_LANES);
+        mL2capOutboundQueue.setThroughputTuner(createThroughputTuner(mCharacteristicLength,
+                transport.getMaxPacketLength(), StreamPacketTransport.MAX_WRITES_IN_FLIGHT));
+        mL2capWriteCoalescer = new WriteCoalescer(mL2capOutboundQueue,
+                transport.getMaxPacketLength() - OutboundQueue.LANE_HEADER_LENGTH, mCoalescingDelay);
+        final OutboundQueue outboundQueue = mL2capOutboundQueue;
+        final InboundPath inbound = new InboundPath();
+        transport.setListener(new PacketTransport.Listener() {
+            @Override
+            public void onPacketWritten(boolean success) {
+                outboundQueue.onPacketWritten(success);
+            }
+
+            @Override
+            public void onPacketReceived(byte[] packet) {
+                inbound.onPacketReceived(packet);
+            }
+        });
+    }
 
+    /**
+     * Create a tuner for a link, which reports its decisions to BleMetrics
+     *
+     * @param minChunkSize the smallest packet, in bytes
+     * @param maxChunkSize the largest packet, in bytes
+     * @param maxWindow the most writes in flight
+     * @return the tuner
+     */
+    private static ThroughputTuner createThroughputTuner(int minChunkSize, int maxChunkSize, int maxWindow) {
+        ThroughputTuner tuner = new ThroughputTuner(minChunkSize, maxChunkSize, maxWindow);
+        tuner.setListener(new ThroughputTuner.Listener() {
+            @Override
+            public void onTuningChanged(ThroughputTuner tuner) {
+                BleMetrics.getInstance().recordTuning(tuner.getChunkSize(), tuner.getWindow(),
+                        tuner.getPacingDelay(), tuner.getSmoothedLatency(), tuner.getNumWritesFailed());
+            }
+        });
+        return tuner;
+    }
+
+    /**
+     * Get the queue that messages and files go through: the L2CAP channel while it is open,
+     * otherwise the Characteristic
+     *
+     * @param characteristic the Characteristic to fall back on
+     * @return the queue
+     */
+    private synchronized OutboundQueue getDataOutboundQueue(BluetoothGattCharacteristic characteristic) {
+        if (isL2capChannelOpen()) {
+            return mL2capOutboundQueue;
+        }
+        closeL2capChannel();
+        return getOutboundQueue(characteristic);
+    }
+
+    /**
+     * Get the coalescer in front of getDataOutboundQueue()
+     *
+     * @param characteristic the Characteristic to fall back on
+     * @return the coalescer
+     */
+    private synchronized WriteCoalescer getDataWriteCoalescer(BluetoothGattCharacteristic characteristic) {
+        if (isL2capChannelOpen()) {
+            return mL2capWriteCoalescer;
+        }
+        closeL2capChannel();
+        return getWriteCoalescer(characteristic);
+    }
+
+    /**
+     * Pass on the result of a Characteristic write so the next packet can be sent.
+     * Call from BluetoothGattCallback.onCharacteristicWrite
+     *
+     * @param characteristic the Characteristic that was written to
+     * @param status the GATT status of the write
+     */
+    public void onCharacteristicWritten(BluetoothGattCharacteristic characteristic, int status) {
+        if (mPacketTransport != null && mPacketTransport.getCharacteristic().equals(characteristic)) {
+            mPacketTransport.onCharacteristicWrite(status);
+        }
+    }
+
+    /**
+     * Pass on the result of a reliable write transaction so the next message can be sent.
+     * Call from BluetoothGattCallback.onReliableWriteCompleted
+     *
+     * @param status the GATT status of the execute
+     */
+    public void onReliableWriteCompleted(int status) {
+        if (mPacketTransport != null) {
+            mPacketTransport.onReliableWriteCompleted(status);
+        }
     }
 
 
@@ -210,56 +1002,14 @@ public class BlePeripheral {
     }
 
 
-    /**
-     * Write a portion of a larger message to a Characteristic
-     *
-     * @param message The message being written
-     * @param offset The current packet index in queue to be written
-     * @param characteristic The Characteristic being written to
-     * @throws Exception
-     */
-    public void writePartialValueToCharacteristic(String message, int offset, BluetoothGattCharacteristic characteristic) throws Exception {
-        byte[] temp = message.getBytes();
-
-        mNumPacketsTotal = (int) Math.ceil((float) temp.length / mCharacteristicLength);
-        int remainder = temp.length % mCharacteristicLength;
-
-        int dataLength = mCharacteristicLength;
-        if (offset >= mNumPacketsTotal) {
-            dataLength = remainder;
-        }
-
-        byte[] packet = new byte[dataLength];
-        for (int localIndex = 0; localIndex < packet.length; localIndex++) {
-            int index = (offset * dataLength) + localIndex;
-            if (index < temp.length) {
-                packet[localIndex] = temp[index];
-            } else {
-                packet[localIndex] = 0x00;
-            }
-        }
-
-        // a simpler way to write this might be:
-        //System.arraycopy(getCurrentMessage().getBytes(), getCurrentOffset()*mCharacteristicLength, chunk, 0, mCharacteristicLength);
-        //chunk[dataLength] = 0x00;
-
-
-        Log.v(TAG, "Writing message: '" + new String(packet, "ASCII") + "' to " + characteristic.getUuid().toString());
-        characteristic.setValue(packet);
-        mBluetoothGatt.writeCharacteristic(characteristic);
-        mNumPacketsSent++;
-    }
-
-
     /**
      * Determine if a message has been completely wirtten to a Characteristic or if more data is in queue
      *
      * @return <b>false</b> if all of a message is has been written to a Characteristic, <b>true</b> otherwise
      */
     public boolean morePacketsAvailableInQueue() {
-        boolean morePacketsAvailable = mNumPacketsSent < mNumPacketsTotal;
-        Log.v(TAG, mNumPacketsSent + " of " + mNumPacketsTotal + " packets sent: "+morePacketsAvailable);
-        return morePacketsAvailable;
+        return (mOutboundQueue != null && mOutboundQueue.isBusy())
+                || (mWriteCoalescer != null && mWriteCoalescer.hasPendingMessages());
     }
 
     /**
@@ -268,7 +1018,10 @@ public class BlePeripheral {
      * @return integer representing how many packets have been written so far to Characteristic
      */
     public int getCurrentOffset() {
-        return mNumPacketsSent;
+        if (mOutboundQueue == null) {
+            return 0;
+        }
+        return mOutboundQueue.getCurrentOffset();
     }
 
 
@@ -278,7 +1031,13 @@ public class BlePeripheral {
      * @return the message in queue for writing to a Characteristic
      */
     public String getCurrentMessage() {
-        return mQueuedCharactersticValue;
+        if (mOutboundQueue == null || mOutboundQueue.getCurrentMessage() == null) {
+            return null;
+        }
+        ByteBuffer message = mOutboundQueue.getCurrentMessage();
+        byte[] bytes = new byte[message.remaining()];
+        message.get(bytes);
+        return new String(bytes, Charset.forName(CHARACTER_ENCODING));
     }
 
     // http://stackoverflow.com/a/21300916/5671180
@@ -311,5 +1070,112 @@ public class BlePeripheral {
         return (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0;
     }
 
+    /**
+     * Decode a whole message from a text lane
+     *
+     * @param lane the lane
+     * @param message one line, or one compressed or sealed block
+     */
+    private void onTextMessageReceived(int lane, byte[] message) {
+        byte[] bytes = message;
+        int length = message.length;
+        String text;
+        // the Characteristic and the L2CAP channel take turns a whole message at a time
+        synchronized (mUtf8Decoders[lane]) {
+            MessageCipher cipher = mMessageCipher;
+            if (lane == OutboundQueue.LANE_CONTROL && cipher != null) {
+                length = cipher.open(bytes, 0, length);
+                bytes = cipher.getOutput();
+            }
+            MessageDecompressor decompressor = mMessageDecompressors[lane];
+            int numBytes = decompressor.decode(bytes, 0, length);
+            text = mUtf8Decoders[lane].decode(decompressor.getOutput(), 0, numBytes);
+        }
+        mInboundMessages[lane].onTextReceived(text);
+    }
+
+
+    /**
+     * Takes the packets that arrive over one transport.  Text lanes are put back together
+     * into whole messages before they are decoded, so messages arriving on the
+     * Characteristic and on the L2CAP channel at once can't interleave inside a block or
+     * a character.  Called from one thread, the transport's
+     */
+    private class InboundPath implements LaneDemultiplexer.Listener {
+        private final LaneDemultiplexer mDemultiplexer = new LaneDemultiplexer(OutboundQueue.NUM_LANES, this);
+        private final MessageAssembler[] mAssemblers = new MessageAssembler[OutboundQueue.NUM_LANES];
+
+        InboundPath() {
+            for (int lane = 0; lane < mAssemblers.length; lane++) {
+                if (lane == OutboundQueue.LANE_LINK || lane == OutboundQueue.LANE_BULK || lane == OutboundQueue.LANE_TELEMETRY) {
+                    continue;
+                }
+                final int textLane = lane;
+                mAssemblers[lane] = new MessageAssembler(new MessageAssembler.Listener() {
+                    @Override
+                    public void onMessageAssembled(byte[] message) {
+                        onTextMessageReceived(textLane, message);
+                    }
+                });
+            }
+        }
+
+        void onPacketReceived(byte[] value) {
+            mDemultiplexer.onPacketReceived(value);
+        }
+
+        /**
+         * Forget partly received messages, such as when the link drops
+         */
+        void reset() {
+            for (MessageAssembler assembler : mAssemblers) {
+                if (assembler != null) {
+                    assembler.reset();
+                }
+            }
+        }
+
+        @Override
+        public void onLanePacketReceived(int lane, byte[] packet, int offset, int length) {
+            if (lane == OutboundQueue.LANE_LINK) {
+                onLinkFrameReceived(packet, offset, length);
+                return;
+            }
+            LinkParameterManager linkParameterManager = mLinkParameterManager;
+            if (linkParameterManager != null) {
+                linkParameterManager.onBytesReceived(OutboundQueue.LANE_HEADER_LENGTH + length);
+            }
+            if (lane == OutboundQueue.LANE_TELEMETRY) {
+                TelemetryDecoder telemetryDecoder = mTelemetryDecoder;
+                if (telemetryDecoder != null) {
+                    telemetryDecoder.onPacketReceived(packet, offset, length);
+                }
+                return;
+            }
+            if (lane == OutboundQueue.LANE_BULK) {
+                // file data is binary, so it can't go through the decompressor or be split into lines
+                BulkDataListener bulkDataListener = mBulkDataListener;
+                if (bulkDataListener != null) {
+                    bulkDataListener.onBulkDataReceived(packet, offset, length);
+                }
+                return;
+            }
+            mAssemblers[lane].onPacketReceived(packet, offset, length);
+        }
+    }
+
 
+    /**
+     * Gets the data received on OutboundQueue.LANE_BULK, as it arrives
+     */
+    public interface BulkDataListener {
+        /**
+         * Bulk data arrived.  Called on a Bluetooth thread, so hand it off rather than work on it
+         *
+         * @param data the received value.  Only read between offset and offset + length, and only during the call
+         * @param offset where the data starts
+         * @param length how much there is
+         */
+        void onBulkDataReceived(byte[] data, int offset, int length);
+    }
 }
@@ -0,0 +1,61 @@
+package tonyg.example.com.bleechoclient.ble;
+
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+
+/**
+ * How hard to work the radio while scanning for Peripherals.
+ *
+ * Profiles other than LOW_LATENCY ask the Bluetooth controller to batch results
+ * and hand them over every reportDelayMillis, so the CPU can sleep between batches.
+ * Batching is skipped on controllers that can't do it.  Profiles only apply on
+ * API 21 and above.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2015-12-12
+ */
+public enum ScanProfile {
+    /** Scan continuously and report every result at once.  Use while someone is waiting **/
+    LOW_LATENCY(ScanSettings.SCAN_MODE_LOW_LATENCY, 0),
+    /** Scan at a moderate duty cycle **/
+    BALANCED(ScanSettings.SCAN_MODE_BALANCED, 2000),
+    /** Scan at a low duty cycle.  Suited to discovery that runs for hours **/
+    LOW_POWER(ScanSettings.SCAN_MODE_LOW_POWER, 10000),
+    /** Only receive results from scans other apps start.  Falls back to LOW_POWER before API 23 **/
+    OPPORTUNISTIC(ScanSettings.SCAN_MODE_OPPORTUNISTIC, 10000);
+
+    private final int mScanMode;
+    private final long mReportDelayMillis;
+
+    ScanProfile(int scanMode, long reportDelayMillis) {
+        mScanMode = scanMode;
+        mReportDelayMillis = reportDelayMillis;
+    }
+
+    /**
+     * Build the scan settings for this profile
+     *
+     * @param batchingSupported <b>true</b> if the controller can batch scan results
+     * @return the ScanSettings
+     */
+    public ScanSettings buildScanSettings(boolean batchingSupported) {
+        int scanMode = mScanMode;
+        if (this == OPPORTUNISTIC && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+        }
+        ScanSettings.Builder builder = new ScanSettings.Builder().setScanMode(scanMode);
+        if (batchingSupported && mReportDelayMillis > 0) {
+            builder.setReportDelay(mReportDelayMillis);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Get how long the controller holds results before reporting them in a batch
+     *
+     * @return the report delay in milliseconds, 0 for no batching
+     */
+    public long getReportDelayMillis() {
+        return mReportDelayMillis;
+    }
+}
@@ -0,0 +1,197 @@
+package tonyg.example.com.bleechoclient.ble.codec;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A small LZ77 codec with a preset dictionary, for short, repetitive text.
+ *
+ * The compressed data is a run of tokens.  A token byte 0LLLLLLL is followed by
+ * L + 1 literal bytes.  A token 1MMMMDDD DDDDDDDD copies M + 3 bytes from D + 1 bytes
+ * back.  Copies may reach back past the start of the output into the end of the
+ * preset dictionary, which is how a short message gets compressed at all.
+ *
+ * Decoding needs nothing but the output buffer and the dictionary, which can sit in
+ * flash, so a microcontroller with a couple of KB of RAM can decode it.  The
+ * dictionary is fixed per DICTIONARY_VERSION; both ends must use the same one.
+ *
+ * Not thread safe: use one codec per stream.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class LzCodec {
+    public static final int DICTIONARY_VERSION = 1;
+
+    public static final int MIN_MATCH_LENGTH = 3;
+    public static final int MAX_MATCH_LENGTH = MIN_MATCH_LENGTH + 0x0F;
+    public static final int MAX_DISTANCE = 0x800;
+    public static final int MAX_LITERAL_RUN = 0x80;
+
+    private static final int HASH_BITS = 12;
+
+    /** Words and phrases that chat messages and echo commands are made of **/
+    private static final byte[] PRESET_DICTIONARY = (
+            "EchoServer echo server message messages the to and of a in is it you that for on with "
+            + "was are be this have not but they at what all your can do if will there so about "
+            + "just like know get out when time what's up how are you doing ok okay yes no thanks "
+            + "thank you please hello hi hey good morning good night see you later sounds good "
+            + "can you send me the file received sent connected disconnected connection status "
+            + "battery level signal strength temperature sensor reading value start stop reset "
+            + "ping pong ack error retry timeout again now today tomorrow I'm I am we are "
+            + "let me check that works for me where are you on my way be right back "
+            + "http://www. .com .org \r\n\n").getBytes(Charset.forName("US-ASCII"));
+
+    private final int[] mHashTable = new int[1 << HASH_BITS];
+    private byte[] mWindow = new byte[0];
+
+    /**
+     * Get the preset dictionary
+     *
+     * @return a copy of the dictionary bytes
+     */
+    public static byte[] getPresetDictionary() {
+        return PRESET_DICTIONARY.clone();
+    }
+
+    /**
+     * Compress some bytes
+     *
+     * @param input the bytes to compress
+     * @param offset where they start
+     * @param length how many there are
+     * @param output where to put the compressed bytes
+     * @param outputOffset where in output to start
+     * @param maxOutputLength the most compressed bytes to write
+     * @return how many compressed bytes were written, or -1 if they would not fit
+     */
+    public int compress(byte[] input, int offset, int length, byte[] output, int outputOffset, int maxOutputLength) {
+        // the dictionary and the input share one window so matches can span both
+        int dictionaryLength = PRESET_DICTIONARY.length;
+        int windowLength = dictionaryLength + length;
+        if (mWindow.length < windowLength) {
+            mWindow = new byte[Math.max(windowLength, mWindow.length * 2)];
+            System.arraycopy(PRESET_DICTIONARY, 0, mWindow, 0, dictionaryLength);
+        }
+        System.arraycopy(input, offset, mWindow, dictionaryLength, length);
+        byte[] window = mWindow;
+
+        Arrays.fill(mHashTable, -1);
+        for (int position = 0; position + MIN_MATCH_LENGTH <= dictionaryLength; position++) {
+            mHashTable[hash(window, position)] = position;
+        }
+
+        int outputEnd = outputOffset + maxOutputLength;
+        int outputPosition = outputOffset;
+        int literalStart = dictionaryLength;
+        int position = dictionaryLength;
+        while (position < windowLength) {
+            int matchLength = 0;
+            int distance = 0;
+            if (position + MIN_MATCH_LENGTH <= windowLength) {
+                int hash = hash(window, position);
+                int candidate = mHashTable[hash];
+                mHashTable[hash] = position;
+                if (candidate >= 0 && position - candidate <= MAX_DISTANCE) {
+                    int maxLength = Math.min(MAX_MATCH_LENGTH, windowLength - position);
+                    while (matchLength < maxLength && window[candidate + matchLength] == window[position + matchLength]) {
+                        matchLength++;
+                    }
+                    distance = position - candidate;
+                }
+            }
+            if (matchLength < MIN_MATCH_LENGTH) {
+                position++;
+                continue;
+            }
+
+            outputPosition = writeLiterals(window, literalStart, position - literalStart, output, outputPosition, outputEnd);
+            if (outputPosition < 0 || outputPosition + 2 > outputEnd) {
+                return -1;
+            }
+            output[outputPosition++] = (byte) (0x80 | (matchLength - MIN_MATCH_LENGTH) << 3 | (distance - 1) >> 8);
+            output[outputPosition++] = (byte) (distance - 1);
+
+            // remember the positions inside the match too, for later matches
+            int matchEnd = position + matchLength;
+            for (position++; position < matchEnd && position + MIN_MATCH_LENGTH <= windowLength; position++) {
+                mHashTable[hash(window, position)] = position;
+            }
+            position = matchEnd;
+            literalStart = position;
+        }
+        outputPosition = writeLiterals(window, literalStart, windowLength - literalStart, output, outputPosition, outputEnd);
+        return outputPosition < 0 ? -1 : outputPosition - outputOffset;
+    }
+
+    /**
+     * Decompress some bytes
+     *
+     * @param input the compressed bytes
+     * @param offset where they start
+     * @param length how many there are
+     * @param output where to put the original bytes
+     * @param outputOffset where in output to start
+     * @param outputLength how many original bytes there should be
+     * @return <b>true</b> if the input decompressed to exactly outputLength bytes
+     */
+    public static boolean decompress(byte[] input, int offset, int length, byte[] output, int outputOffset, int outputLength) {
+        int dictionaryLength = PRESET_DICTIONARY.length;
+        int inputEnd = offset + length;
+        int inputPosition = offset;
+        int outputPosition = 0;
+        while (inputPosition < inputEnd) {
+            int token = input[inputPosition++] & 0xFF;
+            if ((token & 0x80) == 0) {
+                int runLength = token + 1;
+                if (inputPosition + runLength > inputEnd || outputPosition + runLength > outputLength) {
+                    return false;
+                }
+                System.arraycopy(input, inputPosition, output, outputOffset + outputPosition, runLength);
+                inputPosition += runLength;
+                outputPosition += runLength;
+            } else {
+                if (inputPosition >= inputEnd) {
+                    return false;
+                }
+                int matchLength = ((token >> 3) & 0x0F) + MIN_MATCH_LENGTH;
+                int distance = ((token & 0x07) << 8 | (input[inputPosition++] & 0xFF)) + 1;
+                if (distance > outputPosition + dictionaryLength || outputPosition + matchLength > outputLength) {
+                    return false;
+                }
+                // byte by byte, since a copy may overlap what it writes
+                for (int index = 0; index < matchLength; index++) {
+                    int source = outputPosition - distance;
+                    output[outputOffset + outputPosition++] = source >= 0
+                            ? output[outputOffset + source] : PRESET_DICTIONARY[dictionaryLength + source];
+                }
+            }
+        }
+        return outputPosition == outputLength;
+    }
+
+    /**
+     * Write literal runs
+     *
+     * @return the output position after them, or -1 if they would not fit
+     */
+    private static int writeLiterals(byte[] window, int start, int length, byte[] output, int outputPosition, int outputEnd) {
+        while (length > 0) {
+            int runLength = Math.min(MAX_LITERAL_RUN, length);
+            if (outputPosition + 1 + runLength > outputEnd) {
+                return -1;
+            }
+            output[outputPosition++] = (byte) (runLength - 1);
+            System.arraycopy(window, start, output, outputPosition, runLength);
+            outputPosition += runLength;
+            start += runLength;
+            length -= runLength;
+        }
+        return outputPosition;
+    }
+
+    private static int hash(byte[] window, int position) {
+        int value = (window[position] & 0xFF) << 16 | (window[position + 1] & 0xFF) << 8 | (window[position + 2] & 0xFF);
+        return (value * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+}
@@ -0,0 +1,313 @@
+package tonyg.example.com.bleechoclient.ble.codec;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Seals whole outgoing messages with AES-GCM, and opens the sealed blocks in a stream
+ * of received bytes.
+ *
+ * A sealed block is BLOCK_MARKER, the sender's 8 byte epoch, a 4 byte message counter,
+ * the length of the rest (2 bytes, big-endian), then the ciphertext and its TAG_LENGTH
+ * byte tag.  The header is authenticated along with the message.  BLOCK_MARKER never
+ * appears in UTF-8, so blocks can be picked out of a stream that arrives in arbitrary
+ * pieces.  Sealing a message rather than each packet pays for the header and tag once
+ * per message.
+ *
+ * The nonce is the epoch, then the counter, so no two messages under one key share a
+ * nonce and nothing random is drawn per message.  The epoch is a 4 byte sender id,
+ * chosen at random for each key, then a 4 byte generation that reset() moves on once
+ * per connection.  Save getEpoch() after each reset() and pass it back to the
+ * constructor, and the sender keeps its id and never reuses a generation, even after
+ * the app restarts.
+ *
+ * Each block carries its nonce, so blocks from any sender with the key can be opened,
+ * such as other devices on a hub.  For each sender the generation and counter of the
+ * last block opened are kept, and a block that is not past them is a replay and is
+ * rejected, as is any block that fails to authenticate.  Senders are never forgotten,
+ * so no old block can be replayed once its sender has been seen.  Up to MAX_SENDERS
+ * are tracked, far more than there are devices on one link; blocks from further
+ * senders are rejected rather than have an old sender forgotten.
+ *
+ * Both Ciphers are created once per key and only re-initialised with a new nonce per
+ * message.  Received blocks are opened into buffers that are reused.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class MessageCipher {
+    public static final int BLOCK_MARKER = 0xC0;
+    public static final int EPOCH_LENGTH = 8;
+    public static final int COUNTER_LENGTH = 4;
+    public static final int BLOCK_HEADER_LENGTH = 1 + EPOCH_LENGTH + COUNTER_LENGTH + 2;
+    public static final int TAG_LENGTH = 16;
+    public static final int MAX_MESSAGE_LENGTH = 0xFFFF - TAG_LENGTH;
+    public static final int MAX_SENDERS = 64;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int OUTSIDE_BLOCK = -1;
+    private static final long MAX_COUNTER = 0xFFFFFFFFL;
+    private static final long MAX_GENERATION = 0xFFFFFFFFL;
+
+    private final SecretKeySpec mKey;
+    private final Cipher mSealCipher;
+    private final Cipher mOpenCipher;
+    private final SecureRandom mRandom = new SecureRandom();
+    private final byte[] mNonce = new byte[EPOCH_LENGTH + COUNTER_LENGTH];
+    private final byte[] mOpenNonce = new byte[EPOCH_LENGTH + COUNTER_LENGTH];
+    private long mEpoch;
+    private long mNextCounter;
+    private final Map<Long, long[]> mLastOpened = new HashMap<>(); // sender id to its last generation and counter
+    private boolean mPlaintextAllowed = true;
+
+    /** Opening stuff **/
+    private final byte[] mBlockHeader = new byte[BLOCK_HEADER_LENGTH];
+    private int mBlockHeaderLength = OUTSIDE_BLOCK;
+    private byte[] mBlock = new byte[64];
+    private int mBlockLength = 0;
+    private int mSealedLength = 0;
+    private byte[] mOutput = new byte[64];
+    private long mNumBlocksRejected = 0;
+
+    /**
+     * Create a new MessageCipher, as a sender this key hasn't been used by before
+     *
+     * @param key a 16, 24 or 32 byte AES key, shared with the Peripheral
+     * @throws GeneralSecurityException if AES-GCM is not available or the key is the wrong length
+     */
+    public MessageCipher(byte[] key) throws GeneralSecurityException {
+        this(key, -1);
+    }
+
+    /**
+     * Create a new MessageCipher that carries on from an epoch saved from getEpoch()
+     *
+     * @param key a 16, 24 or 32 byte AES key, shared with the Peripheral
+     * @param epoch the last epoch this device used with the key, or -1 if it never has
+     * @throws GeneralSecurityException if AES-GCM is not available or the key is the wrong length
+     */
+    public MessageCipher(byte[] key, long epoch) throws GeneralSecurityException {
+        // check the key now rather than on the first message
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new InvalidKeyException("AES keys are 16, 24 or 32 bytes");
+        }
+        mKey = new SecretKeySpec(key, "AES");
+        mSealCipher = Cipher.getInstance(TRANSFORMATION);
+        mOpenCipher = Cipher.getInstance(TRANSFORMATION);
+        mEpoch = epoch;
+        reset();
+    }
+
+    /**
+     * Start a new epoch, such as for a new connection.  The counter starts over and any
+     * partly received block is forgotten.  Senders already opened are remembered, so
+     * their blocks can't be replayed into the new connection
+     */
+    public synchronized void reset() {
+        if (mEpoch < 0 || (mEpoch & MAX_GENERATION) == MAX_GENERATION) {
+            // a new sender id, starting from the first generation
+            mEpoch = (mRandom.nextInt() & 0xFFFFFFFFL) << 32;
+        } else {
+            mEpoch++;
+        }
+        for (int index = 0; index < EPOCH_LENGTH; index++) {
+            mNonce[index] = (byte) (mEpoch >> (8 * (EPOCH_LENGTH - 1 - index)));
+        }
+        mNextCounter = 0;
+        mBlockHeaderLength = OUTSIDE_BLOCK;
+        mBlockLength = 0;
+    }
+
+    /**
+     * Get the epoch blocks are sealed in now.  Save it before sealing, and pass it to the
+     * constructor next time, so no epoch is used twice with the key
+     *
+     * @return the epoch
+     */
+    public synchronized long getEpoch() {
+        return mEpoch;
+    }
+
+    /**
+     * Allow or drop received bytes that are not in a sealed block
+     *
+     * @param plaintextAllowed <b>false</b> to accept only sealed messages
+     */
+    public synchronized void setPlaintextAllowed(boolean plaintextAllowed) {
+        mPlaintextAllowed = plaintextAllowed;
+    }
+
+    /**
+     * Seal a message
+     *
+     * @param message the message
+     * @return the sealed block
+     * @throws GeneralSecurityException if the message is too long or the epoch has run out of counters
+     */
+    public synchronized byte[] seal(byte[] message) throws GeneralSecurityException {
+        if (message.length > MAX_MESSAGE_LENGTH) {
+            throw new GeneralSecurityException("Message is too long to seal");
+        }
+        if (mNextCounter > MAX_COUNTER) {
+            throw new GeneralSecurityException("Out of counters.  reset() for a new epoch");
+        }
+        long counter = mNextCounter++;
+        int sealedLength = message.length + TAG_LENGTH;
+
+        byte[] block = new byte[BLOCK_HEADER_LENGTH + sealedLength];
+        block[0] = (byte) BLOCK_MARKER;
+        System.arraycopy(mNonce, 0, block, 1, EPOCH_LENGTH);
+        writeCounter(counter, block, 1 + EPOCH_LENGTH);
+        block[BLOCK_HEADER_LENGTH - 2] = (byte) (sealedLength >> 8);
+        block[BLOCK_HEADER_LENGTH - 1] = (byte) sealedLength;
+
+        writeCounter(counter, mNonce, EPOCH_LENGTH);
+        mSealCipher.init(Cipher.ENCRYPT_MODE, mKey, new GCMParameterSpec(TAG_LENGTH * 8, mNonce));
+        mSealCipher.updateAAD(block, 0, BLOCK_HEADER_LENGTH);
+        mSealCipher.doFinal(message, 0, message.length, block, BLOCK_HEADER_LENGTH);
+        return block;
+    }
+
+    /**
+     * Take the next received bytes
+     *
+     * @param bytes the bytes
+     * @param offset where they start
+     * @param length how many there are
+     * @return how many opened or plain bytes are now in getOutput()
+     */
+    public synchronized int open(byte[] bytes, int offset, int length) {
+        int outputLength = 0;
+        int end = offset + length;
+        int position = offset;
+        while (position < end) {
+            if (mBlockHeaderLength == OUTSIDE_BLOCK) {
+                int runEnd = position;
+                while (runEnd < end && (bytes[runEnd] & 0xFF) != BLOCK_MARKER) {
+                    runEnd++;
+                }
+                if (mPlaintextAllowed) {
+                    outputLength = append(bytes, position, runEnd - position, outputLength);
+                }
+                position = runEnd;
+                if (position < end) {
+                    mBlockHeader[0] = bytes[position++];
+                    mBlockHeaderLength = 1;
+                }
+            } else if (mBlockHeaderLength < BLOCK_HEADER_LENGTH) {
+                mBlockHeader[mBlockHeaderLength++] = bytes[position++];
+                if (mBlockHeaderLength == BLOCK_HEADER_LENGTH) {
+                    mSealedLength = (mBlockHeader[BLOCK_HEADER_LENGTH - 2] & 0xFF) << 8
+                            | (mBlockHeader[BLOCK_HEADER_LENGTH - 1] & 0xFF);
+                    mBlockLength = 0;
+                    if (mBlock.length < mSealedLength) {
+                        mBlock = new byte[mSealedLength];
+                    }
+                }
+            } else {
+                int numBytes = Math.min(end - position, mSealedLength - mBlockLength);
+                System.arraycopy(bytes, position, mBlock, mBlockLength, numBytes);
+                mBlockLength += numBytes;
+                position += numBytes;
+            }
+
+            if (mBlockHeaderLength == BLOCK_HEADER_LENGTH && mBlockLength == mSealedLength) {
+                outputLength = openBlock(outputLength);
+            }
+        }
+        return outputLength;
+    }
+
+    /**
+     * Get the bytes from the last call to open()
+     *
+     * @return the buffer.  Only the length returned by open() is valid
+     */
+    public synchronized byte[] getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * Count the blocks that were replayed or failed to authenticate
+     *
+     * @return the number of blocks rejected
+     */
+    public synchronized long getNumBlocksRejected() {
+        return mNumBlocksRejected;
+    }
+
+    /**
+     * Authenticate and decrypt the block that just finished arriving
+     */
+    private int openBlock(int outputLength) {
+        mBlockHeaderLength = OUTSIDE_BLOCK;
+        long epoch = readEpoch(mBlockHeader, 1);
+        long sender = epoch >>> 32;
+        long generation = epoch & MAX_GENERATION;
+        long counter = readCounter(mBlockHeader, 1 + EPOCH_LENGTH);
+        long[] lastOpened = mLastOpened.get(sender);
+        boolean replayed = lastOpened != null && (generation < lastOpened[0]
+                || (generation == lastOpened[0] && counter <= lastOpened[1]));
+        boolean unknownSender = lastOpened == null && mLastOpened.size() >= MAX_SENDERS;
+        if (mSealedLength < TAG_LENGTH || replayed || unknownSender) {
+            mNumBlocksRejected++;
+            return outputLength;
+        }
+        ensureOutputCapacity(outputLength + mSealedLength);
+        try {
+            // the block's header is its nonce, after the marker
+            System.arraycopy(mBlockHeader, 1, mOpenNonce, 0, EPOCH_LENGTH + COUNTER_LENGTH);
+            mOpenCipher.init(Cipher.DECRYPT_MODE, mKey, new GCMParameterSpec(TAG_LENGTH * 8, mOpenNonce));
+            mOpenCipher.updateAAD(mBlockHeader, 0, BLOCK_HEADER_LENGTH);
+            int numBytes = mOpenCipher.doFinal(mBlock, 0, mSealedLength, mOutput, outputLength);
+            // only an authentic block moves its sender on, so forgeries can't fill the table
+            mLastOpened.put(sender, new long[]{generation, counter});
+            return outputLength + numBytes;
+        } catch (GeneralSecurityException e) {
+            // including AEADBadTagException
+            mNumBlocksRejected++;
+        }
+        return outputLength;
+    }
+
+    private int append(byte[] bytes, int offset, int length, int outputLength) {
+        ensureOutputCapacity(outputLength + length);
+        System.arraycopy(bytes, offset, mOutput, outputLength, length);
+        return outputLength + length;
+    }
+
+    private void ensureOutputCapacity(int capacity) {
+        if (mOutput.length < capacity) {
+            byte[] output = new byte[Math.max(capacity, mOutput.length * 2)];
+            System.arraycopy(mOutput, 0, output, 0, mOutput.length);
+            mOutput = output;
+        }
+    }
+
+    private static void writeCounter(long counter, byte[] bytes, int offset) {
+        bytes[offset] = (byte) (counter >> 24);
+        bytes[offset + 1] = (byte) (counter >> 16);
+        bytes[offset + 2] = (byte) (counter >> 8);
+        bytes[offset + 3] = (byte) counter;
+    }
+
+    private static long readEpoch(byte[] bytes, int offset) {
+        long epoch = 0;
+        for (int index = 0; index < EPOCH_LENGTH; index++) {
+            epoch = epoch << 8 | (bytes[offset + index] & 0xFF);
+        }
+        return epoch;
+    }
+
+    private static long readCounter(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFFL) << 24 | (bytes[offset + 1] & 0xFFL) << 16
+                | (bytes[offset + 2] & 0xFFL) << 8 | (bytes[offset + 3] & 0xFFL);
+    }
+}
@@ -0,0 +1,57 @@
+package tonyg.example.com.bleechoclient.ble.codec;
+
+/**
+ * Compresses whole outgoing text messages into blocks, before they are cut into packets.
+ *
+ * A block is BLOCK_MARKER, the original length and the compressed length (each two
+ * bytes, big-endian), then the LzCodec data.  BLOCK_MARKER never appears in UTF-8, so
+ * a MessageDecompressor can pick blocks out of a stream of plain text.
+ *
+ * Messages shorter than MIN_COMPRESSIBLE_LENGTH, and messages that would not come out
+ * smaller, are sent as they are.
+ *
+ * Not thread safe: use one compressor per stream.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class MessageCompressor {
+    public static final int BLOCK_MARKER = 0xC1;
+    public static final int BLOCK_HEADER_LENGTH = 5;
+    public static final int MIN_COMPRESSIBLE_LENGTH = 24;
+    public static final int MAX_BLOCK_LENGTH = 0xFFFF;
+
+    private final LzCodec mCodec = new LzCodec();
+    private byte[] mBuffer = new byte[64];
+
+    /**
+     * Compress a message if that makes it smaller
+     *
+     * @param message the message
+     * @return a compressed block, or the message itself
+     */
+    public byte[] compress(byte[] message) {
+        int length = message.length;
+        if (length < MIN_COMPRESSIBLE_LENGTH || length > MAX_BLOCK_LENGTH) {
+            return message;
+        }
+        if (mBuffer.length < length) {
+            mBuffer = new byte[Math.max(length, mBuffer.length * 2)];
+        }
+        // anything that doesn't save at least a byte past the header isn't worth it
+        int maxCompressedLength = length - BLOCK_HEADER_LENGTH - 1;
+        int compressedLength = mCodec.compress(message, 0, length, mBuffer, BLOCK_HEADER_LENGTH, maxCompressedLength);
+        if (compressedLength < 0) {
+            return message;
+        }
+
+        byte[] block = new byte[BLOCK_HEADER_LENGTH + compressedLength];
+        block[0] = (byte) BLOCK_MARKER;
+        block[1] = (byte) (length >> 8);
+        block[2] = (byte) length;
+        block[3] = (byte) (compressedLength >> 8);
+        block[4] = (byte) compressedLength;
+        System.arraycopy(mBuffer, BLOCK_HEADER_LENGTH, block, BLOCK_HEADER_LENGTH, compressedLength);
+        return block;
+    }
+}
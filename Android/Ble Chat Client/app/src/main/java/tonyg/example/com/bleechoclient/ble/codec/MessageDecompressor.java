@@ -0,0 +1,132 @@
+package tonyg.example.com.bleechoclient.ble.codec;
+
+/**
+ * Expands the compressed blocks in a stream of received bytes, passing plain text through.
+ *
+ * Bytes arrive in arbitrary pieces, so a block may be split across several calls.
+ * Its output is held back until the whole block is in.  A block that fails to
+ * decompress is dropped.
+ *
+ * Not thread safe: use one decompressor per stream.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class MessageDecompressor {
+    private static final int OUTSIDE_BLOCK = -1;
+
+    private byte[] mOutput = new byte[64];
+
+    /** Block stuff **/
+    private final byte[] mBlockHeader = new byte[MessageCompressor.BLOCK_HEADER_LENGTH];
+    private int mBlockHeaderLength = OUTSIDE_BLOCK;
+    private byte[] mBlock = new byte[64];
+    private int mBlockLength = 0;
+    private int mOriginalLength = 0;
+    private int mCompressedLength = 0;
+    private long mNumBlocksDropped = 0;
+
+    /**
+     * Take the next received bytes
+     *
+     * @param bytes the bytes
+     * @param offset where they start
+     * @param length how many there are
+     * @return how many plain bytes are now in getOutput()
+     */
+    public int decode(byte[] bytes, int offset, int length) {
+        int outputLength = 0;
+        int end = offset + length;
+        int position = offset;
+        while (position < end) {
+            if (mBlockHeaderLength == OUTSIDE_BLOCK) {
+                // plain text up to the next block
+                int runEnd = position;
+                while (runEnd < end && (bytes[runEnd] & 0xFF) != MessageCompressor.BLOCK_MARKER) {
+                    runEnd++;
+                }
+                outputLength = append(bytes, position, runEnd - position, outputLength);
+                position = runEnd;
+                if (position < end) {
+                    mBlockHeader[0] = bytes[position++];
+                    mBlockHeaderLength = 1;
+                }
+            } else if (mBlockHeaderLength < MessageCompressor.BLOCK_HEADER_LENGTH) {
+                mBlockHeader[mBlockHeaderLength++] = bytes[position++];
+                if (mBlockHeaderLength == MessageCompressor.BLOCK_HEADER_LENGTH) {
+                    startBlock();
+                }
+            } else {
+                int numBytes = Math.min(end - position, mCompressedLength - mBlockLength);
+                System.arraycopy(bytes, position, mBlock, mBlockLength, numBytes);
+                mBlockLength += numBytes;
+                position += numBytes;
+            }
+
+            if (mBlockHeaderLength == MessageCompressor.BLOCK_HEADER_LENGTH && mBlockLength == mCompressedLength) {
+                outputLength = finishBlock(outputLength);
+            }
+        }
+        return outputLength;
+    }
+
+    /**
+     * Get the plain bytes from the last call to decode()
+     *
+     * @return the buffer.  Only the length returned by decode() is valid
+     */
+    public byte[] getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * Count the blocks that could not be decompressed
+     *
+     * @return the number of blocks dropped
+     */
+    public long getNumBlocksDropped() {
+        return mNumBlocksDropped;
+    }
+
+    /**
+     * Forget any partial block, such as when the connection is lost
+     */
+    public void reset() {
+        mBlockHeaderLength = OUTSIDE_BLOCK;
+        mBlockLength = 0;
+    }
+
+    private void startBlock() {
+        mOriginalLength = (mBlockHeader[1] & 0xFF) << 8 | (mBlockHeader[2] & 0xFF);
+        mCompressedLength = (mBlockHeader[3] & 0xFF) << 8 | (mBlockHeader[4] & 0xFF);
+        mBlockLength = 0;
+        if (mBlock.length < mCompressedLength) {
+            mBlock = new byte[mCompressedLength];
+        }
+    }
+
+    private int finishBlock(int outputLength) {
+        ensureOutputCapacity(outputLength + mOriginalLength);
+        if (LzCodec.decompress(mBlock, 0, mCompressedLength, mOutput, outputLength, mOriginalLength)) {
+            outputLength += mOriginalLength;
+        } else {
+            mNumBlocksDropped++;
+        }
+        reset();
+        return outputLength;
+    }
+
+    private int append(byte[] bytes, int offset, int length, int outputLength) {
+        ensureOutputCapacity(outputLength + length);
+        System.arraycopy(bytes, offset, mOutput, outputLength, length);
+        return outputLength + length;
+    }
+
+    private void ensureOutputCapacity(int capacity) {
+        if (mOutput.length < capacity) {
+            byte[] output = new byte[Math.max(capacity, mOutput.length * 2)];
+            System.arraycopy(mOutput, 0, output, 0, mOutput.length);
+            mOutput = output;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package tonyg.example.com.bleechoclient.ble.codec;
+
+/**
+ * Decodes a stream of UTF-8 packets into text.
+ *
+ * A character whose bytes are split across two packets is held back until the
+ * rest of it arrives, so the packet boundaries of the link never mangle text.
+ * Runs of ASCII are checked eight bytes at a time and copied without a
+ * branch per byte.  Malformed input decodes to U+FFFD.
+ *
+ * Not thread safe: use one decoder per stream.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class Utf8Decoder {
+    private static final char REPLACEMENT_CHARACTER = '\uFFFD';
+    private static final int ASCII_BLOCK_LENGTH = 8;
+
+    private char[] mChars = new char[64];
+
+    /** partially decoded character carried over from the previous packet **/
+    private int mCodePoint;
+    private int mMinCodePoint;      // smallest value allowed for this sequence length, to reject overlong forms
+    private int mBytesNeeded = 0;   // continuation bytes still to come
+
+    /**
+     * Decode the next packet
+     *
+     * @param bytes the packet
+     * @return every character completed by this packet
+     */
+    public String decode(byte[] bytes) {
+        return decode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decode the next packet
+     *
+     * @param bytes holds the packet
+     * @param offset where the packet starts
+     * @param length the packet length
+     * @return every character completed by this packet
+     */
+    public String decode(byte[] bytes, int offset, int length) {
+        // every byte produces at most one char, except a 4 byte sequence which produces two chars
+        if (mChars.length < length + 2) {
+            mChars = new char[Math.max(length + 2, mChars.length * 2)];
+        }
+        char[] chars = mChars;
+        int numChars = 0;
+        int index = offset;
+        int end = offset + length;
+
+        while (index < end) {
+            if (mBytesNeeded == 0) {
+                // ASCII fast path
+                while (index + ASCII_BLOCK_LENGTH <= end) {
+                    int bits = bytes[index] | bytes[index + 1] | bytes[index + 2] | bytes[index + 3]
+                            | bytes[index + 4] | bytes[index + 5] | bytes[index + 6] | bytes[index + 7];
+                    if ((bits & 0x80) != 0) {
+                        break;
+                    }
+                    for (int block = 0; block < ASCII_BLOCK_LENGTH; block++) {
+                        chars[numChars + block] = (char) bytes[index + block];
+                    }
+                    numChars += ASCII_BLOCK_LENGTH;
+                    index += ASCII_BLOCK_LENGTH;
+                }
+                if (index >= end) {
+                    break;
+                }
+
+                int value = bytes[index++] & 0xFF;
+                if (value < 0x80) {
+                    chars[numChars++] = (char) value;
+                } else if (value >= 0xC2 && value <= 0xDF) {
+                    startSequence(value & 0x1F, 1, 0x80);
+                } else if (value >= 0xE0 && value <= 0xEF) {
+                    startSequence(value & 0x0F, 2, 0x800);
+                } else if (value >= 0xF0 && value <= 0xF4) {
+                    startSequence(value & 0x07, 3, 0x10000);
+                } else {
+                    chars[numChars++] = REPLACEMENT_CHARACTER;
+                }
+            } else {
+                int value = bytes[index] & 0xFF;
+                if ((value & 0xC0) != 0x80) {
+                    // sequence cut short.  Replace it and decode this byte afresh
+                    mBytesNeeded = 0;
+                    chars[numChars++] = REPLACEMENT_CHARACTER;
+                    continue;
+                }
+                index++;
+                mCodePoint = (mCodePoint << 6) | (value & 0x3F);
+                if (--mBytesNeeded == 0) {
+                    numChars = appendCodePoint(chars, numChars);
+                }
+            }
+        }
+
+        return new String(chars, 0, numChars);
+    }
+
+    /**
+     * Determine if a character is waiting for more bytes
+     *
+     * @return <b>true</b> if the last packet ended part way through a character
+     */
+    public boolean hasPartialCharacter() {
+        return mBytesNeeded > 0;
+    }
+
+    /**
+     * Forget any partial character, such as when the connection is lost
+     */
+    public void reset() {
+        mBytesNeeded = 0;
+    }
+
+    private void startSequence(int leadingBits, int bytesNeeded, int minCodePoint) {
+        mCodePoint = leadingBits;
+        mBytesNeeded = bytesNeeded;
+        mMinCodePoint = minCodePoint;
+    }
+
+    private int appendCodePoint(char[] chars, int numChars) {
+        int codePoint = mCodePoint;
+        if (codePoint < mMinCodePoint || codePoint > Character.MAX_CODE_POINT
+                || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+            chars[numChars++] = REPLACEMENT_CHARACTER;
+        } else if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            chars[numChars++] = (char) codePoint;
+        } else {
+            chars[numChars++] = Character.highSurrogate(codePoint);
+            chars[numChars++] = Character.lowSurrogate(codePoint);
+        }
+        return numChars;
+    }
+}
@@ -0,0 +1,135 @@
+package tonyg.example.com.bleechoclient.ble.codec;
+
+import java.util.Arrays;
+
+/**
+ * Encodes text into UTF-8, independent of the platform's default charset.
+ *
+ * If a piece of text ends in the first half of a surrogate pair, that half is
+ * held back until the next call, so text may be fed in arbitrary pieces.
+ * Runs of ASCII are checked eight chars at a time and copied without a
+ * branch per char.  Unpaired surrogates encode as U+FFFD.
+ *
+ * Not thread safe: use one encoder per stream.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class Utf8Encoder {
+    private static final char REPLACEMENT_CHARACTER = '\uFFFD';
+    private static final int ASCII_BLOCK_LENGTH = 8;
+
+    private byte[] mBytes = new byte[64];
+    private char mPendingHighSurrogate = 0;
+
+    /**
+     * Encode a complete piece of text
+     *
+     * @param text the text
+     * @return the UTF-8 bytes
+     */
+    public byte[] encode(CharSequence text) {
+        return encode(text, true);
+    }
+
+    /**
+     * Encode the next piece of text
+     *
+     * @param text the text
+     * @param endOfInput <b>false</b> if more text follows, so a trailing high surrogate is kept for the next call
+     * @return the UTF-8 bytes of every character completed so far
+     */
+    public byte[] encode(CharSequence text, boolean endOfInput) {
+        int length = text.length();
+        // at most 3 bytes per char, plus a carried surrogate
+        if (mBytes.length < length * 3 + 4) {
+            mBytes = new byte[Math.max(length * 3 + 4, mBytes.length * 2)];
+        }
+        byte[] bytes = mBytes;
+        int numBytes = 0;
+        int index = 0;
+
+        if (mPendingHighSurrogate != 0) {
+            char high = mPendingHighSurrogate;
+            mPendingHighSurrogate = 0;
+            if (length > 0 && Character.isLowSurrogate(text.charAt(0))) {
+                numBytes = encodeCodePoint(Character.toCodePoint(high, text.charAt(0)), bytes, numBytes);
+                index = 1;
+            } else if (length > 0 || endOfInput) {
+                numBytes = encodeCodePoint(REPLACEMENT_CHARACTER, bytes, numBytes);
+            } else {
+                mPendingHighSurrogate = high;
+            }
+        }
+
+        while (index < length) {
+            // ASCII fast path
+            while (index + ASCII_BLOCK_LENGTH <= length) {
+                int bits = text.charAt(index) | text.charAt(index + 1) | text.charAt(index + 2) | text.charAt(index + 3)
+                        | text.charAt(index + 4) | text.charAt(index + 5) | text.charAt(index + 6) | text.charAt(index + 7);
+                if ((bits & 0xFF80) != 0) {
+                    break;
+                }
+                for (int block = 0; block < ASCII_BLOCK_LENGTH; block++) {
+                    bytes[numBytes + block] = (byte) text.charAt(index + block);
+                }
+                numBytes += ASCII_BLOCK_LENGTH;
+                index += ASCII_BLOCK_LENGTH;
+            }
+            if (index >= length) {
+                break;
+            }
+
+            char c = text.charAt(index++);
+            if (c < 0x80) {
+                bytes[numBytes++] = (byte) c;
+            } else if (Character.isHighSurrogate(c)) {
+                if (index < length) {
+                    char low = text.charAt(index);
+                    if (Character.isLowSurrogate(low)) {
+                        index++;
+                        numBytes = encodeCodePoint(Character.toCodePoint(c, low), bytes, numBytes);
+                    } else {
+                        numBytes = encodeCodePoint(REPLACEMENT_CHARACTER, bytes, numBytes);
+                    }
+                } else if (endOfInput) {
+                    numBytes = encodeCodePoint(REPLACEMENT_CHARACTER, bytes, numBytes);
+                } else {
+                    mPendingHighSurrogate = c;
+                }
+            } else if (Character.isLowSurrogate(c)) {
+                numBytes = encodeCodePoint(REPLACEMENT_CHARACTER, bytes, numBytes);
+            } else {
+                numBytes = encodeCodePoint(c, bytes, numBytes);
+            }
+        }
+
+        return Arrays.copyOf(bytes, numBytes);
+    }
+
+    /**
+     * Forget any held back surrogate
+     */
+    public void reset() {
+        mPendingHighSurrogate = 0;
+    }
+
+    private static int encodeCodePoint(int codePoint, byte[] bytes, int numBytes) {
+        if (codePoint < 0x80) {
+            bytes[numBytes++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            bytes[numBytes++] = (byte) (0xC0 | (codePoint >> 6));
+            bytes[numBytes++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            bytes[numBytes++] = (byte) (0xE0 | (codePoint >> 12));
+            bytes[numBytes++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            bytes[numBytes++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            bytes[numBytes++] = (byte) (0xF0 | (codePoint >> 18));
+            bytes[numBytes++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            bytes[numBytes++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            bytes[numBytes++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+        return numBytes;
+    }
+}
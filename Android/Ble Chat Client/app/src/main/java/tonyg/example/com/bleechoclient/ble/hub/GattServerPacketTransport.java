@@ -0,0 +1,142 @@
+package tonyg.example.com.bleechoclient.ble.hub;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServer;
+
+import java.io.ByteArrayOutputStream;
+
+import tonyg.example.com.bleechoclient.ble.transport.PacketTransport;
+
+/**
+ * Carries packets to and from one device connected to a local GATT server.
+ *
+ * Packets are written as notifications of the echo Characteristic, and packets
+ * arrive as writes to it.  The owner of the BluetoothGattServerCallback must forward
+ * the events for this device here.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class GattServerPacketTransport implements PacketTransport {
+    private static final String TAG = GattServerPacketTransport.class.getSimpleName();
+
+    private static final int ATT_HEADER_LENGTH = 3;
+    public static final int DEFAULT_MTU = 23;
+
+    private final BluetoothGattServer mGattServer;
+    private final BluetoothDevice mBluetoothDevice;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private volatile int mMaxPacketLength = DEFAULT_MTU - ATT_HEADER_LENGTH;
+    private volatile boolean mNotificationsEnabled = false;
+    private final ByteArrayOutputStream mPreparedWrite = new ByteArrayOutputStream();
+    private volatile Listener mListener;
+
+    /**
+     * Create a new GattServerPacketTransport
+     *
+     * @param gattServer the server the device is connected to
+     * @param bluetoothDevice the device
+     * @param characteristic the Characteristic the device writes to and is notified on
+     */
+    public GattServerPacketTransport(BluetoothGattServer gattServer, BluetoothDevice bluetoothDevice,
+                                     BluetoothGattCharacteristic characteristic) {
+        mGattServer = gattServer;
+        mBluetoothDevice = bluetoothDevice;
+        mCharacteristic = characteristic;
+    }
+
+    @Override
+    public int getMaxPacketLength() {
+        return mMaxPacketLength;
+    }
+
+    @Override
+    public void writePacket(byte[] packet) throws Exception {
+        if (!mNotificationsEnabled) {
+            throw new Exception("Device has not subscribed");
+        }
+        // every device is notified through the same Characteristic object
+        synchronized (mCharacteristic) {
+            mCharacteristic.setValue(packet);
+            if (!mGattServer.notifyCharacteristicChanged(mBluetoothDevice, mCharacteristic, false)) {
+                throw new Exception("Could not notify");
+            }
+        }
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void close() {
+        mListener = null;
+    }
+
+    /**
+     * The device subscribed or unsubscribed.  Call from onDescriptorWriteRequest
+     *
+     * @param notificationsEnabled <b>true</b> if it wants notifications
+     */
+    public void setNotificationsEnabled(boolean notificationsEnabled) {
+        mNotificationsEnabled = notificationsEnabled;
+    }
+
+    /**
+     * The device agreed on a new MTU.  Call from onMtuChanged
+     *
+     * @param mtu the MTU
+     */
+    public void onMtuChanged(int mtu) {
+        mMaxPacketLength = mtu - ATT_HEADER_LENGTH;
+    }
+
+    /**
+     * The device wrote to the Characteristic.  Call from onCharacteristicWriteRequest
+     *
+     * @param value what it wrote
+     * @param preparedWrite <b>true</b> if this is part of a reliable write, to be applied on execute
+     */
+    public void onCharacteristicWritten(byte[] value, boolean preparedWrite) {
+        if (preparedWrite) {
+            synchronized (mPreparedWrite) {
+                mPreparedWrite.write(value, 0, value.length);
+            }
+            return;
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onPacketReceived(value);
+        }
+    }
+
+    /**
+     * The device finished or abandoned a reliable write.  Call from onExecuteWrite
+     *
+     * @param execute <b>true</b> to apply what it prepared
+     */
+    public void onExecuteWrite(boolean execute) {
+        byte[] value;
+        synchronized (mPreparedWrite) {
+            value = mPreparedWrite.toByteArray();
+            mPreparedWrite.reset();
+        }
+        if (execute && value.length > 0) {
+            onCharacteristicWritten(value, false);
+        }
+    }
+
+    /**
+     * A notification went out.  Call from onNotificationSent
+     *
+     * @param success <b>true</b> if it was sent
+     */
+    public void onNotificationSent(boolean success) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onPacketWritten(success);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package tonyg.example.com.bleechoclient.ble.hub;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.content.Context;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.Arrays;
+
+import tonyg.example.com.bleechoclient.ble.BlePeripheral;
+
+/**
+ * Serves the echo service from this device, so other devices can connect to it the way
+ * they would to an echo server, and hands every connected device to a RelayHub.
+ *
+ * The service has the echo server's one Characteristic: devices write to it, and are
+ * notified on it once they subscribe.  The service UUID is advertised, which is what
+ * the Central side of this app looks for when the name doesn't match.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class HubGattServer {
+    private static final String TAG = HubGattServer.class.getSimpleName();
+
+    private final Context mContext;
+    private final RelayHub mRelayHub;
+    private BluetoothGattServer mGattServer;
+    private BluetoothGattCharacteristic mCharacteristic;
+    private BluetoothLeAdvertiser mAdvertiser;
+
+    /**
+     * Create a new HubGattServer
+     *
+     * @param context the Context
+     * @param relayHub where connected devices are relayed
+     */
+    public HubGattServer(Context context, RelayHub relayHub) {
+        mContext = context;
+        mRelayHub = relayHub;
+    }
+
+    /**
+     * Open the GATT server and start advertising
+     *
+     * @throws Exception if this device can't serve or advertise
+     */
+    public synchronized void start() throws Exception {
+        if (mGattServer != null) {
+            return;
+        }
+        BluetoothManager bluetoothManager = (BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE);
+        mAdvertiser = bluetoothManager.getAdapter().getBluetoothLeAdvertiser();
+        if (mAdvertiser == null) {
+            throw new Exception("Advertising not supported");
+        }
+        mGattServer = bluetoothManager.openGattServer(mContext, mGattServerCallback);
+        if (mGattServer == null) {
+            throw new Exception("Could not open GATT server");
+        }
+
+        mCharacteristic = new BluetoothGattCharacteristic(
+                BlePeripheral.WRITE_CHARACTERISTIC_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE
+                        | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+        mCharacteristic.addDescriptor(new BluetoothGattDescriptor(BlePeripheral.CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+        BluetoothGattService service = new BluetoothGattService(BlePeripheral.SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        service.addCharacteristic(mCharacteristic);
+        mGattServer.addService(service);
+
+        AdvertiseSettings settings = new AdvertiseSettings.Builder()
+                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY)
+                .setConnectable(true)
+                .build();
+        AdvertiseData data = new AdvertiseData.Builder()
+                .addServiceUuid(new ParcelUuid(BlePeripheral.SERVICE_UUID))
+                .build();
+        mAdvertiser.startAdvertising(settings, data, mAdvertiseCallback);
+    }
+
+    /**
+     * Stop advertising, disconnect every device and close the GATT server
+     */
+    public synchronized void stop() {
+        if (mGattServer == null) {
+            return;
+        }
+        mAdvertiser.stopAdvertising(mAdvertiseCallback);
+        for (RelayHub.Peer peer : mRelayHub.getPeers()) {
+            mRelayHub.removePeer(peer.getAddress());
+        }
+        mGattServer.close();
+        mGattServer = null;
+    }
+
+    /**
+     * Get the transport for a connected device
+     *
+     * @return the transport, or <b>null</b> if the device isn't connected
+     */
+    private GattServerPacketTransport getTransport(BluetoothDevice device) {
+        RelayHub.Peer peer = mRelayHub.getPeer(device.getAddress());
+        return peer != null ? (GattServerPacketTransport) peer.getTransport() : null;
+    }
+
+    private void sendResponse(BluetoothDevice device, int requestId, int status, int offset, byte[] value) {
+        BluetoothGattServer gattServer = mGattServer;
+        if (gattServer != null) {
+            gattServer.sendResponse(device, requestId, status, offset, value);
+        }
+    }
+
+
+    private final BluetoothGattServerCallback mGattServerCallback = new BluetoothGattServerCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                Log.d(TAG, "Peer connected: " + device.getAddress());
+                mRelayHub.addPeer(device.getAddress(), new GattServerPacketTransport(mGattServer, device, mCharacteristic));
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                Log.d(TAG, "Peer disconnected: " + device.getAddress());
+                mRelayHub.removePeer(device.getAddress());
+            }
+        }
+
+        @Override
+        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
+            // there is no value to read; everything goes out as notifications
+            sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, new byte[0]);
+        }
+
+        @Override
+        public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic,
+                                                 boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+            GattServerPacketTransport transport = getTransport(device);
+            if (responseNeeded) {
+                // a prepared write is answered with what was written, so the device can check it
+                sendResponse(device, requestId, transport != null ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE,
+                        offset, preparedWrite ? value : null);
+            }
+            if (transport != null) {
+                transport.onCharacteristicWritten(value, preparedWrite);
+            }
+        }
+
+        @Override
+        public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+            sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+            GattServerPacketTransport transport = getTransport(device);
+            if (transport != null) {
+                transport.onExecuteWrite(execute);
+            }
+        }
+
+        @Override
+        public void onDescriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor,
+                                             boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+            if (responseNeeded) {
+                sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null);
+            }
+            GattServerPacketTransport transport = getTransport(device);
+            if (transport != null && BlePeripheral.CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID.equals(descriptor.getUuid())) {
+                transport.setNotificationsEnabled(Arrays.equals(value, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE));
+            }
+        }
+
+        @Override
+        public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattDescriptor descriptor) {
+            sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        }
+
+        @Override
+        public void onNotificationSent(BluetoothDevice device, int status) {
+            GattServerPacketTransport transport = getTransport(device);
+            if (transport != null) {
+                transport.onNotificationSent(status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothDevice device, int mtu) {
+            GattServerPacketTransport transport = getTransport(device);
+            if (transport != null) {
+                transport.onMtuChanged(mtu);
+            }
+        }
+    };
+
+
+    private final AdvertiseCallback mAdvertiseCallback = new AdvertiseCallback() {
+        @Override
+        public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+            Log.d(TAG, "Advertising the echo service");
+        }
+
+        @Override
+        public void onStartFailure(int errorCode) {
+            Log.e(TAG, "Could not advertise the echo service: " + errorCode);
+        }
+    };
+}
@@ -0,0 +1,153 @@
+package tonyg.example.com.bleechoclient.ble.hub;
+
+import tonyg.example.com.bleechoclient.ble.codec.MessageCipher;
+import tonyg.example.com.bleechoclient.ble.codec.MessageCompressor;
+
+/**
+ * Puts the packets of one lane back together into whole messages, without decoding them.
+ *
+ * A message is a line of text up to and including its newline, or runs to the end of
+ * a compressed or sealed block, whose header gives its length.  Both block headers
+ * end with the length of the rest of the block, two bytes big-endian.  Text that runs
+ * past MAX_MESSAGE_LENGTH without a newline can't be a chat message, so it is dropped
+ * and counted, up to the next newline or block.
+ *
+ * Not thread safe: use one assembler per lane of each sender.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class MessageAssembler {
+    private static final String TAG = MessageAssembler.class.getSimpleName();
+
+    public static final int MAX_MESSAGE_LENGTH = 0xFFFF;
+    private static final int OUTSIDE_BLOCK = -1;
+
+    private final Listener mListener;
+
+    /** Message stuff **/
+    private byte[] mMessage = new byte[64];
+    private int mLength = 0;
+    private int mBlockHeaderEnd = OUTSIDE_BLOCK;
+    private int mBlockEnd = 0; // 0 until the header is in
+    private boolean mDiscarding = false;
+    private long mNumBytesDropped = 0;
+
+    /**
+     * Create a new MessageAssembler
+     *
+     * @param listener who gets each whole message
+     */
+    public MessageAssembler(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Take the next packet of the lane
+     *
+     * @param bytes the received bytes
+     * @param offset where the lane's data starts
+     * @param length how much of it there is
+     */
+    public void onPacketReceived(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        int position = offset;
+        while (position < end) {
+            if (mBlockHeaderEnd == OUTSIDE_BLOCK) {
+                int runEnd = position;
+                while (runEnd < end && bytes[runEnd] != '\n' && !isBlockMarker(bytes[runEnd])) {
+                    runEnd++;
+                }
+                boolean newline = runEnd < end && bytes[runEnd] == '\n';
+                int runLength = runEnd - position + (newline ? 1 : 0);
+                if (mDiscarding || mLength + runLength > MAX_MESSAGE_LENGTH) {
+                    mNumBytesDropped += mLength + runLength;
+                    mLength = 0;
+                    mDiscarding = !newline;
+                } else {
+                    append(bytes, position, runLength);
+                    if (newline) {
+                        finishMessage();
+                    }
+                }
+                position += runLength;
+                if (position < end && !newline) {
+                    // a block starts, and ends whatever text was being dropped
+                    mDiscarding = false;
+                    mBlockHeaderEnd = mLength + getBlockHeaderLength(bytes[position]);
+                    mBlockEnd = 0;
+                    append(bytes, position++, 1);
+                }
+            } else {
+                int numBytes = Math.min(end - position, (mBlockEnd > 0 ? mBlockEnd : mBlockHeaderEnd) - mLength);
+                append(bytes, position, numBytes);
+                position += numBytes;
+                if (mBlockEnd == 0 && mLength == mBlockHeaderEnd) {
+                    mBlockEnd = mLength + ((mMessage[mLength - 2] & 0xFF) << 8 | (mMessage[mLength - 1] & 0xFF));
+                }
+                if (mLength == mBlockEnd) {
+                    finishMessage();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget a partly received message, such as when its sender disconnects
+     */
+    public void reset() {
+        mLength = 0;
+        mBlockHeaderEnd = OUTSIDE_BLOCK;
+        mDiscarding = false;
+    }
+
+    /**
+     * Count the bytes of text too long to be a message
+     *
+     * @return how many bytes were dropped
+     */
+    public long getNumBytesDropped() {
+        return mNumBytesDropped;
+    }
+
+    private void finishMessage() {
+        byte[] message = new byte[mLength];
+        System.arraycopy(mMessage, 0, message, 0, mLength);
+        mLength = 0;
+        mBlockHeaderEnd = OUTSIDE_BLOCK;
+        mListener.onMessageAssembled(message);
+    }
+
+    private void append(byte[] bytes, int offset, int length) {
+        if (mMessage.length < mLength + length) {
+            byte[] message = new byte[Math.max(mLength + length, mMessage.length * 2)];
+            System.arraycopy(mMessage, 0, message, 0, mLength);
+            mMessage = message;
+        }
+        System.arraycopy(bytes, offset, mMessage, mLength, length);
+        mLength += length;
+    }
+
+    private static boolean isBlockMarker(byte value) {
+        int marker = value & 0xFF;
+        return marker == MessageCompressor.BLOCK_MARKER || marker == MessageCipher.BLOCK_MARKER;
+    }
+
+    private static int getBlockHeaderLength(byte marker) {
+        return (marker & 0xFF) == MessageCipher.BLOCK_MARKER
+                ? MessageCipher.BLOCK_HEADER_LENGTH : MessageCompressor.BLOCK_HEADER_LENGTH;
+    }
+
+
+    /**
+     * Hears about each whole message
+     */
+    public interface Listener {
+        /**
+         * A message finished arriving
+         *
+         * @param message the message.  It is a new array, handed over to the listener
+         */
+        void onMessageAssembled(byte[] message);
+    }
+}
@@ -0,0 +1,400 @@
+package tonyg.example.com.bleechoclient.ble.hub;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import tonyg.example.com.bleechoclient.ble.codec.LzCodec;
+import tonyg.example.com.bleechoclient.ble.codec.MessageCompressor;
+import tonyg.example.com.bleechoclient.ble.transport.LaneDemultiplexer;
+import tonyg.example.com.bleechoclient.ble.transport.LinkFrame;
+import tonyg.example.com.bleechoclient.ble.transport.OutboundQueue;
+import tonyg.example.com.bleechoclient.ble.transport.PacketTransport;
+
+/**
+ * Relays lane packets between peers connected to this device and an upstream echo server.
+ *
+ * To each peer the hub looks like an echo server.  Whatever a peer writes goes to the
+ * upstream echo server, and whatever comes back is sent to every peer, the writer
+ * included, so every peer sees every message once, in the order the hub saw them.
+ * Without an upstream echo server the hub echoes to every peer itself.
+ *
+ * Link frames are not relayed, since each hop negotiates its own link: the hub answers
+ * a peer's hello itself, offering compression, which survives relaying because every
+ * receiver decompresses for itself.  Compressed blocks are only relayed to peers whose
+ * hello negotiated compression; the others can't decode them, so for them the blocks
+ * are dropped and counted.  Telemetry is not relayed either.
+ *
+ * Relayed data is not decoded, but it is relayed a whole message at a time, so the
+ * packets of messages two peers write at once can't interleave on a lane.  Each peer's
+ * lanes, and the upstream echo server's, have their own MessageAssembler, and each
+ * message is queued on the same lane for each destination as one array shared by every
+ * peer it goes to.  LANE_BULK carries files, which have no message boundaries to
+ * reassemble, so the hub takes them from its peers without relaying them.
+ *
+ * Every peer has its own OutboundQueue, so a slow peer only holds up itself.  Once
+ * more than MAX_PEER_BACKLOG bytes are waiting for a peer, further messages for it are
+ * dropped and counted, as if their notifications were lost.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class RelayHub {
+    private static final String TAG = RelayHub.class.getSimpleName();
+
+    public static final int MAX_PEER_BACKLOG = 16 * 1024;
+    public static final int LINK_CAPABILITIES = LinkFrame.CAPABILITY_COMPRESSION;
+
+    /** guarded by this **/
+    private final Map<String, Peer> mPeers = new LinkedHashMap<>();
+    private Peer[] mPeerArray = new Peer[0]; // a snapshot of mPeers for fanning out without the lock
+    private Upstream mUpstream;
+
+    /** Upstream stuff, guarded by mUpstreamDemultiplexer **/
+    private final MessageAssembler[] mUpstreamAssemblers = createAssemblers(new LaneListener() {
+        @Override
+        public void onMessageAssembled(int lane, byte[] message) {
+            fanOut(lane, message);
+        }
+    });
+    private final LaneDemultiplexer mUpstreamDemultiplexer = new LaneDemultiplexer(OutboundQueue.NUM_LANES,
+            new LaneDemultiplexer.Listener() {
+                @Override
+                public void onLanePacketReceived(int lane, byte[] packet, int offset, int length) {
+                    // the link and telemetry lanes belong to the hub's own connection
+                    if (mUpstreamAssemblers[lane] != null) {
+                        mUpstreamAssemblers[lane].onPacketReceived(packet, offset, length);
+                    }
+                }
+            });
+
+    /**
+     * Add a peer that has connected to this device
+     *
+     * @param address the peer's address
+     * @param transport carries packets to and from the peer
+     * @return the peer
+     */
+    public synchronized Peer addPeer(String address, PacketTransport transport) {
+        removePeer(address);
+        Peer peer = new Peer(address, transport);
+        transport.setListener(peer);
+        mPeers.put(address, peer);
+        mPeerArray = mPeers.values().toArray(new Peer[mPeers.size()]);
+        return peer;
+    }
+
+    /**
+     * Remove a peer that has disconnected, dropping whatever was waiting for it
+     *
+     * @param address the peer's address
+     */
+    public synchronized void removePeer(String address) {
+        Peer peer = mPeers.remove(address);
+        if (peer == null) {
+            return;
+        }
+        mPeerArray = mPeers.values().toArray(new Peer[mPeers.size()]);
+        peer.mOutboundQueue.clear();
+        peer.mTransport.close();
+    }
+
+    /**
+     * Get a connected peer
+     *
+     * @param address the peer's address
+     * @return the peer, or <b>null</b> if it isn't connected
+     */
+    public synchronized Peer getPeer(String address) {
+        return mPeers.get(address);
+    }
+
+    /**
+     * Get the connected peers
+     *
+     * @return the peers, in the order they connected
+     */
+    public synchronized List<Peer> getPeers() {
+        return new ArrayList<>(mPeers.values());
+    }
+
+    /**
+     * Set where peers' packets go
+     *
+     * @param upstream the upstream echo server, or <b>null</b> for the hub to echo them itself
+     */
+    public void setUpstream(Upstream upstream) {
+        synchronized (this) {
+            mUpstream = upstream;
+        }
+        // a new connection doesn't finish the last one's messages
+        synchronized (mUpstreamDemultiplexer) {
+            for (MessageAssembler assembler : mUpstreamAssemblers) {
+                if (assembler != null) {
+                    assembler.reset();
+                }
+            }
+        }
+    }
+
+    /**
+     * Take a value notified by the upstream echo server, and send it on to every peer
+     *
+     * @param value one or more lane packets
+     */
+    public void onUpstreamValueReceived(byte[] value) {
+        synchronized (mUpstreamDemultiplexer) {
+            mUpstreamDemultiplexer.onPacketReceived(value);
+        }
+    }
+
+    /**
+     * Remove every peer
+     */
+    public synchronized void close() {
+        for (String address : new ArrayList<>(mPeers.keySet())) {
+            removePeer(address);
+        }
+        mUpstream = null;
+    }
+
+    /**
+     * A peer wrote a lane packet.  Answer a hello, or reassemble the lane's messages to relay
+     */
+    private void onPeerLanePacketReceived(Peer peer, int lane, byte[] packet, int offset, int length) {
+        if (lane == OutboundQueue.LANE_LINK) {
+            if (LinkFrame.getType(packet, offset, length) == LinkFrame.TYPE_HELLO) {
+                peer.mSharedCapabilities = LinkFrame.getSharedCapabilities(packet, offset, length,
+                        LINK_CAPABILITIES, LzCodec.DICTIONARY_VERSION);
+                byte[] reply = LinkFrame.createHelloReply(LINK_CAPABILITIES, LzCodec.DICTIONARY_VERSION);
+                peer.mOutboundQueue.send(ByteBuffer.wrap(reply), null, false, OutboundQueue.LANE_LINK);
+            }
+            return;
+        }
+        if (peer.mAssemblers[lane] != null) {
+            peer.mAssemblers[lane].onPacketReceived(packet, offset, length);
+        } else {
+            peer.countBytesNotRelayed(length);
+        }
+    }
+
+    /**
+     * A peer wrote a whole message.  Send it upstream, or straight back out if there is no upstream
+     */
+    private void onPeerMessageReceived(int lane, byte[] message) {
+        Upstream upstream;
+        synchronized (this) {
+            upstream = mUpstream;
+        }
+        if (upstream != null) {
+            upstream.send(lane, ByteBuffer.wrap(message));
+        } else {
+            fanOut(lane, message);
+        }
+    }
+
+    /**
+     * Queue a message for every peer that has room for it and can decode it
+     */
+    private void fanOut(int lane, byte[] message) {
+        Peer[] peers;
+        synchronized (this) {
+            peers = mPeerArray;
+        }
+        boolean compressed = message.length > 0 && (message[0] & 0xFF) == MessageCompressor.BLOCK_MARKER;
+        for (Peer peer : peers) {
+            if (compressed && !peer.isCompressionNegotiated()) {
+                peer.countBytesDropped(message.length);
+            } else if (peer.reserveBacklog(message.length)) {
+                // each queue slices its own view of the shared array
+                peer.mOutboundQueue.send(ByteBuffer.wrap(message), peer, false, lane);
+            }
+        }
+    }
+
+    /**
+     * Create an assembler for each lane that is relayed, and none for the others
+     */
+    private static MessageAssembler[] createAssemblers(final LaneListener listener) {
+        MessageAssembler[] assemblers = new MessageAssembler[OutboundQueue.NUM_LANES];
+        for (int lane = 0; lane < assemblers.length; lane++) {
+            if (lane == OutboundQueue.LANE_LINK || lane == OutboundQueue.LANE_BULK || lane == OutboundQueue.LANE_TELEMETRY) {
+                continue;
+            }
+            final int assemblerLane = lane;
+            assemblers[lane] = new MessageAssembler(new MessageAssembler.Listener() {
+                @Override
+                public void onMessageAssembled(byte[] message) {
+                    listener.onMessageAssembled(assemblerLane, message);
+                }
+            });
+        }
+        return assemblers;
+    }
+
+
+    /**
+     * Where the hub sends what peers write
+     */
+    public interface Upstream {
+        /**
+         * Queue data on a lane to the upstream echo server
+         *
+         * @param lane the lane it arrived on
+         * @param data a whole message.  It may be shared with other peers, and must not be changed
+         */
+        void send(int lane, ByteBuffer data);
+    }
+
+
+    /**
+     * Hears about each whole message on a lane
+     */
+    private interface LaneListener {
+        void onMessageAssembled(int lane, byte[] message);
+    }
+
+
+    /**
+     * A device connected to the hub
+     */
+    public class Peer implements PacketTransport.Listener, OutboundQueue.Callback {
+        private final String mAddress;
+        private final PacketTransport mTransport;
+        private final OutboundQueue mOutboundQueue;
+        private final LaneDemultiplexer mDemultiplexer;
+        private final MessageAssembler[] mAssemblers;
+        private volatile int mSharedCapabilities = 0; // from the peer's hello
+
+        /** guarded by this **/
+        private int mBacklog = 0;
+        private long mNumBytesDropped = 0;
+        private long mNumBytesNotRelayed = 0;
+
+        Peer(String address, PacketTransport transport) {
+            mAddress = address;
+            mTransport = transport;
+            mOutboundQueue = new OutboundQueue(transport, OutboundQueue.NUM_LANES);
+            mDemultiplexer = new LaneDemultiplexer(OutboundQueue.NUM_LANES, new LaneDemultiplexer.Listener() {
+                @Override
+                public void onLanePacketReceived(int lane, byte[] packet, int offset, int length) {
+                    onPeerLanePacketReceived(Peer.this, lane, packet, offset, length);
+                }
+            });
+            mAssemblers = createAssemblers(new LaneListener() {
+                @Override
+                public void onMessageAssembled(int lane, byte[] message) {
+                    onPeerMessageReceived(lane, message);
+                }
+            });
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public PacketTransport getTransport() {
+            return mTransport;
+        }
+
+        public OutboundQueue getOutboundQueue() {
+            return mOutboundQueue;
+        }
+
+        /**
+         * Get how many bytes are waiting to be sent to this peer
+         *
+         * @return the backlog, in bytes
+         */
+        public synchronized int getBacklog() {
+            return mBacklog;
+        }
+
+        /**
+         * Determine if the peer's hello negotiated compression, so it can take compressed blocks
+         *
+         * @return <b>true</b> if it did
+         */
+        public boolean isCompressionNegotiated() {
+            return (mSharedCapabilities & LinkFrame.CAPABILITY_COMPRESSION) != 0;
+        }
+
+        /**
+         * Count the bytes this peer missed by falling too far behind, or because they
+         * were compressed and it didn't negotiate compression
+         *
+         * @return the number of bytes dropped
+         */
+        public synchronized long getNumBytesDropped() {
+            return mNumBytesDropped;
+        }
+
+        /**
+         * Count the bytes this peer wrote that were not relayed: files, and text too long
+         * to be a message
+         *
+         * @return the number of bytes taken but not relayed
+         */
+        public synchronized long getNumBytesNotRelayed() {
+            long numBytes = mNumBytesNotRelayed;
+            for (MessageAssembler assembler : mAssemblers) {
+                if (assembler != null) {
+                    numBytes += assembler.getNumBytesDropped();
+                }
+            }
+            return numBytes;
+        }
+
+        /**
+         * Make room in the backlog for a message, unless it is full
+         *
+         * @return <b>true</b> if the message should be queued
+         */
+        private synchronized boolean reserveBacklog(int length) {
+            if (mBacklog > 0 && mBacklog + length > MAX_PEER_BACKLOG) {
+                mNumBytesDropped += length;
+                return false;
+            }
+            mBacklog += length;
+            return true;
+        }
+
+        private synchronized void releaseBacklog(int length) {
+            mBacklog -= length;
+        }
+
+        private synchronized void countBytesDropped(int length) {
+            mNumBytesDropped += length;
+        }
+
+        private synchronized void countBytesNotRelayed(int length) {
+            mNumBytesNotRelayed += length;
+        }
+
+        @Override
+        public void onPacketWritten(boolean success) {
+            mOutboundQueue.onPacketWritten(success);
+        }
+
+        @Override
+        public void onPacketReceived(byte[] packet) {
+            mDemultiplexer.onPacketReceived(packet);
+        }
+
+        @Override
+        public void onMessageProgress(ByteBuffer message, int bytesWritten) {
+        }
+
+        @Override
+        public void onMessageWritten(ByteBuffer message) {
+            releaseBacklog(message.remaining());
+        }
+
+        @Override
+        public void onMessageFailed(ByteBuffer message, int bytesWritten) {
+            releaseBacklog(message.remaining());
+        }
+    }
+}
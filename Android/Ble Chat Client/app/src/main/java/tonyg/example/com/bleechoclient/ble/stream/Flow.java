@@ -0,0 +1,82 @@
+package tonyg.example.com.bleechoclient.ble.stream;
+
+/**
+ * Demand-driven publish/subscribe interfaces, shaped like java.util.concurrent.Flow,
+ * which is not available at this API level.
+ *
+ * A Subscriber only receives as many items as it has asked for through
+ * Subscription.request(), so a slow Subscriber holds the Publisher back
+ * instead of being flooded.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public final class Flow {
+
+    private Flow() {
+    }
+
+    /**
+     * Produces items for Subscribers
+     *
+     * @param <T> the item type
+     */
+    public interface Publisher<T> {
+        /**
+         * Add a Subscriber.  It is handed its Subscription through onSubscribe
+         *
+         * @param subscriber the Subscriber
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Receives items from a Publisher.  Calls to a Subscriber never overlap
+     *
+     * @param <T> the item type
+     */
+    public interface Subscriber<T> {
+        /**
+         * Subscribed.  Nothing is delivered until request() is called
+         *
+         * @param subscription the link to the Publisher
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * The next item
+         *
+         * @param item the item
+         */
+        void onNext(T item);
+
+        /**
+         * The Publisher failed.  Nothing more will be delivered
+         *
+         * @param throwable the failure
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * The Publisher has finished.  Nothing more will be delivered
+         */
+        void onComplete();
+    }
+
+    /**
+     * Links one Subscriber to a Publisher
+     */
+    public interface Subscription {
+        /**
+         * Ask for more items
+         *
+         * @param n how many more items the Subscriber can take
+         */
+        void request(long n);
+
+        /**
+         * Stop receiving items
+         */
+        void cancel();
+    }
+}
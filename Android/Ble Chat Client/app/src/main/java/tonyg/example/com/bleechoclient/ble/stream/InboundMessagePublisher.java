@@ -0,0 +1,242 @@
+package tonyg.example.com.bleechoclient.ble.stream;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the messages received from a Peripheral, one per newline-terminated line.
+ *
+ * Text arrives from the GATT callback thread in arbitrary pieces through onTextReceived().
+ * Each complete line is handed to every Subscriber on that Subscriber's Executor, never
+ * on the GATT thread, and only as fast as the Subscriber requests.  Lines a Subscriber
+ * hasn't asked for yet wait in a buffer of bufferSize lines; when it is full the oldest
+ * line is dropped and counted, so a stalled Subscriber can't use up memory.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class InboundMessagePublisher implements Flow.Publisher<String> {
+    private static final String TAG = InboundMessagePublisher.class.getSimpleName();
+    public static final int DEFAULT_BUFFER_SIZE = 256;
+
+    private static final ExecutorService sDefaultExecutor = Executors.newCachedThreadPool();
+
+    private final List<LineSubscription> mSubscriptions = new CopyOnWriteArrayList<>();
+    private final StringBuilder mPartialLine = new StringBuilder(); // text not yet ended by a newline
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private boolean mComplete = false;
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super String> subscriber) {
+        subscribe(subscriber, sDefaultExecutor, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Add a Subscriber
+     *
+     * @param subscriber the Subscriber
+     * @param executor where the Subscriber is called.  Calls never overlap, even on a thread pool
+     * @param bufferSize how many undelivered lines to hold for this Subscriber
+     */
+    public void subscribe(Flow.Subscriber<? super String> subscriber, Executor executor, int bufferSize) {
+        LineSubscription subscription = new LineSubscription(subscriber, executor, bufferSize);
+        boolean complete;
+        synchronized (this) {
+            complete = mComplete;
+            if (!complete) {
+                mSubscriptions.add(subscription);
+            }
+        }
+        subscription.start(complete);
+    }
+
+    /**
+     * Take the next piece of received text.  Each completed line is published
+     *
+     * @param text decoded text, in the order it arrived
+     */
+    public void onTextReceived(String text) {
+        synchronized (this) {
+            if (mComplete) {
+                return;
+            }
+            mPartialLine.append(text);
+            int lineEnd;
+            while ((lineEnd = mPartialLine.indexOf("\n")) >= 0) {
+                String line = mPartialLine.substring(0, lineEnd);
+                mPartialLine.delete(0, lineEnd + 1);
+                for (LineSubscription subscription : mSubscriptions) {
+                    subscription.offer(line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the lines dropped because a Subscriber fell behind
+     *
+     * @return lines dropped across all Subscribers
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Forget any partial line, such as when the connection is lost
+     */
+    public synchronized void reset() {
+        mPartialLine.setLength(0);
+    }
+
+    /**
+     * Finish the stream.  Subscribers get onComplete once their buffered lines are delivered
+     */
+    public void complete() {
+        synchronized (this) {
+            mComplete = true;
+        }
+        for (LineSubscription subscription : mSubscriptions) {
+            subscription.complete();
+        }
+        mSubscriptions.clear();
+    }
+
+
+    /**
+     * One Subscriber's demand and undelivered lines
+     */
+    private class LineSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super String> mSubscriber;
+        private final Executor mExecutor;
+        private final int mBufferSize;
+        private final AtomicInteger mPendingDrains = new AtomicInteger();
+
+        /** guarded by this **/
+        private final ArrayDeque<String> mBuffer = new ArrayDeque<>();
+        private long mDemand = 0;
+        private boolean mCancelled = false;
+        private boolean mComplete = false;
+        private boolean mSubscribed = false;
+
+        LineSubscription(Flow.Subscriber<? super String> subscriber, Executor executor, int bufferSize) {
+            mSubscriber = subscriber;
+            mExecutor = executor;
+            mBufferSize = bufferSize;
+        }
+
+        void start(boolean complete) {
+            synchronized (this) {
+                mComplete = complete;
+            }
+            drain();
+        }
+
+        synchronized void offer(String line) {
+            if (mCancelled) {
+                return;
+            }
+            if (mBuffer.size() >= mBufferSize) {
+                mBuffer.removeFirst();
+                mDroppedCount.incrementAndGet();
+            }
+            mBuffer.addLast(line);
+            if (mDemand > 0) {
+                drain();
+            }
+        }
+
+        void complete() {
+            synchronized (this) {
+                mComplete = true;
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                mSubscriber.onError(new IllegalArgumentException("request() needs a positive count"));
+                return;
+            }
+            synchronized (this) {
+                mDemand += n;
+                if (mDemand < 0) {
+                    mDemand = Long.MAX_VALUE; // unbounded
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                mCancelled = true;
+                mBuffer.clear();
+            }
+            mSubscriptions.remove(this);
+        }
+
+        /**
+         * Schedule a delivery pass, unless one is already scheduled or running
+         */
+        private void drain() {
+            if (mPendingDrains.getAndIncrement() == 0) {
+                mExecutor.execute(this);
+            }
+        }
+
+        /**
+         * Delivery pass, on the Subscriber's Executor
+         */
+        @Override
+        public void run() {
+            do {
+                boolean subscribed;
+                synchronized (this) {
+                    subscribed = mSubscribed;
+                    mSubscribed = true;
+                }
+                if (!subscribed) {
+                    mSubscriber.onSubscribe(this);
+                }
+
+                while (true) {
+                    String line;
+                    boolean finished = false;
+                    synchronized (this) {
+                        if (mCancelled) {
+                            return;
+                        }
+                        if (mDemand > 0 && !mBuffer.isEmpty()) {
+                            line = mBuffer.removeFirst();
+                            if (mDemand != Long.MAX_VALUE) {
+                                mDemand--;
+                            }
+                        } else {
+                            line = null;
+                            if (mComplete && mBuffer.isEmpty()) {
+                                mCancelled = true;
+                                finished = true;
+                            }
+                        }
+                    }
+                    if (finished) {
+                        mSubscriber.onComplete();
+                        return;
+                    }
+                    if (line == null) {
+                        break;
+                    }
+                    mSubscriber.onNext(line);
+                }
+            } while (mPendingDrains.decrementAndGet() != 0);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package tonyg.example.com.bleechoclient.ble.telemetry;
+
+/**
+ * Keeps the most recent telemetry samples in a ring of primitive shorts.
+ *
+ * Samples arrive in sample sets, one sample per channel, and are stored interleaved
+ * as they came off the air: signed fixed point with FRACTION_BITS fractional bits.
+ * Nothing is boxed and nothing is allocated per sample, so a few hundred sample sets
+ * a second cost the garbage collector nothing.
+ *
+ * Every sample set has an index, counting from 0 since the buffer was created, that
+ * stays the same as older ones are overwritten.  Readers use it to export in pieces
+ * without missing or repeating any.  Sample sets the Peripheral sent but that never
+ * arrived are counted, and don't take up indices.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class TelemetryBuffer {
+    private static final String TAG = TelemetryBuffer.class.getSimpleName();
+
+    public static final int FRACTION_BITS = 8;
+
+    private final int mNumChannels;
+    private final int mCapacity;
+    private final short[] mSamples;
+    private long mNumSampleSets = 0;
+    private long mNumSampleSetsLost = 0;
+
+    /**
+     * Create a new TelemetryBuffer
+     *
+     * @param numChannels how many samples in each sample set
+     * @param capacity how many of the latest sample sets to keep
+     */
+    public TelemetryBuffer(int numChannels, int capacity) {
+        if (numChannels < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Need at least one channel and one sample set");
+        }
+        mNumChannels = numChannels;
+        mCapacity = capacity;
+        mSamples = new short[numChannels * capacity];
+    }
+
+    /**
+     * Convert a sample to a number
+     *
+     * @param sample a fixed-point sample
+     * @return its value
+     */
+    public static float toFloat(short sample) {
+        return sample / (float) (1 << FRACTION_BITS);
+    }
+
+    public int getNumChannels() {
+        return mNumChannels;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Add sample sets packed as big-endian shorts, such as straight out of a notification
+     *
+     * @param bytes the packed samples
+     * @param offset where they start
+     * @param numSampleSets how many sample sets there are
+     */
+    public synchronized void append(byte[] bytes, int offset, int numSampleSets) {
+        int slot = (int) (mNumSampleSets % mCapacity) * mNumChannels;
+        int end = offset + numSampleSets * mNumChannels * 2;
+        for (int position = offset; position < end; position += 2) {
+            mSamples[slot++] = (short) (bytes[position] << 8 | (bytes[position + 1] & 0xFF));
+            if (slot == mSamples.length) {
+                slot = 0;
+            }
+        }
+        mNumSampleSets += numSampleSets;
+    }
+
+    /**
+     * Count sample sets that were sent but never arrived
+     *
+     * @param numSampleSets how many were lost
+     */
+    public synchronized void recordLost(long numSampleSets) {
+        mNumSampleSetsLost += numSampleSets;
+    }
+
+    /**
+     * Get the number of sample sets ever appended
+     *
+     * @return the index the next sample set will get
+     */
+    public synchronized long getNumSampleSets() {
+        return mNumSampleSets;
+    }
+
+    /**
+     * Get the index of the oldest sample set still in the buffer
+     *
+     * @return the index
+     */
+    public synchronized long getOldestSampleSet() {
+        return Math.max(0, mNumSampleSets - mCapacity);
+    }
+
+    /**
+     * Get the number of sample sets that were sent but never arrived
+     *
+     * @return the number lost
+     */
+    public synchronized long getNumSampleSetsLost() {
+        return mNumSampleSetsLost;
+    }
+
+    /**
+     * Copy sample sets out, interleaved, for bulk export.
+     * Call again from the index after the last one copied to get the next ones
+     *
+     * @param firstSampleSet the index of the first sample set to copy.  If it has been
+     *                       overwritten, copying starts from the oldest one instead
+     * @param output where to put the samples
+     * @param outputOffset where in output to start
+     * @param maxSampleSets the most sample sets to copy
+     * @return the index of the first sample set copied.  The number copied is the
+     *         smaller of maxSampleSets and getNumSampleSets() less this index
+     */
+    public synchronized long export(long firstSampleSet, short[] output, int outputOffset, int maxSampleSets) {
+        long first = Math.max(firstSampleSet, getOldestSampleSet());
+        int numSampleSets = (int) Math.max(0, Math.min(maxSampleSets, mNumSampleSets - first));
+        int numSamples = numSampleSets * mNumChannels;
+        int slot = (int) (first % mCapacity) * mNumChannels;
+        // at most two copies: up to the end of the ring, then from its start
+        int firstCopy = Math.min(numSamples, mSamples.length - slot);
+        System.arraycopy(mSamples, slot, output, outputOffset, firstCopy);
+        System.arraycopy(mSamples, 0, output, outputOffset + firstCopy, numSamples - firstCopy);
+        return first;
+    }
+
+    /**
+     * Summarise the latest sample sets of one channel for display, as the lowest and
+     * highest sample in each of a number of equal buckets.  Unlike taking every nth
+     * sample, this keeps short spikes visible
+     *
+     * @param channel the channel
+     * @param numSampleSets how many of the latest sample sets to cover
+     * @param minimums where to put the lowest sample of each bucket, oldest bucket first
+     * @param maximums where to put the highest sample of each bucket
+     * @param numBuckets how many buckets to fill
+     * @return how many buckets were filled, which is fewer when there are fewer sample sets than buckets
+     */
+    public synchronized int downsample(int channel, int numSampleSets, short[] minimums, short[] maximums, int numBuckets) {
+        long first = Math.max(mNumSampleSets - numSampleSets, getOldestSampleSet());
+        int available = (int) (mNumSampleSets - first);
+        numBuckets = Math.min(numBuckets, available);
+        for (int bucket = 0; bucket < numBuckets; bucket++) {
+            long start = first + (long) available * bucket / numBuckets;
+            long end = first + (long) available * (bucket + 1) / numBuckets;
+            int slot = (int) (start % mCapacity) * mNumChannels + channel;
+            short minimum = Short.MAX_VALUE;
+            short maximum = Short.MIN_VALUE;
+            for (long index = start; index < end; index++) {
+                short sample = mSamples[slot];
+                if (sample < minimum) {
+                    minimum = sample;
+                }
+                if (sample > maximum) {
+                    maximum = sample;
+                }
+                slot += mNumChannels;
+                if (slot >= mSamples.length) {
+                    slot = channel;
+                }
+            }
+            minimums[bucket] = minimum;
+            maximums[bucket] = maximum;
+        }
+        return numBuckets;
+    }
+}
@@ -0,0 +1,72 @@
+package tonyg.example.com.bleechoclient.ble.telemetry;
+
+/**
+ * Unpacks telemetry notifications into a TelemetryBuffer.
+ *
+ * Each packet on OutboundQueue.LANE_TELEMETRY is the 16 bit index of its first sample
+ * set (big-endian), then whole sample sets of one signed 16 bit sample per channel.
+ * A jump in the index means notifications were lost, and the sample sets in them are
+ * counted as lost.
+ *
+ * Not thread safe: feed it from one thread, such as the one notifications arrive on.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class TelemetryDecoder {
+    private static final String TAG = TelemetryDecoder.class.getSimpleName();
+
+    public static final int HEADER_LENGTH = 2;
+
+    private static final int INDEX_MASK = 0xFFFF;
+
+    private final TelemetryBuffer mBuffer;
+    private final int mSampleSetLength;
+    private int mNextIndex = -1;
+    private long mNumPacketsDropped = 0;
+
+    /**
+     * Create a new TelemetryDecoder
+     *
+     * @param buffer where the samples go
+     */
+    public TelemetryDecoder(TelemetryBuffer buffer) {
+        mBuffer = buffer;
+        mSampleSetLength = buffer.getNumChannels() * 2;
+    }
+
+    public TelemetryBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Take the next telemetry packet
+     *
+     * @param packet the received lane data
+     * @param offset where the packet starts
+     * @param length how long it is
+     */
+    public void onPacketReceived(byte[] packet, int offset, int length) {
+        int numSampleSets = (length - HEADER_LENGTH) / mSampleSetLength;
+        if (numSampleSets < 1 || (length - HEADER_LENGTH) % mSampleSetLength != 0) {
+            // not the number of channels this decoder was set up for
+            mNumPacketsDropped++;
+            return;
+        }
+        int index = (packet[offset] & 0xFF) << 8 | (packet[offset + 1] & 0xFF);
+        if (mNextIndex >= 0 && index != mNextIndex) {
+            mBuffer.recordLost((index - mNextIndex) & INDEX_MASK);
+        }
+        mBuffer.append(packet, offset + HEADER_LENGTH, numSampleSets);
+        mNextIndex = (index + numSampleSets) & INDEX_MASK;
+    }
+
+    /**
+     * Count the packets that didn't hold whole sample sets
+     *
+     * @return the number of packets dropped
+     */
+    public long getNumPacketsDropped() {
+        return mNumPacketsDropped;
+    }
+}
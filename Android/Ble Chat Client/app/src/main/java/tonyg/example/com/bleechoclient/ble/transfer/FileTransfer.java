@@ -0,0 +1,204 @@
+package tonyg.example.com.bleechoclient.ble.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import tonyg.example.com.bleechoclient.ble.transport.OutboundQueue;
+
+/**
+ * Streams a file to a Peripheral through an OutboundQueue.
+ *
+ * The file is memory-mapped and packets are read straight out of the mapping, so it
+ * is never copied into memory in full.  The transfer remembers how much the Peripheral
+ * has acknowledged; if the link drops, start() on the next connection's queue picks up
+ * from there.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class FileTransfer implements OutboundQueue.Callback {
+    private final File mFile;
+    private final MappedByteBuffer mMappedFile;
+    private final Listener mListener;
+
+    private long mAcknowledgedOffset;
+    private long mSegmentStart;     // file offset of the data queued by the latest start()
+    private long mStartTimeNs;
+    private long mStartOffset;      // acknowledged offset when the latest start() was called
+    private boolean mInProgress = false;
+
+    /**
+     * Create a new FileTransfer
+     *
+     * @param file the file to send
+     * @param startOffset how many bytes the Peripheral already has, 0 for a new transfer
+     * @param listener who hears about progress
+     * @throws IOException if the file can not be mapped
+     */
+    public FileTransfer(File file, long startOffset, Listener listener) throws IOException {
+        mFile = file;
+        mListener = listener;
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to map: " + file);
+            }
+            // the mapping stays valid after the channel is closed
+            mMappedFile = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+
+        if (startOffset < 0 || startOffset > mMappedFile.capacity()) {
+            throw new IOException("Offset " + startOffset + " is outside " + file);
+        }
+        mAcknowledgedOffset = startOffset;
+    }
+
+    /**
+     * Start sending, or resume from the last acknowledged offset
+     *
+     * @param outboundQueue the queue for the current connection
+     */
+    public synchronized void start(OutboundQueue outboundQueue) {
+        if (mInProgress || isComplete()) {
+            return;
+        }
+        mInProgress = true;
+        mSegmentStart = mAcknowledgedOffset;
+        mStartOffset = mAcknowledgedOffset;
+        mStartTimeNs = System.nanoTime();
+
+        ByteBuffer remaining = mMappedFile.duplicate();
+        remaining.position((int) mAcknowledgedOffset);
+        // on its own lane, so chat messages don't wait for the whole file
+        outboundQueue.send(remaining, this, false, OutboundQueue.LANE_BULK);
+    }
+
+    /**
+     * Get the file being sent
+     *
+     * @return the file
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Get the size of the file
+     *
+     * @return the file length in bytes
+     */
+    public long getLength() {
+        return mMappedFile.capacity();
+    }
+
+    /**
+     * Determine how much of the file the Peripheral has acknowledged.
+     * Store this to resume the transfer after the app restarts
+     *
+     * @return the acknowledged offset in bytes
+     */
+    public synchronized long getAcknowledgedOffset() {
+        return mAcknowledgedOffset;
+    }
+
+    /**
+     * Determine if the file is being sent
+     *
+     * @return <b>true</b> between start() and completion or interruption
+     */
+    public synchronized boolean isInProgress() {
+        return mInProgress;
+    }
+
+    /**
+     * Determine if the whole file has been acknowledged
+     *
+     * @return <b>true</b> if the transfer is finished
+     */
+    public synchronized boolean isComplete() {
+        return mAcknowledgedOffset >= mMappedFile.capacity();
+    }
+
+    /**
+     * Get the throughput since the latest start()
+     *
+     * @return acknowledged bytes per second
+     */
+    public synchronized double getBytesPerSecond() {
+        long elapsedNs = System.nanoTime() - mStartTimeNs;
+        if (elapsedNs <= 0) {
+            return 0;
+        }
+        return (mAcknowledgedOffset - mStartOffset) * 1e9 / elapsedNs;
+    }
+
+    @Override
+    public void onMessageProgress(ByteBuffer message, int bytesWritten) {
+        long acknowledgedOffset;
+        double bytesPerSecond;
+        synchronized (this) {
+            mAcknowledgedOffset = mSegmentStart + bytesWritten;
+            acknowledgedOffset = mAcknowledgedOffset;
+            bytesPerSecond = getBytesPerSecond();
+        }
+        mListener.onTransferProgress(this, acknowledgedOffset, getLength(), bytesPerSecond);
+    }
+
+    @Override
+    public void onMessageWritten(ByteBuffer message) {
+        synchronized (this) {
+            mInProgress = false;
+            mAcknowledgedOffset = getLength();
+        }
+        mListener.onTransferComplete(this);
+    }
+
+    @Override
+    public void onMessageFailed(ByteBuffer message, int bytesWritten) {
+        long acknowledgedOffset;
+        synchronized (this) {
+            mInProgress = false;
+            mAcknowledgedOffset = mSegmentStart + bytesWritten;
+            acknowledgedOffset = mAcknowledgedOffset;
+        }
+        mListener.onTransferInterrupted(this, acknowledgedOffset);
+    }
+
+    /**
+     * Events raised by a FileTransfer
+     */
+    public interface Listener {
+        /**
+         * The Peripheral acknowledged another packet
+         *
+         * @param transfer the transfer
+         * @param acknowledgedOffset bytes acknowledged so far
+         * @param length total bytes in the file
+         * @param bytesPerSecond throughput since the transfer was last started
+         */
+        void onTransferProgress(FileTransfer transfer, long acknowledgedOffset, long length, double bytesPerSecond);
+
+        /**
+         * The whole file was acknowledged
+         *
+         * @param transfer the transfer
+         */
+        void onTransferComplete(FileTransfer transfer);
+
+        /**
+         * The link failed or was closed.  Call start() again to resume
+         *
+         * @param transfer the transfer
+         * @param acknowledgedOffset where the transfer will resume from
+         */
+        void onTransferInterrupted(FileTransfer transfer, long acknowledgedOffset);
+    }
+}
@@ -0,0 +1,154 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.Arrays;
+
+/**
+ * Carries packets as writes to, and notifications from, a single Characteristic.
+ *
+ * The GATT callbacks are delivered to the BluetoothGattCallback given to connectGatt(),
+ * so the owner of that callback must forward them through onCharacteristicWrite()
+ * and onCharacteristicChanged().  Reliable writes also need onReliableWriteCompleted().
+ *
+ * A reliable write sends the whole value in one writeCharacteristic().  The stack splits
+ * it into prepared writes at offsets and hands back what the Peripheral queued, which is
+ * checked against what was sent before the transaction is allowed to execute.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class GattPacketTransport implements ReliableWriteTransport {
+    private static final String TAG = GattPacketTransport.class.getSimpleName();
+    /** the longest attribute value ATT allows **/
+    public static final int MAX_RELIABLE_WRITE_LENGTH = 512;
+
+    private final BluetoothGatt mBluetoothGatt;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private final int mMaxPacketLength;
+    private PacketTransport.Listener mListener;
+
+    /** Reliable write stuff **/
+    private boolean mReliableWriteInProgress = false;
+    private byte[] mPreparedValue;
+
+    /**
+     * Create a new GattPacketTransport
+     *
+     * @param bluetoothGatt the connection to the Peripheral
+     * @param characteristic the Characteristic that is written to and notifies
+     * @param maxPacketLength the largest value the Characteristic accepts
+     */
+    public GattPacketTransport(BluetoothGatt bluetoothGatt, BluetoothGattCharacteristic characteristic, int maxPacketLength) {
+        mBluetoothGatt = bluetoothGatt;
+        mCharacteristic = characteristic;
+        mMaxPacketLength = maxPacketLength;
+    }
+
+    /**
+     * Get the Characteristic this transport writes to
+     *
+     * @return the Characteristic
+     */
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    @Override
+    public int getMaxPacketLength() {
+        return mMaxPacketLength;
+    }
+
+    @Override
+    public int getMaxReliableWriteLength() {
+        return MAX_RELIABLE_WRITE_LENGTH;
+    }
+
+    @Override
+    public void writePacket(byte[] packet) throws Exception {
+        if (mReliableWriteInProgress) {
+            mPreparedValue = packet;
+        }
+        mCharacteristic.setValue(packet);
+        if (!mBluetoothGatt.writeCharacteristic(mCharacteristic)) {
+            throw new Exception("Could not start Characteristic write");
+        }
+    }
+
+    @Override
+    public void beginReliableWrite() throws Exception {
+        if (!mBluetoothGatt.beginReliableWrite()) {
+            throw new Exception("Could not start reliable write");
+        }
+        mReliableWriteInProgress = true;
+        mPreparedValue = null;
+    }
+
+    @Override
+    public void executeReliableWrite() throws Exception {
+        mReliableWriteInProgress = false;
+        if (!mBluetoothGatt.executeReliableWrite()) {
+            mBluetoothGatt.abortReliableWrite();
+            throw new Exception("Could not execute reliable write");
+        }
+    }
+
+    @Override
+    public void abortReliableWrite() {
+        mReliableWriteInProgress = false;
+        mPreparedValue = null;
+        mBluetoothGatt.abortReliableWrite();
+    }
+
+    @Override
+    public void setListener(PacketTransport.Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void close() {
+        mListener = null;
+    }
+
+    /**
+     * Forwarded from BluetoothGattCallback.onCharacteristicWrite
+     *
+     * @param status the GATT status of the write
+     */
+    public void onCharacteristicWrite(int status) {
+        boolean success = status == BluetoothGatt.GATT_SUCCESS;
+        if (success && mReliableWriteInProgress && mPreparedValue != null) {
+            // the Peripheral queued something other than what was sent
+            success = Arrays.equals(mPreparedValue, mCharacteristic.getValue());
+        }
+        PacketTransport.Listener listener = mListener;
+        if (listener != null) {
+            listener.onPacketWritten(success);
+        }
+    }
+
+    /**
+     * Forwarded from BluetoothGattCallback.onReliableWriteCompleted
+     *
+     * @param status the GATT status of the execute
+     */
+    public void onReliableWriteCompleted(int status) {
+        PacketTransport.Listener listener = mListener;
+        if (listener instanceof ReliableWriteTransport.Listener) {
+            ((ReliableWriteTransport.Listener) listener).onReliableWriteCompleted(status == BluetoothGatt.GATT_SUCCESS);
+        }
+    }
+
+    /**
+     * Forwarded from BluetoothGattCallback.onCharacteristicChanged
+     *
+     * @param value the notified value
+     */
+    public void onCharacteristicChanged(byte[] value) {
+        PacketTransport.Listener listener = mListener;
+        if (listener != null) {
+            listener.onPacketReceived(value);
+        }
+    }
+}
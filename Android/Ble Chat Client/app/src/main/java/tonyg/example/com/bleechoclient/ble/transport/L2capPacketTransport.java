@@ -0,0 +1,88 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Build;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+
+/**
+ * Carries packets over an L2CAP connection-oriented channel to the Peripheral.
+ *
+ * The channel is a byte stream with its own credit-based flow control, so packets are
+ * framed the same way as StreamPacketTransport and a write completes once it is flushed,
+ * without waiting for an acknowledgement.  Packets can be as long as the framing allows
+ * rather than one Characteristic value, and there is no ATT header on each one.
+ *
+ * L2CAP channels need Android 10 (API 29), so the BluetoothDevice methods are found by
+ * reflection.  The Peripheral has to listen on the PSM and speak the same framing.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class L2capPacketTransport extends StreamPacketTransport {
+    private static final String TAG = L2capPacketTransport.class.getSimpleName();
+    private static final int ANDROID_10 = 29;
+
+    private final Closeable mChannel;
+
+    /**
+     * Create a new L2capPacketTransport on an open channel and start reading
+     *
+     * @param channel the channel, closed along with the transport
+     * @param inputStream packets from the Peripheral
+     * @param outputStream packets to the Peripheral
+     */
+    public L2capPacketTransport(Closeable channel, InputStream inputStream, OutputStream outputStream) {
+        super(inputStream, outputStream, MAX_FRAMED_PACKET_LENGTH, false);
+        mChannel = channel;
+    }
+
+    /**
+     * Determine if this Android device can open L2CAP channels
+     *
+     * @return <b>true</b> if it can
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= ANDROID_10;
+    }
+
+    /**
+     * Open an L2CAP channel to a Peripheral.  This blocks until the channel is connected,
+     * so don't call it from the main thread
+     *
+     * @param bluetoothDevice the Peripheral
+     * @param psm the Protocol/Service Multiplexer the Peripheral listens on
+     * @return a transport on the open channel
+     * @throws Exception if the channel could not be opened
+     */
+    public static L2capPacketTransport connect(BluetoothDevice bluetoothDevice, int psm) throws Exception {
+        if (!isSupported()) {
+            throw new Exception("L2CAP channels need Android 10");
+        }
+        Method createChannel = bluetoothDevice.getClass().getMethod("createInsecureL2capChannel", int.class);
+        final Closeable socket = (Closeable) createChannel.invoke(bluetoothDevice, psm);
+        try {
+            socket.getClass().getMethod("connect").invoke(socket);
+            InputStream inputStream = (InputStream) socket.getClass().getMethod("getInputStream").invoke(socket);
+            OutputStream outputStream = (OutputStream) socket.getClass().getMethod("getOutputStream").invoke(socket);
+            return new L2capPacketTransport(socket, inputStream, outputStream);
+        } catch (Exception e) {
+            socket.close();
+            throw new Exception("Could not open L2CAP channel on PSM " + psm, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+}
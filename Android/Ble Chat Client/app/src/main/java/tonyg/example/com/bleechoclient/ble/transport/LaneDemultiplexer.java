@@ -0,0 +1,96 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+/**
+ * Sorts received packets back into the lanes an OutboundQueue sent them on.
+ *
+ * Each packet starts with a lane header giving its lane and length, so a value that
+ * holds several packets back to back is split up again.  Each packet's data is handed
+ * to the Listener in place, with the lane it belongs to, so the lanes can be
+ * reassembled separately.  Packets for a lane past the last one are dropped, as is
+ * anything after a header that runs past the end of the value.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class LaneDemultiplexer {
+    private static final String TAG = LaneDemultiplexer.class.getSimpleName();
+
+    private final int mNumLanes;
+    private final Listener mListener;
+    private long mNumPacketsDropped = 0;
+
+    /**
+     * Create a new LaneDemultiplexer
+     *
+     * @param numLanes how many lanes the sender has
+     * @param listener who gets each lane's packets
+     */
+    public LaneDemultiplexer(int numLanes, Listener listener) {
+        mNumLanes = numLanes;
+        mListener = listener;
+    }
+
+    /**
+     * Take a received value and pass each packet in it on to its lane
+     *
+     * @param value one or more packets, each lane header first
+     * @return how many packets were passed on
+     */
+    public int onPacketReceived(byte[] value) {
+        if (value == null) {
+            return 0;
+        }
+        int numPackets = 0;
+        int offset = 0;
+        while (offset < value.length) {
+            if (offset + OutboundQueue.LANE_HEADER_LENGTH > value.length) {
+                countDroppedPacket();
+                break;
+            }
+            int lane = (value[offset] & 0xFF) >> 4;
+            int length = (value[offset] & 0x0F) << 8 | (value[offset + 1] & 0xFF);
+            int dataOffset = offset + OutboundQueue.LANE_HEADER_LENGTH;
+            if (dataOffset + length > value.length) {
+                countDroppedPacket();
+                break;
+            }
+            if (lane < mNumLanes) {
+                mListener.onLanePacketReceived(lane, value, dataOffset, length);
+                numPackets++;
+            } else {
+                countDroppedPacket();
+            }
+            offset = dataOffset + length;
+        }
+        return numPackets;
+    }
+
+    /**
+     * Count the packets that belonged to no lane
+     *
+     * @return how many packets were dropped
+     */
+    public synchronized long getNumPacketsDropped() {
+        return mNumPacketsDropped;
+    }
+
+    private synchronized void countDroppedPacket() {
+        mNumPacketsDropped++;
+    }
+
+
+    /**
+     * Events raised by a LaneDemultiplexer
+     */
+    public interface Listener {
+        /**
+         * A packet arrived on a lane
+         *
+         * @param lane the lane
+         * @param packet the whole received value.  Only read between offset and offset + length
+         * @param offset where the lane's data starts
+         * @param length how much of the packet is the lane's data
+         */
+        void onLanePacketReceived(int lane, byte[] packet, int offset, int length);
+    }
+}
@@ -0,0 +1,132 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+/**
+ * Frames the two ends of a link exchange about the link itself, on OutboundQueue.LANE_LINK.
+ *
+ * Each frame is a type byte followed by its fields.  Right after connecting, the
+ * Central sends TYPE_HELLO with what it can do, and a Peripheral that understands
+ * link frames answers with TYPE_HELLO_REPLY and what it can do.  A Peripheral that
+ * doesn't would echo TYPE_HELLO back, which is ignored, so both ends keep to plain
+ * messages.
+ *
+ * A hello is the type, PROTOCOL_VERSION, a byte of CAPABILITY_ flags and the
+ * LzCodec dictionary version.
+ *
+ * A Peripheral with CAPABILITY_TELEMETRY streams samples on OutboundQueue.LANE_TELEMETRY
+ * between TYPE_TELEMETRY_START, with the number of channels and the sample rate in Hz
+ * (two bytes, big-endian), and TYPE_TELEMETRY_STOP.
+ *
+ * A Peripheral with CAPABILITY_CLOCK answers TYPE_TIME_REQUEST, which carries a sequence
+ * number, with TYPE_TIME_REPLY: the sequence number, then its clock in microseconds when
+ * the request arrived and when the reply was sent, four bytes each, big-endian.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class LinkFrame {
+    private static final String TAG = LinkFrame.class.getSimpleName();
+
+    /** Frame types **/
+    public static final int TYPE_HELLO = 0x01;
+    public static final int TYPE_HELLO_REPLY = 0x02;
+    public static final int TYPE_TELEMETRY_START = 0x03;
+    public static final int TYPE_TELEMETRY_STOP = 0x04;
+    public static final int TYPE_TIME_REQUEST = 0x05;
+    public static final int TYPE_TIME_REPLY = 0x06;
+
+    public static final int PROTOCOL_VERSION = 1;
+    public static final int HELLO_LENGTH = 4;
+    public static final int TIME_REPLY_LENGTH = 10;
+
+    /** Capabilities **/
+    public static final int CAPABILITY_COMPRESSION = 0x01;
+    public static final int CAPABILITY_TELEMETRY = 0x02;
+    public static final int CAPABILITY_CLOCK = 0x04;
+
+    /**
+     * Create a hello for the Central to send
+     *
+     * @param capabilities the CAPABILITY_ flags this end supports
+     * @param dictionaryVersion the LzCodec dictionary this end uses
+     * @return the frame
+     */
+    public static byte[] createHello(int capabilities, int dictionaryVersion) {
+        return new byte[]{(byte) TYPE_HELLO, (byte) PROTOCOL_VERSION, (byte) capabilities, (byte) dictionaryVersion};
+    }
+
+    /**
+     * Create the reply a Peripheral sends to a hello
+     *
+     * @param capabilities the CAPABILITY_ flags this end supports
+     * @param dictionaryVersion the LzCodec dictionary this end uses
+     * @return the frame
+     */
+    public static byte[] createHelloReply(int capabilities, int dictionaryVersion) {
+        return new byte[]{(byte) TYPE_HELLO_REPLY, (byte) PROTOCOL_VERSION, (byte) capabilities, (byte) dictionaryVersion};
+    }
+
+    /**
+     * Create a frame that has the Peripheral start streaming telemetry, or restart it
+     *
+     * @param numChannels how many samples in each sample set
+     * @param sampleRate sample sets per second
+     * @return the frame
+     */
+    public static byte[] createTelemetryStart(int numChannels, int sampleRate) {
+        return new byte[]{(byte) TYPE_TELEMETRY_START, (byte) numChannels, (byte) (sampleRate >> 8), (byte) sampleRate};
+    }
+
+    /**
+     * Create a frame that has the Peripheral stop streaming telemetry
+     *
+     * @return the frame
+     */
+    public static byte[] createTelemetryStop() {
+        return new byte[]{(byte) TYPE_TELEMETRY_STOP};
+    }
+
+    /**
+     * Create a frame that asks the Peripheral for its clock
+     *
+     * @param sequence a number, 0 to 255, that the reply will carry
+     * @return the frame
+     */
+    public static byte[] createTimeRequest(int sequence) {
+        return new byte[]{(byte) TYPE_TIME_REQUEST, (byte) sequence};
+    }
+
+    /**
+     * Get the type of a frame
+     *
+     * @param frame the received lane data
+     * @param offset where the frame starts
+     * @param length how long it is
+     * @return one of the TYPE_ constants, or -1 if the frame is empty
+     */
+    public static int getType(byte[] frame, int offset, int length) {
+        return length > 0 ? frame[offset] & 0xFF : -1;
+    }
+
+    /**
+     * Work out which capabilities both ends can use from a hello or a hello reply
+     *
+     * @param frame the received lane data
+     * @param offset where the frame starts
+     * @param length how long it is
+     * @param capabilities the CAPABILITY_ flags this end supports
+     * @param dictionaryVersion the LzCodec dictionary this end uses
+     * @return the CAPABILITY_ flags both ends support, or 0 if the frame is neither
+     */
+    public static int getSharedCapabilities(byte[] frame, int offset, int length, int capabilities, int dictionaryVersion) {
+        int type = getType(frame, offset, length);
+        if (length < HELLO_LENGTH || (type != TYPE_HELLO && type != TYPE_HELLO_REPLY)) {
+            return 0;
+        }
+        int shared = capabilities & frame[offset + 2] & 0xFF;
+        // compressed blocks only make sense with the same dictionary at both ends
+        if ((frame[offset + 3] & 0xFF) != dictionaryVersion) {
+            shared &= ~CAPABILITY_COMPRESSION;
+        }
+        return shared;
+    }
+}
@@ -0,0 +1,254 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+/**
+ * Decides the connection priority and PHY of a link from how busy it is.
+ *
+ * update() is called every UPDATE_INTERVAL with the bytes written so far and whether
+ * the outbound queue has anything left.  The link is busy when more than BUSY_RATE
+ * bytes a second go either way, or the outbound queue has stayed non-empty since the
+ * last update, which is what a transfer looks like and a chat message doesn't.  While
+ * busy the link asks for PRIORITY_HIGH, the shortest connection interval, and the
+ * faster PHY.  IDLE_TIMEOUT after the last busy update it drops back to
+ * PRIORITY_BALANCED on the standard PHY, and after LOW_POWER_TIMEOUT without any
+ * traffic at all to PRIORITY_LOW_POWER.  Any traffic brings it back to balanced at once.
+ *
+ * Link frames don't count as traffic.  The clock sync's exchange every second would
+ * otherwise keep a quiet link from ever reaching low power.
+ *
+ * For each priority it keeps the bytes moved and the time spent while busy, so the
+ * throughput each one actually gave can be compared.
+ *
+ * Times are in milliseconds.  The priorities have the values of
+ * BluetoothGatt.CONNECTION_PRIORITY_BALANCED, _HIGH and _LOW_POWER.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class LinkParameterManager {
+    private static final String TAG = LinkParameterManager.class.getSimpleName();
+
+    /** Priorities **/
+    public static final int PRIORITY_BALANCED = 0;
+    public static final int PRIORITY_HIGH = 1;
+    public static final int PRIORITY_LOW_POWER = 2;
+    public static final int NUM_PRIORITIES = 3;
+
+    public static final long UPDATE_INTERVAL = 250;
+    public static final long BUSY_RATE = 1000; // bytes per second
+    public static final long IDLE_TIMEOUT = 2000;
+    public static final long LOW_POWER_TIMEOUT = 30000;
+
+    private final boolean mFastPhySupported;
+    private Listener mListener;
+
+    /** Decisions **/
+    private int mPriority = PRIORITY_BALANCED;
+    private boolean mFastPhy = false;
+
+    /** Measurements **/
+    private long mNumBytesReceived = 0;
+    private long mLastNumBytes = 0;
+    private long mLastUpdate = -1;
+    private long mLastBusy = 0;
+    private long mLastActive = 0;
+    private boolean mOutboundWasBusy = false;
+    private final long[] mBusyBytes = new long[NUM_PRIORITIES];
+    private final long[] mBusyTime = new long[NUM_PRIORITIES];
+
+    /**
+     * Create a new LinkParameterManager.  It starts at PRIORITY_BALANCED, as a new connection does
+     *
+     * @param fastPhySupported <b>true</b> if the link can switch to the 2M PHY
+     */
+    public LinkParameterManager(boolean fastPhySupported) {
+        mFastPhySupported = fastPhySupported;
+    }
+
+    /**
+     * Set who hears when the priority or PHY should change
+     *
+     * @param listener the Listener
+     */
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Count bytes that arrived, other than link frames.  Safe to call from any thread
+     *
+     * @param numBytes how many
+     */
+    public synchronized void onBytesReceived(int numBytes) {
+        mNumBytesReceived += numBytes;
+    }
+
+    /**
+     * Measure what the outbound queues wrote since the last update, leaving out the link
+     * lane, and change settings if it calls for it
+     *
+     * @param now the time
+     * @param outboundQueues the link's queues.  <b>null</b> ones are skipped, and a queue
+     *                       with a single lane counts in full
+     */
+    public void update(long now, OutboundQueue... outboundQueues) {
+        long numBytesWritten = 0;
+        boolean outboundBusy = false;
+        for (OutboundQueue outboundQueue : outboundQueues) {
+            if (outboundQueue == null) {
+                continue;
+            }
+            int numLanes = outboundQueue.getNumLanes();
+            for (int lane = 0; lane < numLanes; lane++) {
+                if (lane != OutboundQueue.LANE_LINK || numLanes == 1) {
+                    numBytesWritten += outboundQueue.getNumBytesWritten(lane);
+                    outboundBusy |= outboundQueue.isBusy(lane);
+                }
+            }
+        }
+        update(now, numBytesWritten, outboundBusy);
+    }
+
+    /**
+     * Measure the traffic since the last update and change settings if it calls for it
+     *
+     * @param now the time
+     * @param numBytesWritten bytes written so far.  A smaller count than last time means
+     *                        the writer was replaced, and it is all counted as new
+     * @param outboundBusy <b>true</b> if the outbound queue has anything left to write
+     */
+    public void update(long now, long numBytesWritten, boolean outboundBusy) {
+        Listener listener;
+        synchronized (this) {
+            long numBytes = numBytesWritten + mNumBytesReceived;
+            long newBytes = numBytes >= mLastNumBytes ? numBytes - mLastNumBytes : numBytes;
+            mLastNumBytes = numBytes;
+            if (mLastUpdate < 0) {
+                mLastUpdate = now;
+                mLastBusy = now;
+                mLastActive = now;
+                mOutboundWasBusy = outboundBusy;
+                return;
+            }
+            long elapsed = Math.max(1, now - mLastUpdate);
+            mLastUpdate = now;
+
+            boolean busy = newBytes * 1000 >= BUSY_RATE * elapsed || (outboundBusy && mOutboundWasBusy);
+            mOutboundWasBusy = outboundBusy;
+            if (busy) {
+                // credited to the priority the bytes moved under
+                mBusyBytes[mPriority] += newBytes;
+                mBusyTime[mPriority] += elapsed;
+                mLastBusy = now;
+            }
+            if (newBytes > 0 || outboundBusy) {
+                mLastActive = now;
+            }
+
+            int priority;
+            if (busy) {
+                priority = PRIORITY_HIGH;
+            } else if (now - mLastActive >= LOW_POWER_TIMEOUT) {
+                priority = PRIORITY_LOW_POWER;
+            } else if (now - mLastBusy >= IDLE_TIMEOUT || mPriority == PRIORITY_LOW_POWER) {
+                priority = PRIORITY_BALANCED;
+            } else {
+                priority = mPriority;
+            }
+            boolean fastPhy = mFastPhySupported && priority == PRIORITY_HIGH;
+            if (priority == mPriority && fastPhy == mFastPhy) {
+                return;
+            }
+            mPriority = priority;
+            mFastPhy = fastPhy;
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onLinkParametersChanged(this);
+        }
+    }
+
+    /**
+     * Get the connection priority the link should have
+     *
+     * @return one of the PRIORITY_ constants
+     */
+    public synchronized int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Determine if the link should use the 2M PHY
+     *
+     * @return <b>true</b> for 2M, <b>false</b> for 1M
+     */
+    public synchronized boolean isFastPhy() {
+        return mFastPhy;
+    }
+
+    /**
+     * Get the throughput while busy at a priority
+     *
+     * @param priority one of the PRIORITY_ constants
+     * @return bytes per second, both ways together, or 0 if the link was never busy at it
+     */
+    public synchronized double getThroughput(int priority) {
+        return mBusyTime[priority] > 0 ? mBusyBytes[priority] * 1000.0 / mBusyTime[priority] : 0;
+    }
+
+    /**
+     * Get how long the link was busy at a priority
+     *
+     * @param priority one of the PRIORITY_ constants
+     * @return milliseconds
+     */
+    public synchronized long getBusyTime(int priority) {
+        return mBusyTime[priority];
+    }
+
+    /**
+     * Describe the throughput at each priority on one line, for the log
+     *
+     * @return each priority's throughput and how long it was measured over
+     */
+    public synchronized String describe() {
+        StringBuilder description = new StringBuilder();
+        for (int priority = 0; priority < NUM_PRIORITIES; priority++) {
+            if (description.length() > 0) {
+                description.append(", ");
+            }
+            description.append(getPriorityName(priority)).append(' ')
+                    .append(String.format("%.0f bytes/s over %.1f s", getThroughput(priority), mBusyTime[priority] / 1000.0));
+        }
+        return description.toString();
+    }
+
+    /**
+     * Name a priority
+     *
+     * @param priority one of the PRIORITY_ constants
+     * @return its name
+     */
+    public static String getPriorityName(int priority) {
+        switch (priority) {
+            case PRIORITY_HIGH:
+                return "high";
+            case PRIORITY_LOW_POWER:
+                return "low power";
+            default:
+                return "balanced";
+        }
+    }
+
+
+    /**
+     * Hears when the link's settings should change
+     */
+    public interface Listener {
+        /**
+         * The priority or PHY changed.  Apply getPriority() and isFastPhy() to the link
+         *
+         * @param manager the LinkParameterManager
+         */
+        void onLinkParametersChanged(LinkParameterManager manager);
+    }
+}
@@ -0,0 +1,706 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Splits outgoing messages into packets and writes them to a PacketTransport.
+ *
+ * The next packet is written as soon as the previous write completes, rather than
+ * waiting for the Peripheral to echo it.  The owner of the transport's Listener
+ * must forward onPacketWritten() here.
+ *
+ * Messages are ByteBuffers so that large ones, such as a memory-mapped file, are
+ * read one packet at a time rather than copied in full.
+ *
+ * A message can instead be sent reliably, if the transport is a ReliableWriteTransport.
+ * It is then written as one value inside a transaction and applied in full or not at
+ * all, rather than packet by packet.  The owner of the transport's Listener must also
+ * forward onReliableWriteCompleted() here.
+ *
+ * Without a ThroughputTuner, packets are as long as the transport allows and one is
+ * written at a time.  With one, the tuner picks the packet length and the delay
+ * between writes, and on a PipelinedPacketTransport how many writes are in flight.
+ *
+ * A queue can have several lanes, lane 0 first.  Each packet is cut from the oldest
+ * message of the first lane that has one, so a short message on LANE_CONTROL gets
+ * through after at most one packet of a long message on LANE_BULK.  LANE_LINK, ahead
+ * of both, carries LinkFrames.  LANE_TELEMETRY only carries samples from the
+ * Peripheral.  With more than one lane, each packet starts with a LANE_HEADER_LENGTH
+ * byte header: the lane in the top 4 bits and the length of the rest of the packet in
+ * the low 12, big-endian.  A LaneDemultiplexer at the far end uses it to put the
+ * messages back together, even when the Peripheral echoes several packets in one
+ * notification.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class OutboundQueue {
+    private static final String TAG = OutboundQueue.class.getSimpleName();
+
+    /** Lanes, highest priority first **/
+    public static final int LANE_LINK = 0;
+    public static final int LANE_CONTROL = 1;
+    public static final int LANE_BULK = 2;
+    public static final int LANE_TELEMETRY = 3;
+    public static final int NUM_LANES = 4;
+    public static final int LANE_HEADER_LENGTH = 2;
+    public static final int MAX_LANES = 16;
+    public static final int MAX_LANE_PACKET_LENGTH = 0xFFF;
+
+    private final PacketTransport mTransport;
+    private final Lane[] mLanes;
+    private Callback mCallback;
+    private ThroughputTuner mTuner;
+
+    /** Flow control stuff **/
+    private final LinkedList<Packet> mPacketsInFlight = new LinkedList<>();
+    private Message mExecutingMessage;
+    private boolean mWriting = false;
+    private long mNumBytesWritten = 0;
+
+    /** Pacing stuff **/
+    private long mNextWriteTime = 0;
+    private Timer mPacingTimer;
+    private TimerTask mPacingTask;
+
+    /**
+     * Create a new OutboundQueue with one lane.  Packets carry no header
+     *
+     * @param transport the transport to write packets to
+     */
+    public OutboundQueue(PacketTransport transport) {
+        this(transport, 1);
+    }
+
+    /**
+     * Create a new OutboundQueue
+     *
+     * @param transport the transport to write packets to
+     * @param numLanes how many lanes.  More than one puts a lane header on each packet
+     */
+    public OutboundQueue(PacketTransport transport, int numLanes) {
+        mTransport = transport;
+        mLanes = new Lane[Math.max(1, Math.min(MAX_LANES, numLanes))];
+        for (int lane = 0; lane < mLanes.length; lane++) {
+            mLanes[lane] = new Lane();
+        }
+    }
+
+    /**
+     * Set who hears about messages queued without a Callback of their own
+     *
+     * @param callback the Callback
+     */
+    public synchronized void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Let a tuner decide packet length, pacing and window from now on
+     *
+     * @param tuner the tuner, or <b>null</b> for one full-length packet at a time
+     */
+    public synchronized void setThroughputTuner(ThroughputTuner tuner) {
+        mTuner = tuner;
+    }
+
+    /**
+     * Get the tuner that decides how packets are written
+     *
+     * @return the ThroughputTuner, or <b>null</b> if there is none
+     */
+    public synchronized ThroughputTuner getThroughputTuner() {
+        return mTuner;
+    }
+
+    /**
+     * Queue a message for sending on LANE_CONTROL.  Writing starts immediately if the transport is idle
+     *
+     * @param message the message
+     */
+    public synchronized void send(byte[] message) {
+        send(ByteBuffer.wrap(message), null);
+    }
+
+    /**
+     * Queue the remaining bytes of a buffer for sending on LANE_CONTROL.
+     * The buffer is read as packets are written, so it must not change until the message finishes
+     *
+     * @param message the message, from its position to its limit
+     * @param callback who hears about this message, or <b>null</b> for the queue's Callback
+     */
+    public synchronized void send(ByteBuffer message, Callback callback) {
+        send(message, callback, false);
+    }
+
+    /**
+     * Queue the remaining bytes of a buffer for sending, optionally in one reliable write.
+     * A reliable message fails if the transport can't write it in one transaction
+     *
+     * @param message the message, from its position to its limit
+     * @param callback who hears about this message, or <b>null</b> for the queue's Callback
+     * @param reliable <b>true</b> to apply the whole message atomically
+     */
+    public synchronized void send(ByteBuffer message, Callback callback, boolean reliable) {
+        send(message, callback, reliable, LANE_CONTROL);
+    }
+
+    /**
+     * Queue the remaining bytes of a buffer for sending on a lane.
+     * A lane past the last one means the last one
+     *
+     * @param message the message, from its position to its limit
+     * @param callback who hears about this message, or <b>null</b> for the queue's Callback
+     * @param reliable <b>true</b> to apply the whole message atomically
+     * @param lane the lane, such as LANE_CONTROL or LANE_BULK
+     */
+    public synchronized void send(ByteBuffer message, Callback callback, boolean reliable, int lane) {
+        lane = Math.max(0, Math.min(lane, mLanes.length - 1));
+        mLanes[lane].messages.add(new Message(message.slice(), callback, reliable, lane));
+        writeNextPackets();
+    }
+
+    /**
+     * Get how many lanes the queue has
+     *
+     * @return the number of lanes
+     */
+    public int getNumLanes() {
+        return mLanes.length;
+    }
+
+    /**
+     * The oldest outstanding packet write completed.  Write the next packets if there are any
+     *
+     * @param success <b>true</b> if the Peripheral accepted the packet
+     */
+    public synchronized void onPacketWritten(boolean success) {
+        if (mPacketsInFlight.isEmpty()) {
+            return;
+        }
+        Packet packet = mPacketsInFlight.removeFirst();
+        Message message = packet.message;
+        if (mTuner != null) {
+            mTuner.onPacketWritten(success, getHeaderLength() + packet.length, (System.nanoTime() - packet.sentAt) / 1e6);
+        }
+        if (success) {
+            mNumBytesWritten += getHeaderLength() + packet.length;
+            mLanes[message.lane].numBytesWritten += getHeaderLength() + packet.length;
+        }
+
+        if (message.reliable) {
+            if (success && executeReliableWrite(message)) {
+                return;
+            }
+            abortReliableWrite(message);
+        } else if (message.finished) {
+            // an earlier packet of this message failed
+        } else if (!success) {
+            finishMessage(message, false);
+        } else {
+            message.bytesWritten += packet.length;
+            Callback callback = message.getCallback(mCallback);
+            if (callback != null) {
+                callback.onMessageProgress(message.data, message.bytesWritten);
+            }
+            if (packet.last) {
+                finishMessage(message, true);
+            }
+        }
+        writeNextPackets();
+    }
+
+    /**
+     * The outstanding reliable write transaction was executed.  Move on to the next message
+     *
+     * @param success <b>true</b> if the Peripheral applied the whole message
+     */
+    public synchronized void onReliableWriteCompleted(boolean success) {
+        if (mExecutingMessage == null) {
+            return;
+        }
+        Message message = mExecutingMessage;
+        mExecutingMessage = null;
+        if (success) {
+            message.bytesWritten = message.data.remaining();
+        }
+        finishMessage(message, success);
+        writeNextPackets();
+    }
+
+    /**
+     * Drop everything that has not been written yet.
+     * Each dropped message is reported through onMessageFailed
+     */
+    public synchronized void clear() {
+        cancelPacing();
+        if (mExecutingMessage != null) {
+            abortReliableWrite(mExecutingMessage);
+        }
+        while (!mPacketsInFlight.isEmpty()) {
+            Message message = mPacketsInFlight.removeFirst().message;
+            if (message.reliable) {
+                abortReliableWrite(message);
+            } else if (!message.finished) {
+                finishMessage(message, false);
+            }
+        }
+        for (Lane lane : mLanes) {
+            if (lane.current != null && !lane.current.finished) {
+                finishMessage(lane.current, false);
+            }
+            lane.current = null;
+            while (!lane.messages.isEmpty()) {
+                finishMessage(lane.messages.removeFirst(), false);
+            }
+        }
+        if (mPacingTimer != null) {
+            mPacingTimer.cancel();
+            mPacingTimer = null;
+        }
+    }
+
+    /**
+     * Determine if a message is being written or waiting to be written
+     *
+     * @return <b>true</b> if there is more to write
+     */
+    public synchronized boolean isBusy() {
+        if (!mPacketsInFlight.isEmpty() || mExecutingMessage != null) {
+            return true;
+        }
+        for (Lane lane : mLanes) {
+            if (lane.current != null || !lane.messages.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determine if a message on one lane is being written or waiting to be written
+     *
+     * @param lane the lane
+     * @return <b>true</b> if the lane has more to write
+     */
+    public synchronized boolean isBusy(int lane) {
+        if (mExecutingMessage != null && mExecutingMessage.lane == lane) {
+            return true;
+        }
+        for (Packet packet : mPacketsInFlight) {
+            if (packet.message.lane == lane) {
+                return true;
+            }
+        }
+        return mLanes[lane].current != null || !mLanes[lane].messages.isEmpty();
+    }
+
+    /**
+     * Count the bytes written so far, headers included
+     *
+     * @return the number of bytes in packets the transport accepted
+     */
+    public synchronized long getNumBytesWritten() {
+        return mNumBytesWritten;
+    }
+
+    /**
+     * Count the bytes written so far on one lane, headers included
+     *
+     * @param lane the lane
+     * @return the number of bytes in the lane's packets the transport accepted
+     */
+    public synchronized long getNumBytesWritten(int lane) {
+        return mLanes[lane].numBytesWritten;
+    }
+
+    /**
+     * Determine how much of the current message has been written
+     *
+     * @return how many packets of the current message have been cut so far
+     */
+    public synchronized int getCurrentOffset() {
+        Message message = getOldestMessage();
+        return message != null ? message.numPacketsSent : 0;
+    }
+
+    /**
+     * Get the oldest message still being written
+     *
+     * @return the current message, or <b>null</b> if idle
+     */
+    public synchronized ByteBuffer getCurrentMessage() {
+        Message message = getOldestMessage();
+        return message != null ? message.data.duplicate() : null;
+    }
+
+    /**
+     * Find the message the oldest outstanding write belongs to, or else the first being cut up
+     *
+     * @return the message, or <b>null</b> if idle
+     */
+    private Message getOldestMessage() {
+        if (mExecutingMessage != null) {
+            return mExecutingMessage;
+        }
+        for (Packet packet : mPacketsInFlight) {
+            if (!packet.message.finished) {
+                return packet.message;
+            }
+        }
+        for (Lane lane : mLanes) {
+            if (lane.current != null) {
+                return lane.current;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write as many packets as the window and pacing allow, moving on to the next
+     * queued message as each one is cut up
+     */
+    private void writeNextPackets() {
+        // a transport may complete a write before writePacket() returns.  That completion
+        // only updates the state, and this loop picks up where it left off
+        if (mWriting) {
+            return;
+        }
+        mWriting = true;
+        try {
+            while (writeNextPacket()) {
+                // keep going
+            }
+        } finally {
+            mWriting = false;
+        }
+    }
+
+    /**
+     * Write the next packet, if one may be written now
+     *
+     * @return <b>true</b> if there may be more to write
+     */
+    private boolean writeNextPacket() {
+        if (mExecutingMessage != null || mPacingTask != null) {
+            return false;
+        }
+        // nor can anything follow a transaction until it is executed
+        if (!mPacketsInFlight.isEmpty() && mPacketsInFlight.getLast().message.reliable) {
+            return false;
+        }
+        Lane lane = getNextLane();
+        if (lane == null) {
+            return false;
+        }
+        if (lane.current == null) {
+            // a transaction can't share the link with other writes.  Lower lanes wait for it too
+            if (lane.messages.getFirst().reliable && !mPacketsInFlight.isEmpty()) {
+                return false;
+            }
+            lane.current = lane.messages.removeFirst();
+            if (!lane.current.data.hasRemaining()) {
+                finishMessage(lane.current, true);
+                return true;
+            }
+            if (lane.current.reliable && !beginReliableWrite(lane.current)) {
+                finishMessage(lane.current, false);
+                return true;
+            }
+        }
+        if (mPacketsInFlight.size() >= getWindow()) {
+            return false;
+        }
+        long now = System.nanoTime();
+        if (now < mNextWriteTime) {
+            schedulePacing((mNextWriteTime - now) / 1000000 + 1);
+            return false;
+        }
+
+        // a reliable message goes in one transaction, so in one packet
+        Message message = lane.current;
+        int headerLength = getHeaderLength();
+        int packetLength = message.reliable ? message.data.remaining() : Math.max(1, getChunkSize() - headerLength);
+        ByteBuffer reader = message.reader;
+        int length = Math.min(packetLength, reader.remaining());
+        byte[] bytes = new byte[headerLength + length];
+        if (headerLength > 0) {
+            bytes[0] = (byte) (message.lane << 4 | length >> 8);
+            bytes[1] = (byte) length;
+        }
+        reader.get(bytes, headerLength, length);
+
+        Packet packet = new Packet(message, length, !reader.hasRemaining(), now);
+        message.numPacketsSent++;
+        if (packet.last) {
+            lane.current = null;
+        }
+        if (mTuner != null) {
+            mNextWriteTime = now + mTuner.getPacingDelay() * 1000000;
+        }
+        mPacketsInFlight.add(packet);
+        try {
+            mTransport.writePacket(bytes);
+        } catch (Exception e) {
+            mPacketsInFlight.remove(packet);
+            if (message.reliable) {
+                abortReliableWrite(message);
+            } else if (!message.finished) {
+                finishMessage(message, false);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the lane the next packet comes from
+     *
+     * @return the first lane with a message to cut, or <b>null</b> if there is none
+     */
+    private Lane getNextLane() {
+        // a transaction that has begun must be written before anything else
+        for (Lane lane : mLanes) {
+            if (lane.current != null && lane.current.reliable) {
+                return lane;
+            }
+        }
+        for (Lane lane : mLanes) {
+            if (lane.current != null || !lane.messages.isEmpty()) {
+                return lane;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get how much of each packet the lane header takes
+     *
+     * @return LANE_HEADER_LENGTH, or 0 with only one lane
+     */
+    private int getHeaderLength() {
+        return mLanes.length > 1 ? LANE_HEADER_LENGTH : 0;
+    }
+
+    /**
+     * Get how many writes may be in flight
+     *
+     * @return the window allowed by the transport and the tuner
+     */
+    private int getWindow() {
+        if (mTuner == null || !(mTransport instanceof PipelinedPacketTransport)) {
+            return 1;
+        }
+        return Math.max(1, Math.min(mTuner.getWindow(), ((PipelinedPacketTransport) mTransport).getMaxWritesInFlight()));
+    }
+
+    /**
+     * Get how long to make the next packet
+     *
+     * @return the packet length allowed by the transport and the tuner
+     */
+    private int getChunkSize() {
+        int maxPacketLength = mTransport.getMaxPacketLength();
+        if (getHeaderLength() > 0) {
+            maxPacketLength = Math.min(maxPacketLength, LANE_HEADER_LENGTH + MAX_LANE_PACKET_LENGTH);
+        }
+        if (mTuner == null) {
+            return maxPacketLength;
+        }
+        return Math.max(1, Math.min(mTuner.getChunkSize(), maxPacketLength));
+    }
+
+    /**
+     * Come back to writing once the pacing delay is over
+     *
+     * @param delay how long to wait, in milliseconds
+     */
+    private void schedulePacing(long delay) {
+        if (mPacingTimer == null) {
+            mPacingTimer = new Timer(TAG, true);
+        }
+        mPacingTask = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (OutboundQueue.this) {
+                    if (mPacingTask == this) {
+                        mPacingTask = null;
+                        writeNextPackets();
+                    }
+                }
+            }
+        };
+        mPacingTimer.schedule(mPacingTask, delay);
+    }
+
+    /**
+     * Forget about any pending pacing delay
+     */
+    private void cancelPacing() {
+        if (mPacingTask != null) {
+            mPacingTask.cancel();
+            mPacingTask = null;
+        }
+        mNextWriteTime = 0;
+    }
+
+    /**
+     * Start a transaction for a message
+     *
+     * @param message the message
+     * @return <b>true</b> if the transport took it
+     */
+    private boolean beginReliableWrite(Message message) {
+        if (!(mTransport instanceof ReliableWriteTransport)) {
+            return false;
+        }
+        ReliableWriteTransport transport = (ReliableWriteTransport) mTransport;
+        if (getHeaderLength() + message.data.remaining() > transport.getMaxReliableWriteLength()
+                || (getHeaderLength() > 0 && message.data.remaining() > MAX_LANE_PACKET_LENGTH)) {
+            return false;
+        }
+        try {
+            transport.beginReliableWrite();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Commit a message's transaction.  The result arrives through onReliableWriteCompleted
+     *
+     * @param message the message
+     * @return <b>true</b> if the execute was started
+     */
+    private boolean executeReliableWrite(Message message) {
+        try {
+            ((ReliableWriteTransport) mTransport).executeReliableWrite();
+            mExecutingMessage = message;
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Throw away a message's transaction.  None of the message was applied
+     *
+     * @param message the message
+     */
+    private void abortReliableWrite(Message message) {
+        if (mExecutingMessage == message) {
+            mExecutingMessage = null;
+        }
+        ((ReliableWriteTransport) mTransport).abortReliableWrite();
+        message.bytesWritten = 0;
+        finishMessage(message, false);
+    }
+
+    /**
+     * Report a message as done.  A failed message that is still being cut up stops there
+     *
+     * @param message the message
+     * @param success <b>true</b> if every packet was written
+     */
+    private void finishMessage(Message message, boolean success) {
+        message.finished = true;
+        if (mLanes[message.lane].current == message) {
+            mLanes[message.lane].current = null;
+        }
+        Callback callback = message.getCallback(mCallback);
+        if (callback != null) {
+            if (success) {
+                callback.onMessageWritten(message.data);
+            } else {
+                callback.onMessageFailed(message.data, message.bytesWritten);
+            }
+        }
+    }
+
+
+    /**
+     * A queued message and who to tell about it
+     */
+    private static class Message {
+        final ByteBuffer data;
+        final ByteBuffer reader; // moved along as packets are cut, so data is left alone
+        final Callback callback;
+        final boolean reliable;
+        final int lane;
+        int bytesWritten = 0;
+        int numPacketsSent = 0;
+        boolean finished = false;
+
+        Message(ByteBuffer data, Callback callback, boolean reliable, int lane) {
+            this.data = data;
+            this.reader = data.duplicate();
+            this.callback = callback;
+            this.reliable = reliable;
+            this.lane = lane;
+        }
+
+        Callback getCallback(Callback defaultCallback) {
+            return callback != null ? callback : defaultCallback;
+        }
+    }
+
+
+    /**
+     * The messages waiting in one lane
+     */
+    private static class Lane {
+        final LinkedList<Message> messages = new LinkedList<>();
+        Message current; // being cut into packets
+        long numBytesWritten = 0;
+    }
+
+
+    /**
+     * A packet written to the transport and not yet completed.  The length leaves out any lane header
+     */
+    private static class Packet {
+        final Message message;
+        final int length;
+        final boolean last;
+        final long sentAt;
+
+        Packet(Message message, int length, boolean last, long sentAt) {
+            this.message = message;
+            this.length = length;
+            this.last = last;
+            this.sentAt = sentAt;
+        }
+    }
+
+
+    /**
+     * Events raised by an OutboundQueue
+     */
+    public interface Callback {
+        /**
+         * Another packet of a message was written
+         *
+         * @param message the message
+         * @param bytesWritten how many bytes of the message have been written so far
+         */
+        void onMessageProgress(ByteBuffer message, int bytesWritten);
+
+        /**
+         * Every packet of a message was written
+         *
+         * @param message the message
+         */
+        void onMessageWritten(ByteBuffer message);
+
+        /**
+         * A message could not be written, or was dropped by clear().  The rest of it was dropped
+         *
+         * @param message the message
+         * @param bytesWritten how many bytes were written before the failure
+         */
+        void onMessageFailed(ByteBuffer message, int bytesWritten);
+    }
+}
@@ -0,0 +1,60 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+/**
+ * A link that carries packets to and from a Peripheral.
+ *
+ * Writes are asynchronous: the Listener is told through onPacketWritten when the
+ * Peripheral has accepted a packet, and only one write may be outstanding at a time.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public interface PacketTransport {
+
+    /**
+     * Get the largest packet this transport can carry
+     *
+     * @return the maximum packet length, in bytes
+     */
+    int getMaxPacketLength();
+
+    /**
+     * Start writing a packet to the Peripheral
+     *
+     * @param packet no longer than getMaxPacketLength() bytes
+     * @throws Exception if the write could not be started
+     */
+    void writePacket(byte[] packet) throws Exception;
+
+    /**
+     * Set who hears about write completions and incoming packets
+     *
+     * @param listener the Listener
+     */
+    void setListener(Listener listener);
+
+    /**
+     * Release the link
+     */
+    void close();
+
+
+    /**
+     * Events raised by a PacketTransport
+     */
+    interface Listener {
+        /**
+         * The outstanding write completed
+         *
+         * @param success <b>true</b> if the Peripheral accepted the packet
+         */
+        void onPacketWritten(boolean success);
+
+        /**
+         * A packet arrived from the Peripheral
+         *
+         * @param packet the packet contents
+         */
+        void onPacketReceived(byte[] packet);
+    }
+}
@@ -0,0 +1,21 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+/**
+ * A PacketTransport that can have several writes outstanding.
+ *
+ * writePacket() may be called again before the previous write completes, up to
+ * getMaxWritesInFlight() times.  Completions are reported through onPacketWritten
+ * in the order the packets were written.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public interface PipelinedPacketTransport extends PacketTransport {
+
+    /**
+     * Get how many writes may be outstanding at once
+     *
+     * @return the most writes in flight
+     */
+    int getMaxWritesInFlight();
+}
@@ -0,0 +1,55 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+/**
+ * A PacketTransport that can also commit a whole message in one transaction.
+ *
+ * Between beginReliableWrite() and executeReliableWrite(), a value written with
+ * writePacket() may be longer than getMaxPacketLength().  The Peripheral holds it as
+ * prepared writes at increasing offsets and applies nothing until the transaction is
+ * executed, so a message is either applied in full or not at all.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public interface ReliableWriteTransport extends PacketTransport {
+
+    /**
+     * Get the largest value one reliable write can carry
+     *
+     * @return the maximum value length, in bytes
+     */
+    int getMaxReliableWriteLength();
+
+    /**
+     * Start a transaction.  Writes are prepared, not applied, until it is executed
+     *
+     * @throws Exception if the transaction could not be started
+     */
+    void beginReliableWrite() throws Exception;
+
+    /**
+     * Apply everything prepared since beginReliableWrite().
+     * The Listener hears about the outcome through onReliableWriteCompleted
+     *
+     * @throws Exception if the transaction could not be executed
+     */
+    void executeReliableWrite() throws Exception;
+
+    /**
+     * Throw away everything prepared since beginReliableWrite()
+     */
+    void abortReliableWrite();
+
+
+    /**
+     * Events raised by a ReliableWriteTransport, on top of those of a PacketTransport
+     */
+    interface Listener extends PacketTransport.Listener {
+        /**
+         * The transaction was executed
+         *
+         * @param success <b>true</b> if the Peripheral applied every prepared write
+         */
+        void onReliableWriteCompleted(boolean success);
+    }
+}
@@ -0,0 +1,175 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Carries packets over a pair of byte streams, such as a pipe or a socket.
+ *
+ * Each packet is sent as one length byte followed by that many bytes, which is
+ * the format host/echo_host.cpp in the Arduino sketch reads and writes.
+ * Writes happen on a background thread.  With acknowledged writes, completion is
+ * reported when the other end sends back a WRITE_ACKNOWLEDGEMENT byte, the way a
+ * GATT write waits for the write response; otherwise it is reported once flushed.
+ * Incoming packets are delivered on a reader thread.  Writes and acknowledgements
+ * both keep their order, so up to MAX_WRITES_IN_FLIGHT writes can be outstanding.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class StreamPacketTransport implements PipelinedPacketTransport {
+    private static final String TAG = StreamPacketTransport.class.getSimpleName();
+    public static final int MAX_FRAMED_PACKET_LENGTH = 254; // limited by the length byte
+    public static final int WRITE_ACKNOWLEDGEMENT = 0xFF; // sent in place of a length byte
+    public static final int MAX_WRITES_IN_FLIGHT = 8;
+
+    private final InputStream mInputStream;
+    private final OutputStream mOutputStream;
+    private final int mMaxPacketLength;
+    private final boolean mAcknowledgedWrites;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+    private final Thread mReader;
+    private volatile Listener mListener;
+    private volatile boolean mClosed = false;
+
+    /**
+     * Create a new StreamPacketTransport and start reading
+     *
+     * @param inputStream packets from the Peripheral
+     * @param outputStream packets to the Peripheral
+     * @param maxPacketLength the largest packet to send, at most MAX_FRAMED_PACKET_LENGTH
+     * @param acknowledgedWrites <b>true</b> if the other end acknowledges every packet
+     */
+    public StreamPacketTransport(InputStream inputStream, OutputStream outputStream, int maxPacketLength, boolean acknowledgedWrites) {
+        if (maxPacketLength > MAX_FRAMED_PACKET_LENGTH) {
+            throw new IllegalArgumentException("Packets can be at most " + MAX_FRAMED_PACKET_LENGTH + " bytes");
+        }
+        mInputStream = inputStream;
+        mOutputStream = outputStream;
+        mMaxPacketLength = maxPacketLength;
+        mAcknowledgedWrites = acknowledgedWrites;
+
+        mReader = new Thread(TAG) {
+            @Override
+            public void run() {
+                readPackets();
+            }
+        };
+        mReader.setDaemon(true);
+        mReader.start();
+    }
+
+    @Override
+    public int getMaxPacketLength() {
+        return mMaxPacketLength;
+    }
+
+    @Override
+    public int getMaxWritesInFlight() {
+        return MAX_WRITES_IN_FLIGHT;
+    }
+
+    @Override
+    public void writePacket(final byte[] packet) throws Exception {
+        if (mClosed) {
+            throw new Exception("Transport is closed");
+        }
+        if (packet.length > mMaxPacketLength) {
+            throw new Exception("Packet is longer than " + mMaxPacketLength + " bytes");
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = true;
+                try {
+                    mOutputStream.write(packet.length);
+                    mOutputStream.write(packet);
+                    mOutputStream.flush();
+                } catch (IOException e) {
+                    success = false;
+                }
+                if (!success || !mAcknowledgedWrites) {
+                    notifyPacketWritten(success);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mWriter.shutdown();
+        try {
+            mOutputStream.close();
+        } catch (IOException e) {
+            // already gone
+        }
+        try {
+            mInputStream.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    /**
+     * Determine if packets can still be carried
+     *
+     * @return <b>false</b> once the transport is closed or the other end has hung up
+     */
+    public boolean isOpen() {
+        return !mClosed && mReader.isAlive();
+    }
+
+    /**
+     * Tell the Listener the outstanding write completed
+     *
+     * @param success <b>true</b> if the packet was delivered
+     */
+    private void notifyPacketWritten(boolean success) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onPacketWritten(success);
+        }
+    }
+
+    /**
+     * Read length-prefixed packets until the stream ends
+     */
+    private void readPackets() {
+        try {
+            while (!mClosed) {
+                int length = mInputStream.read();
+                if (length < 0) {
+                    break;
+                }
+                if (length == WRITE_ACKNOWLEDGEMENT) {
+                    notifyPacketWritten(true);
+                    continue;
+                }
+                byte[] packet = new byte[length];
+                int numRead = 0;
+                while (numRead < length) {
+                    int count = mInputStream.read(packet, numRead, length - numRead);
+                    if (count < 0) {
+                        return;
+                    }
+                    numRead += count;
+                }
+                Listener listener = mListener;
+                if (listener != null) {
+                    listener.onPacketReceived(packet);
+                }
+            }
+        } catch (IOException e) {
+            // stream closed
+        }
+    }
+}
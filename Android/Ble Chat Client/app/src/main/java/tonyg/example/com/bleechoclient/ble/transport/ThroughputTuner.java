@@ -0,0 +1,246 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+/**
+ * Decides how an OutboundQueue writes packets, from how recent writes went.
+ *
+ * Three settings are tuned, additive-increase / multiplicative-decrease: the chunk
+ * size, the window of writes in flight, and the pacing delay between writes.  A
+ * failed write halves the chunk size and window, at most once per round of writes
+ * (one window's worth).  Once they are as small as they go, it doubles the pacing
+ * delay instead.  After each round of successful writes that came back without
+ * extra delay, any pacing delay is halved first; without one, the chunk grows by
+ * CHUNK_SIZE_STEP and the window by one.  Writes that come back slower than
+ * LATENCY_TOLERANCE times the fastest recent one mean a queue is building up
+ * somewhere, so nothing grows.
+ *
+ * The fastest recent write is the fastest of the last MIN_LATENCY_WINDOW to twice
+ * that many successful writes, so the baseline follows a link whose connection
+ * interval grows, and one fast outlier is forgotten.  resetLatency() forgets it at
+ * once, such as when the connection priority changes.
+ *
+ * A window above 1 is only used on PipelinedPacketTransports, and a chunk is never
+ * longer than the transport's packets.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class ThroughputTuner {
+    private static final String TAG = ThroughputTuner.class.getSimpleName();
+
+    public static final int CHUNK_SIZE_STEP = 16;
+    public static final double MIN_PACING_MS = 1;
+    public static final double MAX_PACING_MS = 500;
+    public static final double LATENCY_TOLERANCE = 2;
+    private static final double LATENCY_SMOOTHING = 0.125;
+    private static final double LATENCY_RESOLUTION_MS = 1; // faster writes are not told apart
+    public static final int MIN_LATENCY_WINDOW = 64; // successful writes
+
+    private final int mMinChunkSize;
+    private final int mMaxChunkSize;
+    private final int mMaxWindow;
+    private Listener mListener;
+
+    /** Decisions **/
+    private int mChunkSize;
+    private int mWindow = 1;
+    private double mPacingDelay = 0;
+
+    /** Measurements **/
+    private double mMinLatency = Double.MAX_VALUE; // the fastest write so far this window
+    private double mPreviousMinLatency = Double.MAX_VALUE; // and in the window before
+    private int mWritesThisLatencyWindow = 0;
+    private double mSmoothedLatency = 0;
+    private int mWritesThisRound = 0;
+    private int mWritesSinceDecrease = Integer.MAX_VALUE;
+    private int mWritesInDecreasedRound = 0; // the window when it last backed off
+    private long mNumWritesSucceeded = 0;
+    private long mNumWritesFailed = 0;
+    private long mNumBytesWritten = 0;
+
+    /**
+     * Create a new ThroughputTuner.  It starts from the most cautious settings
+     *
+     * @param minChunkSize the smallest chunk, in bytes
+     * @param maxChunkSize the largest chunk, in bytes
+     * @param maxWindow the most writes to have in flight at once
+     */
+    public ThroughputTuner(int minChunkSize, int maxChunkSize, int maxWindow) {
+        mMinChunkSize = minChunkSize;
+        mMaxChunkSize = Math.max(minChunkSize, maxChunkSize);
+        mMaxWindow = Math.max(1, maxWindow);
+        mChunkSize = minChunkSize;
+    }
+
+    /**
+     * Set who hears about changed decisions
+     *
+     * @param listener the Listener
+     */
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Get how long to make the next packet
+     *
+     * @return the chunk size, in bytes
+     */
+    public synchronized int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Get how many writes may be in flight at once
+     *
+     * @return the window, at least 1
+     */
+    public synchronized int getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Get how long to wait between starting one write and the next
+     *
+     * @return the pacing delay, in milliseconds
+     */
+    public synchronized long getPacingDelay() {
+        return Math.round(mPacingDelay);
+    }
+
+    /**
+     * Get the typical time from starting a write to its completion
+     *
+     * @return the smoothed write latency, in milliseconds
+     */
+    public synchronized double getSmoothedLatency() {
+        return mSmoothedLatency;
+    }
+
+    /**
+     * Get how many writes completed
+     *
+     * @return the number of successful writes
+     */
+    public synchronized long getNumWritesSucceeded() {
+        return mNumWritesSucceeded;
+    }
+
+    /**
+     * Get how many writes failed
+     *
+     * @return the number of failed writes
+     */
+    public synchronized long getNumWritesFailed() {
+        return mNumWritesFailed;
+    }
+
+    /**
+     * Get how many bytes were written successfully
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getNumBytesWritten() {
+        return mNumBytesWritten;
+    }
+
+    /**
+     * Forget how fast writes have been, and measure the link afresh
+     */
+    public synchronized void resetLatency() {
+        mMinLatency = Double.MAX_VALUE;
+        mPreviousMinLatency = Double.MAX_VALUE;
+        mWritesThisLatencyWindow = 0;
+        mWritesThisRound = 0;
+    }
+
+    /**
+     * A write completed.  Adjust the decisions
+     *
+     * @param success <b>true</b> if the Peripheral accepted the packet
+     * @param length how long the packet was, in bytes
+     * @param latency how long the write took, in milliseconds
+     */
+    public void onPacketWritten(boolean success, int length, double latency) {
+        Listener listener;
+        synchronized (this) {
+            if (success) {
+                onWriteSucceeded(length, latency);
+            } else {
+                onWriteFailed();
+            }
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onTuningChanged(this);
+        }
+    }
+
+    /**
+     * Ease off the pacing, or else grow, once per round of writes that came back without queueing delay
+     */
+    private void onWriteSucceeded(int length, double latency) {
+        mNumWritesSucceeded++;
+        mNumBytesWritten += length;
+        if (mWritesSinceDecrease < Integer.MAX_VALUE) {
+            mWritesSinceDecrease++;
+        }
+        mSmoothedLatency = mSmoothedLatency == 0 ? latency
+                : mSmoothedLatency + LATENCY_SMOOTHING * (latency - mSmoothedLatency);
+
+        if (++mWritesThisLatencyWindow > MIN_LATENCY_WINDOW) {
+            mPreviousMinLatency = mMinLatency;
+            mMinLatency = Double.MAX_VALUE;
+            mWritesThisLatencyWindow = 1;
+        }
+        mMinLatency = Math.min(mMinLatency, Math.max(LATENCY_RESOLUTION_MS, latency));
+        if (latency > LATENCY_TOLERANCE * Math.min(mMinLatency, mPreviousMinLatency)) {
+            mWritesThisRound = 0;
+            return;
+        }
+
+        mWritesThisRound++;
+        if (mWritesThisRound >= mWindow) {
+            mWritesThisRound = 0;
+            if (mPacingDelay > 0) {
+                mPacingDelay = mPacingDelay / 2 < MIN_PACING_MS ? 0 : mPacingDelay / 2;
+            } else {
+                mChunkSize = Math.min(mMaxChunkSize, mChunkSize + CHUNK_SIZE_STEP);
+                mWindow = Math.min(mMaxWindow, mWindow + 1);
+            }
+        }
+    }
+
+    /**
+     * Back off, unless this failure belongs to a round that already backed off
+     */
+    private void onWriteFailed() {
+        mNumWritesFailed++;
+        mWritesThisRound = 0;
+        // writes already in flight when it backed off were sent under the old window
+        if (mWritesSinceDecrease < mWritesInDecreasedRound) {
+            mWritesSinceDecrease++;
+            return;
+        }
+        mWritesSinceDecrease = 1;
+        mWritesInDecreasedRound = mWindow;
+        if (mChunkSize > mMinChunkSize || mWindow > 1) {
+            mChunkSize = Math.max(mMinChunkSize, mChunkSize / 2);
+            mWindow = Math.max(1, mWindow / 2);
+        } else {
+            mPacingDelay = Math.min(MAX_PACING_MS, Math.max(MIN_PACING_MS, mPacingDelay * 2));
+        }
+    }
+
+
+    /**
+     * Events raised by a ThroughputTuner
+     */
+    public interface Listener {
+        /**
+         * A write completed and the decisions may have changed
+         *
+         * @param tuner the tuner
+         */
+        void onTuningChanged(ThroughputTuner tuner);
+    }
+}
@@ -0,0 +1,254 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Batches small outgoing messages into fewer, fuller packets before they reach an OutboundQueue.
+ *
+ * A small message waits up to the coalescing delay for others to join it.  The batch is
+ * queued as one message when the delay runs out or when it fills a packet, whichever
+ * comes first.  Messages that fill a packet on their own skip the wait, as does
+ * anything sent with sendNow().
+ *
+ * A delay of 0 turns coalescing off, so every message is queued as soon as it is sent.
+ *
+ * A message can have its own Callback.  Once its batch is written or fails, each
+ * message in it hears about its own part.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class WriteCoalescer {
+    private static final String TAG = WriteCoalescer.class.getSimpleName();
+
+    private final OutboundQueue mOutboundQueue;
+    private final int mMaxPacketLength;
+    private long mCoalescingDelay;
+
+    /** Batching stuff **/
+    private final ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    private final List<Part> mPendingParts = new ArrayList<>(); // the pending messages that have a Callback
+    private Timer mTimer;
+    private TimerTask mFlushTask;
+
+    /**
+     * Create a new WriteCoalescer
+     *
+     * @param outboundQueue the queue batches are sent to
+     * @param maxPacketLength how many bytes fit in one packet
+     * @param coalescingDelay how many milliseconds a small message may wait for company, or 0 for none
+     */
+    public WriteCoalescer(OutboundQueue outboundQueue, int maxPacketLength, long coalescingDelay) {
+        mOutboundQueue = outboundQueue;
+        mMaxPacketLength = maxPacketLength;
+        mCoalescingDelay = coalescingDelay;
+    }
+
+    /**
+     * Change how long a small message may wait for company.
+     * Anything already waiting is sent now
+     *
+     * @param coalescingDelay the delay in milliseconds, or 0 to turn coalescing off
+     */
+    public synchronized void setCoalescingDelay(long coalescingDelay) {
+        flush();
+        mCoalescingDelay = coalescingDelay;
+    }
+
+    /**
+     * Send a message, batching it with others if it is small
+     *
+     * @param message the message
+     */
+    public synchronized void send(byte[] message) {
+        send(message, null);
+    }
+
+    /**
+     * Send a message, batching it with others if it is small, and hear when it has been written
+     *
+     * @param message the message
+     * @param callback who hears whether the message was written, or <b>null</b> for the queue's Callback
+     */
+    public synchronized void send(byte[] message, OutboundQueue.Callback callback) {
+        if (mCoalescingDelay <= 0 || message.length >= mMaxPacketLength) {
+            // nothing to gain by waiting.  Keep the order by sending anything older first
+            flush();
+            mOutboundQueue.send(ByteBuffer.wrap(message), callback);
+            return;
+        }
+
+        addPending(message, callback);
+        if (mPending.size() >= mMaxPacketLength) {
+            flush();
+        } else if (mFlushTask == null) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Send a message along with anything waiting, without waiting for the delay
+     *
+     * @param message the message
+     */
+    public synchronized void sendNow(byte[] message) {
+        sendNow(message, null);
+    }
+
+    /**
+     * Send a message along with anything waiting, without waiting for the delay,
+     * and hear when it has been written
+     *
+     * @param message the message
+     * @param callback who hears whether the message was written, or <b>null</b> for the queue's Callback
+     */
+    public synchronized void sendNow(byte[] message, OutboundQueue.Callback callback) {
+        addPending(message, callback);
+        flush();
+    }
+
+    /**
+     * Send anything waiting for company now
+     */
+    public synchronized void flush() {
+        if (mFlushTask != null) {
+            mFlushTask.cancel();
+            mFlushTask = null;
+        }
+        if (mPending.size() > 0) {
+            byte[] batch = mPending.toByteArray();
+            mPending.reset();
+            if (mPendingParts.isEmpty()) {
+                mOutboundQueue.send(batch);
+            } else {
+                mOutboundQueue.send(ByteBuffer.wrap(batch), new BatchCallback(batch, new ArrayList<>(mPendingParts)));
+                mPendingParts.clear();
+            }
+        }
+    }
+
+    /**
+     * Determine if any messages are waiting for company
+     *
+     * @return <b>true</b> if a batch has not been queued yet
+     */
+    public synchronized boolean hasPendingMessages() {
+        return mPending.size() > 0;
+    }
+
+    /**
+     * Stop the flush timer and drop anything that has not been queued yet.
+     * Messages with a Callback hear that they failed
+     */
+    public synchronized void close() {
+        if (mTimer != null) {
+            mTimer.cancel();
+            mTimer = null;
+        }
+        mFlushTask = null;
+        byte[] batch = mPending.toByteArray();
+        mPending.reset();
+        for (Part part : mPendingParts) {
+            part.callback.onMessageFailed(part.wrap(batch), 0);
+        }
+        mPendingParts.clear();
+    }
+
+    private void addPending(byte[] message, OutboundQueue.Callback callback) {
+        if (callback != null) {
+            mPendingParts.add(new Part(mPending.size(), message.length, callback));
+        }
+        mPending.write(message, 0, message.length);
+    }
+
+    /**
+     * Send the batch when the coalescing delay runs out
+     */
+    private void scheduleFlush() {
+        if (mTimer == null) {
+            mTimer = new Timer(TAG, true);
+        }
+        mFlushTask = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (WriteCoalescer.this) {
+                    // a newer batch has its own task
+                    if (mFlushTask == this) {
+                        flush();
+                    }
+                }
+            }
+        };
+        mTimer.schedule(mFlushTask, mCoalescingDelay);
+    }
+
+
+    /**
+     * Where a message with a Callback sits in its batch
+     */
+    private static class Part {
+        final int offset;
+        final int length;
+        final OutboundQueue.Callback callback;
+
+        Part(int offset, int length, OutboundQueue.Callback callback) {
+            this.offset = offset;
+            this.length = length;
+            this.callback = callback;
+        }
+
+        ByteBuffer wrap(byte[] batch) {
+            return ByteBuffer.wrap(batch, offset, length).slice();
+        }
+
+        /**
+         * How much of this message is in the first bytesWritten bytes of its batch
+         */
+        int getBytesWritten(int bytesWritten) {
+            return Math.max(0, Math.min(length, bytesWritten - offset));
+        }
+    }
+
+
+    /**
+     * Tells each message in a batch about its own part of the batch's progress
+     */
+    private static class BatchCallback implements OutboundQueue.Callback {
+        private final byte[] mBatch;
+        private final List<Part> mParts;
+
+        BatchCallback(byte[] batch, List<Part> parts) {
+            mBatch = batch;
+            mParts = parts;
+        }
+
+        @Override
+        public void onMessageProgress(ByteBuffer message, int bytesWritten) {
+            for (Part part : mParts) {
+                int partBytesWritten = part.getBytesWritten(bytesWritten);
+                if (partBytesWritten > 0 && partBytesWritten < part.length) {
+                    part.callback.onMessageProgress(part.wrap(mBatch), partBytesWritten);
+                }
+            }
+        }
+
+        @Override
+        public void onMessageWritten(ByteBuffer message) {
+            for (Part part : mParts) {
+                part.callback.onMessageWritten(part.wrap(mBatch));
+            }
+        }
+
+        @Override
+        public void onMessageFailed(ByteBuffer message, int bytesWritten) {
+            for (Part part : mParts) {
+                part.callback.onMessageFailed(part.wrap(mBatch), part.getBytesWritten(bytesWritten));
+            }
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package tonyg.example.com.bleechoclient.history;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An append-only, on-disk log of sent and received messages.
+ *
+ * Entries are stored in segment files of ENTRIES_PER_SEGMENT entries each.  Every
+ * segment has a data file holding the records and an index file holding the
+ * offset of each record, so any entry can be read without scanning and only the
+ * entries on screen need to be in memory.
+ *
+ * append() returns immediately.  Entries are written by a background thread in
+ * batches, and can be read back from memory until they reach the disk.  If the disk
+ * keeps failing, such as when it is full, the writer retries less and less often, and
+ * once MAX_UNWRITTEN entries are waiting new ones are dropped and counted rather than
+ * held in memory.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class MessageLog {
+    private static final String TAG = MessageLog.class.getSimpleName();
+
+    public static final int DIRECTION_SENT = 0;
+    public static final int DIRECTION_RECEIVED = 1;
+
+    private static final int ENTRIES_PER_SEGMENT = 1024;
+    private static final int INDEX_ENTRY_LENGTH = 4; // record offset in the data file
+    private static final int RECORD_HEADER_LENGTH = 1 + 8 + 4; // direction, timestamp, text length
+    private static final long BATCH_DELAY_MS = 250; // how long to wait for more entries before writing
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long MAX_RETRY_DELAY_MS = 30000;
+    public static final int MAX_UNWRITTEN = 4096;
+    private static final Charset TEXT_ENCODING = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+    private final Thread mWriter;
+
+    /** guarded by this **/
+    private int mSize;                  // entries appended, written or not
+    private int mWrittenSize;           // entries on disk
+    private final List<Entry> mUnwritten = new ArrayList<>();
+    private boolean mClosed = false;
+    private long mNumDropped = 0;
+
+    /** only touched by the writer thread **/
+    private int mWriterSegment = -1;
+    private FileOutputStream mSegmentData;
+    private FileOutputStream mSegmentIndex;
+    private long mSegmentDataLength;
+
+    /** read side, guarded by this **/
+    private int mReaderSegment = -1;
+    private RandomAccessFile mReaderData;
+    private RandomAccessFile mReaderIndex;
+
+    /**
+     * Open a log, creating it if necessary
+     *
+     * @param directory where the segment files are kept
+     * @throws IOException if the log can not be read
+     */
+    public MessageLog(File directory) throws IOException {
+        mDirectory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        mSize = recoverSize();
+        mWrittenSize = mSize;
+
+        mWriter = new Thread(TAG) {
+            @Override
+            public void run() {
+                writeBatches();
+            }
+        };
+        mWriter.start();
+    }
+
+    /**
+     * Add a message to the end of the log
+     *
+     * @param direction DIRECTION_SENT or DIRECTION_RECEIVED
+     * @param text the message
+     * @return the index of the new entry, or -1 if it was dropped because too many
+     *         entries are still waiting for the disk
+     */
+    public synchronized int append(int direction, String text) {
+        if (mClosed) {
+            throw new IllegalStateException("Log is closed");
+        }
+        if (mUnwritten.size() >= MAX_UNWRITTEN) {
+            mNumDropped++;
+            return -1;
+        }
+        mUnwritten.add(new Entry(direction, System.currentTimeMillis(), text));
+        notifyAll();
+        return mSize++;
+    }
+
+    /**
+     * Get the number of entries in the log
+     *
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Count the entries dropped because the disk could not keep up
+     *
+     * @return how many were dropped
+     */
+    public synchronized long getNumDropped() {
+        return mNumDropped;
+    }
+
+    /**
+     * Read an entry.  It may come from disk, so keep it off the UI thread
+     *
+     * @param index from 0 to size() - 1
+     * @return the entry
+     * @throws IOException if the entry can not be read from disk
+     */
+    public synchronized Entry read(int index) throws IOException {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("No entry " + index);
+        }
+        if (index >= mWrittenSize) {
+            return mUnwritten.get(index - mWrittenSize);
+        }
+
+        openReader(index / ENTRIES_PER_SEGMENT);
+        mReaderIndex.seek((long) (index % ENTRIES_PER_SEGMENT) * INDEX_ENTRY_LENGTH);
+        mReaderData.seek(mReaderIndex.readInt());
+        int direction = mReaderData.readByte();
+        long timestamp = mReaderData.readLong();
+        byte[] text = new byte[mReaderData.readInt()];
+        mReaderData.readFully(text);
+        return new Entry(direction, timestamp, new String(text, TEXT_ENCODING));
+    }
+
+    /**
+     * Write everything that is still in memory and release the files
+     */
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            closeReader();
+        }
+    }
+
+    /**
+     * Background thread: write unwritten entries in batches until closed
+     */
+    private void writeBatches() {
+        long retryDelay = BATCH_DELAY_MS;
+        while (true) {
+            List<Entry> batch;
+            int firstIndex;
+            synchronized (this) {
+                while (mUnwritten.isEmpty() && !mClosed) {
+                    waitQuietly(0);
+                }
+                // give a burst of messages the chance to go out in one write
+                long deadline = System.currentTimeMillis() + BATCH_DELAY_MS;
+                long remainingMs = BATCH_DELAY_MS;
+                while (!mClosed && mUnwritten.size() < MAX_BATCH_SIZE && remainingMs > 0) {
+                    waitQuietly(remainingMs);
+                    remainingMs = deadline - System.currentTimeMillis();
+                }
+                if (mUnwritten.isEmpty()) {
+                    break;
+                }
+                batch = new ArrayList<>(mUnwritten.subList(0, Math.min(mUnwritten.size(), MAX_BATCH_SIZE)));
+                firstIndex = mWrittenSize;
+            }
+
+            try {
+                writeBatch(firstIndex, batch);
+                retryDelay = BATCH_DELAY_MS;
+            } catch (IOException e) {
+                // keep what didn't reach the disk in memory, and try again from there.
+                // Reopening the segment drops anything the failed write left in its index
+                closeWriter();
+                synchronized (this) {
+                    // new entries don't cut the wait short, only closing does
+                    long deadline = System.currentTimeMillis() + retryDelay;
+                    long remainingMs = retryDelay;
+                    while (!mClosed && remainingMs > 0) {
+                        waitQuietly(remainingMs);
+                        remainingMs = deadline - System.currentTimeMillis();
+                    }
+                    if (mClosed) {
+                        break;
+                    }
+                }
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS);
+            }
+        }
+        closeWriter();
+    }
+
+    /**
+     * Append entries to the segment files.  Each part of the batch that is flushed leaves
+     * memory at once, so if a later part fails only the rest is written again
+     *
+     * @param firstIndex the index of the first entry in the batch
+     * @param batch the entries
+     * @throws IOException if the entries could not be written
+     */
+    private void writeBatch(int firstIndex, List<Entry> batch) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream dataOutput = new DataOutputStream(data);
+        DataOutputStream indexOutput = new DataOutputStream(index);
+        int numBuffered = 0;
+
+        for (int position = 0; position < batch.size(); position++) {
+            int segment = (firstIndex + position) / ENTRIES_PER_SEGMENT;
+            if (segment != mWriterSegment) {
+                flushBatch(data, index, numBuffered);
+                numBuffered = 0;
+                openWriter(segment, (firstIndex + position) % ENTRIES_PER_SEGMENT);
+            }
+            Entry entry = batch.get(position);
+            byte[] text = entry.text.getBytes(TEXT_ENCODING);
+            indexOutput.writeInt((int) (mSegmentDataLength + data.size()));
+            dataOutput.writeByte(entry.direction);
+            dataOutput.writeLong(entry.timestamp);
+            dataOutput.writeInt(text.length);
+            dataOutput.write(text);
+            numBuffered++;
+        }
+        flushBatch(data, index, numBuffered);
+    }
+
+    /**
+     * Write buffered records, then their index entries, to the current segment, and
+     * count them as written
+     */
+    private void flushBatch(ByteArrayOutputStream data, ByteArrayOutputStream index, int numEntries) throws IOException {
+        if (numEntries == 0) {
+            return;
+        }
+        // records first, so an index entry never points past the end of the data
+        data.writeTo(mSegmentData);
+        mSegmentData.flush();
+        index.writeTo(mSegmentIndex);
+        mSegmentIndex.flush();
+        mSegmentDataLength += data.size();
+        data.reset();
+        index.reset();
+        synchronized (this) {
+            mUnwritten.subList(0, numEntries).clear();
+            mWrittenSize += numEntries;
+        }
+    }
+
+    /**
+     * Open a segment to append to
+     *
+     * @param segment the segment
+     * @param numEntries how many of its entries are already written.  Index entries past
+     *                   them, left by a write that failed, are dropped
+     */
+    private void openWriter(int segment, int numEntries) throws IOException {
+        closeWriter();
+        File dataFile = getDataFile(segment);
+        mSegmentData = new FileOutputStream(dataFile, true);
+        mSegmentIndex = new FileOutputStream(getIndexFile(segment), true);
+        long indexLength = (long) numEntries * INDEX_ENTRY_LENGTH;
+        if (mSegmentIndex.getChannel().size() > indexLength) {
+            mSegmentIndex.getChannel().truncate(indexLength);
+        }
+        // records a failed write left in the data file are skipped, since no index entry points at them
+        mSegmentDataLength = dataFile.length();
+        mWriterSegment = segment;
+    }
+
+    private void closeWriter() {
+        closeQuietly(mSegmentData);
+        closeQuietly(mSegmentIndex);
+        mSegmentData = null;
+        mSegmentIndex = null;
+        mWriterSegment = -1;
+    }
+
+    private void openReader(int segment) throws IOException {
+        if (segment == mReaderSegment) {
+            return;
+        }
+        closeReader();
+        mReaderData = new RandomAccessFile(getDataFile(segment), "r");
+        mReaderIndex = new RandomAccessFile(getIndexFile(segment), "r");
+        mReaderSegment = segment;
+    }
+
+    private void closeReader() {
+        closeQuietly(mReaderData);
+        closeQuietly(mReaderIndex);
+        mReaderData = null;
+        mReaderIndex = null;
+        mReaderSegment = -1;
+    }
+
+    /**
+     * Count the entries already on disk, dropping any that were cut short by a crash
+     *
+     * @return the number of complete entries
+     * @throws IOException if the last segment can not be read
+     */
+    private int recoverSize() throws IOException {
+        int segment = 0;
+        while (getIndexFile(segment + 1).isFile()) {
+            segment++;
+        }
+        File indexFile = getIndexFile(segment);
+        if (!indexFile.isFile()) {
+            return 0;
+        }
+
+        RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+        RandomAccessFile data = new RandomAccessFile(getDataFile(segment), "rw");
+        try {
+            int numEntries = (int) (index.length() / INDEX_ENTRY_LENGTH);
+            long dataLength = 0;
+            while (numEntries > 0) {
+                // the last entry is complete if its whole record is in the data file
+                index.seek((long) (numEntries - 1) * INDEX_ENTRY_LENGTH);
+                long offset = index.readInt();
+                if (offset + RECORD_HEADER_LENGTH <= data.length()) {
+                    data.seek(offset + RECORD_HEADER_LENGTH - 4);
+                    long end = offset + RECORD_HEADER_LENGTH + data.readInt();
+                    if (end <= data.length()) {
+                        dataLength = end;
+                        break;
+                    }
+                }
+                numEntries--;
+            }
+            index.setLength((long) numEntries * INDEX_ENTRY_LENGTH);
+            data.setLength(dataLength);
+            return segment * ENTRIES_PER_SEGMENT + numEntries;
+        } finally {
+            index.close();
+            data.close();
+        }
+    }
+
+    private File getDataFile(int segment) {
+        return new File(mDirectory, String.format(Locale.US, "segment-%06d.dat", segment));
+    }
+
+    private File getIndexFile(int segment) {
+        return new File(mDirectory, String.format(Locale.US, "segment-%06d.idx", segment));
+    }
+
+    private synchronized void waitQuietly(long timeoutMs) {
+        try {
+            wait(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing more to do
+            }
+        }
+    }
+
+
+    /**
+     * One logged message
+     */
+    public static class Entry {
+        public final int direction;
+        public final long timestamp;
+        public final String text;
+
+        public Entry(int direction, long timestamp, String text) {
+            this.direction = direction;
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+    }
+}
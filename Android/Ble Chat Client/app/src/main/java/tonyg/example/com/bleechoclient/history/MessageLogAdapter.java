@@ -0,0 +1,153 @@
+package tonyg.example.com.bleechoclient.history;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import tonyg.example.com.exampleblescan.R;
+
+/**
+ * Shows a MessageLog in a ListView.
+ *
+ * Entries are read from the log only when their row is on screen, and a small
+ * cache keeps scrolling smooth, so memory use does not grow with the log.  A row
+ * that isn't cached is blank until its page of PAGE_SIZE entries has been read on a
+ * background thread, so the UI thread never waits for the disk.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class MessageLogAdapter extends BaseAdapter {
+    private static final String TAG = MessageLogAdapter.class.getSimpleName();
+    private static final int CACHE_SIZE = 128; // entries, a few screens' worth
+    private static final int PAGE_SIZE = 32;
+
+    private final MessageLog mMessageLog;
+    private final LayoutInflater mInflater;
+    private final LruCache<Integer, MessageLog.Entry> mCache = new LruCache<>(CACHE_SIZE);
+    private final String mSentFormat, mReceivedFormat;
+
+    /** Prefetch stuff **/
+    private final ExecutorService mReader = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Set<Integer> mPagesLoading = new HashSet<>(); // only touched on the UI thread
+
+    /**
+     * Create a new MessageLogAdapter
+     *
+     * @param context the Activity context
+     * @param messageLog the log to show
+     */
+    public MessageLogAdapter(Context context, MessageLog messageLog) {
+        mMessageLog = messageLog;
+        mInflater = LayoutInflater.from(context);
+        mSentFormat = context.getString(R.string.sent_message);
+        mReceivedFormat = context.getString(R.string.received_message);
+    }
+
+    @Override
+    public int getCount() {
+        return mMessageLog.size();
+    }
+
+    /**
+     * Get an entry if it has been read
+     *
+     * @param position the entry's index
+     * @return the entry, or <b>null</b> while its page is read
+     */
+    @Override
+    public MessageLog.Entry getItem(int position) {
+        MessageLog.Entry entry = mCache.get(position);
+        if (entry == null) {
+            loadPage(position / PAGE_SIZE);
+        }
+        return entry;
+    }
+
+    /**
+     * Stop reading pages.  Call when the list goes away
+     */
+    public void close() {
+        mReader.shutdownNow();
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    /**
+     * Read a page of entries on the background thread, then show them
+     *
+     * @param page the page
+     */
+    private void loadPage(final int page) {
+        if (mReader.isShutdown() || !mPagesLoading.add(page)) {
+            return;
+        }
+        final int first = page * PAGE_SIZE;
+        final int end = Math.min(first + PAGE_SIZE, mMessageLog.size());
+        mReader.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<MessageLog.Entry> entries = new ArrayList<>();
+                try {
+                    for (int index = first; index < end; index++) {
+                        entries.add(mMessageLog.read(index));
+                    }
+                } catch (IOException e) {
+                    Log.d(TAG, "Could not read message " + (first + entries.size()));
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPagesLoading.remove(page);
+                        boolean changed = false;
+                        for (int index = 0; index < entries.size(); index++) {
+                            // a page that failed part way is read again, so only redraw for news
+                            changed |= mCache.put(first + index, entries.get(index)) == null;
+                        }
+                        if (changed) {
+                            notifyDataSetChanged();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView textView = (TextView) convertView;
+        if (textView == null) {
+            textView = (TextView) mInflater.inflate(R.layout.list_item_message, parent, false);
+        }
+
+        MessageLog.Entry entry = getItem(position);
+        if (entry == null) {
+            textView.setText("");
+        } else if (entry.direction == MessageLog.DIRECTION_SENT) {
+            textView.setText(String.format(mSentFormat, entry.text));
+        } else {
+            textView.setText(String.format(mReceivedFormat, entry.text));
+        }
+        return textView;
+    }
+}
@@ -0,0 +1,317 @@
+package tonyg.example.com.bleechoclient.history;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An on-disk queue of outgoing messages, kept until the Peripheral has them.
+ *
+ * Messages are journaled when they are submitted, so they survive the link dropping
+ * and the app being killed.  Once connected, takeBatch() hands out the oldest ones
+ * and marks them in flight.  acknowledge() journals that they were written and
+ * removes them; release() puts them back, such as when the link drops mid-write.
+ *
+ * Every message gets an id, and the journal records its submission and its
+ * acknowledgement.  A message acknowledged before a crash is never sent again, a
+ * message in flight is never handed out twice, and a submission journaled twice is
+ * only queued once.
+ *
+ * The journal is a run of records: RECORD_NEXT_ID, RECORD_SUBMIT with the text, or
+ * RECORD_ACK.  It is rewritten with only the waiting messages when it is opened, and
+ * whenever the queue empties.  If that rewrite fails the old journal is kept, and it
+ * is tried again the next time the queue empties.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class Outbox {
+    private static final String TAG = Outbox.class.getSimpleName();
+
+    private static final int RECORD_NEXT_ID = 0;
+    private static final int RECORD_SUBMIT = 1;
+    private static final int RECORD_ACK = 2;
+    private static final Charset TEXT_ENCODING = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private RandomAccessFile mJournal;
+    private long mNextId = 0;
+    private boolean mClosed = false;
+
+    /** Waiting messages, oldest first, by id **/
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<>();
+
+    /**
+     * Open an outbox, creating it if necessary
+     *
+     * @param file the journal
+     * @throws IOException if the journal can not be read or written
+     */
+    public Outbox(File file) throws IOException {
+        mFile = file;
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        if (file.isFile()) {
+            recover();
+        }
+        compact();
+    }
+
+    /**
+     * Queue a message.  Returns once it is on disk
+     *
+     * @param text the message
+     * @return the message's id
+     * @throws IOException if the message could not be journaled
+     */
+    public synchronized long submit(String text) throws IOException {
+        if (mClosed) {
+            throw new IllegalStateException("Outbox is closed");
+        }
+        long id = mNextId;
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        writeSubmitRecord(new DataOutputStream(record), id, text);
+        appendToJournal(record);
+        mNextId++;
+        mEntries.put(id, new Entry(id, text));
+        return id;
+    }
+
+    /**
+     * Take the oldest messages that are not already in flight, and mark them in flight
+     *
+     * @param maxLength the most characters of text to take, though the first message is taken whatever its length
+     * @return the messages, oldest first.  Empty if there are none waiting
+     */
+    public synchronized List<Entry> takeBatch(int maxLength) {
+        List<Entry> batch = new ArrayList<>();
+        int length = 0;
+        for (Entry entry : mEntries.values()) {
+            if (entry.mInFlight) {
+                continue;
+            }
+            int entryLength = entry.text.length();
+            if (!batch.isEmpty() && length + entryLength > maxLength) {
+                break;
+            }
+            entry.mInFlight = true;
+            batch.add(entry);
+            length += entryLength;
+        }
+        return batch;
+    }
+
+    /**
+     * Record that messages reached the Peripheral, so they are never sent again
+     *
+     * @param batch messages from takeBatch()
+     * @throws IOException if the acknowledgement could not be journaled.  The messages stay in flight
+     */
+    public synchronized void acknowledge(List<Entry> batch) throws IOException {
+        if (mClosed) {
+            return;
+        }
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(records);
+        for (Entry entry : batch) {
+            if (mEntries.containsKey(entry.id)) {
+                output.writeByte(RECORD_ACK);
+                output.writeLong(entry.id);
+            }
+        }
+        if (records.size() == 0) {
+            return;
+        }
+        // one write and one sync for the whole batch
+        appendToJournal(records);
+        for (Entry entry : batch) {
+            mEntries.remove(entry.id);
+        }
+        if (mEntries.isEmpty()) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // the acknowledgements are journaled.  The old journal is only longer than it needs to be
+            }
+        }
+    }
+
+    /**
+     * Put messages back to be taken again, such as when a write fails
+     *
+     * @param batch messages from takeBatch()
+     */
+    public synchronized void release(List<Entry> batch) {
+        for (Entry entry : batch) {
+            entry.mInFlight = false;
+        }
+    }
+
+    /**
+     * Put every message in flight back, such as when the link drops
+     */
+    public synchronized void releaseAll() {
+        for (Entry entry : mEntries.values()) {
+            entry.mInFlight = false;
+        }
+    }
+
+    /**
+     * Get the number of messages waiting, in flight or not
+     *
+     * @return the number of messages
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Release the journal.  Waiting messages stay on disk for next time
+     */
+    public synchronized void close() {
+        mClosed = true;
+        closeJournal();
+    }
+
+    /**
+     * Replay the journal, dropping a record cut short by a crash
+     *
+     * @throws IOException if the journal can not be read
+     */
+    private void recover() throws IOException {
+        byte[] journal = new byte[(int) mFile.length()];
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            file.readFully(journal);
+        } finally {
+            file.close();
+        }
+
+        Set<Long> acknowledged = new HashSet<>();
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(journal));
+        try {
+            while (true) {
+                int type = input.readUnsignedByte();
+                long id = input.readLong();
+                if (type == RECORD_SUBMIT) {
+                    int textLength = input.readInt();
+                    if (textLength < 0 || textLength > input.available()) {
+                        break; // cut short
+                    }
+                    byte[] text = new byte[textLength];
+                    input.readFully(text);
+                    // a submission journaled twice is queued once
+                    if (!mEntries.containsKey(id) && !acknowledged.contains(id)) {
+                        mEntries.put(id, new Entry(id, new String(text, TEXT_ENCODING)));
+                    }
+                } else if (type == RECORD_ACK) {
+                    mEntries.remove(id);
+                    acknowledged.add(id);
+                } else if (type != RECORD_NEXT_ID) {
+                    break; // not a record; whatever follows can't be trusted
+                }
+                mNextId = Math.max(mNextId, id + (type == RECORD_NEXT_ID ? 0 : 1));
+            }
+        } catch (EOFException e) {
+            // the end of the journal, or a record cut short by a crash
+        }
+    }
+
+    /**
+     * Rewrite the journal with only the waiting messages, then switch to it
+     *
+     * @throws IOException if the journal can not be written.  The old one is still in use
+     */
+    private void compact() throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(records);
+        output.writeByte(RECORD_NEXT_ID);
+        output.writeLong(mNextId);
+        for (Entry entry : mEntries.values()) {
+            writeSubmitRecord(output, entry.id, entry.text);
+        }
+
+        // written aside and renamed over, so a crash leaves the old journal or the new one
+        File compacted = new File(mFile.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(compacted);
+        try {
+            records.writeTo(stream);
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!compacted.renameTo(mFile)) {
+            compacted.delete();
+            throw new IOException("Could not replace " + mFile);
+        }
+        // the old journal stays open until the new one is in its place
+        RandomAccessFile journal = new RandomAccessFile(mFile, "rw");
+        journal.seek(journal.length());
+        closeJournal();
+        mJournal = journal;
+    }
+
+    /**
+     * Append records to the journal and wait for them to reach the disk
+     */
+    private void appendToJournal(ByteArrayOutputStream records) throws IOException {
+        long length = mJournal.length();
+        try {
+            mJournal.write(records.toByteArray());
+            mJournal.getFD().sync();
+        } catch (IOException e) {
+            // don't leave half a record for the next one to follow
+            mJournal.setLength(length);
+            mJournal.seek(length);
+            throw e;
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException e) {
+                // nothing more to do
+            }
+            mJournal = null;
+        }
+    }
+
+    private static void writeSubmitRecord(DataOutputStream output, long id, String text) throws IOException {
+        byte[] bytes = text.getBytes(TEXT_ENCODING);
+        output.writeByte(RECORD_SUBMIT);
+        output.writeLong(id);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+
+    /**
+     * One waiting message
+     */
+    public static class Entry {
+        public final long id;
+        public final String text;
+        private boolean mInFlight = false;
+
+        public Entry(long id, String text) {
+            this.id = id;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package tonyg.example.com.bleechoclient.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import tonyg.example.com.bleechoclient.ble.transport.LinkParameterManager;
+
+/**
+ * Process-wide measurements of how the Bluetooth link is doing.
+ *
+ * Startup is traced as a series of points, each recorded the first time it is
+ * reached, so that the time from launch to a usable connection can be read back
+ * in one place.  Times are in milliseconds on the SystemClock.elapsedRealtime()
+ * clock, and are reported relative to TRACE_PROCESS_START.
+ *
+ * The throughput tuner's latest decisions for the link are kept here too, and so
+ * are the round trip to the Peripheral and its one-way parts, see ClockSync, and the
+ * connection priority with the throughput each priority gave, see LinkParameterManager.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleMetrics {
+    private static final String TAG = BleMetrics.class.getSimpleName();
+
+    /** Startup trace points, in the order they are expected **/
+    public static final String TRACE_PROCESS_START = "process_start";
+    public static final String TRACE_FIRST_FRAME = "first_frame";
+    public static final String TRACE_SCAN_START = "scan_start";
+    public static final String TRACE_FIRST_SCAN_RESULT = "first_scan_result";
+    public static final String TRACE_CONNECTED = "connected";
+    public static final String TRACE_SERVICES_DISCOVERED = "services_discovered";
+
+    private static final BleMetrics sInstance = new BleMetrics();
+
+    private final LinkedHashMap<String, Long> mStartupTrace = new LinkedHashMap<>();
+
+    /** Throughput tuning **/
+    private int mChunkSize;
+    private int mWindow;
+    private long mPacingDelay;
+    private double mWriteLatency;
+    private long mNumWritesFailed;
+
+    /** Latency, in milliseconds **/
+    private double mRoundTrip;
+    private double mUplink;
+    private double mProcessing;
+    private double mDownlink;
+
+    /** Link parameters **/
+    private int mConnectionPriority = LinkParameterManager.PRIORITY_BALANCED;
+    private boolean mFastPhy = false;
+    private final double[] mPriorityThroughput = new double[LinkParameterManager.NUM_PRIORITIES];
+
+    /**
+     * Get the metrics for this process
+     *
+     * @return the BleMetrics
+     */
+    public static BleMetrics getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Record that startup reached a point.  Only the first time counts
+     *
+     * @param tracePoint one of the TRACE_ constants
+     * @param elapsedRealtime when it was reached
+     * @return <b>true</b> if this is the first time
+     */
+    public synchronized boolean trace(String tracePoint, long elapsedRealtime) {
+        if (mStartupTrace.containsKey(tracePoint)) {
+            return false;
+        }
+        mStartupTrace.put(tracePoint, elapsedRealtime);
+        return true;
+    }
+
+    /**
+     * Determine if startup has reached a point
+     *
+     * @param tracePoint one of the TRACE_ constants
+     * @return <b>true</b> if it has been traced
+     */
+    public synchronized boolean hasTraced(String tracePoint) {
+        return mStartupTrace.containsKey(tracePoint);
+    }
+
+    /**
+     * Get how long after process start each point was reached, in the order they were reached
+     *
+     * @return milliseconds since process start, by trace point.  Empty until the process start is traced
+     */
+    public synchronized Map<String, Long> getStartupTrace() {
+        LinkedHashMap<String, Long> startupTrace = new LinkedHashMap<>();
+        Long processStart = mStartupTrace.get(TRACE_PROCESS_START);
+        if (processStart == null) {
+            return startupTrace;
+        }
+        for (Map.Entry<String, Long> entry : mStartupTrace.entrySet()) {
+            startupTrace.put(entry.getKey(), entry.getValue() - processStart);
+        }
+        return startupTrace;
+    }
+
+    /**
+     * Get how long it took from launch until messages could be exchanged
+     *
+     * @return milliseconds from process start to services discovered, or -1 if not there yet
+     */
+    public synchronized long getTimeToReady() {
+        Long time = getStartupTrace().get(TRACE_SERVICES_DISCOVERED);
+        return time != null ? time : -1;
+    }
+
+    /**
+     * Describe the startup trace on one line, for the log
+     *
+     * @return each trace point and its time since process start
+     */
+    public synchronized String describeStartupTrace() {
+        StringBuilder description = new StringBuilder();
+        for (Map.Entry<String, Long> entry : getStartupTrace().entrySet()) {
+            if (description.length() > 0) {
+                description.append(", ");
+            }
+            description.append(entry.getKey()).append('=').append(entry.getValue()).append("ms");
+        }
+        return description.toString();
+    }
+
+    /**
+     * Record what the throughput tuner decided after a write
+     *
+     * @param chunkSize the packet length, in bytes
+     * @param window how many writes may be in flight
+     * @param pacingDelay the delay between writes, in milliseconds
+     * @param writeLatency the smoothed write latency, in milliseconds
+     * @param numWritesFailed how many writes have failed on this link
+     */
+    public synchronized void recordTuning(int chunkSize, int window, long pacingDelay, double writeLatency, long numWritesFailed) {
+        mChunkSize = chunkSize;
+        mWindow = window;
+        mPacingDelay = pacingDelay;
+        mWriteLatency = writeLatency;
+        mNumWritesFailed = numWritesFailed;
+    }
+
+    /**
+     * Get the packet length the tuner chose
+     *
+     * @return the chunk size in bytes, or 0 before the first write
+     */
+    public synchronized int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Get how many writes the tuner lets be in flight
+     *
+     * @return the window, or 0 before the first write
+     */
+    public synchronized int getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Get the delay the tuner leaves between writes
+     *
+     * @return the pacing delay, in milliseconds
+     */
+    public synchronized long getPacingDelay() {
+        return mPacingDelay;
+    }
+
+    /**
+     * Get the typical time a write takes to complete
+     *
+     * @return the smoothed write latency, in milliseconds
+     */
+    public synchronized double getWriteLatency() {
+        return mWriteLatency;
+    }
+
+    /**
+     * Get how many writes have failed on the link
+     *
+     * @return the number of failed writes
+     */
+    public synchronized long getNumWritesFailed() {
+        return mNumWritesFailed;
+    }
+
+    /**
+     * Record the latest split of the round trip to the Peripheral
+     *
+     * @param clockSync where the latencies are estimated
+     */
+    public synchronized void recordLatency(ClockSync clockSync) {
+        recordLatency(clockSync.getRoundTrip(), clockSync.getUplink(), clockSync.getProcessing(), clockSync.getDownlink());
+    }
+
+    private void recordLatency(double roundTrip, double uplink, double processing, double downlink) {
+        mRoundTrip = roundTrip;
+        mUplink = uplink;
+        mProcessing = processing;
+        mDownlink = downlink;
+    }
+
+    /**
+     * Get the time from sending to the Peripheral until its answer arrives
+     *
+     * @return the smoothed round trip, in milliseconds, or 0 before the first time exchange
+     */
+    public synchronized double getRoundTrip() {
+        return mRoundTrip;
+    }
+
+    /**
+     * Get the time from sending until the Peripheral receives
+     *
+     * @return the smoothed uplink latency, in milliseconds
+     */
+    public synchronized double getUplink() {
+        return mUplink;
+    }
+
+    /**
+     * Get the time the Peripheral takes to answer once it has received
+     *
+     * @return the smoothed processing time, in milliseconds
+     */
+    public synchronized double getProcessing() {
+        return mProcessing;
+    }
+
+    /**
+     * Get the time from the Peripheral answering until the answer arrives
+     *
+     * @return the smoothed downlink latency, in milliseconds
+     */
+    public synchronized double getDownlink() {
+        return mDownlink;
+    }
+
+    /**
+     * Record the connection priority and PHY the link was just given, and the
+     * throughput measured at each priority so far
+     *
+     * @param manager what decided them
+     */
+    public synchronized void recordLinkParameters(LinkParameterManager manager) {
+        mConnectionPriority = manager.getPriority();
+        mFastPhy = manager.isFastPhy();
+        for (int priority = 0; priority < LinkParameterManager.NUM_PRIORITIES; priority++) {
+            mPriorityThroughput[priority] = manager.getThroughput(priority);
+        }
+    }
+
+    /**
+     * Get the connection priority the link was last given
+     *
+     * @return one of the LinkParameterManager.PRIORITY_ constants
+     */
+    public synchronized int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    /**
+     * Determine if the link was last put on the 2M PHY
+     *
+     * @return <b>true</b> for 2M, <b>false</b> for 1M
+     */
+    public synchronized boolean isFastPhy() {
+        return mFastPhy;
+    }
+
+    /**
+     * Get the throughput the link had while busy at a connection priority
+     *
+     * @param priority one of the LinkParameterManager.PRIORITY_ constants
+     * @return bytes per second, or 0 if not measured yet
+     */
+    public synchronized double getThroughput(int priority) {
+        return mPriorityThroughput[priority];
+    }
+
+    /**
+     * Forget everything recorded.  For tests
+     */
+    public synchronized void reset() {
+        mStartupTrace.clear();
+        recordTuning(0, 0, 0, 0, 0);
+        recordLatency(0, 0, 0, 0);
+        mConnectionPriority = LinkParameterManager.PRIORITY_BALANCED;
+        mFastPhy = false;
+        for (int priority = 0; priority < LinkParameterManager.NUM_PRIORITIES; priority++) {
+            mPriorityThroughput[priority] = 0;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package tonyg.example.com.bleechoclient.metrics;
+
+import java.util.Arrays;
+
+import tonyg.example.com.bleechoclient.ble.transport.LinkFrame;
+
+/**
+ * Estimates the offset and drift between this device's clock and the Peripheral's
+ * from NTP-style time exchanges, and uses them to split each round trip into its
+ * uplink, processing and downlink parts.
+ *
+ * Each exchange gives four times: t1 when the request was sent, t2 when the Peripheral
+ * received it, t3 when it sent the reply and t4 when the reply arrived.  An exchange
+ * that went both ways without waiting anywhere pins the offset best, so as NTP's clock
+ * filter does, the offset is fitted to the quickest exchanges out of the last WINDOW,
+ * with a straight line through them for the drift.  Like NTP this assumes the quickest
+ * trips take as long each way; every other exchange is then split against that line,
+ * which shows which direction its extra time was spent in.
+ *
+ * Times are in microseconds on a monotonic clock of this device.  The Peripheral's
+ * clock is 32 bits and may wrap.  Reported latencies are smoothed, in milliseconds.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class ClockSync {
+    private static final String TAG = ClockSync.class.getSimpleName();
+
+    public static final int WINDOW = 64; // exchanges the offset is fitted to
+    private static final int FITTED_FRACTION = 4; // fit the quickest quarter of them
+    private static final int NUM_SEQUENCES = 256;
+    private static final double SMOOTHING = 0.125;
+
+    /** Outstanding requests, by sequence number **/
+    private final long[] mSentTimes = new long[NUM_SEQUENCES];
+    private final boolean[] mOutstanding = new boolean[NUM_SEQUENCES];
+    private int mNextSequence = 0;
+
+    /** The last WINDOW exchanges, oldest overwritten first **/
+    private final long[] mExchangeTimes = new long[WINDOW]; // t1
+    private final double[] mExchangeOffsets = new double[WINDOW];
+    private final long[] mExchangeDelays = new long[WINDOW];
+    private int mNumExchanges = 0;
+    private long mLastPeripheralTime;
+
+    /** The fitted line: the Peripheral's clock minus this one, mOffset at mReferenceTime **/
+    private double mOffset = 0;
+    private double mDrift = 0;
+    private long mReferenceTime = 0;
+
+    /** Smoothed latencies, in milliseconds **/
+    private double mRoundTrip = 0;
+    private double mUplink = 0;
+    private double mProcessing = 0;
+    private double mDownlink = 0;
+
+    /**
+     * Note that a request is being sent
+     *
+     * @param now this device's clock, in microseconds
+     * @return the sequence number to send in the request
+     */
+    public synchronized int onRequestSent(long now) {
+        int sequence = mNextSequence;
+        mNextSequence = (mNextSequence + 1) % NUM_SEQUENCES;
+        mSentTimes[sequence] = now;
+        mOutstanding[sequence] = true;
+        return sequence;
+    }
+
+    /**
+     * Take a TYPE_TIME_REPLY frame
+     *
+     * @param frame the received lane data
+     * @param offset where the frame starts
+     * @param length how long it is
+     * @param now this device's clock when it arrived, in microseconds
+     * @return <b>true</b> if it answered an outstanding request
+     */
+    public synchronized boolean onReplyReceived(byte[] frame, int offset, int length, long now) {
+        if (length < LinkFrame.TIME_REPLY_LENGTH || LinkFrame.getType(frame, offset, length) != LinkFrame.TYPE_TIME_REPLY) {
+            return false;
+        }
+        int sequence = frame[offset + 1] & 0xFF;
+        if (!mOutstanding[sequence]) {
+            return false;
+        }
+        mOutstanding[sequence] = false;
+
+        long t1 = mSentTimes[sequence];
+        long t2 = unwrapPeripheralTime(readMicros(frame, offset + 2));
+        long t3 = t2 + (int) (readMicros(frame, offset + 6) - t2);
+        long t4 = now;
+        addExchange(t1, ((t2 - t1) + (t3 - t4)) / 2.0, (t4 - t1) - (t3 - t2));
+
+        double peripheralOffset = getOffsetAt(t1);
+        double roundTrip = t4 - t1;
+        double uplink = t2 - peripheralOffset - t1;
+        double processing = t3 - t2;
+        double downlink = t4 - (t3 - peripheralOffset);
+        boolean first = mNumExchanges == 1;
+        mRoundTrip = smooth(mRoundTrip, roundTrip / 1000, first);
+        mUplink = smooth(mUplink, uplink / 1000, first);
+        mProcessing = smooth(mProcessing, processing / 1000, first);
+        mDownlink = smooth(mDownlink, downlink / 1000, first);
+        return true;
+    }
+
+    /**
+     * Forget every exchange, such as after reconnecting to a Peripheral that may have restarted
+     */
+    public synchronized void reset() {
+        for (int sequence = 0; sequence < NUM_SEQUENCES; sequence++) {
+            mOutstanding[sequence] = false;
+        }
+        mNumExchanges = 0;
+        mOffset = 0;
+        mDrift = 0;
+        mReferenceTime = 0;
+        mRoundTrip = 0;
+        mUplink = 0;
+        mProcessing = 0;
+        mDownlink = 0;
+    }
+
+    /**
+     * Count the exchanges so far
+     *
+     * @return the number of replies taken since the last reset
+     */
+    public synchronized int getNumExchanges() {
+        return mNumExchanges;
+    }
+
+    /**
+     * Get the Peripheral's clock minus this one
+     *
+     * @param time this device's clock, in microseconds
+     * @return the estimated offset then, in microseconds
+     */
+    public synchronized double getOffsetAt(long time) {
+        return mOffset + mDrift * (time - mReferenceTime);
+    }
+
+    /**
+     * Get how much faster the Peripheral's clock runs than this one
+     *
+     * @return the drift, in parts per million
+     */
+    public synchronized double getDrift() {
+        return mDrift * 1e6;
+    }
+
+    /**
+     * Get the time from sending a request to its reply arriving
+     *
+     * @return the smoothed round trip, in milliseconds
+     */
+    public synchronized double getRoundTrip() {
+        return mRoundTrip;
+    }
+
+    /**
+     * Get the time from a request being sent to the Peripheral receiving it, including
+     * any wait in this device's queues and Bluetooth stack
+     *
+     * @return the smoothed uplink latency, in milliseconds
+     */
+    public synchronized double getUplink() {
+        return mUplink;
+    }
+
+    /**
+     * Get the time the Peripheral holds a request before replying
+     *
+     * @return the smoothed processing time, in milliseconds
+     */
+    public synchronized double getProcessing() {
+        return mProcessing;
+    }
+
+    /**
+     * Get the time from the Peripheral sending a reply to it arriving here, including
+     * any wait in this device's Bluetooth stack
+     *
+     * @return the smoothed downlink latency, in milliseconds
+     */
+    public synchronized double getDownlink() {
+        return mDownlink;
+    }
+
+    /**
+     * Describe the latencies on one line, for the log
+     *
+     * @return each part of the round trip
+     */
+    public synchronized String describe() {
+        return String.format("round trip %.1fms = uplink %.1fms + processing %.1fms + downlink %.1fms, drift %.0fppm",
+                mRoundTrip, mUplink, mProcessing, mDownlink, getDrift());
+    }
+
+    /**
+     * Add an exchange and fit the offset and drift to the quickest exchanges in the window
+     */
+    private void addExchange(long time, double offset, long delay) {
+        int index = mNumExchanges % WINDOW;
+        mExchangeTimes[index] = time;
+        mExchangeOffsets[index] = offset;
+        mExchangeDelays[index] = delay;
+        mNumExchanges++;
+
+        int numExchanges = Math.min(mNumExchanges, WINDOW);
+        int numFitted = Math.max(1, numExchanges / FITTED_FRACTION);
+        long maxDelay = getDelayRank(numExchanges, numFitted);
+
+        // least squares through the fitted exchanges, about their mean time
+        double sumTimes = 0;
+        double sumOffsets = 0;
+        int count = 0;
+        for (int exchange = 0; exchange < numExchanges; exchange++) {
+            if (mExchangeDelays[exchange] <= maxDelay) {
+                sumTimes += mExchangeTimes[exchange] - time;
+                sumOffsets += mExchangeOffsets[exchange];
+                count++;
+            }
+        }
+        double meanTime = sumTimes / count;
+        double meanOffset = sumOffsets / count;
+        double covariance = 0;
+        double variance = 0;
+        for (int exchange = 0; exchange < numExchanges; exchange++) {
+            if (mExchangeDelays[exchange] <= maxDelay) {
+                double dt = mExchangeTimes[exchange] - time - meanTime;
+                covariance += dt * (mExchangeOffsets[exchange] - meanOffset);
+                variance += dt * dt;
+            }
+        }
+        mReferenceTime = time + (long) meanTime;
+        mOffset = meanOffset;
+        mDrift = variance > 0 ? covariance / variance : 0;
+    }
+
+    /**
+     * Find the delay of the rank'th quickest exchange
+     */
+    private long getDelayRank(int numExchanges, int rank) {
+        long[] delays = new long[numExchanges];
+        System.arraycopy(mExchangeDelays, 0, delays, 0, numExchanges);
+        Arrays.sort(delays);
+        return delays[rank - 1];
+    }
+
+    /**
+     * Extend a 32 bit Peripheral time past the last one seen, so a wrap doesn't jump back
+     */
+    private long unwrapPeripheralTime(long peripheralTime) {
+        if (mNumExchanges == 0) {
+            mLastPeripheralTime = peripheralTime;
+        } else {
+            mLastPeripheralTime += (int) (peripheralTime - mLastPeripheralTime);
+        }
+        return mLastPeripheralTime;
+    }
+
+    private static long readMicros(byte[] frame, int offset) {
+        return (frame[offset] & 0xFFL) << 24 | (frame[offset + 1] & 0xFFL) << 16
+                | (frame[offset + 2] & 0xFFL) << 8 | (frame[offset + 3] & 0xFFL);
+    }
+
+    private static double smooth(double smoothed, double value, boolean first) {
+        return first ? value : smoothed + SMOOTHING * (value - smoothed);
+    }
+}
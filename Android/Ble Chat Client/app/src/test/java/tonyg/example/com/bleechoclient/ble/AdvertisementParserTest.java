@@ -0,0 +1,73 @@
+package tonyg.example.com.bleechoclient.ble;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class AdvertisementParserTest {
+    private static final UUID ECHO_SERVICE = UUID.fromString("0000180c-0000-1000-8000-00805f9b34fb");
+    private static final UUID CUSTOM_SERVICE = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+
+    @Test
+    public void readsFieldsInPlace() throws Exception {
+        byte[] record = {
+                0x02, 0x01, 0x06, // flags
+                0x03, 0x03, 0x0C, 0x18, // complete 16 bit UUIDs: 0x180C
+                0x0B, 0x09, 'E', 'c', 'h', 'o', 'S', 'e', 'r', 'v', 'e', 'r', // complete local name
+                0x02, 0x0A, (byte) 0xF4, // tx power -12 dBm
+                0x05, (byte) 0xFF, 0x59, 0x00, 0x01, 0x02, // manufacturer 0x0059, data 01 02
+                0x00, 0x00, 0x00 // padding
+        };
+
+        AdvertisementParser parser = new AdvertisementParser();
+        assertTrue(parser.parse(record));
+        assertTrue(parser.hasLocalName());
+        assertTrue(parser.localNameEquals("EchoServer".getBytes("UTF-8")));
+        assertFalse(parser.localNameEquals("EchoServe".getBytes("UTF-8")));
+        assertEquals(9, parser.getLocalNameOffset());
+        assertEquals(10, parser.getLocalNameLength());
+        assertEquals(-12, parser.getTxPowerLevel());
+        assertEquals(0x0059, parser.getManufacturerId());
+        assertEquals(2, parser.getManufacturerDataLength());
+        assertEquals(0x01, record[parser.getManufacturerDataOffset()]);
+        assertTrue(parser.hasServiceUuid(ECHO_SERVICE));
+        assertFalse(parser.hasServiceUuid(CUSTOM_SERVICE));
+    }
+
+    @Test
+    public void matchesLongAndShortUuidLists() {
+        byte[] record = {
+                0x11, 0x07, // complete 128 bit UUIDs, least significant byte first
+                (byte) 0x9e, (byte) 0xca, (byte) 0xdc, 0x24, 0x0e, (byte) 0xe5, (byte) 0xa9, (byte) 0xe0,
+                (byte) 0x93, (byte) 0xf3, (byte) 0xa3, (byte) 0xb5, 0x01, 0x00, 0x40, 0x6e,
+                0x05, 0x02, 0x0F, 0x18, 0x0C, 0x18, // incomplete 16 bit UUIDs: 0x180F, 0x180C
+        };
+
+        AdvertisementParser parser = new AdvertisementParser();
+        assertTrue(parser.parse(record));
+        assertTrue(parser.hasServiceUuid(CUSTOM_SERVICE));
+        assertTrue(parser.hasServiceUuid(ECHO_SERVICE));
+        assertFalse(parser.hasLocalName());
+        assertEquals(AdvertisementParser.NOT_PRESENT, parser.getTxPowerLevel());
+        assertEquals(AdvertisementParser.NOT_PRESENT, parser.getManufacturerId());
+    }
+
+    @Test
+    public void truncatedRecordKeepsEarlierFields() throws Exception {
+        byte[] record = {
+                0x05, 0x08, 'E', 'c', 'h', 'o', // shortened local name
+                0x09, (byte) 0xFF, 0x59 // claims more bytes than there are
+        };
+
+        AdvertisementParser parser = new AdvertisementParser();
+        assertFalse(parser.parse(record));
+        assertTrue(parser.localNameEquals("Echo".getBytes("UTF-8")));
+        assertEquals(AdvertisementParser.NOT_PRESENT, parser.getManufacturerId());
+
+        // the parser forgets the previous record
+        assertFalse(parser.parse(null));
+        assertFalse(parser.hasLocalName());
+    }
+}
@@ -0,0 +1,262 @@
+package tonyg.example.com.bleechoclient.ble.codec;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+public class MessageCipherTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] KEY = "0123456789abcdef".getBytes(UTF8);
+    private static final int PAYLOAD_LENGTH = 18; // a 20 byte packet less its lane header
+    private static final String MESSAGE = "temperature sensor reading value: 21.5\n";
+
+    @Test
+    public void sealedMessagesOpenInAnyPieces() throws Exception {
+        MessageCipher cipher = new MessageCipher(KEY);
+        for (int pieceLength = 1; pieceLength <= 40; pieceLength++) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            for (int index = 0; index < 5; index++) {
+                byte[] plain = (index + ": " + MESSAGE).getBytes(UTF8);
+                byte[] sealed = cipher.seal(plain);
+                assertFalse(new String(sealed, UTF8).contains("temperature"));
+                stream.write(sealed, 0, sealed.length);
+                expected.write(plain, 0, plain.length);
+            }
+            assertArrayEquals("piece length " + pieceLength, expected.toByteArray(),
+                    openInPieces(cipher, stream.toByteArray(), pieceLength));
+        }
+        assertEquals(0, cipher.getNumBlocksRejected());
+    }
+
+    @Test
+    public void sameMessageSealsDifferentlyEachTime() throws Exception {
+        MessageCipher cipher = new MessageCipher(KEY);
+        byte[] plain = MESSAGE.getBytes(UTF8);
+        assertFalse(Arrays.equals(cipher.seal(plain), cipher.seal(plain)));
+
+        // and in another epoch, even with the counter back at 0
+        byte[] first = cipher.seal(plain);
+        cipher.reset();
+        assertFalse(Arrays.equals(first, cipher.seal(plain)));
+    }
+
+    @Test
+    public void tamperedReplayedAndPlainBytesAreRejected() throws Exception {
+        MessageCipher cipher = new MessageCipher(KEY);
+        cipher.setPlaintextAllowed(false);
+        byte[] sealed = cipher.seal(MESSAGE.getBytes(UTF8));
+
+        byte[] tampered = sealed.clone();
+        tampered[MessageCipher.BLOCK_HEADER_LENGTH + 3] ^= 1;
+        assertEquals(0, cipher.open(tampered, 0, tampered.length));
+        assertEquals(1, cipher.getNumBlocksRejected());
+
+        assertEquals(MESSAGE.length(), cipher.open(sealed, 0, sealed.length));
+        assertEquals(0, cipher.open(sealed, 0, sealed.length));
+        assertEquals(2, cipher.getNumBlocksRejected());
+
+        byte[] plain = "injected\n".getBytes(UTF8);
+        assertEquals(0, cipher.open(plain, 0, plain.length));
+    }
+
+    @Test
+    public void blocksFromOtherSendersOpen() throws Exception {
+        // two devices relayed through one hub, each with its own epoch and counters from 0
+        MessageCipher first = new MessageCipher(KEY);
+        MessageCipher second = new MessageCipher(KEY);
+        MessageCipher receiver = new MessageCipher(KEY);
+        receiver.setPlaintextAllowed(false);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int index = 0; index < 3; index++) {
+            for (MessageCipher sender : new MessageCipher[]{first, second}) {
+                byte[] plain = (index + ": " + MESSAGE).getBytes(UTF8);
+                byte[] sealed = sender.seal(plain);
+                stream.write(sealed, 0, sealed.length);
+                expected.write(plain, 0, plain.length);
+            }
+        }
+        byte[] firstBlock = second.seal(MESSAGE.getBytes(UTF8));
+        assertArrayEquals(expected.toByteArray(), openInPieces(receiver, stream.toByteArray(), PAYLOAD_LENGTH));
+        assertEquals(MESSAGE.length(), receiver.open(firstBlock, 0, firstBlock.length));
+        assertEquals(0, receiver.getNumBlocksRejected());
+
+        // each epoch is replay checked on its own, and the epoch itself is authenticated
+        assertEquals(0, receiver.open(firstBlock, 0, firstBlock.length));
+        byte[] moved = first.seal(MESSAGE.getBytes(UTF8));
+        moved[1] ^= 1;
+        assertEquals(0, receiver.open(moved, 0, moved.length));
+        assertEquals(2, receiver.getNumBlocksRejected());
+
+        // the sender's own echoes still open
+        byte[] echo = first.seal(MESSAGE.getBytes(UTF8));
+        assertEquals(MESSAGE.length(), first.open(echo, 0, echo.length));
+    }
+
+    @Test
+    public void oldEpochsStayRejectedAfterManyReconnects() throws Exception {
+        MessageCipher sender = new MessageCipher(KEY);
+        MessageCipher receiver = new MessageCipher(KEY);
+        byte[] captured = sender.seal(MESSAGE.getBytes(UTF8));
+        assertEquals(MESSAGE.length(), receiver.open(captured, 0, captured.length));
+
+        for (int connection = 0; connection < 4 * MessageCipher.MAX_SENDERS; connection++) {
+            sender.reset();
+            byte[] sealed = sender.seal(MESSAGE.getBytes(UTF8));
+            assertEquals(MESSAGE.length(), receiver.open(sealed, 0, sealed.length));
+        }
+        assertEquals(0, receiver.open(captured, 0, captured.length));
+        assertEquals(1, receiver.getNumBlocksRejected());
+
+        // after a restart, the saved epoch carries on rather than starting over
+        MessageCipher restarted = new MessageCipher(KEY, sender.getEpoch());
+        assertTrue(restarted.getEpoch() > sender.getEpoch());
+        byte[] sealed = restarted.seal(MESSAGE.getBytes(UTF8));
+        assertEquals(MESSAGE.length(), receiver.open(sealed, 0, sealed.length));
+        assertEquals(0, receiver.open(captured, 0, captured.length));
+    }
+
+    @Test
+    public void sendersPastTheLimitAreRejectedNotSwappedIn() throws Exception {
+        MessageCipher receiver = new MessageCipher(KEY);
+        byte[] firstBlock = null;
+        for (int index = 0; index < MessageCipher.MAX_SENDERS; index++) {
+            byte[] sealed = new MessageCipher(KEY).seal(MESSAGE.getBytes(UTF8));
+            assertEquals(MESSAGE.length(), receiver.open(sealed, 0, sealed.length));
+            if (firstBlock == null) {
+                firstBlock = sealed;
+            }
+        }
+        byte[] extra = new MessageCipher(KEY).seal(MESSAGE.getBytes(UTF8));
+        assertEquals(0, receiver.open(extra, 0, extra.length));
+        // the first sender is still remembered
+        assertEquals(0, receiver.open(firstBlock, 0, firstBlock.length));
+        assertEquals(2, receiver.getNumBlocksRejected());
+    }
+
+    @Test(expected = java.security.InvalidKeyException.class)
+    public void shortKeyIsRefused() throws Exception {
+        new MessageCipher(new byte[5]);
+    }
+
+    /**
+     * Compares the send and receive path for chat messages cut into 18 byte payloads:
+     * plain, sealed with the reused Ciphers, and sealed with new Ciphers per message.
+     * A nonce and tag per packet would not fit in a 20 byte packet at all
+     */
+    @Test
+    public void benchmarkAgainstThePlaintextPath() throws Exception {
+        int numMessages = 20000;
+        byte[][] messages = new byte[numMessages][];
+        long numPlainBytes = 0;
+        for (int index = 0; index < numMessages; index++) {
+            messages[index] = (index + " " + MESSAGE).getBytes(UTF8);
+            numPlainBytes += messages[index].length;
+        }
+
+        // warm up, so the JIT has compiled all three paths before they are timed
+        for (int round = 0; round < 2; round++) {
+            runPlain(messages);
+            runSealed(messages);
+            runSealedWithNewCiphers(messages);
+        }
+
+        long start = System.nanoTime();
+        long plainPackets = runPlain(messages);
+        long plainNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long sealedPackets = runSealed(messages);
+        long sealedNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        runSealedWithNewCiphers(messages);
+        long newCiphersNs = System.nanoTime() - start;
+
+        System.out.println(String.format("plain:             %6d packets, %8.0f messages/s, %6.1f MB/s",
+                plainPackets, numMessages * 1e9 / plainNs, numPlainBytes * 1e3 / plainNs));
+        System.out.println(String.format("sealed:            %6d packets, %8.0f messages/s, %6.1f MB/s",
+                sealedPackets, numMessages * 1e9 / sealedNs, numPlainBytes * 1e3 / sealedNs));
+        System.out.println(String.format("new Ciphers:       %6d packets, %8.0f messages/s, %6.1f MB/s",
+                sealedPackets, numMessages * 1e9 / newCiphersNs, numPlainBytes * 1e3 / newCiphersNs));
+        System.out.println(String.format("overhead: %d bytes, %.2f packets per message",
+                MessageCipher.BLOCK_HEADER_LENGTH + MessageCipher.TAG_LENGTH,
+                (double) (sealedPackets - plainPackets) / numMessages));
+    }
+
+    private static long runPlain(byte[][] messages) {
+        long numPackets = 0;
+        byte[] packet = new byte[PAYLOAD_LENGTH];
+        Utf8Decoder decoder = new Utf8Decoder();
+        for (byte[] message : messages) {
+            for (int offset = 0; offset < message.length; offset += PAYLOAD_LENGTH) {
+                int length = Math.min(PAYLOAD_LENGTH, message.length - offset);
+                System.arraycopy(message, offset, packet, 0, length);
+                decoder.decode(packet, 0, length);
+                numPackets++;
+            }
+        }
+        return numPackets;
+    }
+
+    private static long runSealed(byte[][] messages) throws Exception {
+        long numPackets = 0;
+        long numOpenedBytes = 0;
+        long numPlainBytes = 0;
+        byte[] packet = new byte[PAYLOAD_LENGTH];
+        MessageCipher cipher = new MessageCipher(KEY);
+        Utf8Decoder decoder = new Utf8Decoder();
+        for (byte[] message : messages) {
+            byte[] sealed = cipher.seal(message);
+            numPlainBytes += message.length;
+            for (int offset = 0; offset < sealed.length; offset += PAYLOAD_LENGTH) {
+                int length = Math.min(PAYLOAD_LENGTH, sealed.length - offset);
+                System.arraycopy(sealed, offset, packet, 0, length);
+                int numBytes = cipher.open(packet, 0, length);
+                decoder.decode(cipher.getOutput(), 0, numBytes);
+                numOpenedBytes += numBytes;
+                numPackets++;
+            }
+        }
+        assertEquals(0, cipher.getNumBlocksRejected());
+        assertEquals(numPlainBytes, numOpenedBytes);
+        return numPackets;
+    }
+
+    /**
+     * The same blocks, but with Ciphers, keys and buffers made for every message
+     */
+    private static void runSealedWithNewCiphers(byte[][] messages) throws Exception {
+        byte[] nonce = new byte[12];
+        long counter = 0;
+        for (byte[] message : messages) {
+            nonce[11] = (byte) counter;
+            nonce[10] = (byte) (counter >> 8);
+            nonce[9] = (byte) (counter++ >> 16);
+            Cipher sealer = Cipher.getInstance("AES/GCM/NoPadding");
+            sealer.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "AES"), new GCMParameterSpec(128, nonce.clone()));
+            byte[] sealed = sealer.doFinal(message);
+            Cipher opener = Cipher.getInstance("AES/GCM/NoPadding");
+            opener.init(Cipher.DECRYPT_MODE, new SecretKeySpec(KEY, "AES"), new GCMParameterSpec(128, nonce.clone()));
+            assertEquals(message.length, opener.doFinal(sealed).length);
+        }
+    }
+
+    private static byte[] openInPieces(MessageCipher cipher, byte[] bytes, int pieceLength) {
+        ByteArrayOutputStream opened = new ByteArrayOutputStream();
+        for (int offset = 0; offset < bytes.length; offset += pieceLength) {
+            int numBytes = cipher.open(bytes, offset, Math.min(pieceLength, bytes.length - offset));
+            opened.write(cipher.getOutput(), 0, numBytes);
+        }
+        return opened.toByteArray();
+    }
+}
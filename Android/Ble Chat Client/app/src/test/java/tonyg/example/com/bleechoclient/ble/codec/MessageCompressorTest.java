@@ -0,0 +1,109 @@
+package tonyg.example.com.bleechoclient.ble.codec;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MessageCompressorTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int PAYLOAD_LENGTH = 18; // a 20 byte packet less its lane header
+    private static final String[] CHAT = {
+            "hey, are you connected to the echo server now?\n",
+            "yes, connected. signal strength is good, battery level 87%\n",
+            "ok can you send me the file when you get a chance, thanks\n",
+            "sounds good, let me check that the sensor reading is right first\n",
+            "temperature sensor reading value: 21.5, 21.6, 21.6, 21.7, 21.7\n",
+            "status: connected, retry 0, timeout 0, error none\n",
+    };
+
+    @Test
+    public void chatMessagesShrinkAndComeBackIntact() {
+        MessageCompressor compressor = new MessageCompressor();
+        int plainPackets = 0;
+        int compressedPackets = 0;
+        for (String message : CHAT) {
+            byte[] plain = message.getBytes(UTF8);
+            byte[] sent = compressor.compress(plain);
+            assertTrue(message, sent.length < plain.length);
+            assertArrayEquals(plain, decodeInPieces(sent, 1));
+            plainPackets += packets(plain.length);
+            compressedPackets += packets(sent.length);
+        }
+        System.out.println("chat: " + plainPackets + " packets plain, " + compressedPackets + " compressed");
+        assertTrue(compressedPackets < plainPackets);
+    }
+
+    @Test
+    public void shortAndIncompressibleMessagesAreSentAsTheyAre() {
+        MessageCompressor compressor = new MessageCompressor();
+        byte[] hi = "hi\n".getBytes(UTF8);
+        assertSame(hi, compressor.compress(hi));
+
+        byte[] noise = new byte[200];
+        new Random(7).nextBytes(noise);
+        assertSame(noise, compressor.compress(noise));
+
+        // non-ASCII text without repeats doesn't pay for the block header either
+        byte[] text = "\u65e5\u672c\u8a9e\u306e\u30c6\u30ad\u30b9\u30c8\u3067\u3059".getBytes(UTF8);
+        assertSame(text, compressor.compress(text));
+    }
+
+    @Test
+    public void blocksAndPlainTextMixInOneStream() {
+        MessageCompressor compressor = new MessageCompressor();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int index = 0; index < 40; index++) {
+            String message = index % 3 == 0 ? "ok\n" : CHAT[index % CHAT.length] + index + "\n";
+            byte[] plain = message.getBytes(UTF8);
+            byte[] sent = compressor.compress(plain);
+            stream.write(sent, 0, sent.length);
+            expected.write(plain, 0, plain.length);
+        }
+        for (int pieceLength = 1; pieceLength <= 40; pieceLength++) {
+            assertArrayEquals("piece length " + pieceLength, expected.toByteArray(), decodeInPieces(stream.toByteArray(), pieceLength));
+        }
+    }
+
+    @Test
+    public void longRepetitiveMessageRoundTrips() {
+        StringBuilder log = new StringBuilder();
+        for (int index = 0; index < 500; index++) {
+            log.append("sensor ").append(index % 7).append(" reading value ").append(index * 31 % 1000).append('\n');
+        }
+        byte[] plain = log.toString().getBytes(UTF8);
+        byte[] sent = new MessageCompressor().compress(plain);
+        assertTrue(sent.length < plain.length / 2);
+        assertArrayEquals(plain, decodeInPieces(sent, PAYLOAD_LENGTH));
+    }
+
+    @Test
+    public void corruptBlockIsDropped() {
+        byte[] sent = new MessageCompressor().compress(CHAT[0].getBytes(UTF8));
+        sent[1] = (byte) 0x7F; // claims a much longer original
+        MessageDecompressor decompressor = new MessageDecompressor();
+        assertEquals(0, decompressor.decode(sent, 0, sent.length));
+        assertEquals(1, decompressor.getNumBlocksDropped());
+
+        byte[] after = "next\n".getBytes(UTF8);
+        assertEquals(after.length, decompressor.decode(after, 0, after.length));
+    }
+
+    private static byte[] decodeInPieces(byte[] bytes, int pieceLength) {
+        MessageDecompressor decompressor = new MessageDecompressor();
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        for (int offset = 0; offset < bytes.length; offset += pieceLength) {
+            int numBytes = decompressor.decode(bytes, offset, Math.min(pieceLength, bytes.length - offset));
+            decoded.write(decompressor.getOutput(), 0, numBytes);
+        }
+        return decoded.toByteArray();
+    }
+
+    private static int packets(int length) {
+        return (length + PAYLOAD_LENGTH - 1) / PAYLOAD_LENGTH;
+    }
+}
@@ -0,0 +1,61 @@
+package tonyg.example.com.bleechoclient.ble.codec;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class Utf8CodecTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String TEXT = "Gr\u00fc\u00dfe aus K\u00f6ln, ok plain ascii run here, "
+            + "\u65e5\u672c\u8a9e\u306e\u30c6\u30ad\u30b9\u30c8 \ud83d\ude80\ud83d\udce1 \u0645\u0631\u062d\u0628\u0627\n";
+
+    @Test
+    public void encoderMatchesTheJdk() {
+        assertArrayEquals(TEXT.getBytes(UTF8), new Utf8Encoder().encode(TEXT));
+        assertArrayEquals("only ascii, longer than one block".getBytes(UTF8), new Utf8Encoder().encode("only ascii, longer than one block"));
+    }
+
+    @Test
+    public void decoderSurvivesEverySplitPoint() {
+        byte[] bytes = TEXT.getBytes(UTF8);
+        for (int packetLength = 1; packetLength <= 20; packetLength++) {
+            Utf8Decoder decoder = new Utf8Decoder();
+            StringBuilder decoded = new StringBuilder();
+            for (int offset = 0; offset < bytes.length; offset += packetLength) {
+                decoded.append(decoder.decode(Arrays.copyOfRange(bytes, offset, Math.min(bytes.length, offset + packetLength))));
+            }
+            assertEquals("packet length " + packetLength, TEXT, decoded.toString());
+            assertFalse(decoder.hasPartialCharacter());
+        }
+    }
+
+    @Test
+    public void partialCharacterIsHeldBack() {
+        byte[] rocket = "\ud83d\ude80".getBytes(UTF8);
+        Utf8Decoder decoder = new Utf8Decoder();
+        assertEquals("", decoder.decode(Arrays.copyOfRange(rocket, 0, 3)));
+        assertTrue(decoder.hasPartialCharacter());
+        assertEquals("\ud83d\ude80", decoder.decode(Arrays.copyOfRange(rocket, 3, 4)));
+    }
+
+    @Test
+    public void surrogatePairSplitAcrossCallsIsEncodedWhole() {
+        Utf8Encoder encoder = new Utf8Encoder();
+        byte[] first = encoder.encode("a\ud83d", false);
+        byte[] second = encoder.encode("\ude80b", true);
+        byte[] joined = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        assertArrayEquals("a\ud83d\ude80b".getBytes(UTF8), joined);
+    }
+
+    @Test
+    public void malformedInputDecodesToReplacementCharacter() {
+        Utf8Decoder decoder = new Utf8Decoder();
+        // overlong '/', truncated sequence followed by ascii, stray continuation byte
+        byte[] bytes = {(byte) 0xC0, (byte) 0xAF, 'x', (byte) 0xE2, (byte) 0x82, 'y', (byte) 0x80};
+        assertEquals("\ufffd\ufffdx\ufffdy\ufffd", decoder.decode(bytes));
+    }
+}
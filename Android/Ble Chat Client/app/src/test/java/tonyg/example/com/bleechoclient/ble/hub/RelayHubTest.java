@@ -0,0 +1,377 @@
+package tonyg.example.com.bleechoclient.ble.hub;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import tonyg.example.com.bleechoclient.ble.codec.LzCodec;
+import tonyg.example.com.bleechoclient.ble.codec.MessageCompressor;
+import tonyg.example.com.bleechoclient.ble.codec.MessageDecompressor;
+import tonyg.example.com.bleechoclient.ble.transport.LaneDemultiplexer;
+import tonyg.example.com.bleechoclient.ble.transport.LinkFrame;
+import tonyg.example.com.bleechoclient.ble.transport.OutboundQueue;
+import tonyg.example.com.bleechoclient.ble.transport.PacketTransport;
+
+import static org.junit.Assert.*;
+
+public class RelayHubTest {
+    private static final int NOTIFICATION_LENGTH = 20;
+
+    @Test
+    public void peersAreEchoedToEachOtherWithoutUpstream() throws Exception {
+        RelayHub hub = new RelayHub();
+        SimulatedPeer[] peers = addPeers(hub, 3);
+
+        peers[0].write(OutboundQueue.LANE_CONTROL, "hello\n");
+        peers[1].write(OutboundQueue.LANE_BULK, "file");
+        deliverAll(peers);
+
+        for (SimulatedPeer peer : peers) {
+            assertEquals("[hello\n]", peer.getReceived(OutboundQueue.LANE_CONTROL).toString());
+            // files have no messages to relay whole
+            assertEquals("[]", peer.getReceived(OutboundQueue.LANE_BULK).toString());
+        }
+        assertEquals(4, peers[1].getHubPeer().getNumBytesNotRelayed());
+    }
+
+    @Test
+    public void messagesWrittenAtOnceAreRelayedWhole() throws Exception {
+        final RelayHub hub = new RelayHub();
+        SimulatedPeer[] peers = addPeers(hub, 3);
+        for (SimulatedPeer peer : peers) {
+            peer.sayHello(LinkFrame.CAPABILITY_COMPRESSION);
+        }
+        deliverAll(peers);
+        final List<byte[]> relayed = new ArrayList<>();
+        hub.setUpstream(new RelayHub.Upstream() {
+            @Override
+            public void send(int lane, ByteBuffer data) {
+                byte[] message = new byte[data.remaining()];
+                data.duplicate().get(message);
+                relayed.add(message);
+                // the echo comes back in two notifications
+                int half = message.length / 2;
+                hub.onUpstreamValueReceived(createLanePacket(lane, ByteBuffer.wrap(message, 0, half)));
+                hub.onUpstreamValueReceived(createLanePacket(lane, ByteBuffer.wrap(message, half, message.length - half)));
+            }
+        });
+
+        String line = "caf\u00e9 cr\u00e8me \u2615 for the whole room\n";
+        String repeated = "the same words again and again, the same words again and again\n";
+        byte[] block = new MessageCompressor().compress(repeated.getBytes("UTF-8"));
+        assertEquals(MessageCompressor.BLOCK_MARKER, block[0] & 0xFF);
+        byte[][] messages = {line.getBytes("UTF-8"), block, "second peer, first line\n".getBytes("UTF-8"),
+                ("second peer, " + repeated).getBytes("UTF-8")};
+
+        // both peers write two messages at once, in packets that cut through characters and blocks
+        List<byte[]> packets0 = createLanePackets(OutboundQueue.LANE_CONTROL, concat(messages[0], messages[1]), 7);
+        List<byte[]> packets1 = createLanePackets(OutboundQueue.LANE_CONTROL, concat(messages[2], messages[3]), 5);
+        for (int index = 0; index < Math.max(packets0.size(), packets1.size()); index++) {
+            if (index < packets0.size()) {
+                peers[0].mListener.onPacketReceived(packets0.get(index));
+            }
+            if (index < packets1.size()) {
+                peers[1].mListener.onPacketReceived(packets1.get(index));
+            }
+        }
+        deliverAll(peers);
+
+        assertEquals(4, relayed.size());
+        for (byte[] message : messages) {
+            int count = 0;
+            for (byte[] relayedMessage : relayed) {
+                count += Arrays.equals(message, relayedMessage) ? 1 : 0;
+            }
+            assertEquals(1, count);
+        }
+        for (SimulatedPeer peer : peers) {
+            byte[] received = peer.mReceivedBytes.toByteArray();
+            MessageDecompressor decompressor = new MessageDecompressor();
+            int length = decompressor.decode(received, 0, received.length);
+            String text = new String(decompressor.getOutput(), 0, length, "UTF-8");
+            assertEquals(0, decompressor.getNumBlocksDropped());
+            assertTrue(text, text.contains(line));
+            assertTrue(text, text.contains(repeated));
+            assertTrue(text, text.contains("second peer, first line\n"));
+            assertTrue(text, text.contains("second peer, " + repeated));
+            assertEquals(line.length() + repeated.length() * 2 + "second peer, first line\n".length()
+                    + "second peer, ".length(), text.length());
+        }
+        assertEquals(0, peers[0].getHubPeer().getNumBytesNotRelayed());
+    }
+
+    @Test
+    public void everyPeerSeesEveryMessageOnceInTheSameOrder() throws Exception {
+        final RelayHub hub = new RelayHub();
+        SimulatedPeer[] peers = addPeers(hub, 3);
+        final int[] numRelayed = {0};
+        hub.setUpstream(new RelayHub.Upstream() {
+            @Override
+            public void send(int lane, ByteBuffer data) {
+                // an echo server that answers at once, one notification per write
+                numRelayed[0]++;
+                hub.onUpstreamValueReceived(createLanePacket(lane, data));
+            }
+        });
+
+        for (int index = 0; index < 50; index++) {
+            for (SimulatedPeer peer : peers) {
+                peer.write(OutboundQueue.LANE_CONTROL, peer.mAddress + "-" + index + "\n");
+            }
+            // peers take their notifications at different paces
+            peers[index % 3].deliver(5);
+        }
+        deliverAll(peers);
+
+        assertEquals(150, numRelayed[0]);
+        List<String> first = peers[0].getReceived(OutboundQueue.LANE_CONTROL);
+        assertEquals(150, first.size());
+        assertEquals("peer0-0\n", first.get(0));
+        assertEquals("peer2-49\n", first.get(149));
+        for (SimulatedPeer peer : peers) {
+            assertEquals(first, peer.getReceived(OutboundQueue.LANE_CONTROL));
+            assertEquals(0, peer.getHubPeer().getBacklog());
+        }
+    }
+
+    @Test
+    public void slowPeerOnlyHoldsUpItself() throws Exception {
+        RelayHub hub = new RelayHub();
+        SimulatedPeer[] peers = addPeers(hub, 3);
+        SimulatedPeer slowPeer = peers[2];
+
+        int numMessages = 2000;
+        for (int index = 0; index < numMessages; index++) {
+            peers[index % 2].write(OutboundQueue.LANE_CONTROL, String.format("message %06d\n", index));
+            // the fast peers keep up; the slow one never takes a notification
+            peers[0].deliver(Integer.MAX_VALUE);
+            peers[1].deliver(Integer.MAX_VALUE);
+        }
+
+        assertEquals(numMessages, peers[0].getReceived(OutboundQueue.LANE_CONTROL).size());
+        assertEquals(numMessages, peers[1].getReceived(OutboundQueue.LANE_CONTROL).size());
+        assertEquals(0, peers[0].getHubPeer().getNumBytesDropped());
+        RelayHub.Peer slowHubPeer = slowPeer.getHubPeer();
+        assertTrue(slowHubPeer.getBacklog() <= RelayHub.MAX_PEER_BACKLOG);
+        assertEquals(numMessages * 15, slowHubPeer.getBacklog() + slowHubPeer.getNumBytesDropped());
+
+        // once it disconnects, what was waiting for it is let go
+        hub.removePeer(slowPeer.mAddress);
+        assertTrue(slowPeer.mClosed);
+        assertEquals(0, slowHubPeer.getBacklog());
+        assertNull(hub.getPeer(slowPeer.mAddress));
+        assertEquals(2, hub.getPeers().size());
+    }
+
+    @Test
+    public void hubAnswersHelloItself() throws Exception {
+        RelayHub hub = new RelayHub();
+        SimulatedPeer[] peers = addPeers(hub, 2);
+        hub.setUpstream(new RelayHub.Upstream() {
+            @Override
+            public void send(int lane, ByteBuffer data) {
+                fail("link frames are not relayed");
+            }
+        });
+
+        peers[0].mListener.onPacketReceived(createLanePacket(OutboundQueue.LANE_LINK,
+                ByteBuffer.wrap(LinkFrame.createHello(LinkFrame.CAPABILITY_COMPRESSION | LinkFrame.CAPABILITY_TELEMETRY, 1))));
+        deliverAll(peers);
+
+        assertEquals(1, peers[0].mLinkFrames.size());
+        byte[] reply = peers[0].mLinkFrames.get(0);
+        assertEquals(LinkFrame.CAPABILITY_COMPRESSION, LinkFrame.getSharedCapabilities(reply, 0, reply.length,
+                LinkFrame.CAPABILITY_COMPRESSION | LinkFrame.CAPABILITY_TELEMETRY, 1));
+        assertTrue(peers[1].mLinkFrames.isEmpty());
+
+        // the upstream's own link frames and telemetry stay with the hub
+        hub.onUpstreamValueReceived(createLanePacket(OutboundQueue.LANE_TELEMETRY, ByteBuffer.wrap(new byte[]{0, 0, 1, 2})));
+        hub.onUpstreamValueReceived(createLanePacket(OutboundQueue.LANE_LINK, ByteBuffer.wrap(reply)));
+        deliverAll(peers);
+        assertTrue(peers[1].mLinkFrames.isEmpty());
+        assertEquals(0, peers[1].mNumPacketsReceived);
+    }
+
+    @Test
+    public void compressedBlocksOnlyReachPeersThatNegotiatedCompression() throws Exception {
+        RelayHub hub = new RelayHub();
+        SimulatedPeer[] peers = addPeers(hub, 3);
+        peers[0].sayHello(LinkFrame.CAPABILITY_COMPRESSION);
+        peers[1].sayHello(0);
+        // peers[2] never says hello
+        deliverAll(peers);
+        assertTrue(hub.getPeer("peer0").isCompressionNegotiated());
+        assertFalse(hub.getPeer("peer1").isCompressionNegotiated());
+        assertFalse(hub.getPeer("peer2").isCompressionNegotiated());
+
+        String repeated = "the same words again and again, the same words again and again\n";
+        byte[] block = new MessageCompressor().compress(repeated.getBytes("UTF-8"));
+        for (byte[] packet : createLanePackets(OutboundQueue.LANE_CONTROL, concat(block, "plain\n".getBytes("UTF-8")), 7)) {
+            peers[0].mListener.onPacketReceived(packet);
+        }
+        deliverAll(peers);
+
+        assertArrayEquals(concat(block, "plain\n".getBytes("UTF-8")), peers[0].mReceivedBytes.toByteArray());
+        for (int index = 1; index < peers.length; index++) {
+            assertEquals("[plain\n]", peers[index].getReceived(OutboundQueue.LANE_CONTROL).toString());
+            assertEquals(block.length, peers[index].getHubPeer().getNumBytesDropped());
+        }
+    }
+
+    private static SimulatedPeer[] addPeers(RelayHub hub, int numPeers) {
+        SimulatedPeer[] peers = new SimulatedPeer[numPeers];
+        for (int index = 0; index < numPeers; index++) {
+            peers[index] = new SimulatedPeer(hub, "peer" + index);
+            hub.addPeer(peers[index].mAddress, peers[index]);
+        }
+        return peers;
+    }
+
+    private static void deliverAll(SimulatedPeer[] peers) {
+        boolean delivered = true;
+        while (delivered) {
+            delivered = false;
+            for (SimulatedPeer peer : peers) {
+                delivered |= peer.deliver(Integer.MAX_VALUE) > 0;
+            }
+        }
+    }
+
+    private static List<byte[]> createLanePackets(int lane, byte[] data, int packetLength) {
+        List<byte[]> packets = new ArrayList<>();
+        for (int offset = 0; offset < data.length; offset += packetLength) {
+            packets.add(createLanePacket(lane, ByteBuffer.wrap(data, offset, Math.min(packetLength, data.length - offset))));
+        }
+        return packets;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+    private static byte[] createLanePacket(int lane, ByteBuffer data) {
+        byte[] packet = new byte[OutboundQueue.LANE_HEADER_LENGTH + data.remaining()];
+        packet[0] = (byte) (lane << 4 | data.remaining() >> 8);
+        packet[1] = (byte) data.remaining();
+        data.duplicate().get(packet, OutboundQueue.LANE_HEADER_LENGTH, data.remaining());
+        return packet;
+    }
+
+
+    /**
+     * A device connected to the hub.  Notifications are held until deliver() takes them
+     */
+    private static class SimulatedPeer implements PacketTransport {
+        final RelayHub mHub;
+        final String mAddress;
+        final LinkedList<byte[]> mOutstanding = new LinkedList<>();
+        final List<byte[]> mLinkFrames = new ArrayList<>();
+        final LaneDemultiplexer mDemultiplexer;
+        final StringBuilder[] mReceived = new StringBuilder[OutboundQueue.NUM_LANES];
+        final ByteArrayOutputStream mReceivedBytes = new ByteArrayOutputStream(); // LANE_CONTROL as sent
+        Listener mListener;
+        boolean mClosed = false;
+        int mNumPacketsReceived = 0;
+
+        SimulatedPeer(RelayHub hub, String address) {
+            mHub = hub;
+            mAddress = address;
+            for (int lane = 0; lane < mReceived.length; lane++) {
+                mReceived[lane] = new StringBuilder();
+            }
+            mDemultiplexer = new LaneDemultiplexer(OutboundQueue.NUM_LANES, new LaneDemultiplexer.Listener() {
+                @Override
+                public void onLanePacketReceived(int lane, byte[] packet, int offset, int length) {
+                    mNumPacketsReceived++;
+                    if (lane == OutboundQueue.LANE_LINK) {
+                        byte[] frame = new byte[length];
+                        System.arraycopy(packet, offset, frame, 0, length);
+                        mLinkFrames.add(frame);
+                    } else {
+                        mReceived[lane].append(new String(packet, offset, length));
+                        if (lane == OutboundQueue.LANE_CONTROL) {
+                            mReceivedBytes.write(packet, offset, length);
+                        }
+                    }
+                }
+            });
+        }
+
+        RelayHub.Peer getHubPeer() {
+            return mHub.getPeer(mAddress);
+        }
+
+        /**
+         * Write to the hub, one lane packet per write, as the Central side of this app does
+         */
+        void write(int lane, String text) {
+            mListener.onPacketReceived(createLanePacket(lane, ByteBuffer.wrap(text.getBytes())));
+        }
+
+        /**
+         * Negotiate the link with the hub
+         */
+        void sayHello(int capabilities) {
+            mListener.onPacketReceived(createLanePacket(OutboundQueue.LANE_LINK,
+                    ByteBuffer.wrap(LinkFrame.createHello(capabilities, LzCodec.DICTIONARY_VERSION))));
+        }
+
+        /**
+         * Take notifications the hub sent
+         *
+         * @return how many were taken
+         */
+        int deliver(int numPackets) {
+            int numDelivered = 0;
+            while (numDelivered < numPackets && !mOutstanding.isEmpty()) {
+                mDemultiplexer.onPacketReceived(mOutstanding.removeFirst());
+                numDelivered++;
+                mListener.onPacketWritten(true);
+            }
+            return numDelivered;
+        }
+
+        List<String> getReceived(int lane) {
+            List<String> lines = new ArrayList<>();
+            String text = mReceived[lane].toString();
+            int start = 0;
+            for (int index = 0; index < text.length(); index++) {
+                if (text.charAt(index) == '\n') {
+                    lines.add(text.substring(start, index + 1));
+                    start = index + 1;
+                }
+            }
+            if (start < text.length()) {
+                lines.add(text.substring(start));
+            }
+            return lines;
+        }
+
+        @Override
+        public int getMaxPacketLength() {
+            return NOTIFICATION_LENGTH;
+        }
+
+        @Override
+        public void writePacket(byte[] packet) throws Exception {
+            mOutstanding.add(packet);
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+    }
+}
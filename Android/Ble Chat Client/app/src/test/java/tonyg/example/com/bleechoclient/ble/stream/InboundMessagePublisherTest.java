@@ -0,0 +1,98 @@
+package tonyg.example.com.bleechoclient.ble.stream;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class InboundMessagePublisherTest {
+    /** runs deliveries on the calling thread, so the test can see them immediately **/
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void deliversReassembledLinesOnlyOnDemand() {
+        InboundMessagePublisher publisher = new InboundMessagePublisher();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber, DIRECT, 16);
+
+        publisher.onTextReceived("hel");
+        publisher.onTextReceived("lo\nwor");
+        publisher.onTextReceived("ld\nthird\n");
+        assertTrue(subscriber.mItems.isEmpty());
+
+        subscriber.mSubscription.request(2);
+        assertEquals(Arrays.asList("hello", "world"), subscriber.mItems);
+
+        subscriber.mSubscription.request(5);
+        assertEquals(Arrays.asList("hello", "world", "third"), subscriber.mItems);
+
+        publisher.onTextReceived("fourth\n");
+        assertEquals("fourth", subscriber.mItems.get(3));
+    }
+
+    @Test
+    public void slowSubscriberBuffersAreBounded() {
+        InboundMessagePublisher publisher = new InboundMessagePublisher();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber, DIRECT, 3);
+
+        for (int index = 0; index < 10; index++) {
+            publisher.onTextReceived("line " + index + "\n");
+        }
+        assertEquals(7, publisher.getDroppedCount());
+
+        subscriber.mSubscription.request(Long.MAX_VALUE);
+        assertEquals(Arrays.asList("line 7", "line 8", "line 9"), subscriber.mItems);
+    }
+
+    @Test
+    public void completeIsDeliveredAfterBufferedLines() {
+        InboundMessagePublisher publisher = new InboundMessagePublisher();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber, DIRECT, 16);
+
+        publisher.onTextReceived("last\n");
+        publisher.complete();
+        assertFalse(subscriber.mComplete);
+
+        subscriber.mSubscription.request(1);
+        assertEquals(Arrays.asList("last"), subscriber.mItems);
+        assertTrue(subscriber.mComplete);
+    }
+
+
+    private static class RecordingSubscriber implements Flow.Subscriber<String> {
+        final List<String> mItems = new ArrayList<>();
+        Flow.Subscription mSubscription;
+        boolean mComplete = false;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            mSubscription = subscription;
+        }
+
+        @Override
+        public void onNext(String item) {
+            mItems.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            fail(throwable.getMessage());
+        }
+
+        @Override
+        public void onComplete() {
+            mComplete = true;
+        }
+    }
+}
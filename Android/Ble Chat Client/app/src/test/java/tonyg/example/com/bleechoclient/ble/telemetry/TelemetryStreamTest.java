@@ -0,0 +1,188 @@
+package tonyg.example.com.bleechoclient.ble.telemetry;
+
+import org.junit.Test;
+
+import tonyg.example.com.bleechoclient.ble.transport.LaneDemultiplexer;
+import tonyg.example.com.bleechoclient.ble.transport.OutboundQueue;
+
+import static org.junit.Assert.*;
+
+public class TelemetryStreamTest {
+    private static final int NOTIFICATION_LENGTH = 20;
+
+    @Test
+    public void everySampleSetCanBeExportedOnceAsTheRingWraps() throws Exception {
+        SimulatedSampleSource source = new SimulatedSampleSource(3, 250);
+        TelemetryBuffer buffer = new TelemetryBuffer(3, 100);
+        LaneDemultiplexer demultiplexer = createDemultiplexer(new TelemetryDecoder(buffer));
+
+        short[] exported = new short[3 * 40];
+        long nextSampleSet = 0;
+        int numChecked = 0;
+        for (int second = 0; second < 4; second++) {
+            for (int notification = 0; notification < 125; notification++) {
+                demultiplexer.onPacketReceived(source.nextNotification());
+            }
+            // export in pieces smaller than what arrived, as a slow reader would
+            while (nextSampleSet < buffer.getNumSampleSets()) {
+                long first = buffer.export(nextSampleSet, exported, 0, 40);
+                int numSampleSets = (int) Math.min(40, buffer.getNumSampleSets() - first);
+                for (int index = 0; index < numSampleSets; index++) {
+                    for (int channel = 0; channel < 3; channel++) {
+                        assertEquals(source.getSample(channel, first + index), exported[index * 3 + channel]);
+                    }
+                }
+                // a reader that falls behind skips what was overwritten, and never repeats
+                assertTrue(first >= nextSampleSet);
+                nextSampleSet = first + numSampleSets;
+                numChecked += numSampleSets;
+            }
+        }
+        assertEquals(source.getNumSampleSets(), buffer.getNumSampleSets());
+        assertEquals(buffer.getNumSampleSets() - buffer.getOldestSampleSet(), buffer.getCapacity());
+        assertTrue(numChecked >= buffer.getCapacity());
+        assertEquals(0, buffer.getNumSampleSetsLost());
+    }
+
+    @Test
+    public void lostNotificationsAreCounted() throws Exception {
+        SimulatedSampleSource source = new SimulatedSampleSource(2, 500);
+        TelemetryBuffer buffer = new TelemetryBuffer(2, 1000);
+        TelemetryDecoder decoder = new TelemetryDecoder(buffer);
+        LaneDemultiplexer demultiplexer = createDemultiplexer(decoder);
+
+        long numLost = 0;
+        for (int notification = 0; notification < 20000; notification++) {
+            byte[] packet = source.nextNotification();
+            // the 16 bit index wraps many times over
+            if (notification % 97 == 5) {
+                numLost += source.getSampleSetsPerNotification();
+            } else {
+                demultiplexer.onPacketReceived(packet);
+            }
+        }
+        assertEquals(numLost, buffer.getNumSampleSetsLost());
+        assertEquals(source.getNumSampleSets() - numLost, buffer.getNumSampleSets());
+        assertEquals(0, decoder.getNumPacketsDropped());
+
+        // a packet for another number of channels is not mistaken for samples
+        decoder.onPacketReceived(new byte[]{0, 0, 1, 2, 3, 4, 5, 6}, 0, 8);
+        assertEquals(1, decoder.getNumPacketsDropped());
+    }
+
+    @Test
+    public void downsampledViewKeepsSpikes() throws Exception {
+        TelemetryBuffer buffer = new TelemetryBuffer(2, 1000);
+        byte[] sampleSet = new byte[4];
+        for (int index = 0; index < 1500; index++) {
+            short sample = (short) (index == 1234 ? 30000 : index % 10);
+            sampleSet[2] = (byte) (sample >> 8);
+            sampleSet[3] = (byte) sample;
+            buffer.append(sampleSet, 0, 1);
+        }
+
+        short[] minimums = new short[50];
+        short[] maximums = new short[50];
+        // the latest 1000 sample sets, 20 per bucket
+        assertEquals(50, buffer.downsample(1, 1000, minimums, maximums, 50));
+        assertEquals(30000, maximums[(1234 - 500) / 20]);
+        assertEquals(0, minimums[0]);
+        assertEquals(9, maximums[0]);
+        assertEquals(9, maximums[49]);
+
+        // fewer sample sets than buckets
+        assertEquals(3, buffer.downsample(0, 3, minimums, maximums, 50));
+        assertEquals(0, maximums[2]);
+        assertEquals(1.5f, TelemetryBuffer.toFloat((short) 384), 0);
+    }
+
+    @Test
+    public void benchmarkDecoding() throws Exception {
+        SimulatedSampleSource source = new SimulatedSampleSource(4, 1000);
+        byte[][] notifications = new byte[10000][];
+        for (int index = 0; index < notifications.length; index++) {
+            notifications[index] = source.nextNotification();
+        }
+        TelemetryBuffer buffer = new TelemetryBuffer(4, 60000);
+        LaneDemultiplexer demultiplexer = createDemultiplexer(new TelemetryDecoder(buffer));
+
+        int numRounds = 50;
+        for (int round = 0; round < 5; round++) {
+            for (byte[] notification : notifications) {
+                demultiplexer.onPacketReceived(notification);
+            }
+        }
+        long start = System.nanoTime();
+        for (int round = 0; round < numRounds; round++) {
+            for (byte[] notification : notifications) {
+                demultiplexer.onPacketReceived(notification);
+            }
+        }
+        long elapsedNs = System.nanoTime() - start;
+        long numSamples = (long) numRounds * notifications.length * source.getSampleSetsPerNotification() * 4;
+        System.out.println(String.format("telemetry: %d samples decoded, %.1f million samples/s",
+                numSamples, numSamples * 1e3 / elapsedNs));
+        assertEquals((numRounds + 5) * notifications.length * source.getSampleSetsPerNotification(), buffer.getNumSampleSets());
+    }
+
+    private static LaneDemultiplexer createDemultiplexer(final TelemetryDecoder decoder) {
+        return new LaneDemultiplexer(OutboundQueue.NUM_LANES, new LaneDemultiplexer.Listener() {
+            @Override
+            public void onLanePacketReceived(int lane, byte[] packet, int offset, int length) {
+                assertEquals(OutboundQueue.LANE_TELEMETRY, lane);
+                decoder.onPacketReceived(packet, offset, length);
+            }
+        });
+    }
+
+
+    /**
+     * Packs sine waves into notifications the way the echo server firmware does
+     */
+    private static class SimulatedSampleSource {
+        private final int mNumChannels;
+        private final int mSampleRate;
+        private final int mSampleSetsPerNotification;
+        private long mNumSampleSets = 0;
+
+        SimulatedSampleSource(int numChannels, int sampleRate) {
+            mNumChannels = numChannels;
+            mSampleRate = sampleRate;
+            int payloadLength = NOTIFICATION_LENGTH - OutboundQueue.LANE_HEADER_LENGTH - TelemetryDecoder.HEADER_LENGTH;
+            mSampleSetsPerNotification = payloadLength / (2 * numChannels);
+        }
+
+        short getSample(int channel, long sampleSet) {
+            double seconds = sampleSet / (double) mSampleRate;
+            double value = 2.5 * Math.sin(2 * Math.PI * (channel + 1) * seconds);
+            return (short) Math.round(value * (1 << TelemetryBuffer.FRACTION_BITS));
+        }
+
+        long getNumSampleSets() {
+            return mNumSampleSets;
+        }
+
+        int getSampleSetsPerNotification() {
+            return mSampleSetsPerNotification;
+        }
+
+        byte[] nextNotification() {
+            int laneLength = TelemetryDecoder.HEADER_LENGTH + mSampleSetsPerNotification * mNumChannels * 2;
+            byte[] notification = new byte[OutboundQueue.LANE_HEADER_LENGTH + laneLength];
+            notification[0] = (byte) (OutboundQueue.LANE_TELEMETRY << 4 | laneLength >> 8);
+            notification[1] = (byte) laneLength;
+            notification[2] = (byte) (mNumSampleSets >> 8);
+            notification[3] = (byte) mNumSampleSets;
+            int position = 4;
+            for (int index = 0; index < mSampleSetsPerNotification; index++) {
+                for (int channel = 0; channel < mNumChannels; channel++) {
+                    short sample = getSample(channel, mNumSampleSets);
+                    notification[position++] = (byte) (sample >> 8);
+                    notification[position++] = (byte) sample;
+                }
+                mNumSampleSets++;
+            }
+            return notification;
+        }
+    }
+}
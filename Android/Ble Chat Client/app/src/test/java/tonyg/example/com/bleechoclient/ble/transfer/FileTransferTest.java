@@ -0,0 +1,115 @@
+package tonyg.example.com.bleechoclient.ble.transfer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import tonyg.example.com.bleechoclient.ble.transport.OutboundQueue;
+import tonyg.example.com.bleechoclient.ble.transport.PacketTransport;
+
+import static org.junit.Assert.*;
+
+public class FileTransferTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void resumesFromLastAcknowledgedOffsetAfterDisconnect() throws Exception {
+        byte[] contents = new byte[300 * 1024 + 7];
+        for (int index = 0; index < contents.length; index++) {
+            contents[index] = (byte) (index * 31);
+        }
+        File file = mFolder.newFile("config.bin");
+        FileOutputStream outputStream = new FileOutputStream(file);
+        outputStream.write(contents);
+        outputStream.close();
+
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final CountDownLatch complete = new CountDownLatch(1);
+        FileTransfer transfer = new FileTransfer(file, 0, new FileTransfer.Listener() {
+            @Override
+            public void onTransferProgress(FileTransfer transfer, long acknowledgedOffset, long length, double bytesPerSecond) {
+                assertTrue(acknowledgedOffset <= length);
+            }
+
+            @Override
+            public void onTransferComplete(FileTransfer transfer) {
+                complete.countDown();
+            }
+
+            @Override
+            public void onTransferInterrupted(FileTransfer transfer, long acknowledgedOffset) {
+                interrupted.countDown();
+            }
+        });
+
+        // the first link drops after 1000 packets
+        FakeTransport firstLink = new FakeTransport(1000);
+        transfer.start(firstLink.mOutboundQueue);
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        assertEquals(1000 * 20, transfer.getAcknowledgedOffset());
+        assertFalse(transfer.isInProgress());
+
+        FakeTransport secondLink = new FakeTransport(Integer.MAX_VALUE);
+        transfer.start(secondLink.mOutboundQueue);
+        assertTrue(complete.await(10, TimeUnit.SECONDS));
+        assertTrue(transfer.isComplete());
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        received.write(firstLink.mReceived.toByteArray());
+        received.write(secondLink.mReceived.toByteArray());
+        assertArrayEquals(contents, received.toByteArray());
+    }
+
+
+    /**
+     * Acknowledges writes on another thread, like a GATT write response, and fails after a number of packets
+     */
+    private static class FakeTransport implements PacketTransport {
+        final OutboundQueue mOutboundQueue = new OutboundQueue(this);
+        final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+        final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+        final int mFailAfter;
+        int mNumPackets = 0;
+
+        FakeTransport(int failAfter) {
+            mFailAfter = failAfter;
+        }
+
+        @Override
+        public int getMaxPacketLength() {
+            return 20;
+        }
+
+        @Override
+        public void writePacket(final byte[] packet) throws Exception {
+            final boolean success = mNumPackets++ < mFailAfter;
+            if (success) {
+                mReceived.write(packet);
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mOutboundQueue.onPacketWritten(success);
+                }
+            });
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+        }
+
+        @Override
+        public void close() {
+            mExecutor.shutdown();
+        }
+    }
+}
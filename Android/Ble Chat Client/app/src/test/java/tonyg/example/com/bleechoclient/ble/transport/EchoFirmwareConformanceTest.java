@@ -0,0 +1,254 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import tonyg.example.com.bleechoclient.ble.codec.LzCodec;
+import tonyg.example.com.bleechoclient.ble.telemetry.TelemetryBuffer;
+import tonyg.example.com.bleechoclient.ble.telemetry.TelemetryDecoder;
+import tonyg.example.com.bleechoclient.metrics.ClockSync;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the echo server firmware core, built for the desktop from
+ * Arduino/ble_echo_basic/host, through the client's transport layer over a pipe.
+ *
+ * Skipped when the firmware sources or a C++ toolchain are not available.
+ * Set -Decho.firmware.dir to point at the sketch if the tests run from elsewhere.
+ */
+public class EchoFirmwareConformanceTest {
+    private static final int CHARACTERISTIC_LENGTH = 20;
+    private static final long TIMEOUT_MS = 5000;
+
+    private static File sEchoHost;
+
+    private Process mProcess;
+    private StreamPacketTransport mTransport;
+    private OutboundQueue mOutboundQueue;
+    private final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+    private final List<byte[]> mReceivedPackets = new ArrayList<>();
+
+    @BeforeClass
+    public static void buildFirmware() throws Exception {
+        File sketch = new File(System.getProperty("echo.firmware.dir", "../../../Arduino/ble_echo_basic"));
+        Assume.assumeTrue("firmware sources not found", new File(sketch, "echo_core.cpp").isFile());
+
+        int exitCode;
+        try {
+            Process make = new ProcessBuilder("make", "-s", "-C", new File(sketch, "host").getPath())
+                    .redirectErrorStream(true)
+                    .start();
+            while (make.getInputStream().read() >= 0) {
+                // drain compiler output
+            }
+            exitCode = make.waitFor();
+        } catch (Exception e) {
+            exitCode = -1;
+        }
+        Assume.assumeTrue("could not build the firmware host", exitCode == 0);
+        sEchoHost = new File(sketch, "host/build/echo_host");
+    }
+
+    @Before
+    public void startFirmware() throws Exception {
+        mProcess = new ProcessBuilder(sEchoHost.getAbsolutePath())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        mTransport = new StreamPacketTransport(mProcess.getInputStream(), mProcess.getOutputStream(), CHARACTERISTIC_LENGTH, true);
+        mOutboundQueue = new OutboundQueue(mTransport);
+        mTransport.setListener(new PacketTransport.Listener() {
+            @Override
+            public void onPacketWritten(boolean success) {
+                mOutboundQueue.onPacketWritten(success);
+            }
+
+            @Override
+            public void onPacketReceived(byte[] packet) {
+                synchronized (mReceived) {
+                    mReceivedPackets.add(packet);
+                    mReceived.write(packet, 0, packet.length);
+                    mReceived.notifyAll();
+                }
+            }
+        });
+    }
+
+    @After
+    public void stopFirmware() throws Exception {
+        if (mTransport != null) {
+            mTransport.close();
+        }
+        if (mProcess != null) {
+            mProcess.destroy();
+            mProcess.waitFor();
+        }
+    }
+
+    @Test
+    public void echoesQueuedMessagesInOrder() throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        String[] messages = {"hi\n", "exactly twenty bytes", "a message that spans three packets of the link\n", ""};
+        for (String message : messages) {
+            byte[] bytes = message.getBytes("UTF-8");
+            expected.write(bytes, 0, bytes.length);
+            mOutboundQueue.send(bytes);
+        }
+
+        assertArrayEquals(expected.toByteArray(), awaitReceived(expected.size()));
+        for (byte[] packet : mReceivedPackets) {
+            assertTrue(packet.length <= CHARACTERISTIC_LENGTH);
+        }
+    }
+
+    @Test
+    public void burstOfShortWritesIsEchoedInOrderAndCoalesced() throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        int numWrites = 12;
+        for (int index = 0; index < numWrites; index++) {
+            byte[] packet = {(byte) ('a' + index), (byte) ('A' + index)};
+            expected.write(packet, 0, packet.length);
+            // bypass the queue so the writes do not wait for each other
+            mTransport.writePacket(packet);
+        }
+
+        assertArrayEquals(expected.toByteArray(), awaitReceived(expected.size()));
+        assertTrue(mReceivedPackets.size() <= numWrites);
+        for (byte[] packet : mReceivedPackets) {
+            assertTrue(packet.length <= CHARACTERISTIC_LENGTH);
+            // chunks are never split across notifications
+            assertEquals(0, packet.length % 2);
+        }
+    }
+
+    @Test
+    public void answersHelloWithItsCapabilities() throws Exception {
+        byte[] packet = createLinkPacket(LinkFrame.createHello(LinkFrame.CAPABILITY_COMPRESSION, LzCodec.DICTIONARY_VERSION));
+        mTransport.writePacket(packet);
+
+        byte[] reply = awaitReceived(packet.length);
+        assertEquals(packet.length, reply.length);
+        assertEquals(LinkFrame.CAPABILITY_COMPRESSION, LinkFrame.getSharedCapabilities(reply, OutboundQueue.LANE_HEADER_LENGTH,
+                reply.length - OutboundQueue.LANE_HEADER_LENGTH, LinkFrame.CAPABILITY_COMPRESSION, LzCodec.DICTIONARY_VERSION));
+    }
+
+    @Test
+    public void streamsTelemetryBetweenStartAndStop() throws Exception {
+        int numChannels = 2;
+        TelemetryBuffer buffer = new TelemetryBuffer(numChannels, 10000);
+        final TelemetryDecoder decoder = new TelemetryDecoder(buffer);
+        LaneDemultiplexer demultiplexer = new LaneDemultiplexer(OutboundQueue.NUM_LANES, new LaneDemultiplexer.Listener() {
+            @Override
+            public void onLanePacketReceived(int lane, byte[] packet, int offset, int length) {
+                if (lane == OutboundQueue.LANE_TELEMETRY) {
+                    decoder.onPacketReceived(packet, offset, length);
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        mTransport.writePacket(createLinkPacket(LinkFrame.createTelemetryStart(numChannels, 500)));
+        // 16 bytes of samples per 20 byte notification
+        awaitReceived(200 * numChannels * 2 * CHARACTERISTIC_LENGTH / 16);
+        long elapsedNs = System.nanoTime() - start;
+        mTransport.writePacket(createLinkPacket(LinkFrame.createTelemetryStop()));
+        Thread.sleep(50);
+        int numStreamed;
+        synchronized (mReceived) {
+            numStreamed = mReceived.size();
+            for (byte[] packet : mReceivedPackets) {
+                assertTrue(packet.length <= CHARACTERISTIC_LENGTH);
+                demultiplexer.onPacketReceived(packet);
+            }
+        }
+        Thread.sleep(50);
+        assertEquals("still streaming after stop", numStreamed, mReceived.size());
+
+        // the host's simulated sensor is a ramp on each channel
+        long numSampleSets = buffer.getNumSampleSets();
+        assertTrue(numSampleSets >= 200);
+        assertEquals(0, buffer.getNumSampleSetsLost());
+        short[] samples = new short[(int) numSampleSets * numChannels];
+        buffer.export(0, samples, 0, (int) numSampleSets);
+        for (int index = 0; index < numSampleSets; index++) {
+            assertEquals((short) index, samples[index * numChannels]);
+            assertEquals((short) (index * 2), samples[index * numChannels + 1]);
+        }
+        System.out.println("telemetry: " + numSampleSets + " sample sets in " + mReceivedPackets.size() + " notifications, "
+                + (200 * 1000000000L / Math.max(1, elapsedNs)) + " sample sets/s");
+    }
+
+    @Test
+    public void answersTimeRequestsWithItsClock() throws Exception {
+        ClockSync clockSync = new ClockSync();
+        int replyLength = OutboundQueue.LANE_HEADER_LENGTH + LinkFrame.TIME_REPLY_LENGTH;
+        int numExchanges = 40;
+        for (int exchange = 0; exchange < numExchanges; exchange++) {
+            int sequence = clockSync.onRequestSent(System.nanoTime() / 1000);
+            mTransport.writePacket(createLinkPacket(LinkFrame.createTimeRequest(sequence)));
+            byte[] received = awaitReceived((exchange + 1) * replyLength);
+            long now = System.nanoTime() / 1000;
+            assertEquals((exchange + 1) * replyLength, received.length);
+            assertTrue(clockSync.onReplyReceived(received, exchange * replyLength + OutboundQueue.LANE_HEADER_LENGTH,
+                    LinkFrame.TIME_REPLY_LENGTH, now));
+        }
+
+        // the host firmware's clock is this one's, cut to 32 bits
+        long offset = Math.round(clockSync.getOffsetAt(System.nanoTime() / 1000));
+        int wrappedOffset = (int) offset;
+        assertTrue("offset " + wrappedOffset + "us", Math.abs(wrappedOffset) < 2000);
+        assertTrue(clockSync.getProcessing() >= 0);
+        assertTrue(clockSync.getUplink() > -1 && clockSync.getDownlink() > -1);
+        assertEquals(clockSync.getRoundTrip(), clockSync.getUplink() + clockSync.getProcessing() + clockSync.getDownlink(), 0.001);
+        System.out.println("clock: offset " + wrappedOffset + "us, " + clockSync.describe());
+    }
+
+    @Test
+    public void reportsEndToEndThroughput() throws Exception {
+        byte[] message = new byte[8 * 1024];
+        for (int index = 0; index < message.length; index++) {
+            message[index] = (byte) ('0' + index % 10);
+        }
+
+        long start = System.nanoTime();
+        mOutboundQueue.send(message);
+        byte[] echoed = awaitReceived(message.length);
+        long elapsedNs = System.nanoTime() - start;
+
+        assertArrayEquals(message, echoed);
+        System.out.println("echoed " + message.length + " bytes in " + mReceivedPackets.size() + " notifications, "
+                + (message.length * 1000000000L / Math.max(1, elapsedNs)) + " bytes/s");
+    }
+
+    /**
+     * Put a link frame behind a lane header, the way a multi-lane OutboundQueue would
+     */
+    private static byte[] createLinkPacket(byte[] frame) {
+        byte[] packet = new byte[OutboundQueue.LANE_HEADER_LENGTH + frame.length];
+        packet[0] = (byte) (OutboundQueue.LANE_LINK << 4);
+        packet[1] = (byte) frame.length;
+        System.arraycopy(frame, 0, packet, OutboundQueue.LANE_HEADER_LENGTH, frame.length);
+        return packet;
+    }
+
+    /**
+     * Wait until at least numBytes have been echoed
+     */
+    private byte[] awaitReceived(int numBytes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        synchronized (mReceived) {
+            while (mReceived.size() < numBytes && System.currentTimeMillis() < deadline) {
+                mReceived.wait(100);
+            }
+            return mReceived.toByteArray();
+        }
+    }
+}
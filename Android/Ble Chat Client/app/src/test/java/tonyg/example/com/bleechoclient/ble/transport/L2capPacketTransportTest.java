@@ -0,0 +1,158 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the L2CAP transport over a local socket pair standing in for the channel,
+ * against an echo peer, and compares it with GATT-sized acknowledged packets over the same sockets
+ */
+public class L2capPacketTransportTest {
+    private static final int MESSAGE_LENGTH = 64 * 1024;
+    private static final long TIMEOUT_MS = 10000;
+
+    private ServerSocket mServerSocket;
+    private Socket mClientSocket;
+    private Socket mPeerSocket;
+
+    @Before
+    public void openSocketPair() throws Exception {
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        mClientSocket = new Socket(InetAddress.getLoopbackAddress(), mServerSocket.getLocalPort());
+        mPeerSocket = mServerSocket.accept();
+        // a channel has no Nagle delay, so keep TCP from adding one
+        mClientSocket.setTcpNoDelay(true);
+        mPeerSocket.setTcpNoDelay(true);
+    }
+
+    @After
+    public void closeSocketPair() throws Exception {
+        mClientSocket.close();
+        mPeerSocket.close();
+        mServerSocket.close();
+    }
+
+    @Test
+    public void echoesOverChannel() throws Exception {
+        startEchoPeer(false);
+        L2capPacketTransport transport = new L2capPacketTransport(mClientSocket, mClientSocket.getInputStream(), mClientSocket.getOutputStream());
+        assertEquals(StreamPacketTransport.MAX_FRAMED_PACKET_LENGTH, transport.getMaxPacketLength());
+        assertTrue(transport.isOpen());
+
+        double bytesPerSecond = echo(transport);
+        System.out.println("l2cap: echoed " + MESSAGE_LENGTH + " bytes, " + (long) bytesPerSecond + " bytes/s");
+
+        transport.close();
+        assertFalse(transport.isOpen());
+    }
+
+    @Test
+    public void closesWhenPeerHangsUp() throws Exception {
+        L2capPacketTransport transport = new L2capPacketTransport(mClientSocket, mClientSocket.getInputStream(), mClientSocket.getOutputStream());
+        mPeerSocket.close();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (transport.isOpen() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(transport.isOpen());
+        transport.close();
+    }
+
+    @Test
+    public void echoesGattSizedPacketsForComparison() throws Exception {
+        startEchoPeer(true);
+        StreamPacketTransport transport = new StreamPacketTransport(mClientSocket.getInputStream(), mClientSocket.getOutputStream(), 20, true);
+
+        double bytesPerSecond = echo(transport);
+        System.out.println("gatt-sized: echoed " + MESSAGE_LENGTH + " bytes, " + (long) bytesPerSecond + " bytes/s");
+        transport.close();
+    }
+
+
+    /**
+     * Send a message through a transport and wait for all of it to come back
+     *
+     * @return the echo throughput
+     */
+    private double echo(StreamPacketTransport transport) throws Exception {
+        byte[] message = new byte[MESSAGE_LENGTH];
+        for (int index = 0; index < message.length; index++) {
+            message[index] = (byte) (index * 7);
+        }
+
+        final OutboundQueue outboundQueue = new OutboundQueue(transport);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        transport.setListener(new PacketTransport.Listener() {
+            @Override
+            public void onPacketWritten(boolean success) {
+                outboundQueue.onPacketWritten(success);
+            }
+
+            @Override
+            public void onPacketReceived(byte[] packet) {
+                synchronized (received) {
+                    received.write(packet, 0, packet.length);
+                    received.notifyAll();
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        outboundQueue.send(message);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        synchronized (received) {
+            while (received.size() < message.length && System.currentTimeMillis() < deadline) {
+                received.wait(100);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertArrayEquals(message, received.toByteArray());
+        return message.length / seconds;
+    }
+
+    /**
+     * Echo every framed packet back, acknowledging each one first if asked to
+     */
+    private void startEchoPeer(final boolean acknowledge) throws IOException {
+        final InputStream inputStream = mPeerSocket.getInputStream();
+        final OutputStream outputStream = mPeerSocket.getOutputStream();
+        Thread peer = new Thread("echo peer") {
+            @Override
+            public void run() {
+                DataInputStream dataInputStream = new DataInputStream(inputStream);
+                try {
+                    while (true) {
+                        int length = dataInputStream.read();
+                        if (length < 0) {
+                            return;
+                        }
+                        byte[] packet = new byte[length];
+                        dataInputStream.readFully(packet);
+                        if (acknowledge) {
+                            outputStream.write(StreamPacketTransport.WRITE_ACKNOWLEDGEMENT);
+                        }
+                        outputStream.write(length);
+                        outputStream.write(packet);
+                        outputStream.flush();
+                    }
+                } catch (IOException e) {
+                    // socket closed
+                }
+            }
+        };
+        peer.setDaemon(true);
+        peer.start();
+    }
+}
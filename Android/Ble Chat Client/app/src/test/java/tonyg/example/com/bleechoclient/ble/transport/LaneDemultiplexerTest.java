@@ -0,0 +1,141 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+import static org.junit.Assert.*;
+
+public class LaneDemultiplexerTest {
+    @Test
+    public void controlMessageOvertakesBulkTransfer() throws Exception {
+        final ByteArrayOutputStream[] received = new ByteArrayOutputStream[OutboundQueue.NUM_LANES];
+        for (int lane = 0; lane < received.length; lane++) {
+            received[lane] = new ByteArrayOutputStream();
+        }
+        final LaneDemultiplexer demultiplexer = new LaneDemultiplexer(OutboundQueue.NUM_LANES, new LaneDemultiplexer.Listener() {
+            @Override
+            public void onLanePacketReceived(int lane, byte[] packet, int offset, int length) {
+                received[lane].write(packet, offset, length);
+            }
+        });
+        EchoTransport transport = new EchoTransport(demultiplexer);
+        OutboundQueue outboundQueue = new OutboundQueue(transport, OutboundQueue.NUM_LANES);
+        transport.mOutboundQueue = outboundQueue;
+
+        byte[] file = new byte[4000];
+        for (int index = 0; index < file.length; index++) {
+            file[index] = (byte) index;
+        }
+        outboundQueue.send(ByteBuffer.wrap(file), null, false, OutboundQueue.LANE_BULK);
+        transport.echo(10);
+
+        byte[] command = "stop the transfer\n".getBytes("UTF-8");
+        final int[] packetsUntilWritten = {-1};
+        final int packetsBefore = transport.mNumPackets;
+        final EchoTransport echoTransport = transport;
+        outboundQueue.send(ByteBuffer.wrap(command), new OutboundQueue.Callback() {
+            @Override
+            public void onMessageProgress(ByteBuffer message, int bytesWritten) {
+            }
+
+            @Override
+            public void onMessageWritten(ByteBuffer message) {
+                packetsUntilWritten[0] = echoTransport.mNumPackets - packetsBefore;
+            }
+
+            @Override
+            public void onMessageFailed(ByteBuffer message, int bytesWritten) {
+            }
+        });
+        transport.echo(Integer.MAX_VALUE);
+
+        // the 18 byte command goes out in the very next packet, ahead of the rest of the file
+        assertEquals(1, packetsUntilWritten[0]);
+        assertArrayEquals(command, received[OutboundQueue.LANE_CONTROL].toByteArray());
+        assertArrayEquals(file, received[OutboundQueue.LANE_BULK].toByteArray());
+        assertEquals(0, demultiplexer.getNumPacketsDropped());
+        assertFalse(outboundQueue.isBusy());
+    }
+
+    @Test
+    public void singleLaneQueueSendsBulkWithoutHeaders() throws Exception {
+        EchoTransport transport = new EchoTransport(null);
+        OutboundQueue outboundQueue = new OutboundQueue(transport);
+        outboundQueue.send(ByteBuffer.wrap(new byte[30]), null, false, OutboundQueue.LANE_BULK);
+        assertEquals(20, transport.mOutstanding.getFirst().length);
+    }
+
+    @Test
+    public void packetsEchoedTogetherAreSplitApart() throws Exception {
+        final StringBuilder received = new StringBuilder();
+        LaneDemultiplexer demultiplexer = new LaneDemultiplexer(2, new LaneDemultiplexer.Listener() {
+            @Override
+            public void onLanePacketReceived(int lane, byte[] packet, int offset, int length) {
+                received.append(lane).append(':').append(new String(packet, offset, length)).append(' ');
+            }
+        });
+        // what the echo firmware sends when it coalesces three short chunks
+        byte[] value = {0x00, 2, 'h', 'i', 0x10, 1, 'x', 0x00, 3, 'y', 'o', '\n'};
+        assertEquals(3, demultiplexer.onPacketReceived(value));
+        assertEquals("0:hi 1:x 0:yo\n ", received.toString());
+    }
+
+    @Test
+    public void unknownLanesAreDropped() {
+        LaneDemultiplexer demultiplexer = new LaneDemultiplexer(2, new LaneDemultiplexer.Listener() {
+            @Override
+            public void onLanePacketReceived(int lane, byte[] packet, int offset, int length) {
+                fail();
+            }
+        });
+        assertEquals(0, demultiplexer.onPacketReceived(new byte[]{0x50, 1, 'a'}));
+        // a header claiming more than is there
+        assertEquals(0, demultiplexer.onPacketReceived(new byte[]{0x00, 9, 'a'}));
+        assertEquals(0, demultiplexer.onPacketReceived(new byte[0]));
+        assertEquals(2, demultiplexer.getNumPacketsDropped());
+    }
+
+
+    /**
+     * Holds each write until echo() passes it back through a demultiplexer and completes it
+     */
+    private static class EchoTransport implements PacketTransport {
+        final LaneDemultiplexer mDemultiplexer;
+        final LinkedList<byte[]> mOutstanding = new LinkedList<>();
+        OutboundQueue mOutboundQueue;
+        int mNumPackets = 0;
+
+        EchoTransport(LaneDemultiplexer demultiplexer) {
+            mDemultiplexer = demultiplexer;
+        }
+
+        void echo(int numPackets) {
+            for (int index = 0; index < numPackets && !mOutstanding.isEmpty(); index++) {
+                mDemultiplexer.onPacketReceived(mOutstanding.removeFirst());
+                mOutboundQueue.onPacketWritten(true);
+            }
+        }
+
+        @Override
+        public int getMaxPacketLength() {
+            return 20;
+        }
+
+        @Override
+        public void writePacket(byte[] packet) {
+            mNumPackets++;
+            mOutstanding.add(packet);
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class LinkParameterManagerTest {
+    private static final int TRANSFER_LENGTH = 40 * 1024;
+
+    @Test
+    public void bulkTransferRaisesPriorityUntilTheLinkGoesIdle() throws Exception {
+        SimulatedLink link = new SimulatedLink(new LinkParameterManager(true));
+
+        // a chat message every few seconds is no reason to speed up
+        for (int message = 0; message < 5; message++) {
+            link.write(40);
+            link.run(3000);
+            assertEquals(LinkParameterManager.PRIORITY_BALANCED, link.mManager.getPriority());
+        }
+
+        link.write(TRANSFER_LENGTH);
+        link.run(LinkParameterManager.UPDATE_INTERVAL * 2);
+        assertEquals(LinkParameterManager.PRIORITY_HIGH, link.mManager.getPriority());
+        assertTrue(link.mManager.isFastPhy());
+        long transferTime = link.runUntilWritten();
+
+        link.run(LinkParameterManager.IDLE_TIMEOUT + LinkParameterManager.UPDATE_INTERVAL);
+        assertEquals(LinkParameterManager.PRIORITY_BALANCED, link.mManager.getPriority());
+        assertFalse(link.mManager.isFastPhy());
+        link.run(LinkParameterManager.LOW_POWER_TIMEOUT);
+        assertEquals(LinkParameterManager.PRIORITY_LOW_POWER, link.mManager.getPriority());
+
+        // the next message wakes the link
+        link.write(40);
+        link.run(LinkParameterManager.UPDATE_INTERVAL);
+        assertEquals(LinkParameterManager.PRIORITY_BALANCED, link.mManager.getPriority());
+
+        // the same transfer without management crawls at the default interval
+        SimulatedLink fixedLink = new SimulatedLink(null);
+        fixedLink.write(TRANSFER_LENGTH);
+        long fixedTransferTime = fixedLink.runUntilWritten();
+        assertTrue(transferTime * 3 < fixedTransferTime);
+
+        // what each priority gave was measured
+        assertTrue(link.mManager.getThroughput(LinkParameterManager.PRIORITY_HIGH)
+                > 3 * link.mManager.getThroughput(LinkParameterManager.PRIORITY_BALANCED));
+        assertTrue(link.mNumChanges >= 4);
+        System.out.println(String.format("link parameters: %d bytes in %d ms managed, %d ms fixed; %s",
+                TRANSFER_LENGTH, transferTime, fixedTransferTime, link.mManager.describe()));
+    }
+
+    @Test
+    public void incomingStreamAloneCountsAsBusy() throws Exception {
+        LinkParameterManager manager = new LinkParameterManager(false);
+        long now = 0;
+        manager.update(now, 0, false);
+        for (int update = 0; update < 8; update++) {
+            // telemetry arriving at 2 KB/s, nothing written
+            manager.onBytesReceived(500);
+            now += LinkParameterManager.UPDATE_INTERVAL;
+            manager.update(now, 0, false);
+            assertEquals(LinkParameterManager.PRIORITY_HIGH, manager.getPriority());
+            assertFalse("no 2M PHY on this device", manager.isFastPhy());
+        }
+        assertEquals(2000, manager.getThroughput(LinkParameterManager.PRIORITY_HIGH), 1);
+        // the first busy interval still ran at the priority before it
+        assertEquals(LinkParameterManager.UPDATE_INTERVAL, manager.getBusyTime(LinkParameterManager.PRIORITY_BALANCED));
+        assertEquals(7 * LinkParameterManager.UPDATE_INTERVAL, manager.getBusyTime(LinkParameterManager.PRIORITY_HIGH));
+
+        // a replaced writer starts counting from zero again
+        manager.update(now + LinkParameterManager.UPDATE_INTERVAL, 10000, false);
+        manager.update(now + 2 * LinkParameterManager.UPDATE_INTERVAL, 20, false);
+        assertEquals(LinkParameterManager.PRIORITY_HIGH, manager.getPriority());
+    }
+
+    @Test
+    public void clockSyncTrickleStillReachesLowPower() throws Exception {
+        LinkParameterManager manager = new LinkParameterManager(true);
+        final int[] numPacketsInFlight = {0};
+        OutboundQueue outboundQueue = new OutboundQueue(new PacketTransport() {
+            @Override
+            public int getMaxPacketLength() {
+                return 20;
+            }
+
+            @Override
+            public void writePacket(byte[] packet) throws Exception {
+                numPacketsInFlight[0]++;
+            }
+
+            @Override
+            public void setListener(Listener listener) {
+            }
+
+            @Override
+            public void close() {
+            }
+        }, OutboundQueue.NUM_LANES);
+
+        long now = 0;
+        manager.update(now, outboundQueue);
+        int sequence = 0;
+        while (now < LinkParameterManager.LOW_POWER_TIMEOUT + LinkParameterManager.UPDATE_INTERVAL) {
+            now += LinkParameterManager.UPDATE_INTERVAL;
+            if (now % 1000 == 0) {
+                // a time request every second, measured while it is in flight.  Its reply
+                // is a link frame too, which BlePeripheral doesn't count as received
+                outboundQueue.send(ByteBuffer.wrap(LinkFrame.createTimeRequest(sequence++)), null, false, OutboundQueue.LANE_LINK);
+            }
+            manager.update(now, outboundQueue);
+            for (; numPacketsInFlight[0] > 0; numPacketsInFlight[0]--) {
+                outboundQueue.onPacketWritten(true);
+            }
+        }
+        assertTrue(outboundQueue.getNumBytesWritten(OutboundQueue.LANE_LINK) > 0);
+        assertEquals(LinkParameterManager.PRIORITY_LOW_POWER, manager.getPriority());
+
+        // a chat message still wakes the link
+        outboundQueue.send(ByteBuffer.wrap(new byte[40]), null, false, OutboundQueue.LANE_CONTROL);
+        for (; numPacketsInFlight[0] > 0; numPacketsInFlight[0]--) {
+            outboundQueue.onPacketWritten(true);
+        }
+        manager.update(now + LinkParameterManager.UPDATE_INTERVAL, outboundQueue);
+        assertEquals(LinkParameterManager.PRIORITY_BALANCED, manager.getPriority());
+    }
+
+
+    /**
+     * A link whose throughput follows its connection priority, updated every UPDATE_INTERVAL
+     * the way BlePeripheral does
+     */
+    private static class SimulatedLink implements LinkParameterManager.Listener {
+        // one 20 byte packet per connection event: 7.5 ms, 30 ms and 500 ms intervals
+        private static final double[] BYTES_PER_MS = {20 / 30.0, 20 / 7.5, 20 / 500.0};
+        private static final double FAST_PHY_GAIN = 1.5;
+
+        final LinkParameterManager mManager;
+        long mNow = 0;
+        long mBacklog = 0;
+        long mNumBytesWritten = 0;
+        int mNumChanges = 0;
+
+        SimulatedLink(LinkParameterManager manager) {
+            mManager = manager;
+            if (manager != null) {
+                manager.setListener(this);
+                manager.update(mNow, 0, false);
+            }
+        }
+
+        void write(int numBytes) {
+            mBacklog += numBytes;
+        }
+
+        void run(long duration) {
+            for (long end = mNow + duration; mNow < end; ) {
+                step();
+            }
+        }
+
+        long runUntilWritten() {
+            long start = mNow;
+            while (mBacklog > 0) {
+                step();
+            }
+            return mNow - start;
+        }
+
+        private void step() {
+            int priority = mManager != null ? mManager.getPriority() : LinkParameterManager.PRIORITY_BALANCED;
+            double rate = BYTES_PER_MS[priority] * (mManager != null && mManager.isFastPhy() ? FAST_PHY_GAIN : 1);
+            long written = Math.min(mBacklog, Math.round(rate * LinkParameterManager.UPDATE_INTERVAL));
+            mBacklog -= written;
+            mNumBytesWritten += written;
+            mNow += LinkParameterManager.UPDATE_INTERVAL;
+            if (mManager != null) {
+                mManager.update(mNow, mNumBytesWritten, mBacklog > 0);
+            }
+        }
+
+        @Override
+        public void onLinkParametersChanged(LinkParameterManager manager) {
+            mNumChanges++;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares chunked and reliable writes of the same message over a simulated GATT link.
+ * Time is counted in connection intervals rather than measured, so results are repeatable
+ */
+public class ReliableWriteBenchmarkTest {
+    private static final int MESSAGE_LENGTH = 200;
+
+    @Test
+    public void benchmarkChunkedAgainstReliable() throws Exception {
+        byte[] message = message(MESSAGE_LENGTH);
+
+        SimulatedGattLink chunkedLink = new SimulatedGattLink(Integer.MAX_VALUE);
+        RecordingCallback chunked = new RecordingCallback();
+        chunkedLink.mOutboundQueue.send(ByteBuffer.wrap(message), chunked, false);
+        chunkedLink.run();
+
+        SimulatedGattLink reliableLink = new SimulatedGattLink(Integer.MAX_VALUE);
+        RecordingCallback reliable = new RecordingCallback();
+        reliableLink.mOutboundQueue.send(ByteBuffer.wrap(message), reliable, true);
+        reliableLink.run();
+
+        assertTrue(chunked.mWritten);
+        assertTrue(reliable.mWritten);
+        assertArrayEquals(message, chunkedLink.mApplied.toByteArray());
+        assertArrayEquals(message, reliableLink.mApplied.toByteArray());
+
+        // the Peripheral handles the message once rather than once per chunk
+        assertEquals(10, chunkedLink.mAppliedWrites);
+        assertEquals(1, reliableLink.mAppliedWrites);
+
+        System.out.println("chunked:  " + chunkedLink.report());
+        System.out.println("reliable: " + reliableLink.report());
+    }
+
+    @Test
+    public void droppedLinkLeavesNoPartialReliableWrite() throws Exception {
+        byte[] message = message(MESSAGE_LENGTH);
+
+        SimulatedGattLink chunkedLink = new SimulatedGattLink(5);
+        RecordingCallback chunked = new RecordingCallback();
+        chunkedLink.mOutboundQueue.send(ByteBuffer.wrap(message), chunked, false);
+        chunkedLink.run();
+
+        SimulatedGattLink reliableLink = new SimulatedGattLink(5);
+        RecordingCallback reliable = new RecordingCallback();
+        reliableLink.mOutboundQueue.send(ByteBuffer.wrap(message), reliable, true);
+        reliableLink.run();
+
+        // the chunked path leaves the first chunks applied
+        assertTrue(chunked.mFailed);
+        assertEquals(5 * 20, chunkedLink.mApplied.size());
+
+        assertTrue(reliable.mFailed);
+        assertEquals(0, reliable.mBytesWrittenOnFailure);
+        assertEquals(0, reliableLink.mApplied.size());
+    }
+
+    @Test
+    public void reliableMessageTooLongForOneTransactionFails() throws Exception {
+        SimulatedGattLink link = new SimulatedGattLink(Integer.MAX_VALUE);
+        RecordingCallback callback = new RecordingCallback();
+        link.mOutboundQueue.send(ByteBuffer.wrap(message(GattPacketTransport.MAX_RELIABLE_WRITE_LENGTH + 1)), callback, true);
+        RecordingCallback next = new RecordingCallback();
+        link.mOutboundQueue.send(ByteBuffer.wrap(message(20)), next, false);
+        link.run();
+
+        assertTrue(callback.mFailed);
+        assertTrue(next.mWritten);
+        // the long message never reached the air
+        assertEquals(1, link.mRequests);
+    }
+
+
+    private static byte[] message(int length) {
+        byte[] message = new byte[length];
+        for (int index = 0; index < length; index++) {
+            message[index] = (byte) ('a' + index % 26);
+        }
+        return message;
+    }
+
+
+    /**
+     * An echo Peripheral behind a link with a 23 byte ATT MTU and 30 ms connection interval.
+     *
+     * Each ATT request and its response take one connection interval.  A write carries 20
+     * bytes, a prepared write 18, since it also carries an offset.  The Peripheral echoes
+     * every value it applies as 20 byte notifications, which ride along in later intervals.
+     * The link drops after a number of requests
+     */
+    private static class SimulatedGattLink implements ReliableWriteTransport {
+        private static final int CONNECTION_INTERVAL = 30;
+        private static final int WRITE_PAYLOAD = 20;
+        private static final int PREPARE_WRITE_PAYLOAD = 18;
+
+        final OutboundQueue mOutboundQueue = new OutboundQueue(this);
+        final ByteArrayOutputStream mApplied = new ByteArrayOutputStream();
+        final LinkedList<Runnable> mEvents = new LinkedList<>();
+        final int mDropAfterRequests;
+        int mElapsed = 0;
+        int mRequests = 0;
+        int mNotifications = 0;
+        int mAppliedWrites = 0;
+        private boolean mInTransaction = false;
+        private final ByteArrayOutputStream mPrepared = new ByteArrayOutputStream();
+
+        SimulatedGattLink(int dropAfterRequests) {
+            mDropAfterRequests = dropAfterRequests;
+        }
+
+        void run() {
+            while (!mEvents.isEmpty()) {
+                mEvents.removeFirst().run();
+            }
+        }
+
+        String report() {
+            return MESSAGE_LENGTH + " bytes in " + mElapsed + " ms, " + mRequests + " ATT requests, "
+                    + (2 * mRequests + mNotifications) + " air packets, " + mAppliedWrites + " applied writes";
+        }
+
+        /**
+         * Spend one connection interval on a request
+         *
+         * @return <b>true</b> if the link is still up
+         */
+        private boolean request() {
+            if (mRequests >= mDropAfterRequests) {
+                return false;
+            }
+            mRequests++;
+            mElapsed += CONNECTION_INTERVAL;
+            return true;
+        }
+
+        private void apply(byte[] value) {
+            mApplied.write(value, 0, value.length);
+            mAppliedWrites++;
+            mNotifications += (value.length + WRITE_PAYLOAD - 1) / WRITE_PAYLOAD;
+        }
+
+        @Override
+        public int getMaxPacketLength() {
+            return WRITE_PAYLOAD;
+        }
+
+        @Override
+        public int getMaxReliableWriteLength() {
+            return GattPacketTransport.MAX_RELIABLE_WRITE_LENGTH;
+        }
+
+        @Override
+        public void writePacket(final byte[] packet) {
+            mEvents.add(new Runnable() {
+                @Override
+                public void run() {
+                    if (mInTransaction) {
+                        // a long value goes out as prepared writes at increasing offsets
+                        for (int offset = 0; offset < packet.length; offset += PREPARE_WRITE_PAYLOAD) {
+                            if (!request()) {
+                                mOutboundQueue.onPacketWritten(false);
+                                return;
+                            }
+                        }
+                        mPrepared.write(packet, 0, packet.length);
+                        mOutboundQueue.onPacketWritten(true);
+                    } else if (!request()) {
+                        mOutboundQueue.onPacketWritten(false);
+                    } else {
+                        apply(packet);
+                        mOutboundQueue.onPacketWritten(true);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void beginReliableWrite() {
+            mInTransaction = true;
+            mPrepared.reset();
+        }
+
+        @Override
+        public void executeReliableWrite() {
+            mInTransaction = false;
+            mEvents.add(new Runnable() {
+                @Override
+                public void run() {
+                    if (!request()) {
+                        mOutboundQueue.onReliableWriteCompleted(false);
+                        return;
+                    }
+                    apply(mPrepared.toByteArray());
+                    mOutboundQueue.onReliableWriteCompleted(true);
+                }
+            });
+        }
+
+        @Override
+        public void abortReliableWrite() {
+            mInTransaction = false;
+            mPrepared.reset();
+        }
+
+        @Override
+        public void setListener(PacketTransport.Listener listener) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+
+    private static class RecordingCallback implements OutboundQueue.Callback {
+        boolean mWritten = false;
+        boolean mFailed = false;
+        int mBytesWrittenOnFailure = -1;
+
+        @Override
+        public void onMessageProgress(ByteBuffer message, int bytesWritten) {
+        }
+
+        @Override
+        public void onMessageWritten(ByteBuffer message) {
+            mWritten = true;
+        }
+
+        @Override
+        public void onMessageFailed(ByteBuffer message, int bytesWritten) {
+            mFailed = true;
+            mBytesWrittenOnFailure = bytesWritten;
+        }
+    }
+}
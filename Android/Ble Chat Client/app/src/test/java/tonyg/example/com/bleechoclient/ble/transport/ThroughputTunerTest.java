@@ -0,0 +1,262 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ThroughputTunerTest {
+    @Test
+    public void growsOncePerRoundAndBacksOffOncePerRound() {
+        ThroughputTuner tuner = new ThroughputTuner(20, 244, 8);
+        assertEquals(20, tuner.getChunkSize());
+        assertEquals(1, tuner.getWindow());
+        assertEquals(0, tuner.getPacingDelay());
+
+        tuner.onPacketWritten(true, 20, 10);
+        assertEquals(20 + ThroughputTuner.CHUNK_SIZE_STEP, tuner.getChunkSize());
+        assertEquals(2, tuner.getWindow());
+
+        // a window of 2 needs two writes to grow again
+        tuner.onPacketWritten(true, 36, 12);
+        assertEquals(2, tuner.getWindow());
+        tuner.onPacketWritten(true, 36, 12);
+        assertEquals(3, tuner.getWindow());
+
+        tuner.onPacketWritten(false, 52, 15);
+        assertEquals(26, tuner.getChunkSize());
+        assertEquals(1, tuner.getWindow());
+        assertEquals(0, tuner.getPacingDelay());
+
+        // the next failure belongs to the same round
+        tuner.onPacketWritten(false, 52, 15);
+        assertEquals(26, tuner.getChunkSize());
+        assertEquals(2, tuner.getNumWritesFailed());
+    }
+
+    @Test
+    public void pacesOnlyOnceChunkAndWindowAreSmallest() {
+        ThroughputTuner tuner = new ThroughputTuner(20, 20, 1);
+        tuner.onPacketWritten(false, 20, 10);
+        assertEquals(1, tuner.getPacingDelay());
+        tuner.onPacketWritten(false, 20, 10);
+        tuner.onPacketWritten(false, 20, 10);
+        assertEquals(4, tuner.getPacingDelay());
+
+        tuner.onPacketWritten(true, 20, 10);
+        assertEquals(2, tuner.getPacingDelay());
+        tuner.onPacketWritten(true, 20, 10);
+        tuner.onPacketWritten(true, 20, 10);
+        assertEquals(0, tuner.getPacingDelay());
+    }
+
+    @Test
+    public void queueingDelayHoldsGrowth() {
+        ThroughputTuner tuner = new ThroughputTuner(20, 244, 8);
+        tuner.onPacketWritten(true, 20, 10);
+        int chunkSize = tuner.getChunkSize();
+        int window = tuner.getWindow();
+
+        for (int index = 0; index < 10; index++) {
+            tuner.onPacketWritten(true, chunkSize, 100);
+        }
+        assertEquals(chunkSize, tuner.getChunkSize());
+        assertEquals(window, tuner.getWindow());
+    }
+
+    @Test
+    public void slowerLinkBecomesTheNewBaseline() {
+        ThroughputTuner tuner = new ThroughputTuner(20, 244, 8);
+        // at the shortest connection interval, then backed off as far as it goes
+        for (int index = 0; index < 20; index++) {
+            tuner.onPacketWritten(true, 20, 7.5);
+        }
+        for (int index = 0; index < 20; index++) {
+            tuner.onPacketWritten(false, 20, 7.5);
+        }
+        assertEquals(20, tuner.getChunkSize());
+        assertEquals(1, tuner.getWindow());
+        assertTrue(tuner.getPacingDelay() > 0);
+
+        // the link slows to the balanced interval, and every write takes 30 ms from now on
+        int numWrites = 0;
+        while (tuner.getPacingDelay() > 0 && numWrites < 4 * ThroughputTuner.MIN_LATENCY_WINDOW) {
+            tuner.onPacketWritten(true, 20, 30);
+            numWrites++;
+        }
+        assertEquals(0, tuner.getPacingDelay());
+        assertTrue(numWrites <= 2 * ThroughputTuner.MIN_LATENCY_WINDOW + 16);
+        tuner.onPacketWritten(true, 20, 30);
+        assertTrue(tuner.getChunkSize() > 20);
+    }
+
+    @Test
+    public void resetLatencyMeasuresTheLinkAfresh() {
+        ThroughputTuner tuner = new ThroughputTuner(20, 20, 1);
+        tuner.onPacketWritten(true, 20, 1); // one fast outlier
+        tuner.onPacketWritten(false, 20, 30);
+        assertEquals(1, tuner.getPacingDelay());
+
+        tuner.onPacketWritten(true, 20, 30);
+        assertEquals(1, tuner.getPacingDelay());
+        tuner.resetLatency();
+        tuner.onPacketWritten(true, 20, 30);
+        assertEquals(0, tuner.getPacingDelay());
+    }
+
+    @Test
+    public void pipelinedQueueKeepsWindowOfWritesInFlight() throws Exception {
+        final LinkedList<byte[]> outstanding = new LinkedList<>();
+        PipelinedPacketTransport transport = new PipelinedPacketTransport() {
+            @Override
+            public int getMaxWritesInFlight() {
+                return 4;
+            }
+
+            @Override
+            public int getMaxPacketLength() {
+                return 100;
+            }
+
+            @Override
+            public void writePacket(byte[] packet) {
+                outstanding.add(packet);
+            }
+
+            @Override
+            public void setListener(Listener listener) {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        OutboundQueue outboundQueue = new OutboundQueue(transport);
+        ThroughputTuner tuner = new ThroughputTuner(20, 100, 8);
+        outboundQueue.setThroughputTuner(tuner);
+        outboundQueue.send(new byte[2000]);
+
+        int maxOutstanding = 0;
+        int bytesWritten = 0;
+        while (!outstanding.isEmpty()) {
+            maxOutstanding = Math.max(maxOutstanding, outstanding.size());
+            bytesWritten += outstanding.removeFirst().length;
+            outboundQueue.onPacketWritten(true);
+        }
+        assertEquals(2000, bytesWritten);
+        // the transport's limit wins over the tuner's window
+        assertEquals(4, maxOutstanding);
+        assertTrue(tuner.getChunkSize() > 20);
+        assertFalse(outboundQueue.isBusy());
+    }
+
+    @Test
+    public void tunedLinkOutperformsFixedSettingsUnderLoss() {
+        double[] lossRates = {0, 0.01, 0.05, 0.2};
+        for (double lossRate : lossRates) {
+            SimulatedLink fixed = new SimulatedLink(lossRate, null);
+            fixed.run();
+            SimulatedLink tuned = new SimulatedLink(lossRate, new ThroughputTuner(20, 244, 8));
+            tuned.run();
+            System.out.println(String.format("loss %4.1f%%: fixed %6d bytes/s, tuned %6d bytes/s, %d/%d writes failed, chunk %d, window %d, pacing %d ms",
+                    lossRate * 100, fixed.getGoodput(), tuned.getGoodput(),
+                    tuned.mNumFailed, tuned.mNumWrites, tuned.mTuner.getChunkSize(), tuned.mTuner.getWindow(), tuned.mTuner.getPacingDelay()));
+
+            if (lossRate <= 0.05) {
+                assertTrue(tuned.getGoodput() > 5 * fixed.getGoodput());
+            } else {
+                assertTrue(tuned.getGoodput() > fixed.getGoodput());
+            }
+            if (lossRate == 0) {
+                // backing off keeps buffer overflows rare
+                assertTrue(tuned.mNumFailed < tuned.mNumWrites / 20);
+            }
+        }
+    }
+
+
+    /**
+     * A link with a 15 ms connection interval that can carry 1500 bytes of packets per
+     * interval, in front of a Peripheral that can buffer 6 packets.  A write completes in
+     * the interval after it is carried.  A write that finds the buffer full fails, as does
+     * a random share of the rest.  Time moves in 1 ms steps, so runs are repeatable
+     */
+    private static class SimulatedLink {
+        private static final int CONNECTION_INTERVAL = 15;
+        private static final int BYTES_PER_INTERVAL = 1500;
+        private static final int PACKET_OVERHEAD = 11;
+        private static final int PERIPHERAL_BUFFER = 6;
+        private static final int DURATION = 20000;
+
+        final double mLossRate;
+        final ThroughputTuner mTuner;
+        final Random mRandom = new Random(42);
+        final LinkedList<int[]> mWaiting = new LinkedList<>(); // length, sent at
+        final LinkedList<int[]> mCarried = new LinkedList<>(); // length, sent at, completes at, success
+        long mNumBytesWritten = 0;
+        int mNumWrites = 0;
+        int mNumFailed = 0;
+
+        SimulatedLink(double lossRate, ThroughputTuner tuner) {
+            mLossRate = lossRate;
+            mTuner = tuner;
+        }
+
+        long getGoodput() {
+            return mNumBytesWritten * 1000 / DURATION;
+        }
+
+        void run() {
+            int nextWrite = 0;
+            for (int now = 0; now < DURATION; now++) {
+                // completions
+                Iterator<int[]> carried = mCarried.iterator();
+                while (carried.hasNext()) {
+                    int[] packet = carried.next();
+                    if (packet[2] <= now) {
+                        carried.remove();
+                        complete(packet[0], packet[3] == 1, now - packet[1]);
+                    }
+                }
+
+                // the link carries what fits in each connection interval
+                if (now % CONNECTION_INTERVAL == 0) {
+                    int budget = BYTES_PER_INTERVAL;
+                    while (!mWaiting.isEmpty() && budget >= mWaiting.getFirst()[0] + PACKET_OVERHEAD) {
+                        int[] packet = mWaiting.removeFirst();
+                        budget -= packet[0] + PACKET_OVERHEAD;
+                        boolean success = mRandom.nextDouble() >= mLossRate;
+                        mCarried.add(new int[]{packet[0], packet[1], now + CONNECTION_INTERVAL, success ? 1 : 0});
+                    }
+                }
+
+                // the sender
+                int window = mTuner != null ? mTuner.getWindow() : 1;
+                while (mWaiting.size() + mCarried.size() < window && now >= nextWrite) {
+                    int length = mTuner != null ? mTuner.getChunkSize() : 20;
+                    mNumWrites++;
+                    if (mWaiting.size() >= PERIPHERAL_BUFFER) {
+                        mCarried.add(new int[]{length, now, now + CONNECTION_INTERVAL, 0});
+                    } else {
+                        mWaiting.add(new int[]{length, now});
+                    }
+                    nextWrite = now + (mTuner != null ? (int) mTuner.getPacingDelay() : 0);
+                }
+            }
+        }
+
+        private void complete(int length, boolean success, int latency) {
+            if (success) {
+                mNumBytesWritten += length;
+            } else {
+                mNumFailed++;
+            }
+            if (mTuner != null) {
+                mTuner.onPacketWritten(success, length, latency);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package tonyg.example.com.bleechoclient.ble.transport;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WriteCoalescerTest {
+    @Test
+    public void smallMessagesShareOnePacket() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        WriteCoalescer coalescer = new WriteCoalescer(transport.mOutboundQueue, 20, 50);
+
+        coalescer.send("a\n".getBytes("UTF-8"));
+        coalescer.send("b\n".getBytes("UTF-8"));
+        coalescer.send("c\n".getBytes("UTF-8"));
+        assertTrue(transport.mPackets.isEmpty());
+        assertTrue(coalescer.hasPendingMessages());
+
+        Thread.sleep(200);
+        assertEquals(1, transport.mPackets.size());
+        assertEquals("a\nb\nc\n", new String(transport.mPackets.get(0), "UTF-8"));
+        coalescer.close();
+    }
+
+    @Test
+    public void fullPacketIsSentWithoutWaiting() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        WriteCoalescer coalescer = new WriteCoalescer(transport.mOutboundQueue, 20, 60000);
+
+        coalescer.send("0123456789".getBytes("UTF-8"));
+        coalescer.send("0123456789".getBytes("UTF-8"));
+        assertEquals(1, transport.mPackets.size());
+        assertEquals(20, transport.mPackets.get(0).length);
+        assertFalse(coalescer.hasPendingMessages());
+        coalescer.close();
+    }
+
+    @Test
+    public void sendNowFlushesInOrder() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        WriteCoalescer coalescer = new WriteCoalescer(transport.mOutboundQueue, 20, 60000);
+
+        coalescer.send("slow\n".getBytes("UTF-8"));
+        coalescer.sendNow("urgent\n".getBytes("UTF-8"));
+        assertEquals(1, transport.mPackets.size());
+        assertEquals("slow\nurgent\n", new String(transport.mPackets.get(0), "UTF-8"));
+        coalescer.close();
+    }
+
+    @Test
+    public void zeroDelaySendsEveryMessageOnItsOwn() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        WriteCoalescer coalescer = new WriteCoalescer(transport.mOutboundQueue, 20, 0);
+
+        coalescer.send("a\n".getBytes("UTF-8"));
+        coalescer.send("b\n".getBytes("UTF-8"));
+        assertEquals(2, transport.mPackets.size());
+        coalescer.close();
+    }
+
+    @Test
+    public void eachMessageInABatchHearsItWasWritten() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        WriteCoalescer coalescer = new WriteCoalescer(transport.mOutboundQueue, 20, 60000);
+        final List<String> written = new ArrayList<>();
+        OutboundQueue.Callback callback = new OutboundQueue.Callback() {
+            @Override
+            public void onMessageProgress(ByteBuffer message, int bytesWritten) {
+            }
+
+            @Override
+            public void onMessageWritten(ByteBuffer message) {
+                byte[] bytes = new byte[message.remaining()];
+                message.get(bytes);
+                written.add(new String(bytes));
+            }
+
+            @Override
+            public void onMessageFailed(ByteBuffer message, int bytesWritten) {
+                fail("nothing failed");
+            }
+        };
+
+        coalescer.send("a\n".getBytes("UTF-8"), callback);
+        coalescer.send("no callback\n".getBytes("UTF-8"));
+        coalescer.sendNow("b\n".getBytes("UTF-8"), callback);
+        assertEquals(1, transport.mPackets.size());
+        assertEquals(2, written.size());
+        assertEquals("a\n", written.get(0));
+        assertEquals("b\n", written.get(1));
+        coalescer.close();
+    }
+
+    @Test
+    public void closingFailsWaitingMessages() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        WriteCoalescer coalescer = new WriteCoalescer(transport.mOutboundQueue, 20, 60000);
+        final int[] numFailed = {0};
+        coalescer.send("a\n".getBytes("UTF-8"), new OutboundQueue.Callback() {
+            @Override
+            public void onMessageProgress(ByteBuffer message, int bytesWritten) {
+            }
+
+            @Override
+            public void onMessageWritten(ByteBuffer message) {
+                fail("never sent");
+            }
+
+            @Override
+            public void onMessageFailed(ByteBuffer message, int bytesWritten) {
+                assertEquals(2, message.remaining());
+                assertEquals(0, bytesWritten);
+                numFailed[0]++;
+            }
+        });
+        coalescer.close();
+        assertEquals(1, numFailed[0]);
+        assertTrue(transport.mPackets.isEmpty());
+    }
+
+
+    /**
+     * Acknowledges every write as soon as it is made
+     */
+    private static class RecordingTransport implements PacketTransport {
+        final OutboundQueue mOutboundQueue = new OutboundQueue(this);
+        final List<byte[]> mPackets = new ArrayList<>();
+        private boolean mAcknowledging = false;
+
+        @Override
+        public int getMaxPacketLength() {
+            return 20;
+        }
+
+        @Override
+        public synchronized void writePacket(byte[] packet) {
+            mPackets.add(packet);
+            if (mAcknowledging) {
+                return;
+            }
+            // acknowledge the whole chain here rather than recursing
+            mAcknowledging = true;
+            int acknowledged = 0;
+            while (acknowledged < mPackets.size()) {
+                acknowledged++;
+                mOutboundQueue.onPacketWritten(true);
+            }
+            mAcknowledging = false;
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
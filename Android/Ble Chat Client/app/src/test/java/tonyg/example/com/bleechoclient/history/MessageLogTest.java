@@ -0,0 +1,124 @@
+package tonyg.example.com.bleechoclient.history;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class MessageLogTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void entriesAreReadableBeforeAndAfterTheyReachDisk() throws Exception {
+        File directory = mFolder.newFolder("log");
+        MessageLog messageLog = new MessageLog(directory);
+        for (int index = 0; index < 2500; index++) {
+            int direction = index % 2 == 0 ? MessageLog.DIRECTION_SENT : MessageLog.DIRECTION_RECEIVED;
+            assertEquals(index, messageLog.append(direction, "message " + index + " \u00e9"));
+        }
+        // still in memory
+        assertEquals("message 2499 \u00e9", messageLog.read(2499).text);
+        messageLog.close();
+
+        MessageLog reopened = new MessageLog(directory);
+        assertEquals(2500, reopened.size());
+        assertEquals("message 0 \u00e9", reopened.read(0).text);
+        assertEquals(MessageLog.DIRECTION_RECEIVED, reopened.read(1023).direction);
+        assertEquals("message 1024 \u00e9", reopened.read(1024).text);
+        assertEquals("message 2499 \u00e9", reopened.read(2499).text);
+
+        assertEquals(2500, reopened.append(MessageLog.DIRECTION_SENT, "after reopening"));
+        reopened.close();
+        assertEquals("after reopening", new MessageLog(directory).read(2500).text);
+    }
+
+    @Test
+    public void entryCutShortByACrashIsDropped() throws Exception {
+        File directory = mFolder.newFolder("log");
+        MessageLog messageLog = new MessageLog(directory);
+        messageLog.append(MessageLog.DIRECTION_SENT, "first");
+        messageLog.append(MessageLog.DIRECTION_SENT, "second");
+        messageLog.close();
+
+        // lose the end of the last record
+        RandomAccessFile data = new RandomAccessFile(new File(directory, "segment-000000.dat"), "rw");
+        data.setLength(data.length() - 2);
+        data.close();
+
+        MessageLog recovered = new MessageLog(directory);
+        assertEquals(1, recovered.size());
+        assertEquals("first", recovered.read(0).text);
+        recovered.append(MessageLog.DIRECTION_RECEIVED, "third");
+        recovered.close();
+        assertEquals("third", new MessageLog(directory).read(1).text);
+    }
+
+    @Test
+    public void batchThatFailsPartWayIsNotWrittenTwice() throws Exception {
+        File directory = mFolder.newFolder("log");
+        File firstIndex = new File(directory, "segment-000000.idx");
+        File secondIndex = new File(directory, "segment-000001.idx");
+        MessageLog messageLog = new MessageLog(directory);
+        for (int index = 0; index < 1000; index++) {
+            messageLog.append(MessageLog.DIRECTION_SENT, "message " + index);
+        }
+        waitForLength(firstIndex, 1000 * 4);
+
+        // the next segment can't be opened, so a batch across the boundary fails half written
+        File blocker = new File(directory, "segment-000001.dat");
+        assertTrue(blocker.mkdir());
+        for (int index = 1000; index < 1050; index++) {
+            messageLog.append(MessageLog.DIRECTION_SENT, "message " + index);
+        }
+        waitForLength(firstIndex, 1024 * 4);
+        Thread.sleep(1000); // several retries
+        assertEquals(1024 * 4, firstIndex.length());
+        assertEquals("message 1049", messageLog.read(1049).text);
+
+        assertTrue(blocker.delete());
+        waitForLength(secondIndex, 26 * 4);
+        messageLog.close();
+
+        MessageLog reopened = new MessageLog(directory);
+        assertEquals(1050, reopened.size());
+        for (int index = 990; index < 1050; index++) {
+            assertEquals("message " + index, reopened.read(index).text);
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void backlogStopsGrowingWhileTheDiskFails() throws Exception {
+        File directory = mFolder.newFolder("log");
+        // the first segment can't be opened, so nothing ever reaches the disk
+        assertTrue(new File(directory, "segment-000000.dat").mkdir());
+        MessageLog messageLog = new MessageLog(directory);
+        for (int index = 0; index < MessageLog.MAX_UNWRITTEN; index++) {
+            assertEquals(index, messageLog.append(MessageLog.DIRECTION_SENT, "message " + index));
+        }
+        for (int index = 0; index < 10; index++) {
+            assertEquals(-1, messageLog.append(MessageLog.DIRECTION_SENT, "dropped"));
+        }
+        assertEquals(MessageLog.MAX_UNWRITTEN, messageLog.size());
+        assertEquals(10, messageLog.getNumDropped());
+        assertEquals("message 0", messageLog.read(0).text);
+
+        // closing doesn't wait out the retry delay
+        long start = System.currentTimeMillis();
+        messageLog.close();
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    private static void waitForLength(File file, long length) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (file.length() < length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(length, file.length());
+    }
+}
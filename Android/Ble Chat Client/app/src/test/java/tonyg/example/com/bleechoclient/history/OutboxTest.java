@@ -0,0 +1,127 @@
+package tonyg.example.com.bleechoclient.history;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OutboxTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void messagesWaitOnDiskUntilAcknowledged() throws Exception {
+        File file = new File(mFolder.getRoot(), "outbox/journal");
+        Outbox outbox = new Outbox(file);
+        for (int index = 0; index < 5; index++) {
+            assertEquals(index, outbox.submit("message " + index + " \u00e9"));
+        }
+        List<Outbox.Entry> sent = outbox.takeBatch(25);
+        assertEquals(2, sent.size());
+        outbox.acknowledge(sent);
+        // in flight when the app is killed
+        assertEquals(1, outbox.takeBatch(1).size());
+
+        Outbox reopened = new Outbox(file);
+        assertEquals(3, reopened.size());
+        List<Outbox.Entry> batch = reopened.takeBatch(1000);
+        assertEquals(3, batch.size());
+        assertEquals("message 2 \u00e9", batch.get(0).text);
+        assertEquals("message 4 \u00e9", batch.get(2).text);
+        assertEquals(5, reopened.submit("after reopening"));
+    }
+
+    @Test
+    public void messagesInFlightAreNotTakenTwice() throws Exception {
+        Outbox outbox = new Outbox(mFolder.newFile("journal"));
+        outbox.submit("first");
+        outbox.submit("second");
+        outbox.submit("third");
+
+        List<Outbox.Entry> first = outbox.takeBatch(6);
+        assertEquals(1, first.size());
+        List<Outbox.Entry> rest = outbox.takeBatch(100);
+        assertEquals(2, rest.size());
+        assertTrue(outbox.takeBatch(100).isEmpty());
+
+        // the link drops mid-write
+        outbox.release(rest);
+        outbox.acknowledge(first);
+        List<Outbox.Entry> retry = outbox.takeBatch(100);
+        assertEquals("second", retry.get(0).text);
+        assertEquals(2, retry.size());
+
+        // acknowledging twice changes nothing
+        outbox.acknowledge(retry);
+        outbox.acknowledge(retry);
+        assertEquals(0, outbox.size());
+    }
+
+    @Test
+    public void idsKeepGrowingOnceTheJournalIsCompacted() throws Exception {
+        File file = mFolder.newFile("journal");
+        Outbox outbox = new Outbox(file);
+        outbox.submit("first");
+        outbox.acknowledge(outbox.takeBatch(100));
+        assertTrue(file.length() < 16);
+        outbox.close();
+
+        Outbox reopened = new Outbox(file);
+        assertEquals(0, reopened.size());
+        assertEquals(1, reopened.submit("second"));
+    }
+
+    @Test
+    public void tornAndRepeatedRecordsAreRecovered() throws Exception {
+        File file = mFolder.newFile("journal");
+        Outbox outbox = new Outbox(file);
+        long start = file.length();
+        outbox.submit("kept");
+        long end = file.length();
+        outbox.submit("cut short by a crash");
+        outbox.close();
+
+        // the first submission journaled again, and the second one torn
+        RandomAccessFile journal = new RandomAccessFile(file, "rw");
+        byte[] record = new byte[(int) (end - start)];
+        journal.seek(start);
+        journal.readFully(record);
+        byte[] rest = new byte[(int) (journal.length() - end) - 3];
+        journal.readFully(rest);
+        journal.setLength(end);
+        journal.seek(end);
+        journal.write(record);
+        journal.write(rest);
+        journal.close();
+
+        Outbox recovered = new Outbox(file);
+        assertEquals(1, recovered.size());
+        assertEquals("kept", recovered.takeBatch(100).get(0).text);
+        assertEquals(1, recovered.submit("next"));
+    }
+
+    @Test
+    public void failedCompactionKeepsTheOldJournal() throws Exception {
+        File file = mFolder.newFile("journal");
+        Outbox outbox = new Outbox(file);
+        outbox.submit("first");
+        // the compacted journal can't be written aside
+        File blocker = new File(file.getPath() + ".tmp");
+        assertTrue(blocker.mkdir());
+
+        outbox.acknowledge(outbox.takeBatch(100));
+        assertEquals(0, outbox.size());
+        assertEquals(1, outbox.submit("second"));
+        outbox.close();
+
+        assertTrue(blocker.delete());
+        Outbox reopened = new Outbox(file);
+        assertEquals(1, reopened.size());
+        assertEquals("second", reopened.takeBatch(100).get(0).text);
+    }
+}
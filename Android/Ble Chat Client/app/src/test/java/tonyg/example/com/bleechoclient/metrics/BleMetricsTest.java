@@ -0,0 +1,44 @@
+package tonyg.example.com.bleechoclient.metrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class BleMetricsTest {
+    @Test
+    public void startupTraceIsRelativeToProcessStart() {
+        BleMetrics metrics = new BleMetrics();
+        assertTrue(metrics.getStartupTrace().isEmpty());
+        assertEquals(-1, metrics.getTimeToReady());
+
+        metrics.trace(BleMetrics.TRACE_PROCESS_START, 10000);
+        metrics.trace(BleMetrics.TRACE_SCAN_START, 10040);
+        metrics.trace(BleMetrics.TRACE_FIRST_FRAME, 10250);
+        metrics.trace(BleMetrics.TRACE_FIRST_SCAN_RESULT, 10900);
+        metrics.trace(BleMetrics.TRACE_CONNECTED, 11300);
+        metrics.trace(BleMetrics.TRACE_SERVICES_DISCOVERED, 11800);
+
+        Map<String, Long> trace = metrics.getStartupTrace();
+        assertEquals(Arrays.asList(BleMetrics.TRACE_PROCESS_START, BleMetrics.TRACE_SCAN_START,
+                BleMetrics.TRACE_FIRST_FRAME, BleMetrics.TRACE_FIRST_SCAN_RESULT,
+                BleMetrics.TRACE_CONNECTED, BleMetrics.TRACE_SERVICES_DISCOVERED),
+                new ArrayList<>(trace.keySet()));
+        assertEquals(Long.valueOf(40), trace.get(BleMetrics.TRACE_SCAN_START));
+        assertEquals(1800, metrics.getTimeToReady());
+        assertTrue(metrics.describeStartupTrace().startsWith("process_start=0ms, scan_start=40ms"));
+    }
+
+    @Test
+    public void onlyFirstTraceCounts() {
+        BleMetrics metrics = new BleMetrics();
+        metrics.trace(BleMetrics.TRACE_PROCESS_START, 0);
+        assertTrue(metrics.trace(BleMetrics.TRACE_CONNECTED, 500));
+        assertFalse(metrics.trace(BleMetrics.TRACE_CONNECTED, 9000));
+        assertTrue(metrics.hasTraced(BleMetrics.TRACE_CONNECTED));
+        assertEquals(Long.valueOf(500), metrics.getStartupTrace().get(BleMetrics.TRACE_CONNECTED));
+    }
+}
@@ -0,0 +1,86 @@
+package tonyg.example.com.bleechoclient.metrics;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import tonyg.example.com.bleechoclient.ble.transport.LinkFrame;
+
+import static org.junit.Assert.*;
+
+public class ClockSyncTest {
+    private static final long START = 5000000000L; // this device's clock, in microseconds
+    private static final long PERIPHERAL_START = (1L << 32) - 100000000L; // wraps 100 s in
+    private static final double DRIFT = 40e-6;
+
+    @Test
+    public void splitsRoundTripsAcrossAWrappingDriftingClock() throws Exception {
+        ClockSync clockSync = new ClockSync();
+        Random random = new Random(46);
+
+        long now = START;
+        double sumUplink = 0;
+        double sumDownlink = 0;
+        int numExchanges = 300;
+        for (int exchange = 0; exchange < numExchanges; exchange++) {
+            // a connection event every 7.5 ms, and writes that sometimes queue behind others
+            long uplink = 7500 + (random.nextInt(10) < 3 ? random.nextInt(30000) : 0);
+            long processing = 2000 + random.nextInt(5000);
+            long downlink = 7500 + random.nextInt(1000);
+            sumUplink += uplink;
+            sumDownlink += downlink;
+
+            int sequence = clockSync.onRequestSent(now);
+            long received = now + uplink;
+            long sent = received + processing;
+            byte[] reply = createTimeReply(sequence, getPeripheralTime(received), getPeripheralTime(sent));
+            assertTrue(clockSync.onReplyReceived(reply, 0, reply.length, sent + downlink));
+            now += 1000000;
+        }
+
+        double trueOffset = PERIPHERAL_START + (now - START) * (1 + DRIFT) - now;
+        assertEquals(trueOffset, clockSync.getOffsetAt(now), 1000);
+        assertEquals(DRIFT * 1e6, clockSync.getDrift(), 10);
+        assertEquals(numExchanges, clockSync.getNumExchanges());
+
+        // the queueing shows up on the uplink, where it happened
+        assertTrue(clockSync.describe(), clockSync.getUplink() > clockSync.getDownlink() + 2);
+        assertEquals(sumUplink / numExchanges / 1000, clockSync.getUplink(), 6);
+        assertEquals(sumDownlink / numExchanges / 1000, clockSync.getDownlink(), 1.5);
+        assertEquals(4.5, clockSync.getProcessing(), 2);
+        assertEquals(clockSync.getRoundTrip(), clockSync.getUplink() + clockSync.getProcessing() + clockSync.getDownlink(), 0.001);
+        System.out.println("clock sync: " + clockSync.describe());
+    }
+
+    @Test
+    public void onlyOutstandingRequestsAreAnswered() throws Exception {
+        ClockSync clockSync = new ClockSync();
+        int sequence = clockSync.onRequestSent(START);
+        byte[] reply = createTimeReply(sequence, 1000, 1500);
+
+        assertFalse(clockSync.onReplyReceived(createTimeReply(sequence + 1, 1000, 1500), 0, reply.length, START + 20000));
+        assertFalse(clockSync.onReplyReceived(reply, 0, reply.length - 1, START + 20000));
+        assertTrue(clockSync.onReplyReceived(reply, 0, reply.length, START + 20000));
+        // a repeated reply doesn't count twice
+        assertFalse(clockSync.onReplyReceived(reply, 0, reply.length, START + 30000));
+        assertEquals(1, clockSync.getNumExchanges());
+        assertEquals(20, clockSync.getRoundTrip(), 0.001);
+        assertEquals(0.5, clockSync.getProcessing(), 0.001);
+        assertEquals(9.75, clockSync.getUplink(), 0.001);
+
+        clockSync.reset();
+        assertFalse(clockSync.onReplyReceived(reply, 0, reply.length, START + 20000));
+        assertEquals(0, clockSync.getNumExchanges());
+        assertEquals(0, clockSync.getRoundTrip(), 0);
+    }
+
+    private static long getPeripheralTime(long time) {
+        return (PERIPHERAL_START + Math.round((time - START) * (1 + DRIFT))) & 0xFFFFFFFFL;
+    }
+
+    private static byte[] createTimeReply(int sequence, long received, long sent) {
+        return new byte[]{(byte) LinkFrame.TYPE_TIME_REPLY, (byte) sequence,
+                (byte) (received >> 24), (byte) (received >> 16), (byte) (received >> 8), (byte) received,
+                (byte) (sent >> 24), (byte) (sent >> 16), (byte) (sent >> 8), (byte) sent};
+    }
+}
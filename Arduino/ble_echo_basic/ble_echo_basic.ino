@@ -1,13 +1,11 @@
 #include "CurieBle.h"
 
-static const char* bluetoothDeviceName = "EchoServer";
+#include "echo_core.h"
+#include "ble_shim.h"
 
-static const int   characteristicTransmissionLength = 20;
+static const char* bluetoothDeviceName = "EchoServer";
 
-char bleMessage[characteristicTransmissionLength];
-int bleMessageLength;
 const char* uuid;
-bool bleDataWritten = false; 
 
 
 BLEService service("180C");
@@ -21,11 +19,8 @@ BLEPeripheral blePeripheral;
 
 
 void onCharacteristicWritten(BLECentral& central, BLECharacteristic &characteristic) {
-  bleDataWritten = true;
   uuid = characteristic.uuid();
-
-  bleMessageLength = characteristic.valueLength();
-  strcpy((char*) bleMessage, (const char*) characteristic.value());
+  echoCharacteristicWritten(characteristic.value(), characteristic.valueLength());
 }
 
 // Central connected.  Print MAC address
@@ -37,15 +32,41 @@ void onCentralConnected(BLECentral& central) {
 // Central disconnected
 void onCentralDisconnected(BLECentral& central) {
   Serial.println("Central disconnected");
+  echoCentralDisconnected();
+}
+
+
+// CurieBle implementation of ble_shim.h
+void bleShimSetValue(const unsigned char* value, int length) {
+  characteristic.setValue(value, length);
+}
+
+unsigned long bleShimMicros() {
+  return micros();
 }
 
+// each analog input, 0 to 3.3V, in volts
+short bleShimReadSample(int channel, unsigned long) {
+  long reading = analogRead(A0 + channel);
+  return (short) (reading * (33L << telemetryFractionBits) / (1023L * 10));
+}
+
+void bleShimLog(const char* message) {
+  Serial.println(message);
+}
+
+void bleShimLogNumber(const char* label, unsigned long number) {
+  Serial.print(label);
+  Serial.println(number);
+}
 
-void sendBleMessage(unsigned char* bleMessage) {
-  Serial.print("Sending message: ");
-  Serial.println((char*) bleMessage);
-  characteristic.setValue((const unsigned char*) bleMessage, bleMessageLength);
+void bleShimLogBytes(const char* label, const unsigned char* bytes, int length) {
+  Serial.print(label);
+  Serial.write(bytes, length);
+  Serial.println();
 }
 
+
 void setup() {
   Serial.begin(9600);
   while (!Serial) {;}
@@ -79,12 +100,6 @@ void setup() {
 
 
 void loop() {
-  if (bleDataWritten) {
-    bleDataWritten = false; // ensures only happens once
-
-    Serial.print("Incoming message found: ");
-    Serial.println((char*) bleMessage);
-    sendBleMessage((unsigned char*)bleMessage);
-  }
-
+  // echo everything that arrived since the last pass, in order, and send any telemetry that's due
+  echoLoop();
 }
@@ -0,0 +1,22 @@
+#ifndef BLE_SHIM_H
+#define BLE_SHIM_H
+
+// The few board services the echo core needs.
+// ble_echo_basic.ino implements these with CurieBle and Serial,
+// host/echo_host.cpp implements them with a pipe and stderr.
+
+// Set the characteristic value, which notifies the subscribed Central
+void bleShimSetValue(const unsigned char* value, int length);
+
+// Microseconds since startup.  Allowed to wrap
+unsigned long bleShimMicros();
+
+// Read one telemetry sample, as signed fixed point with telemetryFractionBits fractional bits
+short bleShimReadSample(int channel, unsigned long sampleIndex);
+
+// Debug output, one line per call
+void bleShimLog(const char* message);
+void bleShimLogNumber(const char* label, unsigned long number);
+void bleShimLogBytes(const char* label, const unsigned char* bytes, int length);
+
+#endif
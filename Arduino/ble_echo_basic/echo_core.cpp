@@ -0,0 +1,210 @@
+#include <string.h>
+
+#include "echo_core.h"
+#include "ble_shim.h"
+
+// Received chunks are kept in a ring buffer so that a write arriving
+// before loop() has echoed the previous one is not lost.
+// echoCharacteristicWritten() only moves the head, echoLoop() only moves the tail.
+static unsigned char inboundQueue[inboundQueueLength][characteristicTransmissionLength];
+static int inboundQueueChunkLengths[inboundQueueLength];
+static volatile int inboundQueueHead = 0;
+static volatile int inboundQueueTail = 0;
+static volatile unsigned long inboundQueueOverflows = 0;
+
+// outgoing notification, built from one or more queued chunks
+static unsigned char bleMessage[characteristicTransmissionLength];
+static int bleMessageLength;
+
+// Telemetry settings, changed by link frames in echoCharacteristicWritten()
+static const int laneHeaderLength = 2;
+static const int timeReplyLength = 10; // type, sequence number, receive time, transmit time
+static const int timeReplyTransmitTime = laneHeaderLength + 6;
+static const int telemetryHeaderLength = laneHeaderLength + 2; // then the first sample set's index
+static const unsigned long maxTelemetryLagMicros = 100000; // further behind than this, skip ahead
+static volatile int telemetryChannels = 0; // 0 while stopped
+static volatile unsigned long telemetryIntervalMicros = 0;
+static volatile bool telemetryRestarted = false;
+
+// Telemetry sampling, only touched by echoLoop()
+static unsigned long telemetryNextSampleMicros;
+static unsigned long telemetrySampleIndex;
+static unsigned char telemetryMessage[characteristicTransmissionLength];
+static int telemetryMessageLength = 0;
+
+
+// A link frame from the Central is a chunk of lane 0 with a header giving its length,
+// then the frame type and its fields.
+// A hello is the frame type, protocol version, capabilities and dictionary version
+static bool isLinkFrame(const unsigned char* value, int length, unsigned char type, int frameLength) {
+  return length >= laneHeaderLength + frameLength && value[0] == 0x00 && value[1] == frameLength && value[2] == type;
+}
+
+static void writeMicros(unsigned char* bytes, unsigned long micros) {
+  bytes[0] = (unsigned char) (micros >> 24);
+  bytes[1] = (unsigned char) (micros >> 16);
+  bytes[2] = (unsigned char) (micros >> 8);
+  bytes[3] = (unsigned char) micros;
+}
+
+static void startTelemetry(int channels, unsigned int rate) {
+  if (channels < 1) channels = 1;
+  if (channels > maxTelemetryChannels) channels = maxTelemetryChannels;
+  if (rate < 1) rate = 1;
+  if (rate > maxTelemetryRate) rate = maxTelemetryRate;
+  telemetryIntervalMicros = 1000000UL / rate;
+  telemetryChannels = channels;
+  telemetryRestarted = true;
+}
+
+void echoCharacteristicWritten(const unsigned char* value, int length) {
+  // answer a hello instead of echoing it, so the Central knows what this server takes
+  static const unsigned char helloReply[] = {
+    0x00, 4, linkFrameHelloReply, linkProtocolVersion,
+    linkCapabilityCompression | linkCapabilityTelemetry | linkCapabilityClock, compressionDictionaryVersion
+  };
+  // the transmit time is filled in by dequeueBleMessage()
+  unsigned char timeReply[laneHeaderLength + timeReplyLength];
+  if (isLinkFrame(value, length, linkFrameHello, 4)) {
+    value = helloReply;
+    length = sizeof(helloReply);
+  } else if (isLinkFrame(value, length, linkFrameTimeRequest, 2)) {
+    timeReply[0] = 0x00;
+    timeReply[1] = timeReplyLength;
+    timeReply[2] = linkFrameTimeReply;
+    timeReply[3] = value[3];
+    writeMicros(timeReply + 4, bleShimMicros());
+    value = timeReply;
+    length = sizeof(timeReply);
+  } else if (isLinkFrame(value, length, linkFrameTelemetryStart, 4)) {
+    startTelemetry(value[3], (value[4] << 8) | value[5]);
+    return;
+  } else if (isLinkFrame(value, length, linkFrameTelemetryStop, 1)) {
+    telemetryChannels = 0;
+    return;
+  }
+
+  int nextHead = (inboundQueueHead + 1) % inboundQueueLength;
+  if (nextHead == inboundQueueTail) {
+    // queue is full.  drop the chunk rather than overwrite one not yet echoed
+    inboundQueueOverflows++;
+    return;
+  }
+
+  // the value is not NUL terminated when a full 20 bytes are written,
+  // so copy exactly length bytes
+  if (length > characteristicTransmissionLength) {
+    length = characteristicTransmissionLength;
+  }
+  memcpy(inboundQueue[inboundQueueHead], value, length);
+  inboundQueueChunkLengths[inboundQueueHead] = length;
+  inboundQueueHead = nextHead;
+}
+
+// Pop as many consecutive queued chunks as fit in one notification into bleMessage.
+// Chunks are never split, so every notification starts on a chunk boundary
+// and full-length chunks go out unchanged.
+// Returns the number of chunks that were coalesced
+static int dequeueBleMessage() {
+  int numChunks = 0;
+  bleMessageLength = 0;
+  while (inboundQueueTail != inboundQueueHead) {
+    int length = inboundQueueChunkLengths[inboundQueueTail];
+    if (bleMessageLength + length > characteristicTransmissionLength) {
+      break;
+    }
+    memcpy(bleMessage + bleMessageLength, inboundQueue[inboundQueueTail], length);
+    if (isLinkFrame(bleMessage + bleMessageLength, length, linkFrameTimeReply, timeReplyLength)) {
+      writeMicros(bleMessage + bleMessageLength + timeReplyTransmitTime, bleShimMicros());
+    }
+    bleMessageLength += length;
+    inboundQueueTail = (inboundQueueTail + 1) % inboundQueueLength;
+    numChunks++;
+  }
+  return numChunks;
+}
+
+static void sendBleMessage(unsigned char* bleMessage) {
+  bleShimLogBytes("Sending message: ", bleMessage, bleMessageLength);
+  bleShimSetValue((const unsigned char*) bleMessage, bleMessageLength);
+}
+
+static void sendTelemetryMessage() {
+  int laneLength = telemetryMessageLength - laneHeaderLength;
+  telemetryMessage[0] = (unsigned char) (telemetryLane << 4 | laneLength >> 8);
+  telemetryMessage[1] = (unsigned char) laneLength;
+  bleShimSetValue(telemetryMessage, telemetryMessageLength);
+  telemetryMessageLength = 0;
+}
+
+// Read every sample set that is due, packing as many as fit into each notification.
+// The index in each notification lets the Central tell when sample sets were skipped
+static void sendDueTelemetry() {
+  int channels = telemetryChannels;
+  if (channels == 0) {
+    return;
+  }
+  unsigned long now = bleShimMicros();
+  if (telemetryRestarted) {
+    telemetryRestarted = false;
+    telemetryNextSampleMicros = now;
+    telemetrySampleIndex = 0;
+    telemetryMessageLength = 0;
+  }
+
+  unsigned long intervalMicros = telemetryIntervalMicros;
+  long lagMicros = (long) (now - telemetryNextSampleMicros);
+  if (lagMicros > (long) maxTelemetryLagMicros) {
+    // too far behind to catch up, such as after a long blocking call.  Skip ahead
+    if (telemetryMessageLength > 0) {
+      sendTelemetryMessage();
+    }
+    unsigned long numSkipped = lagMicros / intervalMicros;
+    telemetrySampleIndex += numSkipped;
+    telemetryNextSampleMicros += numSkipped * intervalMicros;
+    bleShimLogNumber("Telemetry behind, skipped sample sets: ", numSkipped);
+  }
+
+  while ((long) (now - telemetryNextSampleMicros) >= 0) {
+    if (telemetryMessageLength == 0) {
+      telemetryMessage[2] = (unsigned char) (telemetrySampleIndex >> 8);
+      telemetryMessage[3] = (unsigned char) telemetrySampleIndex;
+      telemetryMessageLength = telemetryHeaderLength;
+    }
+    for (int channel = 0; channel < channels; channel++) {
+      short sample = bleShimReadSample(channel, telemetrySampleIndex);
+      telemetryMessage[telemetryMessageLength++] = (unsigned char) (sample >> 8);
+      telemetryMessage[telemetryMessageLength++] = (unsigned char) sample;
+    }
+    telemetrySampleIndex++;
+    telemetryNextSampleMicros += intervalMicros;
+    // send once another sample set would not fit
+    if (telemetryMessageLength + 2 * channels > characteristicTransmissionLength) {
+      sendTelemetryMessage();
+    }
+  }
+}
+
+void echoCentralDisconnected() {
+  telemetryChannels = 0;
+}
+
+bool echoTelemetryRunning() {
+  return telemetryChannels != 0;
+}
+
+void echoLoop() {
+  while (inboundQueueTail != inboundQueueHead) {
+    int numChunks = dequeueBleMessage();
+
+    bleShimLogNumber("Incoming message found, chunks: ", numChunks);
+    sendBleMessage(bleMessage);
+  }
+
+  if (inboundQueueOverflows > 0) {
+    bleShimLogNumber("Inbound queue full, dropped chunks: ", inboundQueueOverflows);
+    inboundQueueOverflows = 0;
+  }
+
+  sendDueTelemetry();
+}
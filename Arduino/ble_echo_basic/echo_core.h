@@ -0,0 +1,54 @@
+#ifndef ECHO_CORE_H
+#define ECHO_CORE_H
+
+// Message handling for the echo server, free of any CurieBle calls
+// so that it also compiles on a desktop (see host/).
+
+static const int characteristicTransmissionLength = 20;
+static const int inboundQueueLength = 16; // number of received chunks that can wait to be echoed
+
+// Link frames, sent by the Central on lane 0 of its lane headers.
+// Everything else is echoed unchanged, including compressed blocks, so the
+// server can offer compression without decoding it.
+static const unsigned char linkFrameHello = 0x01;
+static const unsigned char linkFrameHelloReply = 0x02;
+static const unsigned char linkProtocolVersion = 1;
+static const unsigned char linkCapabilityCompression = 0x01;
+static const unsigned char linkCapabilityTelemetry = 0x02;
+static const unsigned char linkCapabilityClock = 0x04;
+static const unsigned char compressionDictionaryVersion = 1;
+
+// Telemetry, started and stopped by link frames from the Central.
+// Each notification is lane telemetryLane, then the 16 bit index of its first
+// sample set, then whole sample sets: one signed 16 bit fixed-point sample per
+// channel, with telemetryFractionBits fractional bits, all big-endian.
+static const unsigned char linkFrameTelemetryStart = 0x03; // then channels, sample rate in Hz (2 bytes)
+static const unsigned char linkFrameTelemetryStop = 0x04;
+static const unsigned char telemetryLane = 3;
+static const int telemetryFractionBits = 8;
+static const int maxTelemetryChannels = 4;
+static const unsigned int maxTelemetryRate = 1000; // sample sets per second
+
+// Clock readings, so the Central can estimate the offset between its clock and
+// bleShimMicros() and split round trips into uplink, processing and downlink.
+// The reply carries the request's sequence number, then when the request was
+// received and when the reply was sent, in microseconds, 32 bits big-endian.
+// It waits in the same queue as echoed chunks, so the time between the two
+// includes any wait for loop()
+static const unsigned char linkFrameTimeRequest = 0x05; // then a sequence number
+static const unsigned char linkFrameTimeReply = 0x06;
+
+// Queue a chunk written by the Central.  Safe to call from the BLE event handler
+void echoCharacteristicWritten(const unsigned char* value, int length);
+
+// Echo everything that arrived since the last call, in order,
+// then send any telemetry samples that are due
+void echoLoop();
+
+// Stop telemetry when the Central goes away
+void echoCentralDisconnected();
+
+// Whether telemetry is running, so echoLoop() has to be called even when nothing arrives
+bool echoTelemetryRunning();
+
+#endif
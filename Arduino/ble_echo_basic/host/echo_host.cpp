@@ -0,0 +1,103 @@
+// Desktop stand-in for the echo server board.
+//
+// Runs the same echo_core.cpp as the sketch, but instead of CurieBle it talks
+// over stdin/stdout.  In both directions each packet is one length byte
+// followed by that many bytes: stdin carries characteristic writes from the
+// Central, stdout carries the notifications.  Debug output goes to stderr.
+//
+// Like the BLE stack answering a write request, a single 0xFF byte is sent
+// back once each write has been handed to the core.
+//
+// Every write already waiting on stdin is queued before echoLoop() runs,
+// the same way several writes can arrive between two passes of loop().
+// While telemetry is running, echoLoop() also runs every millisecond without
+// waiting for a write.  The simulated sensor on each channel is a ramp, so the
+// Central can check that every sample arrived.
+
+#include <poll.h>
+#include <stdio.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "../echo_core.h"
+#include "../ble_shim.h"
+
+static const unsigned char writeAcknowledgement = 0xFF;
+static const int telemetryPollMillis = 1;
+
+static bool verbose = false;
+
+void bleShimSetValue(const unsigned char* value, int length) {
+  unsigned char lengthByte = (unsigned char) length;
+  fwrite(&lengthByte, 1, 1, stdout);
+  fwrite(value, 1, length, stdout);
+}
+
+unsigned long bleShimMicros() {
+  struct timespec now;
+  clock_gettime(CLOCK_MONOTONIC, &now);
+  return (unsigned long) now.tv_sec * 1000000UL + now.tv_nsec / 1000;
+}
+
+short bleShimReadSample(int channel, unsigned long sampleIndex) {
+  return (short) (sampleIndex * (channel + 1));
+}
+
+void bleShimLog(const char* message) {
+  if (verbose) {
+    fprintf(stderr, "%s\n", message);
+  }
+}
+
+void bleShimLogNumber(const char* label, unsigned long number) {
+  if (verbose) {
+    fprintf(stderr, "%s%lu\n", label, number);
+  }
+}
+
+void bleShimLogBytes(const char* label, const unsigned char* bytes, int length) {
+  if (verbose) {
+    fprintf(stderr, "%s", label);
+    fwrite(bytes, 1, length, stderr);
+    fprintf(stderr, "\n");
+  }
+}
+
+int main(int argc, char**) {
+  verbose = argc > 1;
+
+  unsigned char buffer[4096];
+  int buffered = 0;
+  while (true) {
+    struct pollfd input = {STDIN_FILENO, POLLIN, 0};
+    if (poll(&input, 1, echoTelemetryRunning() ? telemetryPollMillis : -1) == 0) {
+      // nothing written, but telemetry may be due
+      echoLoop();
+      fflush(stdout);
+      continue;
+    }
+
+    int numRead = read(STDIN_FILENO, buffer + buffered, sizeof(buffer) - buffered);
+    if (numRead <= 0) {
+      break; // Central went away
+    }
+    buffered += numRead;
+
+    // hand every complete packet to the core
+    int position = 0;
+    while (position < buffered && position + 1 + buffer[position] <= buffered) {
+      int length = buffer[position];
+      echoCharacteristicWritten(buffer + position + 1, length);
+      fwrite(&writeAcknowledgement, 1, 1, stdout);
+      position += 1 + length;
+    }
+    for (int index = position; index < buffered; index++) {
+      buffer[index - position] = buffer[index];
+    }
+    buffered -= position;
+
+    echoLoop();
+    fflush(stdout);
+  }
+  return 0;
+}